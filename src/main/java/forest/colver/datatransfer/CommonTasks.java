@@ -4,8 +4,6 @@ import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
 import static forest.colver.datatransfer.aws.AwsUtils.getEmxNpCreds;
 import static forest.colver.datatransfer.aws.AwsUtils.getEmxSbCreds;
 import static forest.colver.datatransfer.aws.AwsUtils.getS3Client;
-import static forest.colver.datatransfer.aws.S3Operations.s3Delete;
-import static forest.colver.datatransfer.aws.S3Operations.s3DeleteVersion;
 import static forest.colver.datatransfer.aws.S3Operations.s3List;
 import static forest.colver.datatransfer.aws.S3Operations.s3ListDeleteMarkers;
 import static forest.colver.datatransfer.aws.S3Operations.s3ListVersions;
@@ -18,6 +16,11 @@ import static forest.colver.datatransfer.messaging.JmsBrowse.copySpecificMessage
 import static forest.colver.datatransfer.messaging.JmsConsume.consumeOneMessage;
 import static forest.colver.datatransfer.messaging.JmsUtils.getJmsMsgPayload;
 
+import forest.colver.datatransfer.aws.PayloadMatcher;
+import forest.colver.datatransfer.aws.S3BatchDeleter;
+import forest.colver.datatransfer.aws.S3BatchDeleter.DeleteConfig;
+import forest.colver.datatransfer.aws.S3PrefixManifest;
+import forest.colver.datatransfer.aws.S3PrefixManifest.ManifestConfig;
 import forest.colver.datatransfer.messaging.Environment;
 import forest.colver.datatransfer.messaging.JmsSend;
 import forest.colver.datatransfer.messaging.JmsUtils;
@@ -31,6 +34,7 @@ import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +52,8 @@ public class CommonTasks {
       DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
   private static final DateTimeFormatter TIME_ONLY_FORMATTER =
       DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+  // payloads of sftp-error messages that can just be deleted, see cleanupSftpErrorSqsStage()
+  private static final List<String> SFTP_ERROR_NOISE = List.of("lifeflightTestFile");
 
   /**
    * Retrieves a message from the Prod Qpid Replay Caches and saves it as a file to the local
@@ -178,13 +184,15 @@ public class CommonTasks {
    * Clears Lifeflight health checks from the Stage sftp-error queue. Occasionally a Lifeflight
    * health check will fail for some random reason and leave an error in the sftp error queue. These
    * errors are typically anomalies and not valuable since the health check clears the next run.
+   * Add any other junk to SFTP_ERROR_NOISE, it is all cleaned up in the same single pass.
    */
   public static void cleanupSftpErrorSqsStage() {
+    var noise = PayloadMatcher.literals(SFTP_ERROR_NOISE);
     // Sandbox. Obviously refresh sandbox ~/.aws/credentials before running this.
-    // sqsDeleteMessagesWithPayloadLike(getEmxSbCreds(), "sftp-error", "lifeflightTestFile");
+    // sqsDeleteMessagesWithPayloadLike(getEmxSbCreds(), "sftp-error", noise);
 
     // Stage. Obviously refresh stage ~/.aws/credentials before running this.
-    sqsDeleteMessagesWithPayloadLike(getEmxNpCreds(), "sftp-error", "lifeflightTestFile");
+    sqsDeleteMessagesWithPayloadLike(getEmxNpCreds(), "sftp-error", noise);
   }
 
   /**
@@ -222,7 +230,8 @@ public class CommonTasks {
    */
   public static void cleanS3Directory(String bucket, String objectKey) {
     var creds = getEmxSbCreds();
-    try (var s3Client = getS3Client(creds)) {
+    try (var s3Client = getS3Client(creds);
+        var deleter = new S3BatchDeleter(s3Client, bucket, DeleteConfig.defaults())) {
       var twoWeeksAgo = Instant.now().minus(14, ChronoUnit.DAYS);
       var deleted = 0;
       var skipped = 0;
@@ -231,7 +240,7 @@ public class CommonTasks {
         if (object.size() > 0) {
           if (object.lastModified().isBefore(twoWeeksAgo)) {
             LOG.info("key={}; lastModified={}", object.key(), object.lastModified());
-            s3Delete(s3Client, bucket, object.key());
+            deleter.delete(object.key());
             deleted++;
           } else {
             skipped++;
@@ -246,7 +255,8 @@ public class CommonTasks {
           }
         }
       }
-      LOG.info("deleted={}; skipped={}", deleted, skipped);
+      var summary = deleter.finish();
+      LOG.info("deleted={}; skipped={}; failed={}", deleted, skipped, summary.failedKeys());
     }
   }
 
@@ -260,7 +270,8 @@ public class CommonTasks {
    */
   public static void cleanS3DirectoryVersioned(String bucket, String objectKey) {
     var creds = getEmxSbCreds();
-    try (var s3Client = getS3Client(creds)) {
+    try (var s3Client = getS3Client(creds);
+        var deleter = new S3BatchDeleter(s3Client, bucket, DeleteConfig.defaults())) {
       var oneWeekAgo = Instant.now().minus(7, ChronoUnit.DAYS);
       var deleted = 0;
       var skipped = 0;
@@ -277,7 +288,7 @@ public class CommonTasks {
               version.key(),
               version.versionId(),
               version.lastModified());
-          s3DeleteVersion(s3Client, bucket, version.key(), version.versionId());
+          deleter.delete(version.key(), version.versionId());
           deleted++;
         } else {
           skipped++;
@@ -297,7 +308,7 @@ public class CommonTasks {
               marker.key(),
               marker.versionId(),
               marker.lastModified());
-          s3DeleteVersion(s3Client, bucket, marker.key(), marker.versionId());
+          deleter.delete(marker.key(), marker.versionId());
           deleted++;
         } else {
           skipped++;
@@ -305,7 +316,8 @@ public class CommonTasks {
         }
       }
 
-      LOG.info("deleted={}; skipped={}", deleted, skipped);
+      var summary = deleter.finish();
+      LOG.info("deleted={}; skipped={}; failed={}", deleted, skipped, summary.failedKeys());
     }
   }
 
@@ -320,7 +332,8 @@ public class CommonTasks {
     var maxKeys = 1000;
     var oneYearAgo = Instant.now().minus(365, ChronoUnit.DAYS);
 
-    try (var s3Client = getS3Client(creds)) {
+    try (var s3Client = getS3Client(creds);
+        var deleter = new S3BatchDeleter(s3Client, bucket, DeleteConfig.defaults())) {
       // get the first set so that we have a continuationToken
       var listObjectsRequest =
           ListObjectsV2Request.builder().bucket(bucket).prefix(keyPrefix).maxKeys(maxKeys).build();
@@ -341,22 +354,22 @@ public class CommonTasks {
           //          if (contents.contains("emx-health-check")) {
           //            // delete lifeflight logs to make it easier to peruse other logs
           //            lifeflight++;
-          //            s3Delete(s3Client, bucket, object.key());
+          //            deleter.delete(object.key());
           //          }
           //          if (contents.contains("DivvyCloud")) {
           //            // delete lifeflight logs to make it easier to peruse other logs
           //            divvy++;
-          //            s3Delete(s3Client, bucket, object.key());
+          //            deleter.delete(object.key());
           //          }
           //          if (contents.contains("TrustedAdvisor")) {
           //            // delete lifeflight logs to make it easier to peruse other logs
           //            trusted++;
-          //            s3Delete(s3Client, bucket, object.key());
+          //            deleter.delete(object.key());
           //          }
 
           if (object.lastModified().isBefore(oneYearAgo)) {
             deleted++;
-            s3Delete(s3Client, bucket, object.key());
+            deleter.delete(object.key());
           }
         }
         var now = TIME_ONLY_FORMATTER.format(Instant.now());
@@ -379,4 +392,29 @@ public class CommonTasks {
       }
     }
   }
+
+  /**
+   * Counts and sizes up an S3 prefix from a local manifest kept in Downloads/s3-manifests, so
+   * repeat runs only re-list the sub-prefixes that changed instead of paging through everything.
+   */
+  public static void summarizeS3Prefix(String bucket, String keyPrefix) {
+    var file =
+        Paths.get(
+            System.getProperty("user.home"),
+            "Downloads",
+            "s3-manifests",
+            (bucket + "-" + keyPrefix).replaceAll("[^A-Za-z0-9._-]", "_") + ".manifest");
+    var manifest = S3PrefixManifest.open(file, bucket, keyPrefix);
+    manifest.refresh(getEmxSbCreds(), ManifestConfig.defaults());
+    manifest.save();
+    var oneYearAgo = Instant.now().minus(365, ChronoUnit.DAYS);
+    LOG.info(
+        "bucket={} prefix={} count={} bytes={} olderThanAYear={} olderThanAYearBytes={}",
+        bucket,
+        keyPrefix,
+        manifest.count(),
+        manifest.totalSize(),
+        manifest.countOlderThan(oneYearAgo),
+        manifest.sizeOlderThan(oneYearAgo));
+  }
 }
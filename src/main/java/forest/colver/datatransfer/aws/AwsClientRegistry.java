@@ -0,0 +1,277 @@
+package forest.colver.datatransfer.aws;
+
+import static software.amazon.awssdk.regions.Region.US_EAST_1;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.SdkClient;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatchlogs.CloudWatchLogsClient;
+import software.amazon.awssdk.services.lambda.LambdaClient;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sns.SnsClient;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+/**
+ * Hands out long-lived AWS service clients that are shared across operations. The AwsUtils
+ * getXxxClient() methods build a brand-new client every time, which means a new HTTP connection
+ * pool, a new TLS handshake and new credential resolution for every single SQS or S3 call. That is
+ * fine for one-off calls, but for bulk moves the setup cost ends up dominating the run time.
+ *
+ * <p>Clients are keyed by credentials provider + region + service, and AWS SDK clients are thread
+ * safe, so the same client can be used from several threads at once. IMPORTANT: the clients handed
+ * out here are owned by the registry, do NOT close them (i.e. don't put them in a
+ * try-with-resources). They are closed by {@link #closeAll()}, which also runs as a JVM shutdown
+ * hook.
+ */
+public class AwsClientRegistry {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AwsClientRegistry.class);
+  private static final Map<ClientKey, SdkClient> CLIENTS = new ConcurrentHashMap<>();
+  private static volatile HttpPoolConfig httpPoolConfig = HttpPoolConfig.defaults();
+
+  static {
+    Runtime.getRuntime()
+        .addShutdownHook(new Thread(AwsClientRegistry::closeAll, "aws-client-registry-shutdown"));
+  }
+
+  private AwsClientRegistry() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /** Which HTTP client implementation the shared clients use. */
+  public enum HttpClientType {
+    /** Apache HttpClient, a proper connection pool with idle connection eviction. */
+    APACHE,
+    /** The JDK HttpURLConnection, lighter weight but relies on the JDK keep-alive cache. */
+    URL_CONNECTION
+  }
+
+  /**
+   * HTTP connection pool settings used for every client the registry builds.
+   *
+   * @param type Apache or URL-connection HTTP client.
+   * @param maxConnections Max pooled connections per client (Apache only), also the max
+   *     concurrency of the Netty client used by the async clients.
+   * @param connectionTimeout Time allowed to establish a connection.
+   * @param socketTimeout Time allowed to wait for data on an established connection.
+   * @param connectionMaxIdleTime Idle connections older than this are evicted from the pool (Apache
+   *     only).
+   */
+  public record HttpPoolConfig(
+      HttpClientType type,
+      int maxConnections,
+      Duration connectionTimeout,
+      Duration socketTimeout,
+      Duration connectionMaxIdleTime) {
+
+    /** Apache client, 50 connections, idle connections reaped after a minute. */
+    public static HttpPoolConfig defaults() {
+      return new HttpPoolConfig(
+          HttpClientType.APACHE,
+          50,
+          Duration.ofSeconds(2),
+          Duration.ofSeconds(30),
+          Duration.ofSeconds(60));
+    }
+  }
+
+  private record ClientKey(AwsCredentialsProvider credentials, Region region, String service) {}
+
+  /**
+   * Change the HTTP pool settings. Any clients already handed out are closed, so call this before
+   * starting work, not in the middle of it.
+   */
+  public static void configure(HttpPoolConfig config) {
+    closeAll();
+    httpPoolConfig = config;
+    LOG.info("AWS client registry configured with {}", config);
+  }
+
+  public static HttpPoolConfig httpPoolConfig() {
+    return httpPoolConfig;
+  }
+
+  public static SqsClient sqsClient(AwsCredentialsProvider awsCp) {
+    return sqsClient(awsCp, US_EAST_1);
+  }
+
+  public static SqsClient sqsClient(AwsCredentialsProvider awsCp, Region region) {
+    return client(
+        awsCp,
+        region,
+        SqsClient.SERVICE_NAME,
+        k ->
+            SqsClient.builder()
+                .region(k.region())
+                .credentialsProvider(k.credentials())
+                .httpClientBuilder(httpClientBuilder())
+                .overrideConfiguration(
+                    c -> c.addExecutionInterceptor(SqsQueueUrlCache.invalidationInterceptor()))
+                .build());
+  }
+
+  /**
+   * An SqsAsyncClient on the Netty NIO HTTP client, for {@link SqsAsyncOperations}. The Netty max
+   * concurrency is the pool config's maxConnections, so that caps the requests in flight.
+   */
+  public static SqsAsyncClient sqsAsyncClient(AwsCredentialsProvider awsCp) {
+    return sqsAsyncClient(awsCp, US_EAST_1);
+  }
+
+  public static SqsAsyncClient sqsAsyncClient(AwsCredentialsProvider awsCp, Region region) {
+    return client(
+        awsCp,
+        region,
+        SqsAsyncClient.SERVICE_NAME + "-async",
+        k ->
+            SqsAsyncClient.builder()
+                .region(k.region())
+                .credentialsProvider(k.credentials())
+                .httpClientBuilder(asyncHttpClientBuilder())
+                .overrideConfiguration(
+                    c -> c.addExecutionInterceptor(SqsQueueUrlCache.invalidationInterceptor()))
+                .build());
+  }
+
+  public static S3Client s3Client(AwsCredentialsProvider awsCp) {
+    return s3Client(awsCp, US_EAST_1);
+  }
+
+  public static S3Client s3Client(AwsCredentialsProvider awsCp, Region region) {
+    return client(
+        awsCp,
+        region,
+        S3Client.SERVICE_NAME,
+        k ->
+            S3Client.builder()
+                .region(k.region())
+                .credentialsProvider(k.credentials())
+                .httpClientBuilder(httpClientBuilder())
+                .build());
+  }
+
+  public static SnsClient snsClient(AwsCredentialsProvider awsCp) {
+    return snsClient(awsCp, US_EAST_1);
+  }
+
+  public static SnsClient snsClient(AwsCredentialsProvider awsCp, Region region) {
+    return client(
+        awsCp,
+        region,
+        SnsClient.SERVICE_NAME,
+        k ->
+            SnsClient.builder()
+                .region(k.region())
+                .credentialsProvider(k.credentials())
+                .httpClientBuilder(httpClientBuilder())
+                .build());
+  }
+
+  public static LambdaClient lambdaClient(AwsCredentialsProvider awsCp) {
+    return lambdaClient(awsCp, US_EAST_1);
+  }
+
+  public static LambdaClient lambdaClient(AwsCredentialsProvider awsCp, Region region) {
+    return client(
+        awsCp,
+        region,
+        LambdaClient.SERVICE_NAME,
+        k ->
+            LambdaClient.builder()
+                .region(k.region())
+                .credentialsProvider(k.credentials())
+                .httpClientBuilder(httpClientBuilder())
+                .build());
+  }
+
+  public static CloudWatchLogsClient cloudWatchLogsClient(AwsCredentialsProvider awsCp) {
+    return cloudWatchLogsClient(awsCp, US_EAST_1);
+  }
+
+  public static CloudWatchLogsClient cloudWatchLogsClient(
+      AwsCredentialsProvider awsCp, Region region) {
+    return client(
+        awsCp,
+        region,
+        CloudWatchLogsClient.SERVICE_NAME,
+        k ->
+            CloudWatchLogsClient.builder()
+                .region(k.region())
+                .credentialsProvider(k.credentials())
+                .httpClientBuilder(httpClientBuilder())
+                .build());
+  }
+
+  /** The number of clients currently held by the registry. */
+  public static int size() {
+    return CLIENTS.size();
+  }
+
+  /** Closes every shared client, and empties the registry. */
+  public static void closeAll() {
+    for (var key : CLIENTS.keySet()) {
+      var client = CLIENTS.remove(key);
+      if (client != null) {
+        try {
+          client.close();
+        } catch (RuntimeException e) {
+          LOG.warn("Failed to close the {} client for region {}.", key.service(), key.region(), e);
+        }
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T extends SdkClient> T client(
+      AwsCredentialsProvider awsCp,
+      Region region,
+      String service,
+      Function<ClientKey, T> clientFactory) {
+    return (T)
+        CLIENTS.computeIfAbsent(
+            new ClientKey(awsCp, region, service),
+            k -> {
+              LOG.info("Building shared {} client for region {}.", k.service(), k.region());
+              return clientFactory.apply(k);
+            });
+  }
+
+  private static SdkAsyncHttpClient.Builder<?> asyncHttpClientBuilder() {
+    var config = httpPoolConfig;
+    return NettyNioAsyncHttpClient.builder()
+        .maxConcurrency(config.maxConnections())
+        .connectionTimeout(config.connectionTimeout())
+        .readTimeout(config.socketTimeout())
+        .writeTimeout(config.socketTimeout())
+        .connectionMaxIdleTime(config.connectionMaxIdleTime())
+        .useIdleConnectionReaper(true);
+  }
+
+  private static SdkHttpClient.Builder<?> httpClientBuilder() {
+    var config = httpPoolConfig;
+    if (config.type() == HttpClientType.URL_CONNECTION) {
+      return UrlConnectionHttpClient.builder()
+          .connectionTimeout(config.connectionTimeout())
+          .socketTimeout(config.socketTimeout());
+    }
+    return ApacheHttpClient.builder()
+        .maxConnections(config.maxConnections())
+        .connectionTimeout(config.connectionTimeout())
+        .socketTimeout(config.socketTimeout())
+        .connectionMaxIdleTime(config.connectionMaxIdleTime())
+        .useIdleConnectionReaper(true);
+  }
+}
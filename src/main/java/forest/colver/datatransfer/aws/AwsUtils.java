@@ -5,6 +5,7 @@ import static software.amazon.awssdk.regions.Region.US_EAST_1;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
@@ -23,6 +24,10 @@ public class AwsUtils {
   private static final Logger LOG = LoggerFactory.getLogger(AwsUtils.class);
   public static final int SQS_WAIT_TIME_SECONDS = 2;
   public static final int SQS_MAX_BATCH_SIZE = 10;
+  public static final int SQS_MAX_BATCH_PAYLOAD_BYTES = 262_144; // 256 KiB for the whole batch
+  public static final int SQS_MAX_MESSAGE_BYTES = 262_144; // 256 KiB for one message
+  private static final Map<String, AwsCredentialsProvider> PROFILE_CREDS =
+      new ConcurrentHashMap<>();
 
   private AwsUtils() {
     // https://rules.sonarsource.com/java/RSPEC-1118/
@@ -59,7 +64,7 @@ public class AwsUtils {
   public static final String PERSONAL_SANDBOX_SQS_SUB_SNS = "sub_demo_adv_queue";
 
   public static AwsCredentialsProvider getEmxNpCreds() {
-    return ProfileCredentialsProvider.create("aws-cloud-developer-463420020431");
+    return profileCreds("aws-cloud-developer-463420020431");
   }
 
   /**
@@ -68,21 +73,32 @@ public class AwsUtils {
    */
   public static AwsCredentialsProvider getEmxSbCreds() { // enterprise sandbox
     //    return ProfileCredentialsProvider.create("enterprise-sb"); // old way
-    return ProfileCredentialsProvider.create("aws-cloud-admin-646129096172");
+    return profileCreds("aws-cloud-admin-646129096172");
   }
 
   public static AwsCredentialsProvider getEmxProdCreds() {
-    return ProfileCredentialsProvider.create("aws-cloud-developer-616609670685");
+    return profileCreds("aws-cloud-developer-616609670685");
   }
 
   public static AwsCredentialsProvider getPersonalSbCreds() {
-    return ProfileCredentialsProvider.create("personal-sandbox");
+    return profileCreds("personal-sandbox");
+  }
+
+  /**
+   * Hands back the same ProfileCredentialsProvider for a given profile every time it is asked for.
+   * This keeps the provider's resolved (and cached) credentials around between operations, and it
+   * gives the {@link AwsClientRegistry} a stable key so the shared clients can actually be shared.
+   */
+  public static AwsCredentialsProvider profileCreds(String profileName) {
+    return PROFILE_CREDS.computeIfAbsent(profileName, ProfileCredentialsProvider::create);
   }
 
   public static SqsClient getSqsClient(AwsCredentialsProvider awsCredentialsProvider) {
     return SqsClient.builder()
         .region(US_EAST_1)
         .credentialsProvider(awsCredentialsProvider)
+        .overrideConfiguration(
+            c -> c.addExecutionInterceptor(SqsQueueUrlCache.invalidationInterceptor()))
         .build();
   }
 
@@ -0,0 +1,81 @@
+package forest.colver.datatransfer.aws;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of same-size direct buffers, handed out and given back, so moving a multi-GB
+ * object part by part only ever holds a few parts in memory (off the heap) and does not allocate a
+ * new buffer for each one. Asking for a buffer while they are all out blocks, which is what keeps
+ * a fast reader from getting ahead of slow uploads.
+ */
+class ByteBufferPool {
+
+  private final int bufferSize;
+  private final int maxBuffers;
+  private final BlockingQueue<ByteBuffer> free;
+  private final AtomicInteger allocated = new AtomicInteger();
+
+  ByteBufferPool(int bufferSize, int maxBuffers) {
+    this.bufferSize = bufferSize;
+    this.maxBuffers = maxBuffers;
+    this.free = new ArrayBlockingQueue<>(maxBuffers);
+  }
+
+  /** A cleared buffer, allocating one if fewer than maxBuffers exist, otherwise waiting for one. */
+  ByteBuffer acquire() throws InterruptedException {
+    var buffer = free.poll();
+    if (buffer == null) {
+      if (allocated.incrementAndGet() <= maxBuffers) {
+        return ByteBuffer.allocateDirect(bufferSize);
+      }
+      allocated.decrementAndGet();
+      buffer = free.take();
+    }
+    return buffer.clear();
+  }
+
+  void release(ByteBuffer buffer) {
+    free.offer(buffer);
+  }
+
+  /** How many buffers have been allocated so far. */
+  int allocated() {
+    return allocated.get();
+  }
+
+  /**
+   * Reads what is left of a buffer without copying it. The buffer is duplicated, so the same buffer
+   * can be streamed again (e.g. when the SDK retries a request).
+   */
+  static InputStream inputStream(ByteBuffer buffer) {
+    var source = buffer.duplicate();
+    return new InputStream() {
+      @Override
+      public int read() {
+        return source.hasRemaining() ? source.get() & 0xFF : -1;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+          return 0;
+        }
+        if (!source.hasRemaining()) {
+          return -1;
+        }
+        var count = Math.min(length, source.remaining());
+        source.get(bytes, offset, count);
+        return count;
+      }
+
+      @Override
+      public int available() {
+        return source.remaining();
+      }
+    };
+  }
+}
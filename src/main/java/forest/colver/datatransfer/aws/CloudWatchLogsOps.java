@@ -1,6 +1,6 @@
 package forest.colver.datatransfer.aws;
 
-import static forest.colver.datatransfer.aws.AwsUtils.getCloudWatchLogsClient;
+import static forest.colver.datatransfer.aws.AwsClientRegistry.cloudWatchLogsClient;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -21,12 +21,17 @@ public class CloudWatchLogsOps {
 
   public static PutLogEventsResponse putCWLogEvents(
       AwsCredentialsProvider awsCp, String logGroupName, String streamName, List<String> messages) {
-    String sequenceToken;
-    try (var logsClient = getCloudWatchLogsClient(awsCp)) {
-      createLogStream(logsClient, logGroupName, streamName);
-      sequenceToken = getSequenceToken(logsClient, logGroupName, streamName);
-    }
-    return putCWLogEvents(awsCp, logGroupName, streamName, sequenceToken, messages);
+    return putCWLogEvents(cloudWatchLogsClient(awsCp), logGroupName, streamName, messages);
+  }
+
+  public static PutLogEventsResponse putCWLogEvents(
+      CloudWatchLogsClient logsClient,
+      String logGroupName,
+      String streamName,
+      List<String> messages) {
+    createLogStream(logsClient, logGroupName, streamName);
+    var sequenceToken = getSequenceToken(logsClient, logGroupName, streamName);
+    return putCWLogEvents(logsClient, logGroupName, streamName, sequenceToken, messages);
   }
 
   public static PutLogEventsResponse putCWLogEvents(
@@ -35,30 +40,37 @@ public class CloudWatchLogsOps {
       String streamName,
       String sequenceToken,
       List<String> messages) {
-    PutLogEventsResponse response;
-    try (var logsClient = getCloudWatchLogsClient(awsCp)) {
-      List<InputLogEvent> inputLogEvents = new ArrayList<>();
-      for (String s : messages) {
-        // Build an input log message to put to CloudWatch.
-        var inputLogEvent =
-            InputLogEvent.builder().message(s).timestamp(System.currentTimeMillis()).build();
-        inputLogEvents.add(inputLogEvent);
-      }
-
-      // Specify the request parameters.
-      // Sequence token is required so that the log can be written to the
-      // latest location in the stream.
-      var putLogEventsRequest =
-          PutLogEventsRequest.builder()
-              .logEvents(inputLogEvents)
-              .logGroupName(logGroupName)
-              .logStreamName(streamName)
-              .sequenceToken(sequenceToken)
-              .build();
+    return putCWLogEvents(
+        cloudWatchLogsClient(awsCp), logGroupName, streamName, sequenceToken, messages);
+  }
 
-      response = logsClient.putLogEvents(putLogEventsRequest);
-      LOG.info("Successfully put CloudWatch log event: {}", response);
+  public static PutLogEventsResponse putCWLogEvents(
+      CloudWatchLogsClient logsClient,
+      String logGroupName,
+      String streamName,
+      String sequenceToken,
+      List<String> messages) {
+    List<InputLogEvent> inputLogEvents = new ArrayList<>();
+    for (String s : messages) {
+      // Build an input log message to put to CloudWatch.
+      var inputLogEvent =
+          InputLogEvent.builder().message(s).timestamp(System.currentTimeMillis()).build();
+      inputLogEvents.add(inputLogEvent);
     }
+
+    // Specify the request parameters.
+    // Sequence token is required so that the log can be written to the
+    // latest location in the stream.
+    var putLogEventsRequest =
+        PutLogEventsRequest.builder()
+            .logEvents(inputLogEvents)
+            .logGroupName(logGroupName)
+            .logStreamName(streamName)
+            .sequenceToken(sequenceToken)
+            .build();
+
+    var response = logsClient.putLogEvents(putLogEventsRequest);
+    LOG.info("Successfully put CloudWatch log event: {}", response);
     return response;
   }
 
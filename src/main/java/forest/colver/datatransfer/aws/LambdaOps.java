@@ -1,12 +1,13 @@
 package forest.colver.datatransfer.aws;
 
-import static forest.colver.datatransfer.aws.AwsUtils.getLambdaClient;
+import static forest.colver.datatransfer.aws.AwsClientRegistry.lambdaClient;
 
 import java.nio.charset.StandardCharsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.lambda.LambdaClient;
 import software.amazon.awssdk.services.lambda.model.InvokeRequest;
 import software.amazon.awssdk.services.lambda.model.InvokeResponse;
 
@@ -16,16 +17,18 @@ public class LambdaOps {
 
   public static InvokeResponse lambdaInvoke(
       AwsCredentialsProvider awsCp, String funcName, String p) {
+    return lambdaInvoke(lambdaClient(awsCp), funcName, p);
+  }
+
+  public static InvokeResponse lambdaInvoke(LambdaClient lambdaClient, String funcName, String p) {
     var payload = SdkBytes.fromUtf8String(p);
-    try (var lambdaClient = getLambdaClient(awsCp)) {
-      var invokeRequest = InvokeRequest.builder().functionName(funcName).payload(payload).build();
-      LOG.info("Invoked {}", funcName);
-      var response = lambdaClient.invoke(invokeRequest);
-      LOG.info(
-          "Response {}: {}\n",
-          response.statusCode(),
-          response.payload().asString(StandardCharsets.UTF_8));
-      return response;
-    }
+    var invokeRequest = InvokeRequest.builder().functionName(funcName).payload(payload).build();
+    LOG.info("Invoked {}", funcName);
+    var response = lambdaClient.invoke(invokeRequest);
+    LOG.info(
+        "Response {}: {}\n",
+        response.statusCode(),
+        response.payload().asString(StandardCharsets.UTF_8));
+    return response;
   }
 }
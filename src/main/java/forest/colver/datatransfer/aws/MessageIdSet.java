@@ -0,0 +1,158 @@
+package forest.colver.datatransfer.aws;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A compact set of SQS message IDs, for remembering which messages a scan has already seen. SQS
+ * message IDs are UUIDs, so each one is kept as its two 64-bit halves in an open-addressing hash
+ * table of primitive longs: 16 bytes per ID (32 with the table at most half full) instead of the
+ * ~100 bytes a String in a HashSet costs. A million IDs fit in about 32MB.
+ *
+ * <p>Anything that isn't a UUID (it shouldn't happen, but SQS does not promise the format) goes
+ * into a plain HashSet on the side, so the set is always exact. Not thread safe.
+ */
+public final class MessageIdSet {
+
+  private static final int MIN_CAPACITY = 1 << 10;
+  private long[] his;
+  private long[] los;
+  private int mask;
+  private int size;
+  private boolean hasZero; // the all-zero UUID, since 0/0 marks an empty slot
+  private final Set<String> others = new HashSet<>();
+
+  public MessageIdSet() {
+    this(MIN_CAPACITY / 2);
+  }
+
+  /**
+   * A set sized up front for about this many IDs, so it doesn't have to grow (it still can).
+   *
+   * @param expectedSize How many IDs are expected.
+   */
+  public MessageIdSet(int expectedSize) {
+    var capacity = Integer.highestOneBit(Math.max(MIN_CAPACITY, expectedSize * 2 - 1)) << 1;
+    his = new long[capacity];
+    los = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Adds the message ID.
+   *
+   * @return True if it was not in the set yet.
+   */
+  public boolean add(String messageId) {
+    if (!isUuid(messageId)) {
+      return others.add(messageId);
+    }
+    var hi = hex(messageId, 0, 8) << 32 | hex(messageId, 9, 13) << 16 | hex(messageId, 14, 18);
+    var lo = hex(messageId, 19, 23) << 48 | hex(messageId, 24, 36);
+    if (hi == 0 && lo == 0) {
+      var added = !hasZero;
+      hasZero = true;
+      return added;
+    }
+    var slot = slot(hi, lo);
+    while (his[slot] != 0 || los[slot] != 0) {
+      if (his[slot] == hi && los[slot] == lo) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+    his[slot] = hi;
+    los[slot] = lo;
+    if (++size * 2 > his.length) {
+      grow();
+    }
+    return true;
+  }
+
+  public boolean contains(String messageId) {
+    if (!isUuid(messageId)) {
+      return others.contains(messageId);
+    }
+    var hi = hex(messageId, 0, 8) << 32 | hex(messageId, 9, 13) << 16 | hex(messageId, 14, 18);
+    var lo = hex(messageId, 19, 23) << 48 | hex(messageId, 24, 36);
+    if (hi == 0 && lo == 0) {
+      return hasZero;
+    }
+    var slot = slot(hi, lo);
+    while (his[slot] != 0 || los[slot] != 0) {
+      if (his[slot] == hi && los[slot] == lo) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  public int size() {
+    return size + (hasZero ? 1 : 0) + others.size();
+  }
+
+  private int slot(long hi, long lo) {
+    // UUIDs are mostly random already, mix anyway in case they are not
+    var h = (hi ^ Long.rotateLeft(lo, 32)) * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+
+  private void grow() {
+    var oldHis = his;
+    var oldLos = los;
+    his = new long[oldHis.length * 2];
+    los = new long[oldLos.length * 2];
+    mask = his.length - 1;
+    for (var i = 0; i < oldHis.length; i++) {
+      if (oldHis[i] != 0 || oldLos[i] != 0) {
+        var slot = slot(oldHis[i], oldLos[i]);
+        while (his[slot] != 0 || los[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        his[slot] = oldHis[i];
+        los[slot] = oldLos[i];
+      }
+    }
+  }
+
+  /** The 8-4-4-4-12 hex digit format, either case. */
+  private static boolean isUuid(String id) {
+    if (id == null || id.length() != 36) {
+      return false;
+    }
+    for (var i = 0; i < 36; i++) {
+      var c = id.charAt(i);
+      if (i == 8 || i == 13 || i == 18 || i == 23) {
+        if (c != '-') {
+          return false;
+        }
+      } else if (hexDigit(c) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static long hex(String id, int from, int to) {
+    var value = 0L;
+    for (var i = from; i < to; i++) {
+      value = value << 4 | hexDigit(id.charAt(i));
+    }
+    return value;
+  }
+
+  /** ASCII only, Character.digit() would also take other scripts' digits. */
+  private static int hexDigit(char c) {
+    if (c >= '0' && c <= '9') {
+      return c - '0';
+    }
+    if (c >= 'a' && c <= 'f') {
+      return c - 'a' + 10;
+    }
+    if (c >= 'A' && c <= 'F') {
+      return c - 'A' + 10;
+    }
+    return -1;
+  }
+}
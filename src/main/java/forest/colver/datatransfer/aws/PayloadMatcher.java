@@ -0,0 +1,210 @@
+package forest.colver.datatransfer.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Matches a payload against a whole set of patterns at once, and says which one matched. Built for
+ * the payload-like SQS operations, so that getting rid of several kinds of junk messages is one
+ * scan of the queue instead of one scan per pattern.
+ *
+ * <p>Literal patterns are compiled into an Aho-Corasick automaton (a trie with failure links), so
+ * looking for any number of literals is a single pass over the payload, one step per character.
+ * Regex patterns are checked one after another with {@link java.util.regex.Matcher#find()}, so
+ * keep those few. Literals are checked first.
+ */
+public final class PayloadMatcher {
+
+  private final List<String> literals;
+  private final List<Pattern> regexes;
+  // the automaton, one entry per trie node, node 0 is the root
+  private final char[][] keys; // sorted chars of the node's children
+  private final int[][] children; // child node for each of keys
+  private final int[] fail; // node for the longest proper suffix that is also in the trie
+  private final int[] output; // literal ending at this node, -1 for none
+  private final int[] outputLink; // nearest node down the fail chain with an output, -1 for none
+
+  private PayloadMatcher(List<String> literals, List<Pattern> regexes) {
+    this.literals = literals;
+    this.regexes = regexes;
+
+    // build the trie
+    List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+    List<Integer> ends = new ArrayList<>();
+    trie.add(new TreeMap<>());
+    ends.add(-1);
+    for (var i = 0; i < literals.size(); i++) {
+      var node = 0;
+      for (var c : literals.get(i).toCharArray()) {
+        var next = trie.get(node).get(c);
+        if (next == null) {
+          next = trie.size();
+          trie.get(node).put(c, next);
+          trie.add(new TreeMap<>());
+          ends.add(-1);
+        }
+        node = next;
+      }
+      if (ends.get(node) < 0) {
+        ends.set(node, i);
+      }
+    }
+
+    // freeze it into arrays
+    var size = trie.size();
+    keys = new char[size][];
+    children = new int[size][];
+    output = new int[size];
+    for (var node = 0; node < size; node++) {
+      var edges = trie.get(node);
+      keys[node] = new char[edges.size()];
+      children[node] = new int[edges.size()];
+      var e = 0;
+      for (Map.Entry<Character, Integer> edge : edges.entrySet()) {
+        keys[node][e] = edge.getKey();
+        children[node][e++] = edge.getValue();
+      }
+      output[node] = ends.get(node);
+    }
+
+    // failure and output links, breadth first so a node's fail target is done before the node
+    fail = new int[size];
+    outputLink = new int[size];
+    outputLink[0] = -1;
+    var queue = new ArrayDeque<Integer>();
+    for (var child : children[0]) {
+      outputLink[child] = -1;
+      queue.add(child);
+    }
+    while (!queue.isEmpty()) {
+      var node = queue.poll();
+      for (var e = 0; e < keys[node].length; e++) {
+        var c = keys[node][e];
+        var child = children[node][e];
+        var f = fail[node];
+        while (f != 0 && child(f, c) < 0) {
+          f = fail[f];
+        }
+        var target = child(f, c);
+        fail[child] = target < 0 || target == child ? 0 : target;
+        outputLink[child] = output[fail[child]] >= 0 ? fail[child] : outputLink[fail[child]];
+        queue.add(child);
+      }
+    }
+  }
+
+  /** A matcher for just these literal patterns. */
+  public static PayloadMatcher literals(Collection<String> literals) {
+    return builder().literals(literals).build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * The first pattern found in the payload: the literal that ends earliest in the payload (the
+   * longest one if several end at the same spot), or else the first regex that finds something.
+   *
+   * @return The pattern as it was given to the builder, empty if nothing matched.
+   */
+  public Optional<String> firstMatch(String payload) {
+    if (payload == null) {
+      return Optional.empty();
+    }
+    if (!literals.isEmpty()) {
+      var node = 0;
+      for (var i = 0; i < payload.length(); i++) {
+        var c = payload.charAt(i);
+        var next = child(node, c);
+        while (next < 0 && node != 0) {
+          node = fail[node];
+          next = child(node, c);
+        }
+        node = next < 0 ? 0 : next;
+        var hit = output[node] >= 0 ? node : outputLink[node];
+        if (hit >= 0) {
+          return Optional.of(literals.get(output[hit]));
+        }
+      }
+    }
+    for (var regex : regexes) {
+      if (regex.matcher(payload).find()) {
+        return Optional.of(regex.pattern());
+      }
+    }
+    return Optional.empty();
+  }
+
+  public boolean matches(String payload) {
+    return firstMatch(payload).isPresent();
+  }
+
+  /** All the patterns, literals first. */
+  public List<String> patterns() {
+    var patterns = new ArrayList<>(literals);
+    regexes.forEach(r -> patterns.add(r.pattern()));
+    return patterns;
+  }
+
+  @Override
+  public String toString() {
+    return "PayloadMatcher" + patterns();
+  }
+
+  private int child(int node, char c) {
+    var e = Arrays.binarySearch(keys[node], c);
+    return e < 0 ? -1 : children[node][e];
+  }
+
+  public static class Builder {
+
+    private final Set<String> literals = new LinkedHashSet<>();
+    private final Set<String> regexes = new LinkedHashSet<>();
+
+    private Builder() {}
+
+    /** Matches payloads containing this text, like the old payloadLike parameter. */
+    public Builder literal(String literal) {
+      if (literal == null || literal.isEmpty()) {
+        throw new IllegalArgumentException("A literal pattern cannot be empty.");
+      }
+      literals.add(literal);
+      return this;
+    }
+
+    public Builder literals(Collection<String> literals) {
+      literals.forEach(this::literal);
+      return this;
+    }
+
+    /** Matches payloads where the regex finds something (it does not have to match it all). */
+    public Builder regex(String regex) {
+      if (regex == null || regex.isEmpty()) {
+        throw new IllegalArgumentException("A regex pattern cannot be empty.");
+      }
+      regexes.add(regex);
+      return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException If there are no patterns, or a regex is not valid.
+     */
+    public PayloadMatcher build() {
+      if (literals.isEmpty() && regexes.isEmpty()) {
+        throw new IllegalArgumentException("A PayloadMatcher needs at least one pattern.");
+      }
+      var compiled = regexes.stream().map(Pattern::compile).toList();
+      return new PayloadMatcher(List.copyOf(literals), compiled);
+    }
+  }
+}
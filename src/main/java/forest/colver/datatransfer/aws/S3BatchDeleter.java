@@ -0,0 +1,288 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+
+/**
+ * Deletes S3 objects 1000 at a time with multi-object DeleteObjects requests, instead of one
+ * DeleteObject request per key. Keys (or key + versionId pairs) are handed in as they are listed,
+ * every 1000 of them go out as one request in the background, and several of those requests are in
+ * flight at once, so listing carries on while the deleting happens.
+ *
+ * <p>DeleteObjects answers 200 even when some of the keys could not be deleted, listing those in
+ * the response errors. Those keys (and whole requests that failed) are tried again a few times
+ * before they are counted as failed. Requests are sent in quiet mode so the response only lists the
+ * errors.
+ *
+ * <pre>{@code
+ * try (var deleter = new S3BatchDeleter(s3Client, bucket, DeleteConfig.defaults())) {
+ *   for (var object : objects) {
+ *     deleter.delete(object.key());
+ *   }
+ *   var summary = deleter.finish();
+ * }
+ * }</pre>
+ */
+public class S3BatchDeleter implements AutoCloseable {
+
+  /** The most keys a DeleteObjects request takes. */
+  public static final int S3_MAX_DELETE_BATCH = 1000;
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3BatchDeleter.class);
+  private final S3Client s3Client;
+  private final String bucket;
+  private final DeleteConfig config;
+  private final ExecutorService pool;
+  private final Semaphore inFlight;
+  private final AtomicLong requested = new AtomicLong();
+  private final AtomicLong deleted = new AtomicLong();
+  private final List<String> failedKeys = Collections.synchronizedList(new ArrayList<>());
+  private List<ObjectIdentifier> batch = new ArrayList<>(S3_MAX_DELETE_BATCH);
+  private boolean finished;
+
+  /**
+   * Batch delete settings.
+   *
+   * @param inFlightBatches How many DeleteObjects requests can be in flight at once. Handing in
+   *     keys blocks while they are all busy.
+   * @param maxAttempts How many times a key is tried before it is counted as failed.
+   * @param retryBackoff Wait before the first retry, doubled for each one after that.
+   */
+  public record DeleteConfig(int inFlightBatches, int maxAttempts, Duration retryBackoff) {
+
+    public DeleteConfig {
+      if (inFlightBatches < 1 || maxAttempts < 1) {
+        throw new IllegalArgumentException(
+            "The inFlightBatches and maxAttempts must be at least 1.");
+      }
+    }
+
+    /** 4 requests in flight, 3 attempts, starting at 200 ms between them. */
+    public static DeleteConfig defaults() {
+      return new DeleteConfig(4, 3, Duration.ofMillis(200));
+    }
+
+    public DeleteConfig withInFlightBatches(int inFlightBatches) {
+      return new DeleteConfig(inFlightBatches, maxAttempts, retryBackoff);
+    }
+
+    public DeleteConfig withMaxAttempts(int maxAttempts) {
+      return new DeleteConfig(inFlightBatches, maxAttempts, retryBackoff);
+    }
+
+    public DeleteConfig withRetryBackoff(Duration retryBackoff) {
+      return new DeleteConfig(inFlightBatches, maxAttempts, retryBackoff);
+    }
+  }
+
+  /**
+   * What a batch delete did.
+   *
+   * @param requested Keys (and versions) handed in.
+   * @param deleted Keys S3 reported as deleted (deleting a key that is not there counts).
+   * @param failed Keys that could not be deleted.
+   * @param failedKeys Those keys, with ":versionId" appended for versions.
+   */
+  public record DeleteSummary(long requested, long deleted, long failed, List<String> failedKeys) {}
+
+  /**
+   * @param s3Client The Client for connecting to S3.
+   * @param bucket S3 the objects are deleted from.
+   * @param config Concurrency and retries.
+   */
+  public S3BatchDeleter(S3Client s3Client, String bucket, DeleteConfig config) {
+    this.s3Client = s3Client;
+    this.bucket = bucket;
+    this.config = config;
+    this.inFlight = new Semaphore(config.inFlightBatches());
+    var threadNumber = new AtomicInteger();
+    this.pool =
+        Executors.newFixedThreadPool(
+            config.inFlightBatches(),
+            r -> {
+              var t = new Thread(r, "s3-delete-" + bucket + "-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /** Delete an object (the current version, on a versioned bucket). */
+  public void delete(String key) {
+    delete(ObjectIdentifier.builder().key(key).build());
+  }
+
+  /** Delete a specific version of an object, or a delete marker. */
+  public void delete(String key, String versionId) {
+    delete(ObjectIdentifier.builder().key(key).versionId(versionId).build());
+  }
+
+  /**
+   * Queue an object for deleting. This is safe to call from several threads, and blocks while
+   * {@link DeleteConfig#inFlightBatches()} requests are already busy.
+   */
+  public void delete(ObjectIdentifier id) {
+    List<ObjectIdentifier> full = null;
+    synchronized (this) {
+      if (finished) {
+        throw new IllegalStateException("This deleter is already finished.");
+      }
+      requested.incrementAndGet();
+      batch.add(id);
+      if (batch.size() == S3_MAX_DELETE_BATCH) {
+        full = batch;
+        batch = new ArrayList<>(S3_MAX_DELETE_BATCH);
+      }
+    }
+    if (full != null) {
+      submit(full);
+    }
+  }
+
+  /**
+   * Sends what is left, waits for every request to be done, and reports. Nothing can be handed in
+   * after this.
+   */
+  public DeleteSummary finish() {
+    List<ObjectIdentifier> last;
+    synchronized (this) {
+      if (!finished) {
+        finished = true;
+        last = batch;
+        batch = List.of();
+      } else {
+        last = List.of();
+      }
+    }
+    if (!last.isEmpty()) {
+      submit(last);
+    }
+    try {
+      inFlight.acquire(config.inFlightBatches());
+      inFlight.release(config.inFlightBatches());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      throw new IllegalStateException("Interrupted waiting for deletes on " + bucket, e);
+    }
+    var summary =
+        new DeleteSummary(
+            requested.get(), deleted.get(), failedKeys.size(), List.copyOf(failedKeys));
+    LOG.info("S3DELETEBATCH: {} on the {} bucket.", summary, bucket);
+    return summary;
+  }
+
+  /** Sends what is left and waits for it (see {@link #finish()}). */
+  @Override
+  public void close() {
+    boolean done;
+    synchronized (this) {
+      done = finished;
+    }
+    try {
+      if (!done) {
+        finish();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private void submit(List<ObjectIdentifier> ids) {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      throw new IllegalStateException("Interrupted deleting from " + bucket, e);
+    }
+    try {
+      pool.execute(
+          () -> {
+            try {
+              deleteWithRetries(ids);
+            } finally {
+              inFlight.release();
+            }
+          });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+  }
+
+  private void deleteWithRetries(List<ObjectIdentifier> ids) {
+    var remaining = ids;
+    var wait = config.retryBackoff().toMillis();
+    for (var attempt = 1; !remaining.isEmpty(); attempt++) {
+      remaining = deleteOnce(remaining, attempt == config.maxAttempts());
+      if (remaining.isEmpty() || attempt == config.maxAttempts()) {
+        break;
+      }
+      LOG.info(
+          "S3DELETEBATCH: Trying {} keys again on the {} bucket (attempt {}).",
+          remaining.size(),
+          bucket,
+          attempt + 1);
+      try {
+        Thread.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Restore interrupt status
+        break;
+      }
+      wait *= 2;
+    }
+    for (var id : remaining) {
+      failedKeys.add(id.versionId() == null ? id.key() : id.key() + ":" + id.versionId());
+    }
+  }
+
+  /** One DeleteObjects request. Returns the keys that were not deleted. */
+  private List<ObjectIdentifier> deleteOnce(List<ObjectIdentifier> ids, boolean lastAttempt) {
+    var request =
+        DeleteObjectsRequest.builder()
+            .bucket(bucket)
+            .delete(Delete.builder().objects(ids).quiet(true).build())
+            .build();
+    try {
+      var response = s3Client.deleteObjects(request);
+      awsResponseValidation(response);
+      if (!response.hasErrors() || response.errors().isEmpty()) {
+        deleted.addAndGet(ids.size());
+        LOG.debug("S3DELETEBATCH: Deleted {} objects from the {} bucket.", ids.size(), bucket);
+        return List.of();
+      }
+      var retry = new ArrayList<ObjectIdentifier>();
+      for (var error : response.errors()) {
+        if (lastAttempt) {
+          LOG.warn(
+              "S3DELETEBATCH: Failed to delete {} from the {} bucket: {} {}",
+              error.key(),
+              bucket,
+              error.code(),
+              error.message());
+        }
+        retry.add(ObjectIdentifier.builder().key(error.key()).versionId(error.versionId()).build());
+      }
+      deleted.addAndGet((long) ids.size() - retry.size());
+      return retry;
+    } catch (SdkException | IllegalStateException e) {
+      LOG.warn(
+          "S3DELETEBATCH: Request for {} keys on the {} bucket failed.", ids.size(), bucket, e);
+      return ids;
+    }
+  }
+}
@@ -0,0 +1,459 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import forest.colver.datatransfer.aws.S3BatchDeleter.DeleteConfig;
+import forest.colver.datatransfer.aws.S3BatchDeleter.DeleteSummary;
+import forest.colver.datatransfer.aws.S3MultipartCopy.MultipartCopyConfig;
+import forest.colver.datatransfer.aws.S3ShardedLister.ListConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectVersionsRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Copies whole S3 prefixes quickly. {@link S3Operations} s3CopyAll used to list a page of 1000
+ * keys, copy them one at a time, and only then list the next page, so with millions of small
+ * objects it spent nearly all its time waiting on one request at a time. Here the prefix is listed
+ * in parallel shards in the background (see {@link S3ShardedLister}) while a pool of workers copies
+ * what has been listed, with a cap on how many copies are in flight at once.
+ *
+ * <p>The copies are server-side, so no object data goes through this machine. Big objects are
+ * copied in parallel parts, see {@link S3MultipartCopy}.
+ */
+public class S3BulkOperations {
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3BulkOperations.class);
+  private static final int LIST_PAGE_SIZE = 1000;
+  private static final int PROGRESS_EVERY = 10_000;
+
+  private S3BulkOperations() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Prefix copy settings.
+   *
+   * @param concurrency The most copies in flight at once. The parts of big objects are copied on
+   *     one pool shared by all of them, sized to what the HTTP connection pool has left (see {@link
+   *     #partThreads(BulkCopyConfig)}), rather than multipartCopy's concurrency for each.
+   * @param destPrefix What the source prefix is replaced with in the destination keys, e.g. copying
+   *     "inbound/2024/" with destPrefix "archive/2024/" turns "inbound/2024/a.xml" into
+   *     "archive/2024/a.xml". Null keeps the keys as they are.
+   * @param skipUnchanged Skip objects that are already at the destination with the same ETag and
+   *     size, so an interrupted copy can be run again and pick up where it left off. This costs a
+   *     HEAD request per object. Objects uploaded in parts never match (a copy gets a new ETag), so
+   *     they are always copied.
+   * @param multipartCopy When and how big objects are copied in parts.
+   * @param listing How the source prefix is listed, see {@link S3ShardedLister}.
+   */
+  public record BulkCopyConfig(
+      int concurrency,
+      String destPrefix,
+      boolean skipUnchanged,
+      MultipartCopyConfig multipartCopy,
+      ListConfig listing) {
+
+    public BulkCopyConfig {
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("The concurrency must be at least 1.");
+      }
+    }
+
+    /** 32 copies at once, same keys, copy everything, sub-folders listed in parallel. */
+    public static BulkCopyConfig defaults() {
+      return new BulkCopyConfig(
+          32,
+          null,
+          false,
+          MultipartCopyConfig.defaults(),
+          ListConfig.defaults().withOrdered(false));
+    }
+
+    public BulkCopyConfig withConcurrency(int concurrency) {
+      return new BulkCopyConfig(concurrency, destPrefix, skipUnchanged, multipartCopy, listing);
+    }
+
+    public BulkCopyConfig withDestPrefix(String destPrefix) {
+      return new BulkCopyConfig(concurrency, destPrefix, skipUnchanged, multipartCopy, listing);
+    }
+
+    public BulkCopyConfig withSkipUnchanged(boolean skipUnchanged) {
+      return new BulkCopyConfig(concurrency, destPrefix, skipUnchanged, multipartCopy, listing);
+    }
+
+    public BulkCopyConfig withMultipartCopy(MultipartCopyConfig multipartCopy) {
+      return new BulkCopyConfig(concurrency, destPrefix, skipUnchanged, multipartCopy, listing);
+    }
+
+    public BulkCopyConfig withListing(ListConfig listing) {
+      return new BulkCopyConfig(concurrency, destPrefix, skipUnchanged, multipartCopy, listing);
+    }
+  }
+
+  /**
+   * What a prefix copy did.
+   *
+   * @param listed Objects found under the source prefix.
+   * @param copied Objects copied.
+   * @param skipped Objects already at the destination (see {@link BulkCopyConfig#skipUnchanged()}).
+   * @param failed Objects that could not be copied.
+   * @param bytesCopied Total size of the objects copied.
+   * @param failedKeys The source keys of the objects that could not be copied.
+   */
+  public record CopySummary(
+      long listed,
+      long copied,
+      long skipped,
+      long failed,
+      long bytesCopied,
+      List<String> failedKeys) {}
+
+  /**
+   * Copies every object under a prefix to another bucket (or the same bucket under another prefix).
+   * An object that fails to copy is logged and counted, and the rest carry on.
+   *
+   * @param awsCp Credentials.
+   * @param sourceBucket Source S3.
+   * @param sourcePrefix The key prefix to copy, aka the folder.
+   * @param destBucket Target S3.
+   * @param config Concurrency, key rewriting and skipping.
+   * @return Counts, bytes and the keys that failed.
+   */
+  public static CopySummary s3CopyPrefix(
+      AwsCredentialsProvider awsCp,
+      String sourceBucket,
+      String sourcePrefix,
+      String destBucket,
+      BulkCopyConfig config) {
+    return s3CopyPrefix(s3Client(awsCp), sourceBucket, sourcePrefix, destBucket, config);
+  }
+
+  /** s3CopyPrefix with S3Client. See the AwsCredentialsProvider version. */
+  public static CopySummary s3CopyPrefix(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourcePrefix,
+      String destBucket,
+      BulkCopyConfig config) {
+    return s3CopyPrefix(s3Client, sourceBucket, sourcePrefix, destBucket, config, key -> {});
+  }
+
+  /**
+   * The prefix copy, calling onDone (from the copy threads) with the source key of each object that
+   * was copied or skipped because it is already there.
+   */
+  private static CopySummary s3CopyPrefix(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourcePrefix,
+      String destBucket,
+      BulkCopyConfig config,
+      Consumer<String> onDone) {
+    var listed = new AtomicLong();
+    var copied = new AtomicLong();
+    var skipped = new AtomicLong();
+    var bytes = new AtomicLong();
+    List<String> failedKeys = Collections.synchronizedList(new ArrayList<>());
+    var inFlight = new Semaphore(config.concurrency());
+    var partPool = S3MultipartCopy.newPartPool(partThreads(config));
+    var threadNumber = new AtomicInteger();
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            config.concurrency(),
+            r -> {
+              var t = new Thread(r, "s3-copy-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    var start = System.currentTimeMillis();
+    LOG.info(
+        "S3COPYPREFIX: Copying {}/{} to {}/{} with {}",
+        sourceBucket,
+        sourcePrefix,
+        destBucket,
+        config.destPrefix() == null ? sourcePrefix : config.destPrefix(),
+        config);
+    try (var objects =
+        S3ShardedLister.s3ListSharded(s3Client, sourceBucket, sourcePrefix, config.listing())) {
+      var iterator = objects.iterator();
+      while (iterator.hasNext()) {
+        var object = iterator.next();
+        inFlight.acquire();
+        var count = listed.incrementAndGet();
+        pool.execute(
+            () -> {
+              try {
+                var destKey = destKey(object.key(), sourcePrefix, config.destPrefix());
+                if (config.skipUnchanged() && unchanged(s3Client, object, destBucket, destKey)) {
+                  skipped.incrementAndGet();
+                } else {
+                  S3MultipartCopy.s3CopyObject(
+                      s3Client,
+                      sourceBucket,
+                      object.key(),
+                      object.size(),
+                      destBucket,
+                      destKey,
+                      config.multipartCopy(),
+                      partPool);
+                  copied.incrementAndGet();
+                  bytes.addAndGet(object.size());
+                }
+                onDone.accept(object.key());
+              } catch (RuntimeException e) {
+                LOG.warn("S3COPYPREFIX: Failed to copy {}/{}", sourceBucket, object.key(), e);
+                failedKeys.add(object.key());
+              } finally {
+                inFlight.release();
+              }
+            });
+        if (count % PROGRESS_EVERY == 0) {
+          LOG.info(
+              "S3COPYPREFIX: {} listed, {} copied, {} skipped, {} failed so far.",
+              count,
+              copied.get(),
+              skipped.get(),
+              failedKeys.size());
+        }
+      }
+      // wait for the last copies
+      inFlight.acquire(config.concurrency());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      throw new IllegalStateException(
+          "Interrupted copying " + sourceBucket + "/" + sourcePrefix, e);
+    } finally {
+      pool.shutdownNow();
+      partPool.shutdownNow();
+    }
+    var seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+    var summary =
+        new CopySummary(
+            listed.get(),
+            copied.get(),
+            skipped.get(),
+            failedKeys.size(),
+            bytes.get(),
+            List.copyOf(failedKeys));
+    LOG.info(
+        "S3COPYPREFIX: Done in {} sec (~{} objects/sec): {}",
+        seconds,
+        summary.listed() / seconds,
+        summary);
+    return summary;
+  }
+
+  /**
+   * What a prefix move did: the copy, then the deletes of the source objects that were copied (or
+   * already at the destination).
+   */
+  public record MoveSummary(CopySummary copy, DeleteSummary delete) {}
+
+  /**
+   * Moves every object under a prefix: the parallel copy of {@link #s3CopyPrefix}, with each source
+   * object that made it to the destination handed to an {@link S3BatchDeleter} right away. Objects
+   * that failed to copy are left where they are.
+   *
+   * @param awsCp Credentials.
+   * @param sourceBucket Source S3.
+   * @param sourcePrefix The key prefix to move, aka the folder.
+   * @param destBucket Target S3.
+   * @param copyConfig Concurrency, key rewriting and skipping for the copy.
+   * @param deleteConfig Concurrency and retries for the deletes.
+   * @return What was copied and deleted.
+   */
+  public static MoveSummary s3MovePrefix(
+      AwsCredentialsProvider awsCp,
+      String sourceBucket,
+      String sourcePrefix,
+      String destBucket,
+      BulkCopyConfig copyConfig,
+      DeleteConfig deleteConfig) {
+    return s3MovePrefix(
+        s3Client(awsCp), sourceBucket, sourcePrefix, destBucket, copyConfig, deleteConfig);
+  }
+
+  /** s3MovePrefix with S3Client. See the AwsCredentialsProvider version. */
+  public static MoveSummary s3MovePrefix(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourcePrefix,
+      String destBucket,
+      BulkCopyConfig copyConfig,
+      DeleteConfig deleteConfig) {
+    try (var deleter = new S3BatchDeleter(s3Client, sourceBucket, deleteConfig)) {
+      var copy =
+          s3CopyPrefix(
+              s3Client, sourceBucket, sourcePrefix, destBucket, copyConfig, deleter::delete);
+      return new MoveSummary(copy, deleter.finish());
+    }
+  }
+
+  /**
+   * Deletes every object under a prefix with DeleteObjects requests of 1000 keys, paging through
+   * the listing once (the deletes don't disturb the continuation token) while the deletes go out in
+   * the background. On a versioned bucket this only adds delete markers, see {@link
+   * #s3DeleteAllVersions}.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param keyPrefix The key prefix to empty, aka the folder.
+   * @param config Concurrency and retries.
+   * @return Counts and the keys that could not be deleted.
+   */
+  public static DeleteSummary s3DeletePrefix(
+      AwsCredentialsProvider awsCp, String bucket, String keyPrefix, DeleteConfig config) {
+    return s3DeletePrefix(s3Client(awsCp), bucket, keyPrefix, config);
+  }
+
+  /** s3DeletePrefix with S3Client. See the AwsCredentialsProvider version. */
+  public static DeleteSummary s3DeletePrefix(
+      S3Client s3Client, String bucket, String keyPrefix, DeleteConfig config) {
+    try (var deleter = new S3BatchDeleter(s3Client, bucket, config)) {
+      String token = null;
+      do {
+        var page = list(s3Client, bucket, keyPrefix, token);
+        for (var object : page.contents()) {
+          deleter.delete(object.key());
+        }
+        token = Boolean.TRUE.equals(page.isTruncated()) ? page.nextContinuationToken() : null;
+      } while (token != null);
+      return deleter.finish();
+    }
+  }
+
+  /**
+   * Deletes every version and delete marker under a prefix of a versioned bucket, so the objects
+   * are really gone. Same batching as {@link #s3DeletePrefix}.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param keyPrefix The key prefix to empty, aka the folder.
+   * @param config Concurrency and retries.
+   * @return Counts and the key:versionId of what could not be deleted.
+   */
+  public static DeleteSummary s3DeleteAllVersions(
+      AwsCredentialsProvider awsCp, String bucket, String keyPrefix, DeleteConfig config) {
+    return s3DeleteAllVersions(s3Client(awsCp), bucket, keyPrefix, config);
+  }
+
+  /** s3DeleteAllVersions with S3Client. See the AwsCredentialsProvider version. */
+  public static DeleteSummary s3DeleteAllVersions(
+      S3Client s3Client, String bucket, String keyPrefix, DeleteConfig config) {
+    try (var deleter = new S3BatchDeleter(s3Client, bucket, config)) {
+      String keyMarker = null;
+      String versionIdMarker = null;
+      do {
+        var page =
+            s3Client.listObjectVersions(
+                ListObjectVersionsRequest.builder()
+                    .bucket(bucket)
+                    .prefix(keyPrefix)
+                    .maxKeys(LIST_PAGE_SIZE)
+                    .keyMarker(keyMarker)
+                    .versionIdMarker(versionIdMarker)
+                    .build());
+        awsResponseValidation(page);
+        for (var version : page.versions()) {
+          deleter.delete(version.key(), version.versionId());
+        }
+        for (var marker : page.deleteMarkers()) {
+          deleter.delete(marker.key(), marker.versionId());
+        }
+        var more = Boolean.TRUE.equals(page.isTruncated());
+        keyMarker = more ? page.nextKeyMarker() : null;
+        versionIdMarker = more ? page.nextVersionIdMarker() : null;
+      } while (keyMarker != null);
+      return deleter.finish();
+    }
+  }
+
+  /**
+   * How many part copies a prefix copy runs at once: what concurrency x the multipart concurrency
+   * asks for, but no more than the connections the HTTP pool (see {@link
+   * AwsClientRegistry.HttpPoolConfig}) has left after the object copies, and at least 1. With the
+   * defaults that is 50 - 32 = 18, where 32 x 8 part copies would wait on connections and time out.
+   */
+  static int partThreads(BulkCopyConfig config) {
+    var maxConnections = AwsClientRegistry.httpPoolConfig().maxConnections();
+    if (config.concurrency() >= maxConnections) {
+      LOG.warn(
+          "S3COPYPREFIX: {} copies at once but only {} HTTP connections, some will wait.",
+          config.concurrency(),
+          maxConnections);
+    }
+    var wanted = (long) config.concurrency() * config.multipartCopy().concurrency();
+    return (int) Math.max(1, Math.min(wanted, maxConnections - config.concurrency()));
+  }
+
+  /**
+   * The destination key for a source key: the source prefix swapped for destPrefix, or the same key
+   * if destPrefix is null.
+   */
+  static String destKey(String sourceKey, String sourcePrefix, String destPrefix) {
+    if (destPrefix == null) {
+      return sourceKey;
+    }
+    return destPrefix + sourceKey.substring(sourcePrefix.length());
+  }
+
+  private static ListObjectsV2Response list(
+      S3Client s3Client, String bucket, String prefix, String continuationToken) {
+    var request =
+        ListObjectsV2Request.builder()
+            .bucket(bucket)
+            .prefix(prefix)
+            .maxKeys(LIST_PAGE_SIZE)
+            .continuationToken(continuationToken)
+            .build();
+    var response = s3Client.listObjectsV2(request);
+    awsResponseValidation(response);
+    LOG.debug("S3LIST: Listed {} objects from {}/{}", response.keyCount(), bucket, prefix);
+    return response;
+  }
+
+  private static boolean unchanged(
+      S3Client s3Client, S3Object source, String destBucket, String destKey) {
+    return head(s3Client, destBucket, destKey)
+        .map(
+            dest ->
+                source.size().equals(dest.contentLength()) && source.eTag().equals(dest.eTag()))
+        .orElse(false);
+  }
+
+  private static Optional<HeadObjectResponse> head(S3Client s3Client, String bucket, String key) {
+    try {
+      return Optional.of(
+          s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build()));
+    } catch (NoSuchKeyException e) {
+      return Optional.empty();
+    } catch (S3Exception e) {
+      if (e.statusCode() == 404) {
+        return Optional.empty();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.Tagging;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+
+/**
+ * Server-side copies of objects of any size. A single CopyObject request fails above 5 GB and is
+ * slow for big objects, since S3 copies the whole thing in one stream. Objects over the threshold
+ * are copied as a multipart upload instead, with UploadPartCopy requests for byte ranges of the
+ * source running in parallel. Either way no object data passes through this machine.
+ *
+ * <p>A multipart copy starts a new object, so the source's metadata (content type, user metadata,
+ * encryption, storage class, ...) and tags are read and set on it, the way CopyObject keeps them.
+ * Each part is copied only if the source still has the ETag it had at the start, so an object that
+ * is overwritten mid-copy fails the copy instead of producing a mix of the two.
+ */
+public class S3MultipartCopy {
+
+  /** The biggest object a single CopyObject request can copy. */
+  public static final long S3_MAX_COPY_OBJECT = 5L * 1024 * 1024 * 1024;
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3MultipartCopy.class);
+
+  private S3MultipartCopy() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Copy settings.
+   *
+   * @param multipartThreshold Objects bigger than this (bytes) are copied in parts. At most 5 GB.
+   * @param partSize Bytes per part, at least 5 MB. Raised as needed to stay within 10,000 parts.
+   * @param concurrency How many parts are copied at once.
+   * @param verifyChecksum Have S3 compute a CRC32C of the copy (for each part of a multipart copy,
+   *     checked by S3 when the upload is completed), and check the size of the result. Costs a HEAD
+   *     of the new object.
+   */
+  public record MultipartCopyConfig(
+      long multipartThreshold, long partSize, int concurrency, boolean verifyChecksum) {
+
+    public MultipartCopyConfig {
+      if (multipartThreshold > S3_MAX_COPY_OBJECT) {
+        throw new IllegalArgumentException("CopyObject does not work above 5 GB.");
+      }
+      if (partSize < S3StreamingUpload.S3_MIN_PART_SIZE) {
+        throw new IllegalArgumentException("The partSize must be at least 5 MB.");
+      }
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("The concurrency must be at least 1.");
+      }
+    }
+
+    /** In parts above 256 MB, 128 MB parts, 8 at once, no verifying. */
+    public static MultipartCopyConfig defaults() {
+      return new MultipartCopyConfig(256L * 1024 * 1024, 128L * 1024 * 1024, 8, false);
+    }
+
+    public MultipartCopyConfig withMultipartThreshold(long multipartThreshold) {
+      return new MultipartCopyConfig(multipartThreshold, partSize, concurrency, verifyChecksum);
+    }
+
+    public MultipartCopyConfig withPartSize(long partSize) {
+      return new MultipartCopyConfig(multipartThreshold, partSize, concurrency, verifyChecksum);
+    }
+
+    public MultipartCopyConfig withConcurrency(int concurrency) {
+      return new MultipartCopyConfig(multipartThreshold, partSize, concurrency, verifyChecksum);
+    }
+
+    public MultipartCopyConfig withVerifyChecksum(boolean verifyChecksum) {
+      return new MultipartCopyConfig(multipartThreshold, partSize, concurrency, verifyChecksum);
+    }
+  }
+
+  /**
+   * Copies an object, in parts if it is big.
+   *
+   * @param awsCp Credentials.
+   * @param sourceBucket Source S3.
+   * @param sourceKey The object to copy.
+   * @param destBucket Target S3.
+   * @param destKey The key to copy it to.
+   * @param config Threshold, part size, concurrency and verifying.
+   */
+  public static void s3CopyObject(
+      AwsCredentialsProvider awsCp,
+      String sourceBucket,
+      String sourceKey,
+      String destBucket,
+      String destKey,
+      MultipartCopyConfig config) {
+    s3CopyObject(s3Client(awsCp), sourceBucket, sourceKey, destBucket, destKey, config);
+  }
+
+  /** s3CopyObject with S3Client. See the AwsCredentialsProvider version. */
+  public static void s3CopyObject(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourceKey,
+      String destBucket,
+      String destKey,
+      MultipartCopyConfig config) {
+    var source = head(s3Client, sourceBucket, sourceKey);
+    if (source.contentLength() <= config.multipartThreshold()) {
+      copyObject(
+          s3Client, sourceBucket, sourceKey, source.contentLength(), destBucket, destKey, config);
+    } else {
+      multipartCopy(s3Client, sourceBucket, sourceKey, source, destBucket, destKey, config);
+    }
+  }
+
+  /**
+   * Copies an object whose size is already known (from a listing), which saves the HEAD request
+   * for objects small enough for CopyObject. The parts of a big object are copied on partPool, so
+   * copies running side by side can share one pool (see {@link #newPartPool(int)}) and not run
+   * config.concurrency() parts each.
+   */
+  static void s3CopyObject(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourceKey,
+      long size,
+      String destBucket,
+      String destKey,
+      MultipartCopyConfig config,
+      ExecutorService partPool) {
+    if (size <= config.multipartThreshold()) {
+      copyObject(s3Client, sourceBucket, sourceKey, size, destBucket, destKey, config);
+    } else {
+      var source = head(s3Client, sourceBucket, sourceKey);
+      multipartCopy(
+          s3Client, sourceBucket, sourceKey, source, destBucket, destKey, config, partPool);
+    }
+  }
+
+  /** A pool of daemon threads for copying parts. */
+  static ExecutorService newPartPool(int threads) {
+    var threadNumber = new AtomicInteger();
+    return Executors.newFixedThreadPool(
+        threads,
+        r -> {
+          var t = new Thread(r, "s3-copy-part-" + threadNumber.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  private static void copyObject(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourceKey,
+      long size,
+      String destBucket,
+      String destKey,
+      MultipartCopyConfig config) {
+    var request =
+        CopyObjectRequest.builder()
+            .sourceBucket(sourceBucket)
+            .sourceKey(sourceKey)
+            .destinationBucket(destBucket)
+            .destinationKey(destKey);
+    if (config.verifyChecksum()) {
+      request.checksumAlgorithm(ChecksumAlgorithm.CRC32_C);
+    }
+    awsResponseValidation(s3Client.copyObject(request.build()));
+    if (config.verifyChecksum()) {
+      verifySize(s3Client, destBucket, destKey, size);
+    }
+    LOG.debug(
+        "S3COPY: Copied object from {}/{} to {}/{}", sourceBucket, sourceKey, destBucket, destKey);
+  }
+
+  /** A multipart copy with a pool of its own, config.concurrency() parts at once. */
+  private static void multipartCopy(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourceKey,
+      HeadObjectResponse source,
+      String destBucket,
+      String destKey,
+      MultipartCopyConfig config) {
+    var size = source.contentLength();
+    var partCount = (int) ceilDiv(size, partSize(size, config));
+    var pool = newPartPool(Math.min(config.concurrency(), partCount));
+    try {
+      multipartCopy(s3Client, sourceBucket, sourceKey, source, destBucket, destKey, config, pool);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void multipartCopy(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourceKey,
+      HeadObjectResponse source,
+      String destBucket,
+      String destKey,
+      MultipartCopyConfig config,
+      ExecutorService pool) {
+    var size = source.contentLength();
+    var partSize = partSize(size, config);
+    var partCount = (int) ceilDiv(size, partSize);
+    var start = System.currentTimeMillis();
+
+    var create =
+        CreateMultipartUploadRequest.builder()
+            .bucket(destBucket)
+            .key(destKey)
+            .metadata(source.metadata())
+            .contentType(source.contentType())
+            .contentEncoding(source.contentEncoding())
+            .contentDisposition(source.contentDisposition())
+            .contentLanguage(source.contentLanguage())
+            .cacheControl(source.cacheControl())
+            .expires(source.expires())
+            .storageClass(source.storageClassAsString())
+            .serverSideEncryption(source.serverSideEncryptionAsString())
+            .ssekmsKeyId(source.ssekmsKeyId());
+    var tags = tags(s3Client, sourceBucket, sourceKey);
+    if (!tags.tagSet().isEmpty()) {
+      create.tagging(tags);
+    }
+    if (config.verifyChecksum()) {
+      create.checksumAlgorithm(ChecksumAlgorithm.CRC32_C);
+    }
+    var created = s3Client.createMultipartUpload(create.build());
+    awsResponseValidation(created);
+    var uploadId = created.uploadId();
+
+    var futures = new ArrayList<CompletableFuture<CompletedPart>>(partCount);
+    try {
+      for (var i = 0; i < partCount; i++) {
+        var partNumber = i + 1;
+        var first = i * partSize;
+        var last = Math.min(size, first + partSize) - 1;
+        futures.add(
+            CompletableFuture.supplyAsync(
+                () ->
+                    copyPart(
+                        s3Client,
+                        sourceBucket,
+                        sourceKey,
+                        source.eTag(),
+                        destBucket,
+                        destKey,
+                        uploadId,
+                        partNumber,
+                        first,
+                        last),
+                pool));
+      }
+      List<CompletedPart> parts = new ArrayList<>(partCount);
+      for (var future : futures) {
+        parts.add(future.join());
+      }
+      parts.sort(Comparator.comparing(CompletedPart::partNumber));
+      var complete =
+          s3Client.completeMultipartUpload(
+              CompleteMultipartUploadRequest.builder()
+                  .bucket(destBucket)
+                  .key(destKey)
+                  .uploadId(uploadId)
+                  .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                  .build());
+      awsResponseValidation(complete);
+    } catch (CompletionException e) {
+      // parts that haven't started don't run, the pool may be shared
+      futures.forEach(f -> f.cancel(false));
+      abort(s3Client, destBucket, destKey, uploadId);
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    } catch (RuntimeException e) {
+      futures.forEach(f -> f.cancel(false));
+      abort(s3Client, destBucket, destKey, uploadId);
+      throw e;
+    }
+    if (config.verifyChecksum()) {
+      verifySize(s3Client, destBucket, destKey, size);
+    }
+    var seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+    LOG.info(
+        "S3COPY: Copied {} bytes in {} parts from {}/{} to {}/{} in {} sec (~{} MB/sec).",
+        size,
+        partCount,
+        sourceBucket,
+        sourceKey,
+        destBucket,
+        destKey,
+        seconds,
+        size / seconds / (1024 * 1024));
+  }
+
+  private static CompletedPart copyPart(
+      S3Client s3Client,
+      String sourceBucket,
+      String sourceKey,
+      String sourceETag,
+      String destBucket,
+      String destKey,
+      String uploadId,
+      int partNumber,
+      long first,
+      long last) {
+    var response =
+        s3Client.uploadPartCopy(
+            UploadPartCopyRequest.builder()
+                .sourceBucket(sourceBucket)
+                .sourceKey(sourceKey)
+                .copySourceIfMatch(sourceETag)
+                .copySourceRange("bytes=" + first + "-" + last)
+                .destinationBucket(destBucket)
+                .destinationKey(destKey)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build());
+    awsResponseValidation(response);
+    LOG.debug("S3COPY: Copied part {} (bytes {}-{}) of {}", partNumber, first, last, sourceKey);
+    var result = response.copyPartResult();
+    return CompletedPart.builder()
+        .partNumber(partNumber)
+        .eTag(result.eTag())
+        .checksumCRC32C(result.checksumCRC32C())
+        .build();
+  }
+
+  private static HeadObjectResponse head(S3Client s3Client, String bucket, String key) {
+    var response = s3Client.headObject(HeadObjectRequest.builder().bucket(bucket).key(key).build());
+    awsResponseValidation(response);
+    return response;
+  }
+
+  private static Tagging tags(S3Client s3Client, String bucket, String key) {
+    var response =
+        s3Client.getObjectTagging(
+            GetObjectTaggingRequest.builder().bucket(bucket).key(key).build());
+    awsResponseValidation(response);
+    return Tagging.builder().tagSet(response.tagSet()).build();
+  }
+
+  private static void verifySize(S3Client s3Client, String bucket, String key, long size) {
+    var copied = head(s3Client, bucket, key).contentLength();
+    if (copied != size) {
+      throw new IllegalStateException(
+          "The copy " + bucket + "/" + key + " is " + copied + " bytes, expected " + size);
+    }
+  }
+
+  private static void abort(S3Client s3Client, String bucket, String key, String uploadId) {
+    try {
+      s3Client.abortMultipartUpload(
+          AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build());
+      LOG.warn("S3COPY: Aborted the multipart copy to {}/{}", bucket, key);
+    } catch (SdkException e) {
+      // a lifecycle rule for incomplete multipart uploads will clean it up eventually
+      LOG.error("S3COPY: Could not abort the multipart copy {} to {}/{}", uploadId, bucket, key, e);
+    }
+  }
+
+  /** The configured part size, raised as needed to stay within 10,000 parts. */
+  private static long partSize(long size, MultipartCopyConfig config) {
+    return Math.max(config.partSize(), ceilDiv(size, S3StreamingUpload.S3_MAX_PARTS));
+  }
+
+  private static long ceilDiv(long x, long y) {
+    return (x + y - 1) / y;
+  }
+}
@@ -1,8 +1,17 @@
 package forest.colver.datatransfer.aws;
 
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
 import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
-import static forest.colver.datatransfer.aws.AwsUtils.getS3Client;
 
+import forest.colver.datatransfer.aws.S3BatchDeleter.DeleteConfig;
+import forest.colver.datatransfer.aws.S3BulkOperations.BulkCopyConfig;
+import forest.colver.datatransfer.aws.S3MultipartCopy.MultipartCopyConfig;
+import forest.colver.datatransfer.aws.S3RangedDownload.DownloadConfig;
+import forest.colver.datatransfer.aws.S3ShardedLister.ListConfig;
+import forest.colver.datatransfer.aws.S3StreamingUpload.UploadConfig;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -13,7 +22,6 @@ import software.amazon.awssdk.core.ResponseInputStream;
 import software.amazon.awssdk.core.pagination.sync.SdkIterable;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.DeleteMarkerEntry;
 import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
@@ -39,15 +47,13 @@ public class S3Operations {
   }
 
   /**
-   * s3Put with AwsCreds. Put an object on a desired S3 bucket. Creates an S3Client--good to use
-   * this for one-off S3 operations, as opposed to doing several S3 operations and passing the
-   * client around.
+   * s3Put with AwsCreds. Put an object on a desired S3 bucket. Uses the shared S3Client from the
+   * {@link AwsClientRegistry}, so it is fine to use this for one-off S3 operations as well as for
+   * several S3 operations in a row.
    */
   public static Optional<String> s3Put(
       AwsCredentialsProvider awsCp, String bucket, String objectKey, String payload) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3Put(s3Client, bucket, objectKey, payload);
-    }
+    return s3Put(s3Client(awsCp), bucket, objectKey, payload);
   }
 
   /**
@@ -66,8 +72,7 @@ public class S3Operations {
 
   /**
    * s3Put with AwsCreds and metadata. Put an object on a desired S3 bucket including some metadata.
-   * Creates an S3Client--good to use this for one-off S3 operations, as opposed to doing several S3
-   * operations and passing the client around.
+   * Uses the shared S3Client from the {@link AwsClientRegistry}.
    */
   public static Optional<String> s3Put(
       AwsCredentialsProvider awsCp,
@@ -75,9 +80,7 @@ public class S3Operations {
       String objectKey,
       String payload,
       Map<String, String> metadata) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3Put(s3Client, bucket, objectKey, payload, metadata);
-    }
+    return s3Put(s3Client(awsCp), bucket, objectKey, payload, metadata);
   }
 
   /**
@@ -101,15 +104,12 @@ public class S3Operations {
   }
 
   /**
-   * s3Put with AwsCreds and PutObjectRequest. Put an object on a desired S3 bucket. Creates an
-   * S3Client--good to use this for one-off S3 operations, as opposed to doing several S3 operations
-   * and passing the client around.
+   * s3Put with AwsCreds and PutObjectRequest. Put an object on a desired S3 bucket. Uses the shared
+   * S3Client from the {@link AwsClientRegistry}.
    */
   public static Optional<String> s3Put(
       AwsCredentialsProvider awsCp, String payload, PutObjectRequest putObjectRequest) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3Put(s3Client, payload, putObjectRequest);
-    }
+    return s3Put(s3Client(awsCp), payload, putObjectRequest);
   }
 
   /**
@@ -125,15 +125,59 @@ public class S3Operations {
     return Optional.ofNullable(putObjectResponse.versionId());
   }
 
+  /**
+   * s3Put a file with AwsCreds. Streams the file from disk instead of loading it, with a parallel
+   * multipart upload for anything over 16 MB. Uses the shared S3Client from the {@link
+   * AwsClientRegistry}. See {@link S3StreamingUpload} for the settings.
+   */
+  public static Optional<String> s3Put(
+      AwsCredentialsProvider awsCp, String bucket, String objectKey, Path file) {
+    return s3Put(s3Client(awsCp), bucket, objectKey, file);
+  }
+
+  /** s3Put a file with S3Client. See the AwsCredentialsProvider version. */
+  public static Optional<String> s3Put(
+      S3Client s3Client, String bucket, String objectKey, Path file) {
+    return S3StreamingUpload.s3Upload(s3Client, bucket, objectKey, file, UploadConfig.defaults());
+  }
+
+  /**
+   * s3Put a stream with AwsCreds. Reads the stream part by part (it is not closed) instead of
+   * loading it, with a parallel multipart upload for anything over 8 MB. Uses the shared S3Client
+   * from the {@link AwsClientRegistry}. See {@link S3StreamingUpload} for the settings.
+   */
+  public static Optional<String> s3Put(
+      AwsCredentialsProvider awsCp, String bucket, String objectKey, InputStream content) {
+    return s3Put(s3Client(awsCp), bucket, objectKey, content);
+  }
+
+  /** s3Put a stream with S3Client. See the AwsCredentialsProvider version. */
+  public static Optional<String> s3Put(
+      S3Client s3Client, String bucket, String objectKey, InputStream content) {
+    return S3StreamingUpload.s3Upload(
+        s3Client, bucket, objectKey, content, UploadConfig.defaults());
+  }
+
+  /** s3Put a channel with AwsCreds. Same as the InputStream version. */
+  public static Optional<String> s3Put(
+      AwsCredentialsProvider awsCp, String bucket, String objectKey, ReadableByteChannel content) {
+    return s3Put(s3Client(awsCp), bucket, objectKey, content);
+  }
+
+  /** s3Put a channel with S3Client. Same as the InputStream version. */
+  public static Optional<String> s3Put(
+      S3Client s3Client, String bucket, String objectKey, ReadableByteChannel content) {
+    return S3StreamingUpload.s3Upload(
+        s3Client, bucket, objectKey, content, UploadConfig.defaults());
+  }
+
   /**
    * s3Head with AwsCreds. The HEAD action retrieves metadata from an object without returning the
    * object itself. This action is useful if you're only interested in an object's metadata.
    */
   public static HeadObjectResponse s3Head(
       AwsCredentialsProvider awsCp, String bucket, String objectKey) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3Head(s3Client, bucket, objectKey);
-    }
+    return s3Head(s3Client(awsCp), bucket, objectKey);
   }
 
   /**
@@ -157,92 +201,86 @@ public class S3Operations {
       String sourceKey,
       String destBucket,
       String destKey) {
-    try (var s3Client = getS3Client(awsCp)) {
-      s3Copy(s3Client, sourceBucket, sourceKey, destBucket, destKey);
-    }
+    s3Copy(s3Client(awsCp), sourceBucket, sourceKey, destBucket, destKey);
   }
 
-  /** s3Copy with s3Client. Copies an object from one s3 to another. */
+  /**
+   * s3Copy with s3Client. Copies an object from one s3 to another. Objects over 256 MB are copied
+   * in parallel parts on the S3 side, keeping their metadata and tags (see {@link
+   * S3MultipartCopy}), so this works for objects over the 5 GB CopyObject limit too.
+   */
   public static void s3Copy(
       S3Client s3Client, String sourceBucket, String sourceKey, String destBucket, String destKey) {
-    var copyObjectRequest =
-        CopyObjectRequest.builder()
-            .sourceBucket(sourceBucket)
-            .sourceKey(sourceKey)
-            .destinationBucket(destBucket)
-            .destinationKey(destKey)
-            .build();
-    var copyObjectResponse = s3Client.copyObject(copyObjectRequest);
-    awsResponseValidation(copyObjectResponse);
+    S3MultipartCopy.s3CopyObject(
+        s3Client, sourceBucket, sourceKey, destBucket, destKey, MultipartCopyConfig.defaults());
     LOG.info(
         "S3COPY: Copied object from {}/{} to {}/{}", sourceBucket, sourceKey, destBucket, destKey);
   }
 
   /**
-   * Copies all objects from a given S3 and key-prefix to another S3 bucket. This implementation
-   * uses s3List which batches 1000 objects at a time. (The challenge with a CopyAll method is that
-   * since each object is not consumed there needs to be a way to iterate through all the objects on
-   * the S3 without copying the same one over again, in this case, using s3List with
-   * nextContinuationToken helps accomplish this.)
+   * Copies all objects from a given S3 and key-prefix to another S3 bucket, keeping the keys. This
+   * is {@link S3BulkOperations#s3CopyPrefix} with the defaults, which lists the sub-folders in
+   * parallel and copies the objects in parallel, and throws if any object could not be copied.
    *
    * @param sourceBucket Source S3.
    * @param keyPrefix aka the file path.
    * @param destBucket Target S3.
    */
+  public static void s3CopyAll(
+      AwsCredentialsProvider awsCp, String sourceBucket, String keyPrefix, String destBucket) {
+    s3CopyAll(s3Client(awsCp), sourceBucket, keyPrefix, destBucket);
+  }
+
+  /** s3CopyAll with S3Client. See the AwsCredentialsProvider version. */
   public static void s3CopyAll(
       S3Client s3Client, String sourceBucket, String keyPrefix, String destBucket) {
-    var response = s3ListResponse(s3Client, sourceBucket, keyPrefix, 1000);
-    for (var object : response.contents()) {
-      s3Copy(s3Client, sourceBucket, object.key(), destBucket, object.key());
-    }
-    var keepCopying = response.isTruncated();
-    while (Boolean.TRUE.equals(keepCopying)) {
-      response =
-          s3ListContResponse(s3Client, sourceBucket, keyPrefix, response.nextContinuationToken());
-      for (var object : response.contents()) {
-        s3Copy(s3Client, sourceBucket, object.key(), destBucket, object.key());
-      }
-      keepCopying = response.isTruncated();
+    var summary =
+        S3BulkOperations.s3CopyPrefix(
+            s3Client, sourceBucket, keyPrefix, destBucket, BulkCopyConfig.defaults());
+    if (summary.failed() > 0) {
+      throw new IllegalStateException(
+          "Failed to copy " + summary.failed() + " objects: " + summary.failedKeys());
     }
   }
 
   /**
-   * Uses s3List variants to count the number of objects in an S3 directory even if it is over 1000
-   * items.
+   * Counts the objects in an S3 directory, however many there are. The sub-folders are listed in
+   * parallel, see {@link S3ShardedLister}.
    *
    * @param bucket S3.
    * @param keyPrefix S3 directory.
    * @return The number of objects in the key-prefix "directory"
    */
+  public static int s3CountAll(AwsCredentialsProvider awsCp, String bucket, String keyPrefix) {
+    return s3CountAll(s3Client(awsCp), bucket, keyPrefix);
+  }
+
+  /** s3CountAll with S3Client. See the AwsCredentialsProvider version. */
   public static int s3CountAll(S3Client s3Client, String bucket, String keyPrefix) {
-    // build an empty response so nextContinuationToken() can be referenced even though it's null
-    var response = ListObjectsV2Response.builder().build();
-    var count = 0;
-    var keepCounting = true;
-    while (Boolean.TRUE.equals(keepCounting)) {
-      response = s3ListContResponse(s3Client, bucket, keyPrefix, response.nextContinuationToken());
-      count = count + response.contents().size();
-      keepCounting = response.isTruncated();
-      LOG.info("count={}", count);
+    long count;
+    try (var objects =
+        S3ShardedLister.s3ListSharded(
+            s3Client, bucket, keyPrefix, ListConfig.defaults().withOrdered(false))) {
+      count = objects.count();
     }
     LOG.info("S3COUNT: Counted {} objects in {}/{}", count, bucket, keyPrefix);
-    return count;
+    return Math.toIntExact(count);
   }
 
   /**
-   * DOES NOT WORK! Use the s3Get where you pass in the s3Client.
+   * Get an object on a desired S3 bucket, using the shared S3Client from the {@link
+   * AwsClientRegistry}.
    *
-   * <p>Get an object on a desired S3 bucket, creates an S3Client. This method does not work because
-   * the S3 client gets garbage collected (by Java) in the middle of the download. Error looks like
-   * this: org.apache.http.ConnectionClosedException: Premature end of Content-Length delimited
-   * message body (expected: 56; received: 0). See: <a
-   * href="https://stackoverflow.com/a/10510365">stackoverflow.com/a/10510365</a>
+   * <p>This used to create (and close) its own S3Client, and did not work because the S3 client got
+   * closed in the middle of the download. Error looked like this:
+   * org.apache.http.ConnectionClosedException: Premature end of Content-Length delimited message
+   * body (expected: 56; received: 0). See: <a
+   * href="https://stackoverflow.com/a/10510365">stackoverflow.com/a/10510365</a>. The shared client
+   * stays open, so the returned stream can be read after this method returns.
    */
   public static ResponseInputStream<GetObjectResponse> s3Get(
       AwsCredentialsProvider awsCp, String bucket, String objectKey) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3Get(s3Client, bucket, objectKey);
-    }
+    return s3Get(s3Client(awsCp), bucket, objectKey);
   }
 
   /**
@@ -268,6 +306,23 @@ public class S3Operations {
     return getObjectResponse;
   }
 
+  /**
+   * s3Get to a file with AwsCreds. Downloads the object in parallel byte ranges straight to the
+   * file, instead of one stream read into memory, resuming an earlier download of it if there is
+   * one, and verifies it. See {@link S3RangedDownload} for the settings.
+   */
+  public static Path s3Get(
+      AwsCredentialsProvider awsCp, String bucket, String objectKey, Path target) {
+    return s3Get(s3Client(awsCp), bucket, objectKey, target);
+  }
+
+  /** s3Get to a file with S3Client. See the AwsCredentialsProvider version. */
+  public static Path s3Get(S3Client s3Client, String bucket, String objectKey, Path target) {
+    return S3RangedDownload.s3Download(
+            s3Client, bucket, objectKey, target, DownloadConfig.defaults())
+        .file();
+  }
+
   /**
    * Retrieves an object from an S3 bucket, optionally specifying a version ID.
    *
@@ -301,16 +356,14 @@ public class S3Operations {
   }
 
   /**
-   * S3List with AwsCreds, creates S3Client. List all the objects at a certain directory
+   * S3List with AwsCreds, uses the shared S3Client. List all the objects at a certain directory
    * (keyPrefix).
    *
    * @param keyPrefix The "folder" on the S3 to list. E.g. "revloc02/source/test/test.txt"
    */
   public static List<S3Object> s3List(
       AwsCredentialsProvider awsCp, String bucket, String keyPrefix) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3List(s3Client, bucket, keyPrefix);
-    }
+    return s3List(s3Client(awsCp), bucket, keyPrefix);
   }
 
   /**
@@ -406,16 +459,14 @@ public class S3Operations {
   }
 
   /**
-   * S3List with AwsCreds, creates S3Client. List up to 10 of the objects at a certain directory
-   * (keyPrefix).
+   * S3List with AwsCreds, uses the shared S3Client. List up to 10 of the objects at a certain
+   * directory (keyPrefix).
    *
    * @param keyPrefix The "folder" on the S3 to list. E.g. "revloc02/source/test/test.txt"
    */
   public static ListObjectsV2Response s3ListResponse(
       AwsCredentialsProvider awsCp, String bucket, String keyPrefix) {
-    try (var s3Client = getS3Client(awsCp)) {
-      return s3ListResponse(s3Client, bucket, keyPrefix, 10);
-    }
+    return s3ListResponse(s3Client(awsCp), bucket, keyPrefix, 10);
   }
 
   /**
@@ -461,11 +512,9 @@ public class S3Operations {
     return listObjectsV2Response;
   }
 
-  /** S3Delete with creds, creates S3Client. Delete an object from an S3. */
+  /** S3Delete with creds, uses the shared S3Client. Delete an object from an S3. */
   public static void s3Delete(AwsCredentialsProvider awsCp, String bucket, String objectKey) {
-    try (var s3Client = getS3Client(awsCp)) {
-      s3Delete(s3Client, bucket, objectKey);
-    }
+    s3Delete(s3Client(awsCp), bucket, objectKey);
   }
 
   /** S3Delete with S3Client. Delete an object from an S3. */
@@ -494,17 +543,34 @@ public class S3Operations {
         bucket);
   }
 
-  /** S3Delete with S3Client. Delete all objects from an S3 key prefix. */
+  /** S3Delete with creds, uses the shared S3Client. Delete all objects from an S3 key prefix. */
+  public static void s3DeleteAll(AwsCredentialsProvider awsCp, String bucket, String keyPrefix) {
+    s3DeleteAll(s3Client(awsCp), bucket, keyPrefix);
+  }
+
+  /**
+   * S3Delete with S3Client. Delete all objects from an S3 key prefix, 1000 keys per DeleteObjects
+   * request (see {@link S3BulkOperations#s3DeletePrefix}). Throws if any could not be deleted.
+   */
   public static void s3DeleteAll(S3Client s3Client, String bucket, String keyPrefix) {
-    var objects = s3List(s3Client, bucket, keyPrefix, 1000);
-    while (!objects.isEmpty()) {
-      for (var object : objects) {
-        s3Delete(s3Client, bucket, object.key());
-      }
-      objects = s3List(s3Client, bucket, keyPrefix, 1000);
+    var summary =
+        S3BulkOperations.s3DeletePrefix(s3Client, bucket, keyPrefix, DeleteConfig.defaults());
+    if (summary.failed() > 0) {
+      throw new IllegalStateException(
+          "Failed to delete " + summary.failed() + " objects: " + summary.failedKeys());
     }
   }
 
+  /** s3Move with creds, uses the shared S3Client. Copies an object, then deletes the source. */
+  public static void s3Move(
+      AwsCredentialsProvider awsCp,
+      String sourceBucket,
+      String sourceKey,
+      String destBucket,
+      String destKey) {
+    s3Move(s3Client(awsCp), sourceBucket, sourceKey, destBucket, destKey);
+  }
+
   public static void s3Move(
       S3Client s3Client, String sourceBucket, String sourceKey, String destBucket, String destKey) {
     s3Copy(s3Client, sourceBucket, sourceKey, destBucket, destKey);
@@ -514,17 +580,32 @@ public class S3Operations {
   }
 
   /**
-   * Moves all objects from one s3 key prefix to another. Note that it moves them up to 1000 at a
-   * time, but continues until they all have been moved.
+   * Moves all objects from one s3 key prefix to another bucket, keeping the keys. The objects are
+   * copied in parallel and the sources deleted 1000 at a time (see {@link
+   * S3BulkOperations#s3MovePrefix}). Throws if any object could not be moved.
    */
+  public static void s3MoveAll(
+      AwsCredentialsProvider awsCp, String sourceBucket, String keyPrefix, String destBucket) {
+    s3MoveAll(s3Client(awsCp), sourceBucket, keyPrefix, destBucket);
+  }
+
+  /** s3MoveAll with S3Client. See the AwsCredentialsProvider version. */
   public static void s3MoveAll(
       S3Client s3Client, String sourceBucket, String keyPrefix, String destBucket) {
-    var objects = s3List(s3Client, sourceBucket, keyPrefix, 1000);
-    while (!objects.isEmpty()) {
-      for (var object : objects) {
-        s3Move(s3Client, sourceBucket, object.key(), destBucket, object.key());
-      }
-      objects = s3List(s3Client, sourceBucket, keyPrefix, 1000);
+    var summary =
+        S3BulkOperations.s3MovePrefix(
+            s3Client,
+            sourceBucket,
+            keyPrefix,
+            destBucket,
+            BulkCopyConfig.defaults(),
+            DeleteConfig.defaults());
+    if (summary.copy().failed() > 0 || summary.delete().failed() > 0) {
+      throw new IllegalStateException(
+          "Failed to move objects, not copied: "
+              + summary.copy().failedKeys()
+              + ", not deleted: "
+              + summary.delete().failedKeys());
     }
   }
 }
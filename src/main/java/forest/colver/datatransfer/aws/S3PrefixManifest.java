@@ -0,0 +1,456 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * A local copy of the listing of an S3 prefix, kept in a file, so counts, sizes and "what is older
+ * than" questions are answered from disk in milliseconds instead of paging through the whole
+ * prefix (one LIST call per 1000 objects) on every run.
+ *
+ * <p>The listing is kept per sub-prefix (the "folders" one level below the prefix). A refresh lists
+ * the prefix with a delimiter to see which sub-prefixes there are (and picks up the objects right
+ * at the top). Then only some sub-prefixes are listed again:
+ *
+ * <ul>
+ *   <li>new ones, and ones last listed longer ago than {@link ManifestConfig#relistAfter()}, are
+ *       listed in full;
+ *   <li>the rest only get a tail check: a listing that starts after the last key known there, which
+ *       is one call when nothing was added. Most of our prefixes are written in key order (dates,
+ *       timestamps), so that catches new objects. Deletes and overwrites in those sub-prefixes
+ *       show up at their next full listing.
+ * </ul>
+ *
+ * <p>The file is a gzipped, sorted binary list: each key is stored as the length it shares with the
+ * key before it plus the rest, followed by size, ETag, last-modified and storage class.
+ */
+public class S3PrefixManifest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3PrefixManifest.class);
+  private static final int MAGIC = 0x53334d46; // "S3MF"
+  private static final int VERSION = 1;
+  private static final int LIST_PAGE_SIZE = 1000;
+  private static final String TOP = ""; // objects right at the prefix, not in a sub-prefix
+
+  private final Path file;
+  private final String bucket;
+  private final String prefix;
+  private final Map<String, SubPrefix> subPrefixes = new TreeMap<>();
+  private Instant refreshedAt;
+
+  /**
+   * Refresh settings.
+   *
+   * @param delimiter What splits the keys into sub-prefixes, usually "/".
+   * @param relistAfter Sub-prefixes last listed this long ago or more are listed in full again.
+   * @param tailCheck Look for keys added after the last known key in the other sub-prefixes.
+   * @param concurrency How many sub-prefixes are listed at once.
+   */
+  public record ManifestConfig(
+      String delimiter, Duration relistAfter, boolean tailCheck, int concurrency) {
+
+    public ManifestConfig {
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("The concurrency must be at least 1.");
+      }
+    }
+
+    /** "/" sub-prefixes, listed in full once a day, tail checked in between, 8 at once. */
+    public static ManifestConfig defaults() {
+      return new ManifestConfig("/", Duration.ofDays(1), true, 8);
+    }
+
+    public ManifestConfig withDelimiter(String delimiter) {
+      return new ManifestConfig(delimiter, relistAfter, tailCheck, concurrency);
+    }
+
+    public ManifestConfig withRelistAfter(Duration relistAfter) {
+      return new ManifestConfig(delimiter, relistAfter, tailCheck, concurrency);
+    }
+
+    public ManifestConfig withTailCheck(boolean tailCheck) {
+      return new ManifestConfig(delimiter, relistAfter, tailCheck, concurrency);
+    }
+
+    public ManifestConfig withConcurrency(int concurrency) {
+      return new ManifestConfig(delimiter, relistAfter, tailCheck, concurrency);
+    }
+  }
+
+  /** One object in the manifest. */
+  public record Entry(
+      String key, long size, String eTag, Instant lastModified, String storageClass) {}
+
+  /**
+   * What a refresh did.
+   *
+   * @param subPrefixes Sub-prefixes under the prefix now.
+   * @param relisted Sub-prefixes listed in full.
+   * @param tailChecked Sub-prefixes only checked for new keys.
+   * @param listCalls LIST requests made.
+   * @param objects Objects in the manifest after the refresh.
+   */
+  public record RefreshSummary(
+      int subPrefixes, int relisted, int tailChecked, int listCalls, long objects) {}
+
+  private static class SubPrefix {
+    private Instant listedAt;
+    private List<Entry> entries;
+
+    SubPrefix(Instant listedAt, List<Entry> entries) {
+      this.listedAt = listedAt;
+      this.entries = entries;
+    }
+  }
+
+  private S3PrefixManifest(Path file, String bucket, String prefix) {
+    this.file = file;
+    this.bucket = bucket;
+    this.prefix = prefix;
+  }
+
+  /**
+   * Loads the manifest of a bucket and prefix from a file, or starts an empty one if the file is
+   * not there (or is for another bucket or prefix). Call {@link #refresh} to bring it up to date
+   * and {@link #save()} to keep it.
+   */
+  public static S3PrefixManifest open(Path file, String bucket, String prefix) {
+    var manifest = new S3PrefixManifest(file, bucket, prefix);
+    if (Files.exists(file)) {
+      try {
+        manifest.read();
+      } catch (IOException e) {
+        LOG.warn("S3MANIFEST: Could not read {}, starting over.", file, e);
+        manifest.subPrefixes.clear();
+        manifest.refreshedAt = null;
+      }
+    }
+    return manifest;
+  }
+
+  /** Brings the manifest up to date, see the class comment for what gets listed. */
+  public RefreshSummary refresh(AwsCredentialsProvider awsCp, ManifestConfig config) {
+    return refresh(s3Client(awsCp), config);
+  }
+
+  /** Refresh with S3Client. See the AwsCredentialsProvider version. */
+  public RefreshSummary refresh(S3Client s3Client, ManifestConfig config) {
+    var start = System.currentTimeMillis();
+    var now = Instant.now();
+    var calls = new AtomicInteger();
+    var top = new ArrayList<Entry>();
+    var current = new HashSet<String>();
+    String token = null;
+    do {
+      var page =
+          list(
+              s3Client,
+              ListObjectsV2Request.builder()
+                  .bucket(bucket)
+                  .prefix(prefix)
+                  .delimiter(config.delimiter())
+                  .maxKeys(LIST_PAGE_SIZE)
+                  .continuationToken(token),
+              calls);
+      page.contents().forEach(object -> top.add(entry(object)));
+      page.commonPrefixes().forEach(common -> current.add(common.prefix()));
+      token = Boolean.TRUE.equals(page.isTruncated()) ? page.nextContinuationToken() : null;
+    } while (token != null);
+
+    synchronized (subPrefixes) {
+      subPrefixes.keySet().removeIf(name -> !name.equals(TOP) && !current.contains(name));
+      subPrefixes.put(TOP, new SubPrefix(now, top));
+    }
+    var relisted = new AtomicInteger();
+    var tailChecked = new AtomicInteger();
+    var threadNumber = new AtomicInteger();
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            config.concurrency(),
+            r -> {
+              var t = new Thread(r, "s3-manifest-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    try {
+      var futures = new ArrayList<CompletableFuture<Void>>();
+      for (var name : current) {
+        SubPrefix known;
+        synchronized (subPrefixes) {
+          known = subPrefixes.get(name);
+        }
+        if (known == null || !known.listedAt.plus(config.relistAfter()).isAfter(now)) {
+          relisted.incrementAndGet();
+          futures.add(
+              CompletableFuture.runAsync(
+                  () -> {
+                    var entries = listAll(s3Client, name, null, calls);
+                    synchronized (subPrefixes) {
+                      subPrefixes.put(name, new SubPrefix(now, entries));
+                    }
+                  },
+                  pool));
+        } else if (config.tailCheck()) {
+          tailChecked.incrementAndGet();
+          futures.add(
+              CompletableFuture.runAsync(
+                  () -> {
+                    var last =
+                        known.entries.isEmpty()
+                            ? null
+                            : known.entries.get(known.entries.size() - 1).key();
+                    var added = listAll(s3Client, name, last, calls);
+                    if (!added.isEmpty()) {
+                      synchronized (subPrefixes) {
+                        var entries = new ArrayList<>(known.entries);
+                        entries.addAll(added);
+                        known.entries = entries;
+                      }
+                    }
+                  },
+                  pool));
+        }
+      }
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    } finally {
+      pool.shutdownNow();
+    }
+    refreshedAt = now;
+    var summary =
+        new RefreshSummary(current.size(), relisted.get(), tailChecked.get(), calls.get(), count());
+    LOG.info(
+        "S3MANIFEST: Refreshed {}/{} in {} ms: {}",
+        bucket,
+        prefix,
+        System.currentTimeMillis() - start,
+        summary);
+    return summary;
+  }
+
+  /** Writes the manifest to its file (to a temp file first, so a crash can't leave half a file). */
+  public void save() {
+    var temp = file.resolveSibling(file.getFileName() + ".tmp");
+    try {
+      if (file.getParent() != null) {
+        Files.createDirectories(file.getParent());
+      }
+      try (var out =
+          new DataOutputStream(
+              new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+        write(out);
+      }
+      Files.move(
+          temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not save the manifest to " + file, e);
+    }
+    LOG.info("S3MANIFEST: Saved {} objects of {}/{} to {}", count(), bucket, prefix, file);
+  }
+
+  /** When the manifest was last refreshed, or null if it never was. */
+  public Instant refreshedAt() {
+    return refreshedAt;
+  }
+
+  /** Every object, in key order (S3's, by UTF-8 bytes). */
+  public Stream<Entry> entries() {
+    return all().sorted(Comparator.comparing(Entry::key, S3ShardedLister::compareKeys));
+  }
+
+  public long count() {
+    synchronized (subPrefixes) {
+      return subPrefixes.values().stream().mapToLong(sub -> sub.entries.size()).sum();
+    }
+  }
+
+  public long totalSize() {
+    return all().mapToLong(Entry::size).sum();
+  }
+
+  /** The objects last modified before a time, e.g. the ones a retention cleanup would delete. */
+  public List<Entry> olderThan(Instant time) {
+    return entries().filter(entry -> entry.lastModified().isBefore(time)).toList();
+  }
+
+  public long countOlderThan(Instant time) {
+    return all().filter(entry -> entry.lastModified().isBefore(time)).count();
+  }
+
+  public long sizeOlderThan(Instant time) {
+    return all().filter(entry -> entry.lastModified().isBefore(time)).mapToLong(Entry::size).sum();
+  }
+
+  /** Every object, sub-prefix by sub-prefix (the objects right at the prefix come first). */
+  private Stream<Entry> all() {
+    List<SubPrefix> all;
+    synchronized (subPrefixes) {
+      all = List.copyOf(subPrefixes.values());
+    }
+    return all.stream().flatMap(sub -> sub.entries.stream());
+  }
+
+  /** Lists a sub-prefix in full, or only the keys after startAfter. */
+  private List<Entry> listAll(
+      S3Client s3Client, String subPrefix, String startAfter, AtomicInteger calls) {
+    var entries = new ArrayList<Entry>();
+    String token = null;
+    do {
+      var request =
+          ListObjectsV2Request.builder()
+              .bucket(bucket)
+              .prefix(subPrefix)
+              .maxKeys(LIST_PAGE_SIZE)
+              .continuationToken(token);
+      if (token == null && startAfter != null) {
+        request.startAfter(startAfter);
+      }
+      var page = list(s3Client, request, calls);
+      page.contents().forEach(object -> entries.add(entry(object)));
+      token = Boolean.TRUE.equals(page.isTruncated()) ? page.nextContinuationToken() : null;
+    } while (token != null);
+    return entries;
+  }
+
+  private static ListObjectsV2Response list(
+      S3Client s3Client, ListObjectsV2Request.Builder request, AtomicInteger calls) {
+    calls.incrementAndGet();
+    var response = s3Client.listObjectsV2(request.build());
+    awsResponseValidation(response);
+    return response;
+  }
+
+  private static Entry entry(S3Object object) {
+    return new Entry(
+        object.key(),
+        object.size(),
+        object.eTag(),
+        object.lastModified(),
+        object.storageClassAsString());
+  }
+
+  private void write(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeUTF(bucket);
+    out.writeUTF(prefix);
+    out.writeLong(refreshedAt == null ? -1 : refreshedAt.toEpochMilli());
+    Map<String, SubPrefix> copy;
+    synchronized (subPrefixes) {
+      copy = new TreeMap<>(subPrefixes);
+    }
+    out.writeInt(copy.size());
+    for (var sub : copy.entrySet()) {
+      out.writeUTF(sub.getKey());
+      out.writeLong(sub.getValue().listedAt.toEpochMilli());
+      var entries = new ArrayList<>(sub.getValue().entries);
+      entries.sort(Comparator.comparing(Entry::key, S3ShardedLister::compareKeys));
+      out.writeInt(entries.size());
+      var previous = "";
+      for (var entry : entries) {
+        var shared = sharedLength(previous, entry.key());
+        var rest = entry.key().substring(shared).getBytes(StandardCharsets.UTF_8);
+        out.writeShort(shared);
+        out.writeShort(rest.length);
+        out.write(rest);
+        out.writeLong(entry.size());
+        out.writeUTF(entry.eTag() == null ? "" : entry.eTag());
+        out.writeLong(entry.lastModified().toEpochMilli());
+        out.writeUTF(entry.storageClass() == null ? "" : entry.storageClass());
+        previous = entry.key();
+      }
+    }
+  }
+
+  private void read() throws IOException {
+    try (var in =
+        new DataInputStream(
+            new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(file + " is not a manifest this version can read.");
+      }
+      if (!in.readUTF().equals(bucket) || !in.readUTF().equals(prefix)) {
+        LOG.info("S3MANIFEST: {} is for another bucket or prefix, starting over.", file);
+        return;
+      }
+      var refreshed = in.readLong();
+      var subs = in.readInt();
+      for (var i = 0; i < subs; i++) {
+        var name = in.readUTF();
+        var listedAt = Instant.ofEpochMilli(in.readLong());
+        var count = in.readInt();
+        var entries = new ArrayList<Entry>(count);
+        var previous = "";
+        for (var j = 0; j < count; j++) {
+          var shared = in.readUnsignedShort();
+          var rest = new byte[in.readUnsignedShort()];
+          in.readFully(rest);
+          var key = previous.substring(0, shared) + new String(rest, StandardCharsets.UTF_8);
+          var size = in.readLong();
+          var eTag = in.readUTF();
+          var lastModified = Instant.ofEpochMilli(in.readLong());
+          var storageClass = in.readUTF();
+          entries.add(
+              new Entry(
+                  key,
+                  size,
+                  eTag.isEmpty() ? null : eTag,
+                  lastModified,
+                  storageClass.isEmpty() ? null : storageClass));
+          previous = key;
+        }
+        subPrefixes.put(name, new SubPrefix(listedAt, entries));
+      }
+      refreshedAt = refreshed < 0 ? null : Instant.ofEpochMilli(refreshed);
+    }
+    LOG.info("S3MANIFEST: Loaded {} objects of {}/{} from {}", count(), bucket, prefix, file);
+  }
+
+  /** How many chars two keys share at the start, without splitting a surrogate pair. */
+  private static int sharedLength(String a, String b) {
+    var max = Math.min(a.length(), b.length());
+    var i = 0;
+    while (i < max && a.charAt(i) == b.charAt(i)) {
+      i++;
+    }
+    if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1))) {
+      i--;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,500 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+
+/**
+ * Downloads S3 objects straight to a file, in byte ranges fetched in parallel. s3Get hands back one
+ * stream that callers read into the heap, so a big object came down one TCP connection at a time
+ * and had to fit in memory. Here the file is sized up front and each range is written at its own
+ * position as it arrives, through a small pool of reusable buffers, so memory stays flat however
+ * big the object is.
+ *
+ * <p>Finished ranges are noted in a "&lt;file&gt;.parts" file next to the download. If a download
+ * fails or is stopped, running it again fetches only the missing ranges (as long as the object has
+ * not changed, every range is requested with the ETag it had at the start). The .parts file is
+ * removed once the download is complete.
+ *
+ * <p>Verifying compares the file to the checksum S3 keeps for the object: a full-object CRC32,
+ * CRC32C, CRC64NVME, SHA-1 or SHA-256 if it was uploaded with one, otherwise the ETag when that is
+ * a plain MD5 (a single-part upload, not encrypted or encrypted with SSE-S3). The ranges arrive
+ * out of order (and some may be from an earlier run), so the finished file is streamed through the
+ * digest once. Objects with neither can't be verified, which is logged.
+ */
+public class S3RangedDownload {
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3RangedDownload.class);
+  private static final String PARTS_SUFFIX = ".parts";
+
+  private S3RangedDownload() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Download settings.
+   *
+   * @param partSize Bytes per range request.
+   * @param concurrency How many ranges are fetched at once.
+   * @param bufferSize Bytes read from a range before they are written to the file.
+   * @param maxBufferMemory The most buffer memory held at once (off the heap). Ranges wait for a
+   *     free buffer when it is all in use.
+   * @param verifyChecksum Check the finished file against the checksum S3 has for the object.
+   */
+  public record DownloadConfig(
+      long partSize,
+      int concurrency,
+      int bufferSize,
+      long maxBufferMemory,
+      boolean verifyChecksum) {
+
+    public DownloadConfig {
+      if (partSize < 1 || concurrency < 1 || bufferSize < 1 || maxBufferMemory < bufferSize) {
+        throw new IllegalArgumentException(
+            "The sizes and concurrency must be positive, and maxBufferMemory at least bufferSize.");
+      }
+    }
+
+    /** 16 MB ranges, 8 at once, 1 MB buffers up to 16 MB, verified. */
+    public static DownloadConfig defaults() {
+      return new DownloadConfig(16L * 1024 * 1024, 8, 1024 * 1024, 16L * 1024 * 1024, true);
+    }
+
+    public DownloadConfig withPartSize(long partSize) {
+      return new DownloadConfig(partSize, concurrency, bufferSize, maxBufferMemory, verifyChecksum);
+    }
+
+    public DownloadConfig withConcurrency(int concurrency) {
+      return new DownloadConfig(partSize, concurrency, bufferSize, maxBufferMemory, verifyChecksum);
+    }
+
+    public DownloadConfig withBufferSize(int bufferSize) {
+      return new DownloadConfig(partSize, concurrency, bufferSize, maxBufferMemory, verifyChecksum);
+    }
+
+    public DownloadConfig withMaxBufferMemory(long maxBufferMemory) {
+      return new DownloadConfig(partSize, concurrency, bufferSize, maxBufferMemory, verifyChecksum);
+    }
+
+    public DownloadConfig withVerifyChecksum(boolean verifyChecksum) {
+      return new DownloadConfig(partSize, concurrency, bufferSize, maxBufferMemory, verifyChecksum);
+    }
+  }
+
+  /**
+   * What a download did.
+   *
+   * @param file The downloaded file.
+   * @param bytes The size of the object.
+   * @param parts How many ranges the object was split into.
+   * @param resumedParts How many of those were already there from an earlier run.
+   * @param verifiedWith The checksum the file was verified with (e.g. "CRC32C"), or null if it
+   *     wasn't.
+   */
+  public record DownloadSummary(
+      Path file, long bytes, int parts, int resumedParts, String verifiedWith) {}
+
+  /**
+   * Downloads an object to a file, resuming an earlier download of it if there is one.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param objectKey The object to download.
+   * @param target The file to write. Its directory must exist.
+   * @param config Range size, concurrency, memory and verifying.
+   * @return What was downloaded.
+   */
+  public static DownloadSummary s3Download(
+      AwsCredentialsProvider awsCp,
+      String bucket,
+      String objectKey,
+      Path target,
+      DownloadConfig config) {
+    return s3Download(s3Client(awsCp), bucket, objectKey, target, config);
+  }
+
+  /** s3Download with S3Client. See the AwsCredentialsProvider version. */
+  public static DownloadSummary s3Download(
+      S3Client s3Client, String bucket, String objectKey, Path target, DownloadConfig config) {
+    var head =
+        s3Client.headObject(
+            HeadObjectRequest.builder()
+                .bucket(bucket)
+                .key(objectKey)
+                .checksumMode(ChecksumMode.ENABLED)
+                .build());
+    awsResponseValidation(head);
+    var size = head.contentLength();
+    var partCount = (int) ((size + config.partSize() - 1) / config.partSize());
+    var start = System.currentTimeMillis();
+    try {
+      var progress = Progress.open(target, head.eTag(), size, config.partSize());
+      var resumed = progress.done.size();
+      try (var channel =
+          FileChannel.open(
+              target,
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE)) {
+        if (resumed == 0) {
+          channel.truncate(0);
+          if (size > 0) {
+            channel.write(ByteBuffer.allocate(1), size - 1); // size the file up front
+          }
+        } else {
+          LOG.info(
+              "S3DOWNLOAD: Resuming {}, {} of {} parts are already there.",
+              target,
+              resumed,
+              partCount);
+        }
+        downloadParts(s3Client, bucket, objectKey, head.eTag(), size, channel, progress, config);
+      }
+      progress.delete();
+      String verifiedWith = config.verifyChecksum() ? verify(head, target, objectKey) : null;
+      var seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+      LOG.info(
+          "S3DOWNLOAD: Downloaded {}/{} ({} bytes, {} parts) to {} in {} sec (~{} MB/sec).",
+          bucket,
+          objectKey,
+          size,
+          partCount,
+          target,
+          seconds,
+          size / seconds / (1024 * 1024));
+      return new DownloadSummary(target, size, partCount, resumed, verifiedWith);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write " + target, e);
+    }
+  }
+
+  private static void downloadParts(
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      String eTag,
+      long size,
+      FileChannel channel,
+      Progress progress,
+      DownloadConfig config) {
+    var partCount = (int) ((size + config.partSize() - 1) / config.partSize());
+    var buffers =
+        new ByteBufferPool(
+            config.bufferSize(), (int) Math.max(1, config.maxBufferMemory() / config.bufferSize()));
+    var threadNumber = new AtomicInteger();
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            config.concurrency(),
+            r -> {
+              var t = new Thread(r, "s3-download-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    try {
+      var futures = new ArrayList<CompletableFuture<Void>>();
+      for (var part = 0; part < partCount; part++) {
+        if (progress.done.contains(part)) {
+          continue;
+        }
+        var partNumber = part;
+        var first = part * config.partSize();
+        var last = Math.min(size, first + config.partSize()) - 1;
+        futures.add(
+            CompletableFuture.runAsync(
+                () -> {
+                  downloadRange(
+                      s3Client, bucket, objectKey, eTag, first, last, channel, buffers);
+                  progress.markDone(partNumber, channel);
+                },
+                pool));
+      }
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      // the .parts file keeps what did make it, for the next try
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void downloadRange(
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      String eTag,
+      long first,
+      long last,
+      FileChannel channel,
+      ByteBufferPool buffers) {
+    var request =
+        GetObjectRequest.builder()
+            .bucket(bucket)
+            .key(objectKey)
+            .range("bytes=" + first + "-" + last)
+            .ifMatch(eTag)
+            .build();
+    var position = first;
+    try (var in = s3Client.getObject(request)) {
+      awsResponseValidation(in.response());
+      var source = Channels.newChannel(in);
+      var ended = false;
+      while (!ended) {
+        var buffer = buffers.acquire();
+        try {
+          while (buffer.hasRemaining() && !ended) {
+            ended = source.read(buffer) < 0;
+          }
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+        } finally {
+          buffers.release(buffer);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not download bytes " + first + "-" + last, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      throw new IllegalStateException("Interrupted downloading " + objectKey, e);
+    }
+    if (position != last + 1) {
+      throw new IllegalStateException(
+          String.format(
+              "Got %d bytes for bytes %d-%d of %s", position - first, first, last, objectKey));
+    }
+    LOG.debug("S3DOWNLOAD: Downloaded bytes {}-{} of {}", first, last, objectKey);
+  }
+
+  /**
+   * Checks the file against the best checksum S3 has for the object. Returns the one used, or null
+   * if there was none to check against.
+   */
+  private static String verify(HeadObjectResponse head, Path file, String objectKey)
+      throws IOException {
+    String algorithm;
+    String expected;
+    String actual;
+    if (isFullObject(head.checksumCRC32C())) {
+      algorithm = "CRC32C";
+      expected = head.checksumCRC32C();
+      actual = base64(crc(file, new CRC32C()));
+    } else if (isFullObject(head.checksumCRC32())) {
+      algorithm = "CRC32";
+      expected = head.checksumCRC32();
+      actual = base64(crc(file, new CRC32()));
+    } else if (isFullObject(head.checksumCRC64NVME())) {
+      algorithm = "CRC64NVME";
+      expected = head.checksumCRC64NVME();
+      var crc64 = crc(file, new Crc64Nvme());
+      actual = Base64.getEncoder().encodeToString(ByteBuffer.allocate(8).putLong(crc64).array());
+    } else if (isFullObject(head.checksumSHA256())) {
+      algorithm = "SHA-256";
+      expected = head.checksumSHA256();
+      actual = Base64.getEncoder().encodeToString(digest(file, algorithm));
+    } else if (isFullObject(head.checksumSHA1())) {
+      algorithm = "SHA-1";
+      expected = head.checksumSHA1();
+      actual = Base64.getEncoder().encodeToString(digest(file, algorithm));
+    } else if (head.eTag() != null && !head.eTag().contains("-") && isMd5ETag(head)) {
+      algorithm = "MD5";
+      expected = head.eTag().replace("\"", "");
+      actual = HexFormat.of().formatHex(digest(file, algorithm));
+    } else {
+      LOG.warn(
+          "S3DOWNLOAD: {} has no full-object checksum or MD5 ETag, so {} was not verified.",
+          objectKey,
+          file);
+      return null;
+    }
+    if (!expected.equals(actual)) {
+      throw new IllegalStateException(
+          String.format(
+              "%s of %s is %s, S3 has %s for %s", algorithm, file, actual, expected, objectKey));
+    }
+    LOG.info("S3DOWNLOAD: {} matches the {} S3 has for {}.", file, algorithm, objectKey);
+    return algorithm;
+  }
+
+  /**
+   * The ETag of a single-part object is its MD5 unless the object is encrypted with KMS (aws:kms,
+   * aws:kms:dsse) or a customer key (SSE-C), then it is something else.
+   */
+  private static boolean isMd5ETag(HeadObjectResponse head) {
+    var sse = head.serverSideEncryptionAsString();
+    return (sse == null || "AES256".equals(sse)) && head.sseCustomerAlgorithm() == null;
+  }
+
+  /** Composite checksums of multipart uploads end in "-partCount". */
+  private static boolean isFullObject(String checksum) {
+    return checksum != null && !checksum.contains("-");
+  }
+
+  private static long crc(Path file, Checksum checksum) throws IOException {
+    read(file, checksum::update);
+    return checksum.getValue();
+  }
+
+  private static byte[] digest(Path file, String algorithm) throws IOException {
+    try {
+      var digest = MessageDigest.getInstance(algorithm);
+      read(file, digest::update);
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(algorithm + " is not available.", e);
+    }
+  }
+
+  private static void read(Path file, Consumer<ByteBuffer> consumer) throws IOException {
+    var buffer = ByteBuffer.allocateDirect(1024 * 1024);
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      while (channel.read(buffer.clear()) >= 0) {
+        consumer.accept(buffer.flip());
+      }
+    }
+  }
+
+  private static String base64(long crc) {
+    return Base64.getEncoder().encodeToString(ByteBuffer.allocate(4).putInt((int) crc).array());
+  }
+
+  /**
+   * CRC-64/NVME, which the JDK doesn't have: reflected polynomial 0x9A6C9329AC4BC9B5, all ones in
+   * and out. A byte at a time off a table, so it is slower than the CRC32s, but S3 only has this
+   * one for most objects uploaded since the start of 2025.
+   */
+  private static final class Crc64Nvme implements Checksum {
+
+    private static final long[] TABLE = new long[256];
+
+    static {
+      for (var i = 0; i < TABLE.length; i++) {
+        long crc = i;
+        for (var bit = 0; bit < 8; bit++) {
+          crc = (crc & 1) == 0 ? crc >>> 1 : (crc >>> 1) ^ 0x9A6C9329AC4BC9B5L;
+        }
+        TABLE[i] = crc;
+      }
+    }
+
+    private long crc = -1L;
+
+    @Override
+    public void update(int b) {
+      crc = TABLE[(int) (crc ^ b) & 0xFF] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+      for (var i = off; i < off + len; i++) {
+        update(b[i]);
+      }
+    }
+
+    @Override
+    public void update(ByteBuffer buffer) {
+      while (buffer.hasRemaining()) {
+        update(buffer.get());
+      }
+    }
+
+    @Override
+    public long getValue() {
+      return ~crc;
+    }
+
+    @Override
+    public void reset() {
+      crc = -1L;
+    }
+  }
+
+  /**
+   * The .parts file: a header line with the ETag, size and part size of the object, then the
+   * number of each part once it is written.
+   */
+  private static class Progress {
+
+    private final Path file;
+    private final Set<Integer> done;
+
+    private Progress(Path file, Set<Integer> done) {
+      this.file = file;
+      this.done = done;
+    }
+
+    /** Picks up an earlier download of the same object (same ETag and ranges), or starts over. */
+    static Progress open(Path target, String eTag, long size, long partSize) throws IOException {
+      var file = target.resolveSibling(target.getFileName() + PARTS_SUFFIX);
+      var header = eTag + " " + size + " " + partSize;
+      var done = new HashSet<Integer>();
+      if (Files.exists(file) && Files.exists(target)) {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (!lines.isEmpty() && lines.get(0).equals(header)) {
+          for (var line : lines.subList(1, lines.size())) {
+            if (!line.isBlank()) {
+              done.add(Integer.parseInt(line.trim()));
+            }
+          }
+          return new Progress(file, done);
+        }
+        LOG.info("S3DOWNLOAD: {} is from a different version of the object, starting over.", file);
+      }
+      Files.writeString(file, header + "\n", StandardCharsets.UTF_8);
+      return new Progress(file, done);
+    }
+
+    /** The part is on disk (forced) before it is noted, so a crash can't skip a part. */
+    void markDone(int part, FileChannel channel) {
+      try {
+        channel.force(false);
+        synchronized (this) {
+          Files.writeString(
+              file, part + "\n", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+          done.add(part);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not note the progress in " + file, e);
+      }
+    }
+
+    void delete() throws IOException {
+      Files.deleteIfExists(file);
+    }
+  }
+}
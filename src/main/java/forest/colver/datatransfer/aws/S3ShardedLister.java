@@ -0,0 +1,447 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+/**
+ * Lists a big S3 prefix in parallel. A plain listing is one chain of continuation tokens, so it can
+ * never go faster than one page of 1000 keys per round trip, which is hours for tens of millions of
+ * keys. Here the prefix is cut into shards that are listed at the same time:
+ *
+ * <ul>
+ *   <li>by default, the sub-prefixes found with a delimiter ("/"), each listed in full. The
+ *       delimiter listing itself also hands over the objects right at the prefix;
+ *   <li>or, for flat prefixes (no folders, e.g. keys that start with a hash), by split points: key
+ *       ranges between startAfter boundaries, see {@link ListConfig#splitPoints()}.
+ * </ul>
+ *
+ * <p>The shards come back as one lazy Stream, either in key order or in whatever order the pages
+ * arrive (faster, when the order doesn't matter, like for counting or copying). Each shard only
+ * lists a few pages ahead of the reader. Close the stream (try-with-resources) if you stop reading
+ * before the end, so the listing threads stop.
+ */
+public class S3ShardedLister {
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3ShardedLister.class);
+  private static final int LIST_PAGE_SIZE = 1000;
+
+  private S3ShardedLister() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Sharded listing settings.
+   *
+   * @param concurrency How many shards are listed at once.
+   * @param delimiter What splits the keys into sub-prefixes, usually "/". Null (with no split
+   *     points) lists the prefix as one shard, the same as a plain listing.
+   * @param splitPoints Key boundaries, relative to the prefix, to cut the prefix into ranges
+   *     instead of using the delimiter. E.g. "3", "7", "b" lists up to "3", then after "3" up to
+   *     "7", and so on, which suits keys that start with a hex hash.
+   * @param ordered Return the objects in key order. Otherwise they come in the order the shards
+   *     list them.
+   * @param pagesAhead How many pages (of up to 1000 objects) a shard lists ahead of the reader.
+   */
+  public record ListConfig(
+      int concurrency,
+      String delimiter,
+      List<String> splitPoints,
+      boolean ordered,
+      int pagesAhead) {
+
+    public ListConfig {
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("The concurrency must be at least 1.");
+      }
+      if (pagesAhead < 1) {
+        throw new IllegalArgumentException("The pagesAhead must be at least 1.");
+      }
+      splitPoints =
+          splitPoints == null
+              ? List.of()
+              : splitPoints.stream().distinct().sorted(S3ShardedLister::compareKeys).toList();
+    }
+
+    /** 8 shards at once, split on "/", in key order, 4 pages ahead. */
+    public static ListConfig defaults() {
+      return new ListConfig(8, "/", List.of(), true, 4);
+    }
+
+    public ListConfig withConcurrency(int concurrency) {
+      return new ListConfig(concurrency, delimiter, splitPoints, ordered, pagesAhead);
+    }
+
+    public ListConfig withDelimiter(String delimiter) {
+      return new ListConfig(concurrency, delimiter, splitPoints, ordered, pagesAhead);
+    }
+
+    public ListConfig withSplitPoints(List<String> splitPoints) {
+      return new ListConfig(concurrency, delimiter, splitPoints, ordered, pagesAhead);
+    }
+
+    public ListConfig withOrdered(boolean ordered) {
+      return new ListConfig(concurrency, delimiter, splitPoints, ordered, pagesAhead);
+    }
+
+    public ListConfig withPagesAhead(int pagesAhead) {
+      return new ListConfig(concurrency, delimiter, splitPoints, ordered, pagesAhead);
+    }
+  }
+
+  /**
+   * Lists every object under a prefix, several shards at a time.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param keyPrefix The key prefix to list, aka the folder.
+   * @param config How to shard, how many at once, ordered or not.
+   * @return The objects, listed as the stream is read. Close it when done.
+   */
+  public static Stream<S3Object> s3ListSharded(
+      AwsCredentialsProvider awsCp, String bucket, String keyPrefix, ListConfig config) {
+    return s3ListSharded(s3Client(awsCp), bucket, keyPrefix, config);
+  }
+
+  /** s3ListSharded with S3Client. See the AwsCredentialsProvider version. */
+  public static Stream<S3Object> s3ListSharded(
+      S3Client s3Client, String bucket, String keyPrefix, ListConfig config) {
+    var listing = new Listing(s3Client, bucket, keyPrefix == null ? "" : keyPrefix, config);
+    var characteristics = Spliterator.NONNULL | (config.ordered() ? Spliterator.ORDERED : 0);
+    return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(listing, characteristics), false)
+        .onClose(listing::close);
+  }
+
+  /** Compares keys the way S3 sorts them, by their UTF-8 bytes. */
+  static int compareKeys(String a, String b) {
+    return Arrays.compareUnsigned(
+        a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** A page of objects, or the error that stopped a shard. */
+  private record Page(List<S3Object> objects, RuntimeException error) {}
+
+  /** Part of the listing, read in turn: a shard, or objects the delimiter listing already has. */
+  private static class Segment {
+    private final BlockingQueue<Page> pages;
+
+    Segment(int capacity) {
+      pages = new LinkedBlockingQueue<>(capacity);
+    }
+  }
+
+  /**
+   * The shards and the reader. Ordered, every shard has its own segment and the reader goes through
+   * them in key order. Unordered, every shard writes to the one segment, and the last shard to
+   * finish ends it.
+   */
+  private static class Listing implements Iterator<S3Object> {
+
+    private static final Page END = new Page(List.of(), null);
+    private static final Segment LAST = new Segment(1);
+
+    private final S3Client s3Client;
+    private final String bucket;
+    private final String prefix;
+    private final ListConfig config;
+    private final ExecutorService pool;
+    private final BlockingQueue<Segment> segments;
+    private final Segment shared;
+    private final AtomicInteger running = new AtomicInteger(1); // the discovery
+    private final AtomicInteger shards = new AtomicInteger();
+    private final AtomicInteger listCalls = new AtomicInteger();
+    private final AtomicLong listed = new AtomicLong();
+    private final long start = System.currentTimeMillis();
+    private Segment current;
+    private Iterator<S3Object> page = Collections.emptyIterator();
+    private boolean finished;
+    // the first error, checked by the reader in case its page didn't make it into the queue
+    private volatile RuntimeException failure;
+
+    Listing(S3Client s3Client, String bucket, String prefix, ListConfig config) {
+      this.s3Client = s3Client;
+      this.bucket = bucket;
+      this.prefix = prefix;
+      this.config = config;
+      var threadNumber = new AtomicInteger();
+      pool =
+          Executors.newFixedThreadPool(
+              config.concurrency() + 1, // one more for finding the shards
+              r -> {
+                var t = new Thread(r, "s3-list-" + threadNumber.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+              });
+      var ahead = config.concurrency() * config.pagesAhead();
+      segments = new LinkedBlockingQueue<>(Math.max(2, ahead));
+      if (config.ordered()) {
+        shared = null;
+      } else {
+        shared = new Segment(ahead);
+        segments.add(shared);
+        segments.add(LAST);
+      }
+      pool.execute(this::discover);
+    }
+
+    /** Finds the shards, hands them to the pool, and passes on the objects right at the prefix. */
+    private void discover() {
+      try {
+        if (!config.splitPoints().isEmpty()) {
+          String startAfter = null;
+          for (var point : config.splitPoints()) {
+            shard(prefix, startAfter, prefix + point);
+            startAfter = prefix + point;
+          }
+          shard(prefix, startAfter, null);
+        } else if (config.delimiter() == null) {
+          shard(prefix, null, null);
+        } else {
+          discoverByDelimiter();
+        }
+        if (config.ordered()) {
+          segments.put(LAST);
+        } else {
+          finish(shared);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // Restore interrupt status
+      } catch (RuntimeException e) {
+        fail(config.ordered() ? null : shared, e);
+      }
+    }
+
+    private void discoverByDelimiter() throws InterruptedException {
+      String token = null;
+      do {
+        var response =
+            list(
+                ListObjectsV2Request.builder()
+                    .bucket(bucket)
+                    .prefix(prefix)
+                    .delimiter(config.delimiter())
+                    .maxKeys(LIST_PAGE_SIZE)
+                    .continuationToken(token));
+        var objects = response.contents();
+        var folders = response.commonPrefixes().stream().map(CommonPrefix::prefix).toList();
+        if (config.ordered()) {
+          // a page covers one key range, so slot the objects in between the sub-prefixes
+          var from = 0;
+          for (var folder : folders) {
+            var to = from;
+            while (to < objects.size() && compareKeys(objects.get(to).key(), folder) < 0) {
+              to++;
+            }
+            ready(objects.subList(from, to));
+            shard(folder, null, null);
+            from = to;
+          }
+          ready(objects.subList(from, objects.size()));
+        } else {
+          ready(objects);
+          for (var folder : folders) {
+            shard(folder, null, null);
+          }
+        }
+        token =
+            Boolean.TRUE.equals(response.isTruncated()) ? response.nextContinuationToken() : null;
+      } while (token != null);
+    }
+
+    /** Passes on objects that are already listed. */
+    private void ready(List<S3Object> objects) throws InterruptedException {
+      if (objects.isEmpty()) {
+        return;
+      }
+      listed.addAndGet(objects.size());
+      if (config.ordered()) {
+        var segment = new Segment(2);
+        segment.pages.put(new Page(List.copyOf(objects), null));
+        segment.pages.put(END);
+        segments.put(segment);
+      } else {
+        shared.pages.put(new Page(objects, null));
+      }
+    }
+
+    /** Lists the keys under shardPrefix after startAfter, up to and including until. */
+    private void shard(String shardPrefix, String startAfter, String until)
+        throws InterruptedException {
+      shards.incrementAndGet();
+      Segment target;
+      if (config.ordered()) {
+        target = new Segment(config.pagesAhead());
+        segments.put(target);
+      } else {
+        target = shared;
+        running.incrementAndGet();
+      }
+      pool.execute(
+          () -> {
+            try {
+              listShard(target, shardPrefix, startAfter, until);
+              finish(target);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt(); // Restore interrupt status
+            } catch (RuntimeException e) {
+              fail(target, e);
+            }
+          });
+    }
+
+    private void listShard(Segment target, String shardPrefix, String startAfter, String until)
+        throws InterruptedException {
+      String token = null;
+      do {
+        var request =
+            ListObjectsV2Request.builder()
+                .bucket(bucket)
+                .prefix(shardPrefix)
+                .maxKeys(LIST_PAGE_SIZE)
+                .continuationToken(token);
+        if (token == null && startAfter != null) {
+          request.startAfter(startAfter);
+        }
+        var response = list(request);
+        var objects = response.contents();
+        var more = Boolean.TRUE.equals(response.isTruncated());
+        if (until != null
+            && !objects.isEmpty()
+            && compareKeys(objects.get(objects.size() - 1).key(), until) > 0) {
+          objects = objects.stream().filter(o -> compareKeys(o.key(), until) <= 0).toList();
+          more = false;
+        }
+        if (!objects.isEmpty()) {
+          listed.addAndGet(objects.size());
+          target.pages.put(new Page(objects, null));
+        }
+        token = more ? response.nextContinuationToken() : null;
+      } while (token != null);
+    }
+
+    private ListObjectsV2Response list(ListObjectsV2Request.Builder request) {
+      listCalls.incrementAndGet();
+      var response = s3Client.listObjectsV2(request.build());
+      awsResponseValidation(response);
+      LOG.debug("S3LIST: Listed {} objects from {}/{}", response.keyCount(), bucket, prefix);
+      return response;
+    }
+
+    private void finish(Segment target) throws InterruptedException {
+      if (config.ordered() || running.decrementAndGet() == 0) {
+        target.pages.put(END);
+      }
+    }
+
+    /**
+     * Hands an error to the reader. The reader checks failure before every page. The error page,
+     * in the shard's segment or a segment of its own, wakes the reader if it is waiting. Unordered,
+     * another shard can take the room first, but then the reader has a page to wake up for.
+     */
+    private void fail(Segment target, RuntimeException e) {
+      if (failure == null) {
+        failure = e;
+      }
+      var segment = target == null ? new Segment(1) : target;
+      segment.pages.clear(); // the reader stops here anyway, and this makes room
+      segment.pages.offer(new Page(List.of(), e));
+      if (target == null) {
+        segments.clear();
+        segments.offer(segment);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (!page.hasNext()) {
+        if (finished) {
+          return false;
+        }
+        try {
+          page = nextPage().iterator();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Restore interrupt status
+          close();
+          throw new IllegalStateException("Interrupted listing " + bucket + "/" + prefix, e);
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public S3Object next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return page.next();
+    }
+
+    private List<S3Object> nextPage() throws InterruptedException {
+      while (true) {
+        var error = failure;
+        if (error != null) {
+          finished = true;
+          close();
+          throw error;
+        }
+        if (current == null) {
+          current = segments.take();
+          if (current == LAST) {
+            finished = true;
+            close();
+            LOG.info(
+                "S3LISTSHARDED: Listed {} objects from {}/{} in {} shards, {} LIST calls, {} ms",
+                listed.get(),
+                bucket,
+                prefix,
+                shards.get(),
+                listCalls.get(),
+                System.currentTimeMillis() - start);
+            return List.of();
+          }
+        }
+        var next = current.pages.take();
+        if (next.error() != null) {
+          finished = true;
+          close();
+          throw next.error();
+        }
+        if (next == END) {
+          current = null;
+        } else {
+          return next.objects();
+        }
+      }
+    }
+
+    void close() {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,413 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+/**
+ * Puts files and streams on S3 without loading them into memory. The s3Put variants in {@link
+ * S3Operations} take a String payload, which means the whole object on the heap (twice, as UTF-16
+ * and then UTF-8) and mangled bytes for anything binary, so multi-GB batch files could not be moved
+ * at all.
+ *
+ * <p>Small content goes as one PutObject. Anything over the multipart threshold goes as a multipart
+ * upload: the source is read part by part into a small pool of reusable direct buffers, and the
+ * parts are uploaded in parallel while the next ones are read. If anything fails the multipart
+ * upload is aborted, so no half-uploaded parts are left behind (and billed) on the bucket.
+ */
+public class S3StreamingUpload {
+
+  /** The smallest part S3 takes (other than the last one). */
+  public static final int S3_MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  /** The most parts a multipart upload can have. */
+  public static final int S3_MAX_PARTS = 10_000;
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3StreamingUpload.class);
+
+  private S3StreamingUpload() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Upload settings.
+   *
+   * @param multipartThreshold Content bigger than this (bytes) goes as a multipart upload. For
+   *     streams, where the size isn't known up front, this is capped at partSize: if the stream
+   *     ends within the first part it goes as one PutObject.
+   * @param partSize Bytes per part, at least 5 MB. Objects can have 10,000 parts at most, so the
+   *     default 8 MB parts work up to about 78 GB for streams. Files get bigger parts if they need
+   *     them.
+   * @param concurrency How many parts upload at once. One more buffer than this is held, for the
+   *     part being read.
+   */
+  public record UploadConfig(long multipartThreshold, int partSize, int concurrency) {
+
+    public UploadConfig {
+      if (partSize < S3_MIN_PART_SIZE) {
+        throw new IllegalArgumentException("The partSize must be at least 5 MB.");
+      }
+      if (concurrency < 1) {
+        throw new IllegalArgumentException("The concurrency must be at least 1.");
+      }
+    }
+
+    /** Multipart above 16 MB, 8 MB parts, 4 at once. */
+    public static UploadConfig defaults() {
+      return new UploadConfig(16L * 1024 * 1024, 8 * 1024 * 1024, 4);
+    }
+
+    public UploadConfig withMultipartThreshold(long multipartThreshold) {
+      return new UploadConfig(multipartThreshold, partSize, concurrency);
+    }
+
+    public UploadConfig withPartSize(int partSize) {
+      return new UploadConfig(multipartThreshold, partSize, concurrency);
+    }
+
+    public UploadConfig withConcurrency(int concurrency) {
+      return new UploadConfig(multipartThreshold, partSize, concurrency);
+    }
+
+    /**
+     * Bytes per part for content of a known size: partSize, raised as needed to stay within 10,000
+     * parts.
+     */
+    public int partSizeFor(long size) {
+      return Math.toIntExact(Math.max(partSize, (size + S3_MAX_PARTS - 1) / S3_MAX_PARTS));
+    }
+  }
+
+  /**
+   * Puts a file on S3, streamed from disk. The size is known up front, so a file that would take
+   * more than 10,000 parts of partSize gets bigger parts instead.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param objectKey The key to put it at.
+   * @param file The file to upload.
+   * @param config Threshold, part size and concurrency.
+   * @return The versionId of the new object, on a versioned bucket.
+   */
+  public static Optional<String> s3Upload(
+      AwsCredentialsProvider awsCp,
+      String bucket,
+      String objectKey,
+      Path file,
+      UploadConfig config) {
+    return s3Upload(s3Client(awsCp), bucket, objectKey, file, config);
+  }
+
+  /** s3Upload a file with S3Client. See the AwsCredentialsProvider version. */
+  public static Optional<String> s3Upload(
+      S3Client s3Client, String bucket, String objectKey, Path file, UploadConfig config) {
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var size = channel.size();
+      if (size <= config.multipartThreshold()) {
+        return putObject(s3Client, bucket, objectKey, RequestBody.fromFile(file));
+      }
+      var partSize = config.partSizeFor(size);
+      if (partSize > config.partSize()) {
+        LOG.info(
+            "S3UPLOAD: {} is {} bytes, using {} byte parts to stay within {} parts.",
+            file,
+            size,
+            partSize,
+            S3_MAX_PARTS);
+      }
+      return multipart(s3Client, bucket, objectKey, channel, null, config.withPartSize(partSize));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read " + file, e);
+    }
+  }
+
+  /**
+   * Puts the content of a stream on S3, reading it part by part. The stream is read to the end but
+   * not closed.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param objectKey The key to put it at.
+   * @param content What to upload.
+   * @param config Threshold, part size and concurrency.
+   * @return The versionId of the new object, on a versioned bucket.
+   */
+  public static Optional<String> s3Upload(
+      AwsCredentialsProvider awsCp,
+      String bucket,
+      String objectKey,
+      InputStream content,
+      UploadConfig config) {
+    return s3Upload(s3Client(awsCp), bucket, objectKey, content, config);
+  }
+
+  /** s3Upload a stream with S3Client. See the AwsCredentialsProvider version. */
+  public static Optional<String> s3Upload(
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      InputStream content,
+      UploadConfig config) {
+    return s3Upload(s3Client, bucket, objectKey, Channels.newChannel(content), config);
+  }
+
+  /**
+   * Puts the content of a channel on S3, reading it part by part. The channel is read to the end
+   * but not closed.
+   *
+   * @param awsCp Credentials.
+   * @param bucket S3.
+   * @param objectKey The key to put it at.
+   * @param content What to upload.
+   * @param config Threshold, part size and concurrency.
+   * @return The versionId of the new object, on a versioned bucket.
+   */
+  public static Optional<String> s3Upload(
+      AwsCredentialsProvider awsCp,
+      String bucket,
+      String objectKey,
+      ReadableByteChannel content,
+      UploadConfig config) {
+    return s3Upload(s3Client(awsCp), bucket, objectKey, content, config);
+  }
+
+  /** s3Upload a channel with S3Client. See the AwsCredentialsProvider version. */
+  public static Optional<String> s3Upload(
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      ReadableByteChannel content,
+      UploadConfig config) {
+    // read the first part to see if this is small enough for one PutObject
+    var first = ByteBuffer.allocateDirect(config.partSize());
+    boolean ended;
+    try {
+      ended = fill(content, first);
+    } catch (IOException e) {
+      throw new UncheckedIOException(
+          "Could not read the content for " + bucket + "/" + objectKey, e);
+    }
+    first.flip();
+    if (ended && first.remaining() <= config.multipartThreshold()) {
+      var size = first.remaining();
+      return putObject(
+          s3Client,
+          bucket,
+          objectKey,
+          RequestBody.fromContentProvider(
+              () -> ByteBufferPool.inputStream(first), size, "application/octet-stream"));
+    }
+    return multipart(s3Client, bucket, objectKey, content, first, config);
+  }
+
+  private static Optional<String> putObject(
+      S3Client s3Client, String bucket, String objectKey, RequestBody requestBody) {
+    var request = PutObjectRequest.builder().bucket(bucket).key(objectKey).build();
+    var response = s3Client.putObject(request, requestBody);
+    awsResponseValidation(response);
+    LOG.info(
+        "S3UPLOAD: Put {} bytes as {} on the {} bucket.",
+        requestBody.optionalContentLength().orElse(-1L),
+        objectKey,
+        bucket);
+    return Optional.ofNullable(response.versionId());
+  }
+
+  /**
+   * The multipart upload. The first part may already be read (flipped, ready to upload), for
+   * streams that were checked against the threshold.
+   */
+  private static Optional<String> multipart(
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      ReadableByteChannel content,
+      ByteBuffer first,
+      UploadConfig config) {
+    var create =
+        s3Client.createMultipartUpload(
+            CreateMultipartUploadRequest.builder().bucket(bucket).key(objectKey).build());
+    awsResponseValidation(create);
+    var uploadId = create.uploadId();
+    var buffers = new ByteBufferPool(config.partSize(), config.concurrency() + 1);
+    var parts = new ArrayList<CompletedPart>();
+    var failure = new AtomicReference<Throwable>();
+    var threadNumber = new AtomicInteger();
+    ExecutorService pool =
+        Executors.newFixedThreadPool(
+            config.concurrency(),
+            r -> {
+              var t = new Thread(r, "s3-upload-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    var start = System.currentTimeMillis();
+    var bytes = 0L;
+    var partNumber = 0;
+    try {
+      var ended = false;
+      while (!ended && failure.get() == null) {
+        ByteBuffer buffer;
+        if (first != null) {
+          buffer = first;
+          first = null;
+        } else {
+          buffer = buffers.acquire();
+          ended = fill(content, buffer);
+          buffer.flip();
+        }
+        if (!buffer.hasRemaining() && partNumber > 0) {
+          buffers.release(buffer);
+          break;
+        }
+        if (++partNumber > S3_MAX_PARTS) {
+          throw new IllegalStateException(
+              "More than " + S3_MAX_PARTS + " parts, use a bigger partSize for " + objectKey);
+        }
+        bytes += buffer.remaining();
+        var number = partNumber;
+        pool.execute(
+            () -> {
+              try {
+                var part = uploadPart(s3Client, bucket, objectKey, uploadId, number, buffer);
+                synchronized (parts) {
+                  parts.add(part);
+                }
+              } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+              } finally {
+                buffers.release(buffer);
+              }
+            });
+      }
+      pool.shutdown();
+      while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.info("S3UPLOAD: Still uploading {} ({} parts).", objectKey, partNumber);
+      }
+      if (failure.get() != null) {
+        throw new IllegalStateException(
+            "Failed to upload a part of " + bucket + "/" + objectKey, failure.get());
+      }
+      parts.sort(Comparator.comparing(CompletedPart::partNumber));
+      var complete =
+          s3Client.completeMultipartUpload(
+              CompleteMultipartUploadRequest.builder()
+                  .bucket(bucket)
+                  .key(objectKey)
+                  .uploadId(uploadId)
+                  .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                  .build());
+      awsResponseValidation(complete);
+      var seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+      LOG.info(
+          "S3UPLOAD: Put {} bytes in {} parts as {} on the {} bucket in {} sec (~{} MB/sec).",
+          bytes,
+          parts.size(),
+          objectKey,
+          bucket,
+          seconds,
+          bytes / seconds / (1024 * 1024));
+      return Optional.ofNullable(complete.versionId());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      abort(s3Client, bucket, objectKey, uploadId);
+      throw new IllegalStateException("Interrupted uploading " + bucket + "/" + objectKey, e);
+    } catch (IOException e) {
+      abort(s3Client, bucket, objectKey, uploadId);
+      throw new UncheckedIOException(
+          "Could not read the content for " + bucket + "/" + objectKey, e);
+    } catch (RuntimeException e) {
+      abort(s3Client, bucket, objectKey, uploadId);
+      throw e;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static CompletedPart uploadPart(
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      String uploadId,
+      int partNumber,
+      ByteBuffer buffer) {
+    var size = buffer.remaining();
+    var request =
+        UploadPartRequest.builder()
+            .bucket(bucket)
+            .key(objectKey)
+            .uploadId(uploadId)
+            .partNumber(partNumber)
+            .contentLength((long) size)
+            .build();
+    var response =
+        s3Client.uploadPart(
+            request,
+            RequestBody.fromContentProvider(
+                () -> ByteBufferPool.inputStream(buffer), size, "application/octet-stream"));
+    awsResponseValidation(response);
+    LOG.debug("S3UPLOAD: Uploaded part {} ({} bytes) of {}", partNumber, size, objectKey);
+    return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+  }
+
+  private static void abort(S3Client s3Client, String bucket, String objectKey, String uploadId) {
+    try {
+      s3Client.abortMultipartUpload(
+          AbortMultipartUploadRequest.builder()
+              .bucket(bucket)
+              .key(objectKey)
+              .uploadId(uploadId)
+              .build());
+      LOG.warn("S3UPLOAD: Aborted the multipart upload of {}/{}", bucket, objectKey);
+    } catch (SdkException e) {
+      // a lifecycle rule for incomplete multipart uploads will clean it up eventually
+      LOG.error(
+          "S3UPLOAD: Could not abort the multipart upload {} of {}/{}",
+          uploadId,
+          bucket,
+          objectKey,
+          e);
+    }
+  }
+
+  /** Reads until the buffer is full or the content ends. Returns true if it ended. */
+  private static boolean fill(ReadableByteChannel content, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (content.read(buffer) < 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
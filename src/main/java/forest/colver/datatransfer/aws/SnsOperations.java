@@ -1,11 +1,12 @@
 package forest.colver.datatransfer.aws;
 
-import static forest.colver.datatransfer.aws.AwsUtils.getSnsClient;
+import static forest.colver.datatransfer.aws.AwsClientRegistry.snsClient;
 
 import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.sns.SnsClient;
 import software.amazon.awssdk.services.sns.model.GetTopicAttributesRequest;
 import software.amazon.awssdk.services.sns.model.GetTopicAttributesResponse;
 import software.amazon.awssdk.services.sns.model.PublishRequest;
@@ -22,24 +23,27 @@ public class SnsOperations {
 
   public static Map<String, String> getSnsTopicAttributes(
       AwsCredentialsProvider awsCp, String topicArn) {
+    return getSnsTopicAttributes(snsClient(awsCp), topicArn);
+  }
 
-    try (var snsClient = getSnsClient(awsCp)) {
-      GetTopicAttributesRequest request =
-          GetTopicAttributesRequest.builder().topicArn(topicArn).build();
-      GetTopicAttributesResponse result = snsClient.getTopicAttributes(request);
-      LOG.info(
-          "Status is {}\nAttributes: {}\n",
-          result.sdkHttpResponse().statusCode(),
-          result.attributes());
-      return result.attributes();
-    }
+  public static Map<String, String> getSnsTopicAttributes(SnsClient snsClient, String topicArn) {
+    GetTopicAttributesRequest request =
+        GetTopicAttributesRequest.builder().topicArn(topicArn).build();
+    GetTopicAttributesResponse result = snsClient.getTopicAttributes(request);
+    LOG.info(
+        "Status is {}\nAttributes: {}\n",
+        result.sdkHttpResponse().statusCode(),
+        result.attributes());
+    return result.attributes();
   }
 
   public static void publishTopic(AwsCredentialsProvider awsCp, String topicArn, String message) {
-    try (var snsClient = getSnsClient(awsCp)) {
-      PublishRequest request = PublishRequest.builder().message(message).topicArn(topicArn).build();
-      PublishResponse response = snsClient.publish(request);
-      LOG.info("SNS topic published. Status: {}", response.sdkHttpResponse().statusCode());
-    }
+    publishTopic(snsClient(awsCp), topicArn, message);
+  }
+
+  public static void publishTopic(SnsClient snsClient, String topicArn, String message) {
+    PublishRequest request = PublishRequest.builder().message(message).topicArn(topicArn).build();
+    PublishResponse response = snsClient.publish(request);
+    LOG.info("SNS topic published. Status: {}", response.sdkHttpResponse().statusCode());
   }
 }
@@ -0,0 +1,485 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_WAIT_TIME_SECONDS;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.sqsDeleteBatch;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.OverLimitException;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Dumps a whole SQS to disk, e.g. to snapshot a DLQ before purging it. Unlike {@link
+ * SqsOperations#sqsDownloadMessage(SqsClient, String, String) sqsDownloadMessage}, which saves one
+ * body to one file, every message is kept whole: body, message attributes and system attributes.
+ *
+ * <p>Messages are written one JSON object per line (NDJSON) into segment files that roll over at a
+ * size or message count, e.g. {@code my-dlq-00001.ndjson.gz}. Each segment is written through a
+ * FileChannel with a big buffer in front, is gzipped (or not), and gets a SHA-256 of its bytes on
+ * disk as it is written. When the archive is done a manifest ({@code my-dlq-manifest.json}) lists
+ * the segments with their message counts and checksums, so {@code sha256sum} can verify them.
+ *
+ * <p>In PEEK mode nothing is deleted, every message is kept invisible until the archive is done
+ * (see {@link SqsVisibilityExtender}) and then made visible again. A message that shows up again
+ * anyway (its renewal came too late) is not archived twice, it is skipped by its MessageId, but the
+ * archive can't tell whether it got all the way round the queue, so the manifest says it is not
+ * complete. Because of the SQS in-flight limit (about 120k messages) a peek of a deeper queue
+ * stops there, and is not complete either.
+ * In CONSUME mode the messages of a segment are deleted from the SQS once that segment is closed
+ * and synced to disk, so a crash never deletes anything that isn't safely written, and only one
+ * segment's worth of messages is in flight at a time.
+ *
+ * <p>{@link SqsReplayOperations} sends an archive back into an SQS.
+ */
+public class SqsArchiveOperations {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsArchiveOperations.class);
+  private static final int WRITE_BUFFER_BYTES = 256 * 1024;
+
+  private SqsArchiveOperations() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  public enum Compression {
+    GZIP(".ndjson.gz"),
+    NONE(".ndjson");
+
+    private final String extension;
+
+    Compression(String extension) {
+      this.extension = extension;
+    }
+
+    public String extension() {
+      return extension;
+    }
+  }
+
+  /**
+   * Archive settings.
+   *
+   * @param consume False to leave the messages on the SQS (peek), true to delete them once they are
+   *     safely on disk.
+   * @param compression Segment file compression.
+   * @param maxSegmentBytes A segment is closed once this many (uncompressed) bytes are in it.
+   * @param maxSegmentMessages A segment is closed once this many messages are in it. In CONSUME
+   *     mode this is also the most messages in flight at once, so keep it well under 120k.
+   * @param visibilityTimeout Seconds a received message stays hidden (it is renewed while the
+   *     archive runs).
+   */
+  public record ArchiveConfig(
+      boolean consume,
+      Compression compression,
+      long maxSegmentBytes,
+      int maxSegmentMessages,
+      int visibilityTimeout) {
+
+    public ArchiveConfig {
+      if (maxSegmentBytes < 1 || maxSegmentMessages < 1) {
+        throw new IllegalArgumentException("Segment limits must be at least 1.");
+      }
+    }
+
+    /** Peek, gzip, segments of at most 128MB uncompressed or 50k messages. */
+    public static ArchiveConfig defaults() {
+      return new ArchiveConfig(false, Compression.GZIP, 128L * 1024 * 1024, 50_000, 120);
+    }
+
+    public ArchiveConfig withConsume(boolean consume) {
+      return new ArchiveConfig(
+          consume, compression, maxSegmentBytes, maxSegmentMessages, visibilityTimeout);
+    }
+
+    public ArchiveConfig withCompression(Compression compression) {
+      return new ArchiveConfig(
+          consume, compression, maxSegmentBytes, maxSegmentMessages, visibilityTimeout);
+    }
+
+    public ArchiveConfig withSegmentLimits(long maxSegmentBytes, int maxSegmentMessages) {
+      return new ArchiveConfig(
+          consume, compression, maxSegmentBytes, maxSegmentMessages, visibilityTimeout);
+    }
+  }
+
+  /**
+   * One segment file.
+   *
+   * @param file The file name, relative to the archive directory.
+   * @param messages Messages in it.
+   * @param uncompressedBytes Bytes of NDJSON in it.
+   * @param bytes Size of the file.
+   * @param sha256 Hex SHA-256 of the file.
+   */
+  public record Segment(
+      String file, long messages, long uncompressedBytes, long bytes, String sha256) {}
+
+  /**
+   * What was archived.
+   *
+   * @param messages Total messages written.
+   * @param segments The segment files, in order.
+   * @param manifest Where the manifest was written.
+   * @param complete False if the archive stopped early (the in-flight limit in PEEK mode), or
+   *     messages showed up a second time, see the class Javadoc.
+   */
+  public record ArchiveResult(
+      long messages, List<Segment> segments, Path manifest, boolean complete) {}
+
+  public static ArchiveResult sqsArchive(
+      AwsCredentialsProvider awsCP, String queueName, String directory, ArchiveConfig config) {
+    return sqsArchive(sqsClient(awsCP), queueName, directory, config);
+  }
+
+  /**
+   * Archives the whole SQS, see the class Javadoc.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName SQS to archive.
+   * @param directory Where to put the segments and the manifest, e.g.
+   *     "/Users/revloc02/Downloads/dlq-snapshot", created if need be.
+   * @param config Peek or consume, compression and segment size.
+   * @return The segments written, and where the manifest is.
+   */
+  public static ArchiveResult sqsArchive(
+      SqsClient sqsClient, String queueName, String directory, ArchiveConfig config) {
+    var dir = Paths.get(directory);
+    try {
+      Files.createDirectories(dir);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to create the archive directory: " + dir, e);
+    }
+    var queueUrl = qUrl(sqsClient, queueName);
+    var controller = SqsRateController.forQueue(queueUrl);
+    var receiveRequest =
+        ReceiveMessageRequest.builder()
+            .queueUrl(queueUrl)
+            .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
+            .visibilityTimeout(config.visibilityTimeout())
+            .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
+            .messageAttributeNames("All")
+            .attributeNames(QueueAttributeName.ALL)
+            .build();
+    var started = Instant.now();
+    var segments = new ArrayList<Segment>();
+    var seen = new MessageIdSet();
+    var complete = true;
+    var total = 0L;
+    SegmentWriter writer = null;
+    try (var extender =
+        new SqsVisibilityExtender(sqsClient, queueName, config.visibilityTimeout())) {
+      while (true) {
+        List<Message> messages;
+        try {
+          messages =
+              controller.callLongPoll(() -> sqsClient.receiveMessage(receiveRequest)).messages();
+        } catch (OverLimitException e) {
+          LOG.warn(
+              "Hit the SQS in-flight limit on {} after {} messages, not archiving the rest.",
+              queueName,
+              total);
+          complete = false;
+          break;
+        }
+        if (messages.isEmpty()) {
+          break;
+        }
+        extender.track(messages);
+        var unseen = messages.stream().filter(m -> seen.add(m.messageId())).toList();
+        if (unseen.isEmpty()) {
+          LOG.warn("Received a batch of only already archived messages from {}.", queueName);
+          complete = false;
+          break;
+        }
+        for (var message : unseen) {
+          if (writer == null) {
+            writer = new SegmentWriter(dir, queueName, segments.size() + 1, config.compression());
+          }
+          writer.write(message);
+          total++;
+          if (writer.isFull(config)) {
+            segments.add(closeSegment(sqsClient, queueName, writer, extender, config));
+            writer = null;
+          }
+        }
+      }
+      if (writer != null) {
+        segments.add(closeSegment(sqsClient, queueName, writer, extender, config));
+        writer = null;
+      }
+      if (extender.lapsedCount() > 0) {
+        LOG.warn(
+            "{} messages on {} became visible again during the archive, it may be missing some.",
+            extender.lapsedCount(),
+            queueName);
+        complete = false;
+      }
+    } finally {
+      if (writer != null) {
+        // something went wrong mid-segment, keep what was written, but delete nothing
+        writer.closeQuietly();
+      }
+    }
+    var manifest =
+        writeManifest(dir, queueName, queueUrl, config, started, total, segments, complete);
+    LOG.info(
+        "Archived {} messages from {} into {} segments, manifest: {}",
+        total,
+        queueName,
+        segments.size(),
+        manifest);
+    return new ArchiveResult(total, List.copyOf(segments), manifest, complete);
+  }
+
+  /** Closes (and syncs) the segment, then in CONSUME mode deletes its messages from the SQS. */
+  private static Segment closeSegment(
+      SqsClient sqsClient,
+      String queueName,
+      SegmentWriter writer,
+      SqsVisibilityExtender extender,
+      ArchiveConfig config) {
+    var segment = writer.close();
+    LOG.info(
+        "Wrote {} ({} messages, {} bytes).", segment.file(), segment.messages(), segment.bytes());
+    if (config.consume()) {
+      // the archive holds the pointers as is, so their payloads stay in S3
+      var deleted = sqsDeleteBatch(sqsClient, queueName, writer.messages, false);
+      extender.untrack(writer.messages);
+      if (deleted < writer.messages.size()) {
+        LOG.warn(
+            "{} archived messages could not be deleted from {}, they stay on the queue.",
+            writer.messages.size() - deleted,
+            queueName);
+      }
+    }
+    return segment;
+  }
+
+  private static Path writeManifest(
+      Path dir,
+      String queueName,
+      String queueUrl,
+      ArchiveConfig config,
+      Instant started,
+      long total,
+      List<Segment> segments,
+      boolean complete) {
+    var json = new JSONObject();
+    json.put("queueName", queueName);
+    json.put("queueUrl", queueUrl);
+    json.put("mode", config.consume() ? "CONSUME" : "PEEK");
+    json.put("compression", config.compression().name());
+    json.put("startedAt", started.toString());
+    json.put("finishedAt", Instant.now().toString());
+    json.put("complete", complete);
+    json.put("messages", total);
+    var array = new JSONArray();
+    for (var segment : segments) {
+      array.put(
+          new JSONObject()
+              .put("file", segment.file())
+              .put("messages", segment.messages())
+              .put("uncompressedBytes", segment.uncompressedBytes())
+              .put("bytes", segment.bytes())
+              .put("sha256", segment.sha256()));
+    }
+    json.put("segments", array);
+    var manifest = dir.resolve(queueName + "-manifest.json");
+    try {
+      Files.writeString(manifest, json.toString(2));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to write the archive manifest: " + manifest, e);
+    }
+    return manifest;
+  }
+
+  /**
+   * The NDJSON record of a message: messageId, body, md5OfBody, attributes (system attributes by
+   * name) and messageAttributes (dataType plus stringValue, or binaryValue in base64).
+   */
+  public static JSONObject toJson(Message message) {
+    var json = new JSONObject();
+    json.put("messageId", message.messageId());
+    json.put("body", message.body());
+    json.put("md5OfBody", message.md5OfBody());
+    var attributes = new JSONObject();
+    if (message.hasAttributes()) {
+      message.attributesAsStrings().forEach(attributes::put);
+    }
+    json.put("attributes", attributes);
+    var messageAttributes = new JSONObject();
+    if (message.hasMessageAttributes()) {
+      message
+          .messageAttributes()
+          .forEach(
+              (name, value) -> {
+                var attribute = new JSONObject().put("dataType", value.dataType());
+                if (value.stringValue() != null) {
+                  attribute.put("stringValue", value.stringValue());
+                }
+                if (value.binaryValue() != null) {
+                  attribute.put(
+                      "binaryValue",
+                      Base64.getEncoder().encodeToString(value.binaryValue().asByteArray()));
+                }
+                messageAttributes.put(name, attribute);
+              });
+    }
+    json.put("messageAttributes", messageAttributes);
+    return json;
+  }
+
+  /** Turns an NDJSON record written by {@link #toJson(Message)} back into a Message. */
+  public static Message fromJson(JSONObject json) {
+    var builder =
+        Message.builder()
+            .messageId(json.optString("messageId", null))
+            .body(json.getString("body"))
+            .md5OfBody(json.optString("md5OfBody", null));
+    var attributes = json.optJSONObject("attributes");
+    if (attributes != null) {
+      Map<MessageSystemAttributeName, String> system = new HashMap<>();
+      for (var name : attributes.keySet()) {
+        system.put(MessageSystemAttributeName.fromValue(name), attributes.getString(name));
+      }
+      system.remove(MessageSystemAttributeName.UNKNOWN_TO_SDK_VERSION);
+      builder.attributes(system);
+    }
+    var messageAttributes = json.optJSONObject("messageAttributes");
+    if (messageAttributes != null) {
+      Map<String, MessageAttributeValue> values = new HashMap<>();
+      for (var name : messageAttributes.keySet()) {
+        var attribute = messageAttributes.getJSONObject(name);
+        var value = MessageAttributeValue.builder().dataType(attribute.getString("dataType"));
+        if (attribute.has("stringValue")) {
+          value.stringValue(attribute.getString("stringValue"));
+        }
+        if (attribute.has("binaryValue")) {
+          var bytes = Base64.getDecoder().decode(attribute.getString("binaryValue"));
+          value.binaryValue(SdkBytes.fromByteArray(bytes));
+        }
+        values.put(name, value.build());
+      }
+      builder.messageAttributes(values);
+    }
+    return builder.build();
+  }
+
+  /** Writes one segment file: NDJSON -> gzip -> buffer -> SHA-256 -> FileChannel. */
+  private static class SegmentWriter {
+
+    private static final byte[] NEWLINE = {'\n'};
+    private final String file;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private final OutputStream out;
+    // just the ids and receipt handles, for deleting them once the segment is on disk
+    private final List<Message> messages = new ArrayList<>();
+    private long uncompressedBytes;
+
+    SegmentWriter(Path dir, String queueName, int number, Compression compression) {
+      this.file = String.format("%s-%05d%s", queueName, number, compression.extension());
+      try {
+        this.digest = MessageDigest.getInstance("SHA-256");
+        this.channel =
+            FileChannel.open(
+                dir.resolve(file),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        var buffered =
+            new BufferedOutputStream(
+                new DigestOutputStream(Channels.newOutputStream(channel), digest),
+                WRITE_BUFFER_BYTES);
+        this.out =
+            compression == Compression.GZIP
+                ? new GZIPOutputStream(buffered, WRITE_BUFFER_BYTES)
+                : buffered;
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to open archive segment: " + file, e);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available.", e);
+      }
+    }
+
+    void write(Message message) {
+      var line = toJson(message).toString().getBytes(StandardCharsets.UTF_8);
+      try {
+        out.write(line);
+        out.write(NEWLINE);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to write to archive segment: " + file, e);
+      }
+      uncompressedBytes += line.length + 1L;
+      messages.add(
+          Message.builder()
+              .messageId(message.messageId())
+              .receiptHandle(message.receiptHandle())
+              .build());
+    }
+
+    boolean isFull(ArchiveConfig config) {
+      return uncompressedBytes >= config.maxSegmentBytes()
+          || messages.size() >= config.maxSegmentMessages();
+    }
+
+    /** Finishes the file and syncs it to disk. */
+    Segment close() {
+      try {
+        if (out instanceof GZIPOutputStream gzip) {
+          gzip.finish();
+        }
+        out.flush();
+        channel.force(true);
+        var bytes = channel.size();
+        out.close();
+        var sha256 = HexFormat.of().formatHex(digest.digest());
+        return new Segment(file, messages.size(), uncompressedBytes, bytes, sha256);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to close archive segment: " + file, e);
+      }
+    }
+
+    void closeQuietly() {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.error("Failed to close archive segment {}.", file, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,448 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsAsyncClient;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_WAIT_TIME_SECONDS;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageResponse;
+
+/**
+ * A non-blocking take on the SQS operations, built on the SqsAsyncClient (Netty NIO HTTP client).
+ * Everything hands back a CompletableFuture instead of blocking the calling thread, so one JVM can
+ * keep a lot of requests going at once without a thread for each of them, e.g. when running several
+ * queue migrations in the same process.
+ *
+ * <p>The drain methods keep at most {@code maxInFlight} receive/send/delete requests outstanding.
+ * Each "lane" runs receive, then send, then delete, and only starts its next receive when the
+ * previous batch is done, so nothing piles up in memory when the target is slower than the source.
+ * The Netty client's max concurrency (see {@link AwsClientRegistry.HttpPoolConfig}) should be at
+ * least maxInFlight. Each request also goes through the queue's {@link SqsRateController}, so when
+ * SQS starts throttling, fewer of the lanes have a request out at a time.
+ *
+ * <p>Like {@link SqsOperations} there are two flavours of each method, one takes an
+ * AwsCredentialsProvider and uses the shared async client from {@link AwsClientRegistry}, and the
+ * other takes the SqsAsyncClient to use.
+ */
+public class SqsAsyncOperations {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsAsyncOperations.class);
+  private static final long RETRY_BACKOFF_MILLIS = 100;
+
+  private SqsAsyncOperations() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Pipeline settings.
+   *
+   * @param maxInFlight Max number of receive/send/delete requests outstanding at once.
+   * @param emptyPollsToStop The drain finishes after this many empty receives in a row.
+   * @param waitTimeSeconds Long-poll wait time for each receive (max 20).
+   * @param visibilityTimeout Seconds a received message stays hidden while it is handled.
+   */
+  public record AsyncPipelineConfig(
+      int maxInFlight, int emptyPollsToStop, int waitTimeSeconds, int visibilityTimeout) {
+
+    public AsyncPipelineConfig {
+      if (maxInFlight < 1 || emptyPollsToStop < 1) {
+        throw new IllegalArgumentException("maxInFlight and emptyPollsToStop must be at least 1.");
+      }
+    }
+
+    /** 16 requests in flight, stop after 3 empty polls in a row. */
+    public static AsyncPipelineConfig defaults() {
+      return new AsyncPipelineConfig(16, 3, SQS_WAIT_TIME_SECONDS, 60);
+    }
+  }
+
+  /** Queue URL lookup, served from the {@link SqsQueueUrlCache}. */
+  public static CompletableFuture<String> qUrlAsync(SqsAsyncClient sqsClient, String queueName) {
+    return SqsQueueUrlCache.queueUrl(sqsClient, queueName);
+  }
+
+  public static CompletableFuture<SendMessageResponse> sqsSendAsync(
+      AwsCredentialsProvider awsCp, String queueName, String payload) {
+    return sqsSendAsync(sqsAsyncClient(awsCp), queueName, payload);
+  }
+
+  /** Send a message to an SQS. */
+  public static CompletableFuture<SendMessageResponse> sqsSendAsync(
+      SqsAsyncClient sqsClient, String queueName, String payload) {
+    return qUrlAsync(sqsClient, queueName)
+        .thenCompose(url -> sqsClient.sendMessage(b -> b.queueUrl(url).messageBody(payload)))
+        .thenApply(
+            response -> {
+              awsResponseValidation(response);
+              return response;
+            });
+  }
+
+  /**
+   * Receive up to 10 messages, with all of their attributes.
+   *
+   * @return The messages, empty if the long poll came back with nothing.
+   */
+  public static CompletableFuture<List<Message>> sqsReceiveAsync(
+      SqsAsyncClient sqsClient, String queueName, int waitTimeSeconds, int visibilityTimeout) {
+    return qUrlAsync(sqsClient, queueName)
+        .thenCompose(
+            url ->
+                SqsRateController.forQueue(url)
+                    .callLongPollAsync(
+                        () ->
+                            sqsClient.receiveMessage(
+                                b ->
+                                    b.queueUrl(url)
+                                        .waitTimeSeconds(waitTimeSeconds)
+                                        .visibilityTimeout(visibilityTimeout)
+                                        .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
+                                        .messageAttributeNames("All")
+                                        .attributeNames(QueueAttributeName.ALL))))
+        .thenApply(
+            response -> {
+              awsResponseValidation(response);
+              return response.messages();
+            });
+  }
+
+  /**
+   * Batch send the messages (body and message attributes), the async twin of {@link
+   * SqsBatchOperations#sqsSendBatch}. Batches go out in parallel; failed entries that are not the
+   * sender's fault are retried. To a FIFO queue each message also gets a MessageGroupId and
+   * MessageDeduplicationId, but with the batches in parallel, order within a group is only kept
+   * inside one batch.
+   *
+   * @return The messages that were sent successfully.
+   */
+  public static CompletableFuture<List<Message>> sqsSendBatchAsync(
+      SqsAsyncClient sqsClient, String queueName, List<Message> messages) {
+    if (messages.isEmpty()) {
+      return CompletableFuture.completedFuture(List.of());
+    }
+    return qUrlAsync(sqsClient, queueName)
+        .thenCompose(
+            url -> {
+              var futures = new ArrayList<CompletableFuture<List<Message>>>();
+              for (var batch : SqsBatchOperations.batches(messages)) {
+                futures.add(sendBatch(sqsClient, url, batch, 0));
+              }
+              return allOf(futures)
+                  .thenApply(
+                      results -> {
+                        var sent = new ArrayList<Message>(messages.size());
+                        results.forEach(sent::addAll);
+                        return sent;
+                      });
+            });
+  }
+
+  /**
+   * Batch delete the messages, the async twin of {@link SqsBatchOperations#sqsDeleteBatch}. The
+   * claim-check payloads of the deleted messages are then deleted too, if {@link SqsClaimCheck} is
+   * set to, on the common pool rather than the SDK's event loop since that blocks on S3.
+   *
+   * @return The number of messages deleted.
+   */
+  public static CompletableFuture<Integer> sqsDeleteBatchAsync(
+      SqsAsyncClient sqsClient, String queueName, List<Message> messages) {
+    return sqsDeleteBatchAsync(sqsClient, queueName, messages, true);
+  }
+
+  /**
+   * With deletePayloads false the claim-check payloads are left alone, for moves where the sent
+   * message still points at them.
+   */
+  static CompletableFuture<Integer> sqsDeleteBatchAsync(
+      SqsAsyncClient sqsClient, String queueName, List<Message> messages, boolean deletePayloads) {
+    if (messages.isEmpty()) {
+      return CompletableFuture.completedFuture(0);
+    }
+    return qUrlAsync(sqsClient, queueName)
+        .thenCompose(
+            url -> {
+              var futures = new ArrayList<CompletableFuture<List<Message>>>();
+              for (var from = 0; from < messages.size(); from += SQS_MAX_BATCH_SIZE) {
+                var batch =
+                    messages.subList(from, Math.min(from + SQS_MAX_BATCH_SIZE, messages.size()));
+                futures.add(deleteBatch(sqsClient, url, batch, 0));
+              }
+              return allOf(futures);
+            })
+        .thenApplyAsync(
+            results -> {
+              var deleted = new ArrayList<Message>(messages.size());
+              results.forEach(deleted::addAll);
+              if (deletePayloads) {
+                SqsClaimCheck.onDeleted(sqsClient, deleted);
+              }
+              return deleted.size();
+            });
+  }
+
+  /** Batch send the messages, then batch delete the ones that were sent. */
+  public static CompletableFuture<Integer> sqsMoveBatchAsync(
+      SqsAsyncClient sqsClient, String fromSqs, String toSqs, List<Message> messages) {
+    return sqsSendBatchAsync(sqsClient, toSqs, messages)
+        .thenCompose(
+            sent ->
+                sqsDeleteBatchAsync(sqsClient, fromSqs, sent, false)
+                    .thenApply(
+                        deleted -> {
+                          if (deleted < sent.size()) {
+                            LOG.warn(
+                                "{} message(s) were sent to {} but not deleted from {}.",
+                                sent.size() - deleted,
+                                toSqs,
+                                fromSqs);
+                          }
+                          return sent.size();
+                        }));
+  }
+
+  public static CompletableFuture<Long> sqsMoveAllAsync(
+      AwsCredentialsProvider awsCp, String fromSqs, String toSqs) {
+    return sqsMoveAllAsync(sqsAsyncClient(awsCp), fromSqs, toSqs, AsyncPipelineConfig.defaults());
+  }
+
+  /**
+   * Move every message from one SQS to another without blocking a thread per request.
+   *
+   * @return Completes with the exact number of messages moved once the source SQS stays empty.
+   */
+  public static CompletableFuture<Long> sqsMoveAllAsync(
+      SqsAsyncClient sqsClient, String fromSqs, String toSqs, AsyncPipelineConfig config) {
+    return sqsDrainAsync(
+        sqsClient,
+        fromSqs,
+        config,
+        messages -> sqsMoveBatchAsync(sqsClient, fromSqs, toSqs, messages));
+  }
+
+  /**
+   * Receives every message on the SQS and hands each batch to the handler, keeping at most
+   * maxInFlight lanes of receive + handle going. The handler is in charge of deleting the messages.
+   *
+   * @param handler Completes with the number of messages it handled, which is what gets counted.
+   * @return Completes with the total of what the handler returned, or exceptionally with the first
+   *     failure (the remaining lanes are stopped).
+   */
+  public static CompletableFuture<Long> sqsDrainAsync(
+      SqsAsyncClient sqsClient,
+      String queueName,
+      AsyncPipelineConfig config,
+      Function<List<Message>, CompletableFuture<Integer>> handler) {
+    return new AsyncDrain(sqsClient, queueName, config, handler).start();
+  }
+
+  /** The state shared by the lanes of one async drain. */
+  private static class AsyncDrain {
+
+    private final SqsAsyncClient sqsClient;
+    private final String queueName;
+    private final AsyncPipelineConfig config;
+    private final Function<List<Message>, CompletableFuture<Integer>> handler;
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicInteger emptyPolls = new AtomicInteger();
+    private final AtomicInteger lanesRunning = new AtomicInteger();
+    private final AtomicBoolean stop = new AtomicBoolean();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+
+    AsyncDrain(
+        SqsAsyncClient sqsClient,
+        String queueName,
+        AsyncPipelineConfig config,
+        Function<List<Message>, CompletableFuture<Integer>> handler) {
+      this.sqsClient = sqsClient;
+      this.queueName = queueName;
+      this.config = config;
+      this.handler = handler;
+    }
+
+    CompletableFuture<Long> start() {
+      LOG.info("Async draining {} with {}", queueName, config);
+      lanesRunning.set(config.maxInFlight());
+      for (var i = 0; i < config.maxInFlight(); i++) {
+        nextBatch();
+      }
+      return done;
+    }
+
+    private void nextBatch() {
+      if (stop.get() || emptyPolls.get() >= config.emptyPollsToStop()) {
+        laneFinished();
+        return;
+      }
+      sqsReceiveAsync(sqsClient, queueName, config.waitTimeSeconds(), config.visibilityTimeout())
+          .thenCompose(
+              messages -> {
+                if (messages.isEmpty()) {
+                  emptyPolls.incrementAndGet();
+                  return CompletableFuture.completedFuture(0);
+                }
+                emptyPolls.set(0);
+                return handler.apply(messages);
+              })
+          .whenComplete(
+              (count, e) -> {
+                if (e != null) {
+                  if (failure.compareAndSet(null, e)) {
+                    LOG.error("Stopping the async drain of {}.", queueName, e);
+                  }
+                  stop.set(true);
+                } else if (count > 0) {
+                  var total = handled.addAndGet(count);
+                  batches.incrementAndGet();
+                  LOG.debug("Handled {} messages from {} so far", total, queueName);
+                }
+                nextBatch();
+              });
+    }
+
+    private void laneFinished() {
+      if (lanesRunning.decrementAndGet() == 0) {
+        if (failure.get() != null) {
+          done.completeExceptionally(failure.get());
+        } else {
+          LOG.info(
+              "Async drain of {} handled {} messages in {} batches.",
+              queueName,
+              handled.get(),
+              batches.get());
+          done.complete(handled.get());
+        }
+      }
+    }
+  }
+
+  private static CompletableFuture<List<Message>> sendBatch(
+      SqsAsyncClient sqsClient, String queueUrl, List<Message> batch, int attempt) {
+    var fifo = SqsFifoOperations.isFifo(queueUrl);
+    var entries = new ArrayList<SendMessageBatchRequestEntry>(batch.size());
+    for (var i = 0; i < batch.size(); i++) {
+      var message = batch.get(i);
+      var entry =
+          SendMessageBatchRequestEntry.builder()
+              .id(Integer.toString(i))
+              .messageBody(message.body())
+              .messageAttributes(message.messageAttributes());
+      if (fifo) {
+        entry
+            .messageGroupId(SqsFifoOperations.groupId(message))
+            .messageDeduplicationId(SqsFifoOperations.deduplicationId(message));
+      }
+      entries.add(entry.build());
+    }
+    var controller = SqsRateController.forQueue(queueUrl);
+    return controller
+        .callAsync(() -> sqsClient.sendMessageBatch(b -> b.queueUrl(queueUrl).entries(entries)))
+        .thenCompose(
+            response -> {
+              awsResponseValidation(response);
+              var sent = new ArrayList<Message>(batch.size());
+              response.successful().forEach(r -> sent.add(batch.get(Integer.parseInt(r.id()))));
+              var retry = new ArrayList<Message>();
+              for (var error : response.failed()) {
+                var message = batch.get(Integer.parseInt(error.id()));
+                if (!Boolean.TRUE.equals(error.senderFault())
+                    && attempt < SqsBatchOperations.MAX_ENTRY_RETRIES) {
+                  retry.add(message);
+                } else {
+                  LOG.error(
+                      "Failed to send to {}: code={}, message={}",
+                      queueUrl,
+                      error.code(),
+                      error.message());
+                }
+              }
+              if (retry.isEmpty()) {
+                return CompletableFuture.completedFuture(sent);
+              }
+              controller.onThrottledEntries(retry.size());
+              return backoff(attempt)
+                  .thenCompose(v -> sendBatch(sqsClient, queueUrl, retry, attempt + 1))
+                  .thenApply(
+                      retried -> {
+                        sent.addAll(retried);
+                        return sent;
+                      });
+            });
+  }
+
+  /** Completes with the messages that were deleted. */
+  private static CompletableFuture<List<Message>> deleteBatch(
+      SqsAsyncClient sqsClient, String queueUrl, List<Message> batch, int attempt) {
+    var entries = new ArrayList<DeleteMessageBatchRequestEntry>(batch.size());
+    for (var i = 0; i < batch.size(); i++) {
+      entries.add(
+          DeleteMessageBatchRequestEntry.builder()
+              .id(Integer.toString(i))
+              .receiptHandle(SqsClaimCheck.sqsReceiptHandle(batch.get(i).receiptHandle()))
+              .build());
+    }
+    var controller = SqsRateController.forQueue(queueUrl);
+    return controller
+        .callAsync(() -> sqsClient.deleteMessageBatch(b -> b.queueUrl(queueUrl).entries(entries)))
+        .thenCompose(
+            response -> {
+              awsResponseValidation(response);
+              var retry = new ArrayList<Message>();
+              for (var error : response.failed()) {
+                if (!Boolean.TRUE.equals(error.senderFault())
+                    && attempt < SqsBatchOperations.MAX_ENTRY_RETRIES) {
+                  retry.add(batch.get(Integer.parseInt(error.id())));
+                } else {
+                  LOG.error(
+                      "Failed to delete from {}: code={}, message={}",
+                      queueUrl,
+                      error.code(),
+                      error.message());
+                }
+              }
+              var deleted = new ArrayList<Message>(batch.size());
+              response.successful().forEach(r -> deleted.add(batch.get(Integer.parseInt(r.id()))));
+              if (retry.isEmpty()) {
+                return CompletableFuture.completedFuture(deleted);
+              }
+              controller.onThrottledEntries(retry.size());
+              return backoff(attempt)
+                  .thenCompose(v -> deleteBatch(sqsClient, queueUrl, retry, attempt + 1))
+                  .thenApply(
+                      retried -> {
+                        deleted.addAll(retried);
+                        return deleted;
+                      });
+            });
+  }
+
+  /** A future that completes after a short, growing delay, without holding on to a thread. */
+  private static CompletableFuture<Void> backoff(int attempt) {
+    return CompletableFuture.runAsync(
+        () -> {}, CompletableFuture.delayedExecutor(RETRY_BACKOFF_MILLIS << attempt, MILLISECONDS));
+  }
+
+  private static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+        .thenApply(v -> futures.stream().map(CompletableFuture::join).toList());
+  }
+}
@@ -0,0 +1,327 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_PAYLOAD_BYTES;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+
+/**
+ * The SendMessageBatch and DeleteMessageBatch side of SQS. A receive hands back up to 10 messages,
+ * and sending and deleting those one request each is 20 calls where 2 will do. These methods are
+ * what the bulk methods in {@link SqsOperations} use.
+ *
+ * <p>A batch call can partly fail, each entry succeeds or fails on its own. Failed entries that are
+ * not the sender's fault (throttling, internal errors) are retried a few times, and only those
+ * entries are retried. Entries that are the sender's fault (e.g. a message that is too big) are
+ * logged and given up on. The send methods hand back the messages that actually made it, so a move
+ * only ever deletes messages that were sent.
+ *
+ * <p>Every batch request goes through the queue's {@link SqsRateController}, so however many
+ * threads call these at once, the queue only gets as many requests as it can take.
+ */
+public class SqsBatchOperations {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsBatchOperations.class);
+  public static final int MAX_ENTRY_RETRIES = 3;
+  private static final long RETRY_BACKOFF_MILLIS = 100;
+
+  private SqsBatchOperations() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Sends the messages (body and message attributes) to the SQS in batches.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName Target SQS.
+   * @param messages Messages to send, usually what was just received from another SQS.
+   * @return The messages that were sent successfully.
+   */
+  public static List<Message> sqsSendBatch(
+      SqsClient sqsClient, String queueName, List<Message> messages) {
+    return sqsSendBatch(sqsClient, queueName, messages, (message, result) -> {});
+  }
+
+  /**
+   * Sends the messages (body and message attributes) to the SQS in batches. To a FIFO queue each
+   * message also gets a MessageGroupId and MessageDeduplicationId, see {@link SqsFifoOperations}.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName Target SQS.
+   * @param messages Messages to send, usually what was just received from another SQS.
+   * @param onSent Gets each message that was sent along with what SQS said about it (the new
+   *     message ID, and the sequence number on a FIFO queue).
+   * @return The messages that were sent successfully.
+   */
+  public static List<Message> sqsSendBatch(
+      SqsClient sqsClient,
+      String queueName,
+      List<Message> messages,
+      BiConsumer<Message, SendMessageBatchResultEntry> onSent) {
+    var sent = new ArrayList<Message>(messages.size());
+    if (messages.isEmpty()) {
+      return sent;
+    }
+    var fifo = SqsFifoOperations.isFifo(queueName);
+    var queueUrl = qUrl(sqsClient, queueName);
+    var controller = SqsRateController.forQueue(queueUrl);
+    for (var batch : batches(messages)) {
+      var failed =
+          retryFailedEntries(
+              controller,
+              batch.size(),
+              ids -> {
+                var entries = new ArrayList<SendMessageBatchRequestEntry>(ids.size());
+                for (var id : ids) {
+                  var message = batch.get(Integer.parseInt(id));
+                  var entry =
+                      SendMessageBatchRequestEntry.builder()
+                          .id(id)
+                          .messageBody(message.body())
+                          .messageAttributes(message.messageAttributes());
+                  if (fifo) {
+                    entry
+                        .messageGroupId(SqsFifoOperations.groupId(message))
+                        .messageDeduplicationId(SqsFifoOperations.deduplicationId(message));
+                  }
+                  entries.add(entry.build());
+                }
+                var request =
+                    SendMessageBatchRequest.builder().queueUrl(queueUrl).entries(entries).build();
+                var response = controller.call(() -> sqsClient.sendMessageBatch(request));
+                awsResponseValidation(response);
+                for (var result : response.successful()) {
+                  onSent.accept(batch.get(Integer.parseInt(result.id())), result);
+                }
+                return response.failed();
+              },
+              "send to",
+              queueName);
+      for (var i = 0; i < batch.size(); i++) {
+        if (!failed.contains(Integer.toString(i))) {
+          sent.add(batch.get(i));
+        }
+      }
+    }
+    LOG.debug("SENT: {} of {} message(s) to {}.", sent.size(), messages.size(), queueName);
+    return sent;
+  }
+
+  /**
+   * Deletes the messages from the SQS in batches of 10, using their receipt handles. See {@link
+   * SqsClaimCheck} for when this also deletes the messages' payloads from S3.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName SQS the messages were received from.
+   * @param messages Messages to delete.
+   * @return The number of messages deleted.
+   */
+  public static int sqsDeleteBatch(SqsClient sqsClient, String queueName, List<Message> messages) {
+    return sqsDeleteBatch(sqsClient, queueName, messages, true);
+  }
+
+  /**
+   * Deletes the messages from the SQS in batches of 10. With deletePayloads false the claim-check
+   * payloads are left alone, for moves and the like where another message still points at them.
+   */
+  static int sqsDeleteBatch(
+      SqsClient sqsClient, String queueName, List<Message> messages, boolean deletePayloads) {
+    if (messages.isEmpty()) {
+      return 0;
+    }
+    var queueUrl = qUrl(sqsClient, queueName);
+    var controller = SqsRateController.forQueue(queueUrl);
+    var deleted = 0;
+    for (var from = 0; from < messages.size(); from += SQS_MAX_BATCH_SIZE) {
+      // receipt handles are small, so delete batches are only limited by the entry count
+      var batch = messages.subList(from, Math.min(from + SQS_MAX_BATCH_SIZE, messages.size()));
+      var failed =
+          retryFailedEntries(
+              controller,
+              batch.size(),
+              ids -> {
+                var entries = new ArrayList<DeleteMessageBatchRequestEntry>(ids.size());
+                for (var id : ids) {
+                  entries.add(
+                      DeleteMessageBatchRequestEntry.builder()
+                          .id(id)
+                          .receiptHandle(
+                              SqsClaimCheck.sqsReceiptHandle(
+                                  batch.get(Integer.parseInt(id)).receiptHandle()))
+                          .build());
+                }
+                var request =
+                    DeleteMessageBatchRequest.builder().queueUrl(queueUrl).entries(entries).build();
+                var response = controller.call(() -> sqsClient.deleteMessageBatch(request));
+                awsResponseValidation(response);
+                return response.failed();
+              },
+              "delete from",
+              queueName);
+      deleted += batch.size() - failed.size();
+      var deletedMessages = new ArrayList<Message>(batch.size());
+      for (var i = 0; i < batch.size(); i++) {
+        if (!failed.contains(Integer.toString(i))) {
+          deletedMessages.add(batch.get(i));
+        }
+      }
+      if (deletePayloads) {
+        SqsClaimCheck.onDeleted(sqsClient, deletedMessages);
+      }
+    }
+    LOG.debug("DELETED: {} of {} message(s) from {}.", deleted, messages.size(), queueName);
+    return deleted;
+  }
+
+  /**
+   * Sends the messages to the target SQS, and then deletes from the source SQS only the messages
+   * that were sent successfully.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param fromSqs Source SQS the messages were received from.
+   * @param toSqs Target SQS.
+   * @param messages Messages to move.
+   * @return The number of messages moved, that is sent to the target SQS.
+   */
+  public static int sqsMoveBatch(
+      SqsClient sqsClient, String fromSqs, String toSqs, List<Message> messages) {
+    var sent = sqsSendBatch(sqsClient, toSqs, messages);
+    // the moved pointer messages still point at their payloads
+    var deleted = sqsDeleteBatch(sqsClient, fromSqs, sent, false);
+    if (deleted < sent.size()) {
+      LOG.warn(
+          "{} message(s) were sent to {} but could not be deleted from {}, they will show up on {} again.",
+          sent.size() - deleted,
+          toSqs,
+          fromSqs,
+          fromSqs);
+    }
+    return sent.size();
+  }
+
+  /**
+   * Splits the messages into batches that SendMessageBatch will accept: at most 10 entries, and at
+   * most 256 KiB of bodies and message attributes in total. A message that is too big on its own
+   * gets a batch to itself (and SQS will reject it).
+   */
+  public static List<List<Message>> batches(List<Message> messages) {
+    var batches = new ArrayList<List<Message>>();
+    var batch = new ArrayList<Message>(SQS_MAX_BATCH_SIZE);
+    var batchBytes = 0L;
+    for (var message : messages) {
+      var size = payloadSize(message);
+      if (!batch.isEmpty()
+          && (batch.size() == SQS_MAX_BATCH_SIZE
+              || batchBytes + size > SQS_MAX_BATCH_PAYLOAD_BYTES)) {
+        batches.add(batch);
+        batch = new ArrayList<>(SQS_MAX_BATCH_SIZE);
+        batchBytes = 0;
+      }
+      batch.add(message);
+      batchBytes += size;
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return batches;
+  }
+
+  /**
+   * The number of bytes the message counts against the SQS size limit: the body plus the name, data
+   * type and value of each message attribute.
+   */
+  public static long payloadSize(Message message) {
+    long size = utf8Length(message.body());
+    if (message.hasMessageAttributes()) {
+      for (Map.Entry<String, MessageAttributeValue> entry :
+          message.messageAttributes().entrySet()) {
+        var value = entry.getValue();
+        size += utf8Length(entry.getKey()) + utf8Length(value.dataType());
+        size += utf8Length(value.stringValue());
+        if (value.binaryValue() != null) {
+          size += value.binaryValue().asByteArray().length;
+        }
+      }
+    }
+    return size;
+  }
+
+  private static int utf8Length(String s) {
+    return s == null ? 0 : s.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /**
+   * Runs a batch call for entry ids "0" to "count-1", then calls it again with only the ids that
+   * failed for reasons that were not the sender's fault, backing off a little each time. Those
+   * failures are also reported to the queue's {@link SqsRateController}, so it slows down.
+   *
+   * @return The ids that never succeeded.
+   */
+  private static Set<String> retryFailedEntries(
+      SqsRateController controller,
+      int count,
+      Function<List<String>, List<BatchResultErrorEntry>> batchCall,
+      String action,
+      String queueName) {
+    List<String> pending = new ArrayList<>(count);
+    for (var i = 0; i < count; i++) {
+      pending.add(Integer.toString(i));
+    }
+    Set<String> gaveUp = new HashSet<>();
+    for (var attempt = 0; !pending.isEmpty(); attempt++) {
+      var errors = batchCall.apply(pending);
+      pending = new ArrayList<>();
+      for (var error : errors) {
+        if (Boolean.TRUE.equals(error.senderFault()) || attempt >= MAX_ENTRY_RETRIES) {
+          LOG.error(
+              "Failed to {} {}: code={}, message={}, senderFault={}",
+              action,
+              queueName,
+              error.code(),
+              error.message(),
+              error.senderFault());
+          gaveUp.add(error.id());
+        } else {
+          pending.add(error.id());
+        }
+      }
+      if (!pending.isEmpty()) {
+        controller.onThrottledEntries(pending.size());
+        LOG.warn(
+            "Retrying {} batch entries that failed to {} {}.", pending.size(), action, queueName);
+        backoff(attempt);
+      }
+    }
+    return gaveUp;
+  }
+
+  private static void backoff(int attempt) {
+    try {
+      Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+    } catch (InterruptedException e) {
+      LOG.error("Thread sleep interrupted", e);
+      Thread.currentThread().interrupt(); // Restore interrupt status
+    }
+  }
+}
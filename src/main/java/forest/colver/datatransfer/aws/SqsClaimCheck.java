@@ -0,0 +1,428 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.S3Operations.s3Copy;
+import static forest.colver.datatransfer.aws.S3Operations.s3Delete;
+import static forest.colver.datatransfer.aws.S3Operations.s3Get;
+import static forest.colver.datatransfer.aws.S3Operations.s3Put;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.payloadSize;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.CredentialUtils;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.SqsServiceClientConfiguration;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Claim-check for payloads too big for SQS: the payload goes to S3 and the SQS message only
+ * carries a pointer to it. The pointer is the one the Amazon SQS Extended Client Library uses, so
+ * messages can go back and forth with Java or Python code using that library:
+ *
+ * <pre>
+ * body:       ["software.amazon.payloadoffloading.PayloadS3Pointer",
+ *              {"s3BucketName":"my-bucket","s3Key":"claim-check/5f1d..."}]
+ * attribute:  ExtendedPayloadSize (Number) = size of the payload in bytes
+ * </pre>
+ *
+ * <p>It is off until {@link #configure(ClaimCheckConfig)} is given a bucket. Once on, {@link
+ * SqsOperations} uses it transparently: sqsSend offloads payloads over the threshold, the single
+ * message reads (sqsReadOneMessage, sqsReadMessages, sqsConsumeOneMessage) hand back the real
+ * payload, sqsMove and the bulk moves pass the pointer along as is, and the copies copy the payload
+ * object inside S3, so the two messages don't share an object. Same as the extended client, a
+ * message that was resolved by a read carries its pointer in its receipt handle, and if {@link
+ * ClaimCheckConfig#deleteObjectOnDelete()} is on, deleting that message, or a pointer message that
+ * was never resolved, also deletes the payload. Moves leave the payload where it is.
+ *
+ * <p>The S3Client used is the shared one from the {@link AwsClientRegistry} for the credentials and
+ * region of the SqsClient.
+ */
+public class SqsClaimCheck {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsClaimCheck.class);
+  public static final String POINTER_CLASS = "software.amazon.payloadoffloading.PayloadS3Pointer";
+  public static final String PAYLOAD_SIZE_ATTRIBUTE = "ExtendedPayloadSize";
+  // what older versions of the extended client called it
+  private static final String LEGACY_PAYLOAD_SIZE_ATTRIBUTE = "SQSLargePayloadSize";
+  private static final String BUCKET_MARKER = "-..s3BucketName..-";
+  private static final String KEY_MARKER = "-..s3Key..-";
+  private static final String POINTER_PREFIX = "[\"" + POINTER_CLASS + "\"";
+  private static volatile ClaimCheckConfig config = ClaimCheckConfig.defaults();
+
+  private SqsClaimCheck() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Claim-check settings.
+   *
+   * @param bucket Where payloads go, null turns claim-check off.
+   * @param keyPrefix Put in front of the object keys, e.g. "claim-check/".
+   * @param thresholdBytes Messages bigger than this (body plus message attributes) are offloaded.
+   * @param deleteObjectOnDelete Delete the payload when a resolved or pointer message is deleted.
+   */
+  public record ClaimCheckConfig(
+      String bucket, String keyPrefix, long thresholdBytes, boolean deleteObjectOnDelete) {
+
+    public ClaimCheckConfig {
+      if (thresholdBytes < 1 || thresholdBytes > AwsUtils.SQS_MAX_BATCH_PAYLOAD_BYTES) {
+        throw new IllegalArgumentException("thresholdBytes must be between 1 and 256 KiB.");
+      }
+      keyPrefix = keyPrefix == null ? "" : keyPrefix;
+    }
+
+    /** Off, no bucket. Offloads anything over 256 KiB once a bucket is set. */
+    public static ClaimCheckConfig defaults() {
+      return new ClaimCheckConfig(
+          null, "claim-check/", AwsUtils.SQS_MAX_BATCH_PAYLOAD_BYTES, false);
+    }
+
+    public ClaimCheckConfig withBucket(String bucket) {
+      return new ClaimCheckConfig(bucket, keyPrefix, thresholdBytes, deleteObjectOnDelete);
+    }
+
+    public ClaimCheckConfig withKeyPrefix(String keyPrefix) {
+      return new ClaimCheckConfig(bucket, keyPrefix, thresholdBytes, deleteObjectOnDelete);
+    }
+
+    public ClaimCheckConfig withThreshold(long thresholdBytes) {
+      return new ClaimCheckConfig(bucket, keyPrefix, thresholdBytes, deleteObjectOnDelete);
+    }
+
+    public ClaimCheckConfig withDeleteObjectOnDelete(boolean deleteObjectOnDelete) {
+      return new ClaimCheckConfig(bucket, keyPrefix, thresholdBytes, deleteObjectOnDelete);
+    }
+
+    public boolean enabled() {
+      return bucket != null;
+    }
+  }
+
+  /** Where a payload lives in S3. */
+  public record S3Pointer(String bucket, String key) {
+
+    /** The message body for this pointer. */
+    public String toBody() {
+      return new JSONArray()
+          .put(POINTER_CLASS)
+          .put(new JSONObject().put("s3BucketName", bucket).put("s3Key", key))
+          .toString();
+    }
+
+    /** Parses a message body, empty if it isn't a pointer. */
+    public static Optional<S3Pointer> fromBody(String body) {
+      if (body == null || !body.stripLeading().startsWith(POINTER_PREFIX)) {
+        return Optional.empty();
+      }
+      try {
+        var location = new JSONArray(body).getJSONObject(1);
+        return Optional.of(
+            new S3Pointer(location.getString("s3BucketName"), location.getString("s3Key")));
+      } catch (JSONException e) {
+        LOG.warn("Message body looks like an S3 pointer but isn't one: {}", e.getMessage());
+        return Optional.empty();
+      }
+    }
+  }
+
+  /** Turns claim-check on (with a bucket) or off (without one) for {@link SqsOperations}. */
+  public static void configure(ClaimCheckConfig claimCheckConfig) {
+    config = claimCheckConfig;
+  }
+
+  public static ClaimCheckConfig config() {
+    return config;
+  }
+
+  /** A new, unused pointer to put a payload at. */
+  public static S3Pointer newPointer(ClaimCheckConfig claimCheckConfig) {
+    return new S3Pointer(
+        claimCheckConfig.bucket(), claimCheckConfig.keyPrefix() + UUID.randomUUID());
+  }
+
+  /** A pointer message for a payload that is already in S3. */
+  public static Message pointerMessage(
+      S3Pointer pointer, long payloadBytes, Map<String, MessageAttributeValue> messageAttributes) {
+    Map<String, MessageAttributeValue> attributes = new HashMap<>(messageAttributes);
+    attributes.put(
+        PAYLOAD_SIZE_ATTRIBUTE,
+        MessageAttributeValue.builder()
+            .dataType("Number")
+            .stringValue(Long.toString(payloadBytes))
+            .build());
+    return Message.builder().body(pointer.toBody()).messageAttributes(attributes).build();
+  }
+
+  /**
+   * The pointer of a message: from its body if it was received as is, or from its receipt handle if
+   * it was resolved by {@link #resolve(S3Client, Message)}.
+   */
+  public static Optional<S3Pointer> pointer(Message message) {
+    return ResolvedHandle.parse(message.receiptHandle())
+        .map(ResolvedHandle::pointer)
+        .or(() -> S3Pointer.fromBody(message.body()));
+  }
+
+  /** True if the body of the message is a pointer, i.e. it hasn't been resolved. */
+  public static boolean isPointer(Message message) {
+    return S3Pointer.fromBody(message.body()).isPresent();
+  }
+
+  /** The receipt handle SQS gave out, without the pointer a resolved message carries in it. */
+  public static String sqsReceiptHandle(String receiptHandle) {
+    return ResolvedHandle.parse(receiptHandle)
+        .map(ResolvedHandle::receiptHandle)
+        .orElse(receiptHandle);
+  }
+
+  /** If the message is over the threshold, puts its body in S3 and returns the pointer message. */
+  public static Message offload(
+      S3Client s3Client, Message message, ClaimCheckConfig claimCheckConfig) {
+    if (payloadSize(message) <= claimCheckConfig.thresholdBytes() || isPointer(message)) {
+      return message;
+    }
+    var pointer = newPointer(claimCheckConfig);
+    s3Put(s3Client, pointer.bucket(), pointer.key(), message.body());
+    var payloadBytes = message.body().getBytes(StandardCharsets.UTF_8).length;
+    LOG.info(
+        "CLAIM_CHECK: Offloaded a {} byte payload to {}/{}.",
+        payloadBytes,
+        pointer.bucket(),
+        pointer.key());
+    return pointerMessage(pointer, payloadBytes, message.messageAttributes());
+  }
+
+  /** Streams the payload of a pointer message. Close it when done. */
+  public static InputStream openPayload(S3Client s3Client, S3Pointer pointer) {
+    return s3Get(s3Client, pointer.bucket(), pointer.key());
+  }
+
+  /**
+   * Swaps the pointer in the body for the payload, drops the size attribute, and moves the pointer
+   * into the receipt handle (so deleting the message can find the payload). Anything else is
+   * returned as is.
+   */
+  public static Message resolve(S3Client s3Client, Message message) {
+    var pointer = S3Pointer.fromBody(message.body());
+    if (pointer.isEmpty()) {
+      return message;
+    }
+    var p = pointer.get();
+    String payload;
+    try (var in = openPayload(s3Client, p)) {
+      payload = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read the payload at " + p, e);
+    }
+    Map<String, MessageAttributeValue> attributes = new HashMap<>(message.messageAttributes());
+    attributes.remove(PAYLOAD_SIZE_ATTRIBUTE);
+    attributes.remove(LEGACY_PAYLOAD_SIZE_ATTRIBUTE);
+    var receiptHandle =
+        message.receiptHandle() == null
+            ? null
+            : new ResolvedHandle(p, message.receiptHandle()).toString();
+    return message.toBuilder()
+        .body(payload)
+        .messageAttributes(attributes)
+        .receiptHandle(receiptHandle)
+        .build();
+  }
+
+  /**
+   * For a pointer message, copies the payload to a new object (inside S3, nothing is downloaded)
+   * and returns a message pointing at the copy. Anything else is returned as is.
+   */
+  public static Message copyPayload(
+      S3Client s3Client, Message message, ClaimCheckConfig claimCheckConfig) {
+    var pointer = S3Pointer.fromBody(message.body());
+    if (pointer.isEmpty()) {
+      return message;
+    }
+    var from = pointer.get();
+    var to = newPointer(claimCheckConfig);
+    s3Copy(s3Client, from.bucket(), from.key(), to.bucket(), to.key());
+    return message.toBuilder().body(to.toBody()).build();
+  }
+
+  /**
+   * Deletes the payloads of the messages that have one: resolved messages (pointer in the receipt
+   * handle) and pointer messages (pointer in the body). See {@link #pointer(Message)}.
+   */
+  public static void deletePayloads(S3Client s3Client, List<Message> messages) {
+    for (var message : messages) {
+      pointer(message).ifPresent(pointer -> s3Delete(s3Client, pointer.bucket(), pointer.key()));
+    }
+  }
+
+  /** {@link #offload(S3Client, Message, ClaimCheckConfig)} if claim-check is on. */
+  public static Message offload(SqsClient sqsClient, Message message) {
+    var current = config;
+    return current.enabled() ? offload(s3ClientFor(sqsClient), message, current) : message;
+  }
+
+  /** Streams the payload of a pointer message, if claim-check is on and it is one. */
+  public static Optional<InputStream> openPayload(SqsClient sqsClient, Message message) {
+    if (!config.enabled()) {
+      return Optional.empty();
+    }
+    return S3Pointer.fromBody(message.body())
+        .map(pointer -> openPayload(s3ClientFor(sqsClient), pointer));
+  }
+
+  /** {@link #resolve(S3Client, Message)} if claim-check is on. */
+  public static Message resolve(SqsClient sqsClient, Message message) {
+    return config.enabled() && isPointer(message)
+        ? resolve(s3ClientFor(sqsClient), message)
+        : message;
+  }
+
+  /** {@link #resolve(S3Client, Message)} for each message, if claim-check is on. */
+  public static List<Message> resolve(SqsClient sqsClient, List<Message> messages) {
+    if (!config.enabled() || messages.stream().noneMatch(SqsClaimCheck::isPointer)) {
+      return messages;
+    }
+    var s3Client = s3ClientFor(sqsClient);
+    var resolved = new ArrayList<Message>(messages.size());
+    for (var message : messages) {
+      resolved.add(resolve(s3Client, message));
+    }
+    return resolved;
+  }
+
+  /**
+   * {@link #copyPayload(S3Client, Message, ClaimCheckConfig)} for each message, if it is on. If a
+   * copy fails, the copies already made are deleted again. Once the copies have been sent, pass the
+   * ones that weren't to {@link #deleteUnsentCopies(SqsClient, List, List, Collection)}.
+   */
+  public static List<Message> copyPayloads(SqsClient sqsClient, List<Message> messages) {
+    var current = config;
+    if (!current.enabled() || messages.stream().noneMatch(SqsClaimCheck::isPointer)) {
+      return messages;
+    }
+    var s3Client = s3ClientFor(sqsClient);
+    var copies = new ArrayList<Message>(messages.size());
+    try {
+      for (var message : messages) {
+        copies.add(copyPayload(s3Client, message, current));
+      }
+    } catch (RuntimeException e) {
+      deleteUnsentCopies(s3Client, messages, copies, List.of());
+      throw e;
+    }
+    return copies;
+  }
+
+  /** {@link #deleteUnsentCopies(S3Client, List, List, Collection)} for copyPayloads copies. */
+  public static void deleteUnsentCopies(
+      SqsClient sqsClient, List<Message> messages, List<Message> copies, Collection<Message> sent) {
+    // copyPayloads hands back the messages themselves when it had nothing to copy
+    if (copies != messages && sent.size() < copies.size()) {
+      deleteUnsentCopies(s3ClientFor(sqsClient), messages, copies, sent);
+    }
+  }
+
+  /**
+   * Deletes the payload copies made for messages that then weren't sent, so a failed send doesn't
+   * leave them behind in S3.
+   *
+   * @param s3Client The Client for connecting to S3.
+   * @param messages The messages that were copied.
+   * @param copies The copies, in the same order, see {@link #copyPayload(S3Client, Message,
+   *     ClaimCheckConfig)}.
+   * @param sent The copies that were sent.
+   */
+  public static void deleteUnsentCopies(
+      S3Client s3Client, List<Message> messages, List<Message> copies, Collection<Message> sent) {
+    for (var i = 0; i < copies.size(); i++) {
+      var copy = copies.get(i);
+      // copyPayload hands back the message itself when there was nothing to copy
+      if (copy != messages.get(i) && !sent.contains(copy)) {
+        S3Pointer.fromBody(copy.body())
+            .ifPresent(pointer -> s3Delete(s3Client, pointer.bucket(), pointer.key()));
+      }
+    }
+  }
+
+  /**
+   * Called after messages were deleted from SQS, deletes their payloads if claim-check is on and
+   * set to.
+   */
+  public static void onDeleted(SqsClient sqsClient, List<Message> messages) {
+    var current = config;
+    if (current.enabled() && current.deleteObjectOnDelete()) {
+      deletePayloads(s3ClientFor(sqsClient), messages);
+    }
+  }
+
+  /** The SqsAsyncClient version of {@link #onDeleted(SqsClient, List)}, it blocks on S3. */
+  public static void onDeleted(SqsAsyncClient sqsClient, List<Message> messages) {
+    var current = config;
+    if (current.enabled() && current.deleteObjectOnDelete()) {
+      deletePayloads(s3ClientFor(sqsClient.serviceClientConfiguration()), messages);
+    }
+  }
+
+  private static S3Client s3ClientFor(SqsClient sqsClient) {
+    return s3ClientFor(sqsClient.serviceClientConfiguration());
+  }
+
+  private static S3Client s3ClientFor(SqsServiceClientConfiguration clientConfig) {
+    return s3Client(
+        CredentialUtils.toCredentialsProvider(clientConfig.credentialsProvider()),
+        clientConfig.region());
+  }
+
+  /**
+   * A receipt handle with the pointer in front, the way the extended client does it:
+   * -..s3BucketName..-BUCKET-..s3BucketName..--..s3Key..-KEY-..s3Key..-RECEIPT_HANDLE
+   */
+  private record ResolvedHandle(S3Pointer pointer, String receiptHandle) {
+
+    static Optional<ResolvedHandle> parse(String handle) {
+      if (handle == null || !handle.startsWith(BUCKET_MARKER)) {
+        return Optional.empty();
+      }
+      var bucketEnd = handle.indexOf(BUCKET_MARKER, BUCKET_MARKER.length());
+      var keyStart = bucketEnd + BUCKET_MARKER.length() + KEY_MARKER.length();
+      var keyEnd = bucketEnd < 0 ? -1 : handle.indexOf(KEY_MARKER, keyStart);
+      if (keyEnd < 0) {
+        return Optional.empty();
+      }
+      return Optional.of(
+          new ResolvedHandle(
+              new S3Pointer(
+                  handle.substring(BUCKET_MARKER.length(), bucketEnd),
+                  handle.substring(keyStart, keyEnd)),
+              handle.substring(keyEnd + KEY_MARKER.length())));
+    }
+
+    @Override
+    public String toString() {
+      return BUCKET_MARKER
+          + pointer.bucket()
+          + BUCKET_MARKER
+          + KEY_MARKER
+          + pointer.key()
+          + KEY_MARKER
+          + receiptHandle;
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_WAIT_TIME_SECONDS;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * Drains an SQS with several threads at once. N receiver threads long-poll the source SQS and put
+ * each batch of messages on a bounded hand-off queue, and M worker threads take the batches off
+ * that queue and handle them (e.g. batch send to another SQS and batch delete from the source). The
+ * hand-off queue being bounded is the backpressure: when the workers fall behind the receivers wait
+ * instead of pulling more messages off the SQS than can be handled before their visibility timeout
+ * runs out.
+ *
+ * <p>A receiver stops once it gets the configured number of empty polls in a row, and the drain is
+ * finished once every receiver has stopped and the workers have emptied the hand-off queue. The
+ * count returned is the exact number of messages the handler reported as handled, not an estimate
+ * from the queue depth.
+ *
+ * <p>The thread counts are upper bounds: the receives and the batch calls all go through the
+ * queue's {@link SqsRateController}, which lets only as many requests through at a time as the
+ * queue is taking without throttling.
+ *
+ * <p>If a handler or a receive throws, the drain stops and the exception is rethrown (wrapped in an
+ * IllegalStateException). Messages that were received but not handled simply become visible on the
+ * source SQS again after the visibility timeout.
+ */
+public class SqsDrainEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsDrainEngine.class);
+  private static final long HAND_OFF_POLL_MILLIS = 200;
+  private static final int PROGRESS_EVERY = 10_000;
+
+  private SqsDrainEngine() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Does something with a batch of (up to 10) messages received from the SQS being drained.
+   * Implementations are called from several threads at once.
+   */
+  @FunctionalInterface
+  public interface BatchHandler {
+
+    /**
+     * @param messages Messages received from the SQS being drained.
+     * @return How many of the messages were handled, this is what gets counted.
+     */
+    int handle(List<Message> messages);
+  }
+
+  /**
+   * Drain settings.
+   *
+   * @param receivers Number of threads long-polling the source SQS.
+   * @param workers Number of threads handling the received batches.
+   * @param handOffCapacity Max number of received batches waiting for a worker.
+   * @param emptyPollsToStop A receiver stops after this many empty receives in a row.
+   * @param waitTimeSeconds Long-poll wait time for each receive (max 20).
+   * @param visibilityTimeout Seconds a received message stays hidden, it must cover the time a
+   *     batch can sit in the hand-off queue plus the time it takes to handle it.
+   */
+  public record DrainConfig(
+      int receivers,
+      int workers,
+      int handOffCapacity,
+      int emptyPollsToStop,
+      int waitTimeSeconds,
+      int visibilityTimeout) {
+
+    public DrainConfig {
+      if (receivers < 1 || workers < 1 || handOffCapacity < 1 || emptyPollsToStop < 1) {
+        throw new IllegalArgumentException(
+            "receivers, workers, handOffCapacity and emptyPollsToStop must all be at least 1.");
+      }
+    }
+
+    /** 4 receivers, 8 workers, room for 100 batches, stop after 3 empty polls in a row. */
+    public static DrainConfig defaults() {
+      return new DrainConfig(4, 8, 100, 3, SQS_WAIT_TIME_SECONDS, 60);
+    }
+  }
+
+  /**
+   * Moves every message from one SQS to another, using batch sends and deletes.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param fromSqs Source SQS.
+   * @param toSqs Target SQS.
+   * @param config Concurrency settings.
+   * @return The number of messages moved.
+   */
+  public static long sqsDrainMove(
+      SqsClient sqsClient, String fromSqs, String toSqs, DrainConfig config) {
+    return sqsDrain(
+        sqsClient,
+        fromSqs,
+        config,
+        messages -> SqsBatchOperations.sqsMoveBatch(sqsClient, fromSqs, toSqs, messages));
+  }
+
+  /**
+   * Receives every message on the SQS and hands each batch to the handler. The handler is in charge
+   * of deleting the messages, anything it doesn't delete shows up on the SQS again after the
+   * visibility timeout.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName SQS to drain.
+   * @param config Concurrency settings.
+   * @param handler Does the work for each received batch.
+   * @return The total of what the handler returned.
+   */
+  public static long sqsDrain(
+      SqsClient sqsClient, String queueName, DrainConfig config, BatchHandler handler) {
+    var queueUrl = qUrl(sqsClient, queueName);
+    var controller = SqsRateController.forQueue(queueUrl);
+    var receiveRequest =
+        ReceiveMessageRequest.builder()
+            .queueUrl(queueUrl)
+            .waitTimeSeconds(config.waitTimeSeconds())
+            .messageAttributeNames("All")
+            .attributeNames(QueueAttributeName.ALL)
+            .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
+            .visibilityTimeout(config.visibilityTimeout())
+            .build();
+    BlockingQueue<List<Message>> handOff = new ArrayBlockingQueue<>(config.handOffCapacity());
+    var receiversRunning = new CountDownLatch(config.receivers());
+    var stop = new AtomicBoolean();
+    var failure = new AtomicReference<Throwable>();
+    var received = new AtomicLong();
+    var handled = new AtomicLong();
+    var threadNumber = new AtomicInteger();
+    var pool =
+        Executors.newFixedThreadPool(
+            config.receivers() + config.workers(),
+            r -> {
+              var t =
+                  new Thread(r, "sqs-drain-" + queueName + "-" + threadNumber.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    var start = System.currentTimeMillis();
+    LOG.info("Draining {} with {}", queueName, config);
+
+    for (var i = 0; i < config.receivers(); i++) {
+      pool.execute(
+          () -> {
+            try {
+              var emptyPolls = 0;
+              while (!stop.get() && emptyPolls < config.emptyPollsToStop()) {
+                var messages =
+                    controller
+                        .callLongPoll(() -> sqsClient.receiveMessage(receiveRequest))
+                        .messages();
+                if (messages.isEmpty()) {
+                  emptyPolls++;
+                } else {
+                  emptyPolls = 0;
+                  received.addAndGet(messages.size());
+                  while (!stop.get()
+                      && !handOff.offer(messages, HAND_OFF_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // hand-off queue is full, wait for the workers to catch up
+                  }
+                }
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              fail(stop, failure, e);
+            } catch (RuntimeException e) {
+              fail(stop, failure, e);
+            } finally {
+              receiversRunning.countDown();
+            }
+          });
+    }
+
+    for (var i = 0; i < config.workers(); i++) {
+      pool.execute(
+          () -> {
+            try {
+              while (!stop.get()) {
+                var messages = handOff.poll(HAND_OFF_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (messages != null) {
+                  var count = handler.handle(messages);
+                  var total = handled.addAndGet(count);
+                  // a batch is at most 10 messages, so only log at INFO every PROGRESS_EVERY
+                  if (total / PROGRESS_EVERY > (total - count) / PROGRESS_EVERY) {
+                    LOG.info("Handled {} messages from {} so far", total, queueName);
+                  } else {
+                    LOG.debug("Handled {} messages from {} so far", total, queueName);
+                  }
+                } else if (receiversRunning.getCount() == 0 && handOff.isEmpty()) {
+                  return;
+                }
+              }
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              fail(stop, failure, e);
+            } catch (RuntimeException e) {
+              fail(stop, failure, e);
+            }
+          });
+    }
+
+    pool.shutdown();
+    awaitTermination(pool, stop);
+    var seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+    LOG.info(
+        "Drained {}: received {} and handled {} messages in {} sec (~{} msgs/sec).",
+        queueName,
+        received.get(),
+        handled.get(),
+        seconds,
+        handled.get() / seconds);
+    LOG.info("SQS rate control for {}: {}", queueName, controller.stats());
+    if (failure.get() != null) {
+      throw new IllegalStateException(
+          "Drain of " + queueName + " failed after handling " + handled.get() + " messages.",
+          failure.get());
+    }
+    return handled.get();
+  }
+
+  private static void fail(AtomicBoolean stop, AtomicReference<Throwable> failure, Throwable e) {
+    if (failure.compareAndSet(null, e)) {
+      LOG.error("Stopping the SQS drain.", e);
+    }
+    stop.set(true);
+  }
+
+  private static void awaitTermination(ExecutorService pool, AtomicBoolean stop) {
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.info("Still draining...");
+      }
+    } catch (InterruptedException e) {
+      LOG.error("Interrupted while draining, stopping.", e);
+      stop.set(true);
+      pool.shutdownNow();
+      Thread.currentThread().interrupt(); // Restore interrupt status
+    }
+  }
+}
@@ -0,0 +1,504 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_WAIT_TIME_SECONDS;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+
+/**
+ * Send, move and copy for SQS FIFO queues (the ones whose name ends in ".fifo"). A FIFO queue only
+ * keeps messages in order within a message group, and it won't hand out more of a group's messages
+ * while earlier ones are in flight, so a FIFO backlog can be worked on in parallel as long as each
+ * group is only ever worked on by one thread at a time.
+ *
+ * <p>That is what the lanes are: a fixed set of single threaded workers, and every message group is
+ * hashed onto one of them. Within a lane messages are handled in the order they arrived, different
+ * lanes (and so different groups) run in parallel. With thousands of groups the lanes stay busy.
+ *
+ * <p>Every message sent to a FIFO queue needs a MessageGroupId and a MessageDeduplicationId. A
+ * message received from a FIFO queue keeps the ones it has, anything else goes in the {@link
+ * #DEFAULT_GROUP_ID} group and gets a deduplication ID hashed from its content (body and message
+ * attributes), so sending the same message twice within SQS's 5 minute deduplication window only
+ * puts it on the queue once. The plain {@link SqsOperations} and {@link SqsBatchOperations} sends
+ * fill these in too, they just don't run in parallel.
+ *
+ * <p>If a send fails part way through a group, the rest of that group is not sent, so nothing ever
+ * overtakes a message that didn't make it. A move only deletes what was sent, and the rest of the
+ * group shows up on the source queue again after the visibility timeout.
+ */
+public class SqsFifoOperations {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsFifoOperations.class);
+  public static final String DEFAULT_GROUP_ID = "default";
+  private static final String FIFO_SUFFIX = ".fifo";
+
+  private SqsFifoOperations() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * FIFO settings.
+   *
+   * @param lanes Number of lanes (worker threads), the most message groups handled at once.
+   * @param laneCapacity Max number of group batches waiting on one lane before the receivers wait.
+   * @param receivers Number of threads receiving from the source SQS (move and copy).
+   * @param emptyPollsToStop A receiver stops after this many empty receives in a row while nothing
+   *     is left for the lanes to do.
+   * @param visibilityTimeout Seconds a received message stays hidden, it is renewed (see {@link
+   *     SqsVisibilityExtender}) for as long as the message is being worked on.
+   */
+  public record FifoConfig(
+      int lanes, int laneCapacity, int receivers, int emptyPollsToStop, int visibilityTimeout) {
+
+    public FifoConfig {
+      if (lanes < 1 || laneCapacity < 1 || receivers < 1 || emptyPollsToStop < 1) {
+        throw new IllegalArgumentException(
+            "lanes, laneCapacity, receivers and emptyPollsToStop must all be at least 1.");
+      }
+    }
+
+    /** 16 lanes with room for 50 batches each, 2 receivers, stop after 3 empty polls. */
+    public static FifoConfig defaults() {
+      return new FifoConfig(16, 50, 2, 3, 60);
+    }
+
+    public FifoConfig withLanes(int lanes) {
+      return new FifoConfig(lanes, laneCapacity, receivers, emptyPollsToStop, visibilityTimeout);
+    }
+
+    public FifoConfig withReceivers(int receivers) {
+      return new FifoConfig(lanes, laneCapacity, receivers, emptyPollsToStop, visibilityTimeout);
+    }
+
+    public FifoConfig withEmptyPollsToStop(int emptyPollsToStop) {
+      return new FifoConfig(lanes, laneCapacity, receivers, emptyPollsToStop, visibilityTimeout);
+    }
+  }
+
+  /** True if the SQS is a FIFO queue, SQS requires those names to end in ".fifo". */
+  public static boolean isFifo(String queueName) {
+    return queueName.endsWith(FIFO_SUFFIX);
+  }
+
+  /** The message's group, as received from a FIFO queue, or {@link #DEFAULT_GROUP_ID}. */
+  public static String groupId(Message message) {
+    var groupId = message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID);
+    return groupId == null ? DEFAULT_GROUP_ID : groupId;
+  }
+
+  /**
+   * The message's deduplication ID as received from a FIFO queue, or else a SHA-256 of its body and
+   * message attributes, so the same content always gets the same ID.
+   */
+  public static String deduplicationId(Message message) {
+    var deduplicationId =
+        message.attributes().get(MessageSystemAttributeName.MESSAGE_DEDUPLICATION_ID);
+    return deduplicationId == null ? contentHash(message) : deduplicationId;
+  }
+
+  /**
+   * Sends the messages to a FIFO SQS, each message group in order and different groups in
+   * parallel.
+   *
+   * @param awsCP Credentials.
+   * @param queueName Target FIFO SQS.
+   * @param messages Messages to send, in the order they should arrive within each group.
+   * @param config Lanes, the receiver settings aren't used.
+   * @return The number of messages sent.
+   */
+  public static long sqsFifoSend(
+      AwsCredentialsProvider awsCP, String queueName, List<Message> messages, FifoConfig config) {
+    return sqsFifoSend(sqsClient(awsCP), queueName, messages, config);
+  }
+
+  /** Sends the messages to a FIFO SQS. See the AwsCredentialsProvider version. */
+  public static long sqsFifoSend(
+      SqsClient sqsClient, String queueName, List<Message> messages, FifoConfig config) {
+    var sent = new AtomicLong();
+    try (var lanes = new Lanes(config, "sqs-fifo-send-" + queueName)) {
+      for (var group : byGroup(messages).values()) {
+        lanes.submit(
+            groupId(group.get(0)),
+            () -> sent.addAndGet(sendInOrder(sqsClient, queueName, group, (m, r) -> {})));
+      }
+    }
+    LOG.info("Sent {} of {} messages to {}.", sent.get(), messages.size(), queueName);
+    return sent.get();
+  }
+
+  /**
+   * Moves every message from one FIFO SQS to another, keeping each message group in order. Every
+   * group's messages keep their group and deduplication IDs. The target can also be a standard
+   * queue, the order is still kept while moving, but a standard queue doesn't keep it after that.
+   *
+   * @param awsCP Credentials.
+   * @param fromSqs Source FIFO SQS.
+   * @param toSqs Target SQS.
+   * @param config Lanes and receivers.
+   * @return The number of messages moved.
+   */
+  public static long sqsFifoMove(
+      AwsCredentialsProvider awsCP, String fromSqs, String toSqs, FifoConfig config) {
+    return sqsFifoMove(sqsClient(awsCP), fromSqs, toSqs, config);
+  }
+
+  /** Moves every message from one FIFO SQS to another. See the AwsCredentialsProvider version. */
+  public static long sqsFifoMove(
+      SqsClient sqsClient, String fromSqs, String toSqs, FifoConfig config) {
+    var moved =
+        sqsFifoDrain(
+            sqsClient,
+            fromSqs,
+            config,
+            message -> false,
+            (group, extender) -> {
+              var sent = sendInOrder(sqsClient, toSqs, group, (m, r) -> {});
+              var deleted =
+                  SqsBatchOperations.sqsDeleteBatch(
+                      sqsClient, fromSqs, group.subList(0, sent), false);
+              extender.untrack(group.subList(0, sent));
+              if (deleted < sent) {
+                LOG.warn(
+                    "{} message(s) were sent to {} but could not be deleted from {}.",
+                    sent - deleted,
+                    toSqs,
+                    fromSqs);
+              }
+              return sent;
+            });
+    LOG.info("Moved {} messages from {} to {}.", moved, fromSqs, toSqs);
+    return moved;
+  }
+
+  /**
+   * Copies every message from one FIFO SQS to another, keeping each message group in order. A FIFO
+   * queue won't hand out the rest of a group while its first messages are in flight, so (unlike
+   * sqsCopyAll) the messages can't just be kept hidden until the copy is done. Instead each group
+   * goes round once: its messages are copied to the target, sent again to the back of their group
+   * on the source, and then deleted. Once a group comes back round to the messages sent again it is
+   * done. The source ends up with the same messages in the same order, but with new message IDs
+   * and receive counts, and messages sent to the source while the copy runs are copied too.
+   *
+   * @param awsCP Credentials.
+   * @param fromSqs Source FIFO SQS.
+   * @param toSqs Target SQS.
+   * @param config Lanes and receivers.
+   * @return The number of messages copied.
+   */
+  public static long sqsFifoCopy(
+      AwsCredentialsProvider awsCP, String fromSqs, String toSqs, FifoConfig config) {
+    return sqsFifoCopy(sqsClient(awsCP), fromSqs, toSqs, config);
+  }
+
+  /** Copies every message from one FIFO SQS to another. See the AwsCredentialsProvider version. */
+  public static long sqsFifoCopy(
+      SqsClient sqsClient, String fromSqs, String toSqs, FifoConfig config) {
+    Set<String> requeued = ConcurrentHashMap.newKeySet();
+    var copied =
+        sqsFifoDrain(
+            sqsClient,
+            fromSqs,
+            config,
+            message -> requeued.contains(message.messageId()),
+            (group, extender) -> {
+              var copies = SqsClaimCheck.copyPayloads(sqsClient, group);
+              var sentCopies = new ArrayList<Message>(copies.size());
+              var sent = sendInOrder(sqsClient, toSqs, copies, (m, r) -> sentCopies.add(m));
+              SqsClaimCheck.deleteUnsentCopies(sqsClient, group, copies, sentCopies);
+              // a new deduplication ID, or SQS would drop it as a repeat of the original
+              var again = new ArrayList<Message>(sent);
+              for (var message : group.subList(0, sent)) {
+                var attributes = new LinkedHashMap<>(message.attributes());
+                attributes.put(
+                    MessageSystemAttributeName.MESSAGE_DEDUPLICATION_ID, message.messageId());
+                again.add(message.toBuilder().attributes(attributes).build());
+              }
+              var back =
+                  sendInOrder(
+                      sqsClient, fromSqs, again, (m, r) -> requeued.add(r.messageId()));
+              // sent back as is, so the requeued pointers keep their payloads
+              SqsBatchOperations.sqsDeleteBatch(
+                  sqsClient, fromSqs, group.subList(0, back), false);
+              extender.untrack(group.subList(0, back));
+              return sent;
+            });
+    LOG.info("Copied {} messages from {} to {}.", copied, fromSqs, toSqs);
+    return copied;
+  }
+
+  /** Does something with the messages of one group, in order, and says how many it handled. */
+  @FunctionalInterface
+  private interface GroupHandler {
+
+    int handle(List<Message> group, SqsVisibilityExtender extender);
+  }
+
+  /**
+   * Receives until the SQS comes back empty (and the lanes have nothing left to do, since a group
+   * that is still being worked on can't be received), splitting every batch by message group onto
+   * the lanes. Received messages are kept invisible until the handler is done, and whatever is
+   * still tracked at the end is made visible again. Messages that are done already are kept
+   * invisible to the end as well, so their group stays out of the way, and a receive that only
+   * turns up those counts as empty.
+   */
+  private static long sqsFifoDrain(
+      SqsClient sqsClient,
+      String queueName,
+      FifoConfig config,
+      Predicate<Message> done,
+      GroupHandler handler) {
+    var queueUrl = qUrl(sqsClient, queueName);
+    var controller = SqsRateController.forQueue(queueUrl);
+    var receiveRequest =
+        ReceiveMessageRequest.builder()
+            .queueUrl(queueUrl)
+            .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
+            .messageAttributeNames("All")
+            .attributeNames(QueueAttributeName.ALL)
+            .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
+            .visibilityTimeout(config.visibilityTimeout())
+            .build();
+    var handled = new AtomicLong();
+    var pending = new AtomicInteger();
+    var start = System.currentTimeMillis();
+    LOG.info("Draining FIFO {} with {}", queueName, config);
+    try (var extender =
+            new SqsVisibilityExtender(sqsClient, queueName, config.visibilityTimeout());
+        var lanes = new Lanes(config, "sqs-fifo-" + queueName);
+        var receivers = new Lanes(config.withLanes(config.receivers()), "sqs-fifo-receive")) {
+      for (var i = 0; i < config.receivers(); i++) {
+        receivers.submit(
+            Integer.toString(i),
+            () -> {
+              var emptyPolls = 0;
+              while (!lanes.failed()
+                  && !receivers.failed()
+                  && emptyPolls < config.emptyPollsToStop()) {
+                var received =
+                    controller
+                        .callLongPoll(() -> sqsClient.receiveMessage(receiveRequest))
+                        .messages();
+                extender.track(received);
+                var messages = received.stream().filter(done.negate()).toList();
+                if (!messages.isEmpty()) {
+                  emptyPolls = 0;
+                  for (var group : byGroup(messages).values()) {
+                    pending.incrementAndGet();
+                    lanes.submit(
+                        groupId(group.get(0)),
+                        () -> {
+                          try {
+                            handled.addAndGet(handler.handle(group, extender));
+                          } finally {
+                            pending.decrementAndGet();
+                          }
+                        });
+                  }
+                } else if (pending.get() == 0) {
+                  emptyPolls++;
+                }
+              }
+            });
+      }
+    }
+    var seconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
+    LOG.info(
+        "Drained FIFO {}: handled {} messages in {} sec (~{} msgs/sec).",
+        queueName,
+        handled.get(),
+        seconds,
+        handled.get() / seconds);
+    return handled.get();
+  }
+
+  /**
+   * Sends one group's messages in order, in batches, stopping at the first one that doesn't make
+   * it. Entries after it in the same batch may have made it already, their deduplication IDs keep
+   * them from being put on the queue twice when they are sent again.
+   *
+   * @return How many messages, from the start of the group, were sent.
+   */
+  private static int sendInOrder(
+      SqsClient sqsClient,
+      String queueName,
+      List<Message> group,
+      BiConsumer<Message, SendMessageBatchResultEntry> onSent) {
+    var sent = 0;
+    for (var batch : SqsBatchOperations.batches(group)) {
+      var batchSent = SqsBatchOperations.sqsSendBatch(sqsClient, queueName, batch, onSent);
+      var inOrder = 0;
+      while (inOrder < batchSent.size() && batchSent.get(inOrder) == batch.get(inOrder)) {
+        inOrder++;
+      }
+      sent += inOrder;
+      if (inOrder < batch.size()) {
+        LOG.warn(
+            "Stopped sending group {} to {} after {} of {} messages, the rest are not sent so they"
+                + " don't get ahead of the one that failed.",
+            groupId(group.get(0)),
+            queueName,
+            sent,
+            group.size());
+        break;
+      }
+    }
+    return sent;
+  }
+
+  /** Splits the messages by message group, keeping their order within each group. */
+  private static Map<String, List<Message>> byGroup(List<Message> messages) {
+    var groups = new LinkedHashMap<String, List<Message>>();
+    for (var message : messages) {
+      groups.computeIfAbsent(groupId(message), g -> new ArrayList<>()).add(message);
+    }
+    return groups;
+  }
+
+  private static String contentHash(Message message) {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      if (message.body() != null) {
+        digest.update(message.body().getBytes(StandardCharsets.UTF_8));
+      }
+      // sorted, so the hash doesn't depend on map order
+      for (var entry : new TreeMap<>(message.messageAttributes()).entrySet()) {
+        var value = entry.getValue();
+        digest.update((byte) 0);
+        digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(String.valueOf(value.dataType()).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        if (value.stringValue() != null) {
+          digest.update(value.stringValue().getBytes(StandardCharsets.UTF_8));
+        }
+        if (value.binaryValue() != null) {
+          digest.update(value.binaryValue().asByteArray());
+        }
+      }
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available.", e);
+    }
+  }
+
+  /**
+   * Single threaded workers, each with its own bounded queue of work. Work for the same key always
+   * goes to the same lane, so it runs one at a time and in the order it was submitted. A full lane
+   * makes the submitter wait. Closing waits for the lanes to finish, and rethrows (wrapped in an
+   * IllegalStateException) the first thing any of them threw.
+   */
+  private static final class Lanes implements AutoCloseable {
+
+    private final List<ThreadPoolExecutor> workers;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    Lanes(FifoConfig config, String name) {
+      var count = config.lanes();
+      workers = new ArrayList<>(count);
+      for (var i = 0; i < count; i++) {
+        var threadName = name + "-" + i;
+        workers.add(
+            new ThreadPoolExecutor(
+                1,
+                1,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.laneCapacity()),
+                r -> {
+                  var t = new Thread(r, threadName);
+                  t.setDaemon(true);
+                  return t;
+                },
+                (r, executor) -> {
+                  try {
+                    executor.getQueue().put(r); // lane is full, wait for room
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Restore interrupt status
+                    throw new RejectedExecutionException("Interrupted waiting for a lane.", e);
+                  }
+                }));
+      }
+    }
+
+    void submit(String key, Runnable work) {
+      if (failed()) {
+        return;
+      }
+      var lane = workers.get(Math.floorMod(key.hashCode(), workers.size()));
+      lane.execute(
+          () -> {
+            if (failed()) {
+              return;
+            }
+            try {
+              work.run();
+            } catch (RuntimeException e) {
+              if (failure.compareAndSet(null, e)) {
+                LOG.error("Stopping the FIFO lanes.", e);
+              }
+            }
+          });
+    }
+
+    boolean failed() {
+      return failure.get() != null;
+    }
+
+    /** Waits for everything submitted so far to finish, no more work can be submitted after. */
+    void awaitDone() {
+      for (var worker : workers) {
+        worker.shutdown();
+      }
+      try {
+        for (var worker : workers) {
+          while (!worker.awaitTermination(1, TimeUnit.MINUTES)) {
+            LOG.info("Still waiting on the FIFO lanes...");
+          }
+        }
+      } catch (InterruptedException e) {
+        workers.forEach(ThreadPoolExecutor::shutdownNow);
+        Thread.currentThread().interrupt(); // Restore interrupt status
+        throw new IllegalStateException("Interrupted waiting on the FIFO lanes.", e);
+      }
+    }
+
+    @Override
+    public void close() {
+      awaitDone();
+      if (failed()) {
+        throw new IllegalStateException("A FIFO lane failed.", failure.get());
+      }
+    }
+  }
+}
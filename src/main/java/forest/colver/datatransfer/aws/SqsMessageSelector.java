@@ -0,0 +1,597 @@
+package forest.colver.datatransfer.aws;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Predicate;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+/**
+ * A JMS-style message selector for SQS messages, e.g. {@code source = 'sftp' AND
+ * ApproximateReceiveCount > 3 AND (filename LIKE 'lifeflight%' OR customer IN ('a', 'b'))}. SQS has
+ * no selectors of its own, so this is evaluated client side against each received message, which
+ * lets one scan of a queue test any combination of conditions instead of one scan per condition.
+ *
+ * <p>Supported: {@code AND}, {@code OR}, {@code NOT}, parentheses, {@code = <> != < <= > >=},
+ * {@code [NOT] IN ('a', ...)}, {@code [NOT] LIKE 'pattern' [ESCAPE 'c']} ({@code %} is any run of
+ * characters and {@code _} is any one character), {@code [NOT] BETWEEN x AND y}, {@code IS [NOT]
+ * NULL}, string literals in single quotes ({@code ''} is a quote), numbers, and {@code TRUE/FALSE}.
+ * Keywords are case-insensitive.
+ *
+ * <p>Identifiers are message attributes, except for names of SQS system attributes ({@code
+ * SentTimestamp}, {@code ApproximateReceiveCount}, {@code ApproximateFirstReceiveTimestamp}, {@code
+ * SenderId}, {@code MessageGroupId} and so on), which read the system attribute. System attributes
+ * are only there if the receive asked for them (the scans in {@link SqsOperations} ask for all of
+ * them). When either side of a comparison is a number the comparison is numeric.
+ *
+ * <p>Like JMS, a missing attribute makes a comparison UNKNOWN rather than false, so {@code NOT (x =
+ * 'a')} does not match a message without {@code x}. Use {@code IS NULL} for that.
+ *
+ * <p>The expression is parsed once by {@link #compile(String)} into a tree of conditions, and
+ * testing a message just walks that tree, it does not create any objects (apart from parsing
+ * attribute values as numbers).
+ */
+public final class SqsMessageSelector implements Predicate<Message> {
+
+  private static final int FALSE = 0;
+  private static final int TRUE = 1;
+  private static final int UNKNOWN = 2;
+
+  private final String expression;
+  private final Condition root;
+
+  private SqsMessageSelector(String expression, Condition root) {
+    this.expression = expression;
+    this.root = root;
+  }
+
+  /**
+   * Parse the selector expression.
+   *
+   * @throws IllegalArgumentException When the expression is not valid, the message says where.
+   */
+  public static SqsMessageSelector compile(String expression) {
+    var parser = new Parser(expression);
+    var root = parser.parseExpression();
+    parser.expectEnd();
+    return new SqsMessageSelector(expression, root);
+  }
+
+  /** Whether the message matches, an UNKNOWN result does not match. */
+  @Override
+  public boolean test(Message message) {
+    return root.eval(message) == TRUE;
+  }
+
+  public String expression() {
+    return expression;
+  }
+
+  @Override
+  public String toString() {
+    return "SqsMessageSelector[" + expression + "]";
+  }
+
+  /** A node of the compiled tree, evaluates to TRUE, FALSE or UNKNOWN. */
+  private interface Condition {
+    int eval(Message message);
+  }
+
+  /** Something that has a value: an attribute or a literal. */
+  private interface Operand {
+
+    /** The value as a string, null if the attribute is not there. */
+    String value(Message message);
+  }
+
+  private record Attribute(String name, MessageSystemAttributeName systemAttribute)
+      implements Operand {
+
+    @Override
+    public String value(Message message) {
+      if (systemAttribute != null) {
+        return message.hasAttributes() ? message.attributes().get(systemAttribute) : null;
+      }
+      if (!message.hasMessageAttributes()) {
+        return null;
+      }
+      var value = message.messageAttributes().get(name);
+      return value == null ? null : value.stringValue();
+    }
+  }
+
+  private record StringLiteral(String text) implements Operand {
+
+    @Override
+    public String value(Message message) {
+      return text;
+    }
+  }
+
+  private record NumberLiteral(String text, double number) implements Operand {
+
+    @Override
+    public String value(Message message) {
+      return text;
+    }
+  }
+
+  private record BooleanLiteral(boolean value) implements Operand, Condition {
+
+    @Override
+    public String value(Message message) {
+      return value ? "true" : "false";
+    }
+
+    @Override
+    public int eval(Message message) {
+      return value ? TRUE : FALSE;
+    }
+  }
+
+  /** A bare attribute used as a condition, true when its value is "true". */
+  private record BooleanAttribute(Attribute attribute) implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var value = attribute.value(message);
+      if (value == null) {
+        return UNKNOWN;
+      }
+      return "true".equalsIgnoreCase(value) ? TRUE : FALSE;
+    }
+  }
+
+  private record And(Condition left, Condition right) implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var l = left.eval(message);
+      if (l == FALSE) {
+        return FALSE;
+      }
+      var r = right.eval(message);
+      if (r == FALSE) {
+        return FALSE;
+      }
+      return l == TRUE && r == TRUE ? TRUE : UNKNOWN;
+    }
+  }
+
+  private record Or(Condition left, Condition right) implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var l = left.eval(message);
+      if (l == TRUE) {
+        return TRUE;
+      }
+      var r = right.eval(message);
+      if (r == TRUE) {
+        return TRUE;
+      }
+      return l == FALSE && r == FALSE ? FALSE : UNKNOWN;
+    }
+  }
+
+  private record Not(Condition condition) implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      return not(condition.eval(message));
+    }
+  }
+
+  private enum Op {
+    EQ,
+    NE,
+    LT,
+    LE,
+    GT,
+    GE
+  }
+
+  private record Comparison(Operand left, Op op, Operand right, boolean numeric)
+      implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var l = left.value(message);
+      var r = right.value(message);
+      if (l == null || r == null) {
+        return UNKNOWN;
+      }
+      int cmp;
+      if (numeric) {
+        var ln = toNumber(left, l);
+        var rn = toNumber(right, r);
+        if (Double.isNaN(ln) || Double.isNaN(rn)) {
+          return UNKNOWN;
+        }
+        cmp = Double.compare(ln, rn);
+      } else {
+        cmp = l.compareTo(r);
+      }
+      var result =
+          switch (op) {
+            case EQ -> cmp == 0;
+            case NE -> cmp != 0;
+            case LT -> cmp < 0;
+            case LE -> cmp <= 0;
+            case GT -> cmp > 0;
+            case GE -> cmp >= 0;
+          };
+      return result ? TRUE : FALSE;
+    }
+  }
+
+  private record Between(Operand operand, double low, double high, boolean negated)
+      implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var value = operand.value(message);
+      if (value == null) {
+        return UNKNOWN;
+      }
+      var n = toNumber(operand, value);
+      if (Double.isNaN(n)) {
+        return UNKNOWN;
+      }
+      var result = n >= low && n <= high ? TRUE : FALSE;
+      return negated ? not(result) : result;
+    }
+  }
+
+  private record In(Operand operand, Set<String> values, boolean negated) implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var value = operand.value(message);
+      if (value == null) {
+        return UNKNOWN;
+      }
+      var result = values.contains(value) ? TRUE : FALSE;
+      return negated ? not(result) : result;
+    }
+  }
+
+  private record IsNull(Operand operand, boolean negated) implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var isNull = operand.value(message) == null;
+      return isNull != negated ? TRUE : FALSE;
+    }
+  }
+
+  private record Like(Operand operand, char[] pattern, char escape, boolean negated)
+      implements Condition {
+
+    @Override
+    public int eval(Message message) {
+      var value = operand.value(message);
+      if (value == null) {
+        return UNKNOWN;
+      }
+      var result = like(value, pattern, escape) ? TRUE : FALSE;
+      return negated ? not(result) : result;
+    }
+  }
+
+  private static int not(int value) {
+    return value == UNKNOWN ? UNKNOWN : TRUE - value;
+  }
+
+  private static double toNumber(Operand operand, String value) {
+    if (operand instanceof NumberLiteral literal) {
+      return literal.number();
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      return Double.NaN;
+    }
+  }
+
+  /**
+   * SQL LIKE, {@code %} matches any run of characters and {@code _} any single character. Walks the
+   * value once, and when a {@code %} has been passed and something doesn't match, it backs up to
+   * just after the last {@code %} and tries one character further along.
+   */
+  static boolean like(String value, char[] pattern, char escape) {
+    var v = 0;
+    var p = 0;
+    var starP = -1;
+    var starV = -1;
+    while (v < value.length()) {
+      if (p < pattern.length && pattern[p] == '%') {
+        starP = ++p;
+        starV = v;
+      } else if (p < pattern.length && matchesOne(value.charAt(v), pattern, p, escape)) {
+        p += pattern[p] == escape && escape != 0 ? 2 : 1;
+        v++;
+      } else if (starP >= 0) {
+        p = starP;
+        v = ++starV;
+      } else {
+        return false;
+      }
+    }
+    while (p < pattern.length && pattern[p] == '%') {
+      p++;
+    }
+    return p == pattern.length;
+  }
+
+  private static boolean matchesOne(char c, char[] pattern, int p, char escape) {
+    if (escape != 0 && pattern[p] == escape && p + 1 < pattern.length) {
+      return pattern[p + 1] == c;
+    }
+    return pattern[p] == '_' || pattern[p] == c;
+  }
+
+  /** A recursive descent parser, one method per precedence level. */
+  private static class Parser {
+
+    private final String text;
+    private int pos;
+
+    Parser(String text) {
+      if (text == null || text.isBlank()) {
+        throw new IllegalArgumentException("The selector expression is empty.");
+      }
+      this.text = text;
+    }
+
+    // expression := and (OR and)*
+    Condition parseExpression() {
+      var condition = parseAnd();
+      while (keyword("OR")) {
+        condition = new Or(condition, parseAnd());
+      }
+      return condition;
+    }
+
+    // and := not (AND not)*
+    private Condition parseAnd() {
+      var condition = parseNot();
+      while (keyword("AND")) {
+        condition = new And(condition, parseNot());
+      }
+      return condition;
+    }
+
+    // not := NOT not | predicate
+    private Condition parseNot() {
+      if (keyword("NOT")) {
+        return new Not(parseNot());
+      }
+      return parsePredicate();
+    }
+
+    private Condition parsePredicate() {
+      if (symbol("(")) {
+        var condition = parseExpression();
+        expectSymbol(")");
+        return condition;
+      }
+      var left = parseOperand();
+      if (keyword("IS")) {
+        var negated = keyword("NOT");
+        expectKeyword("NULL");
+        return new IsNull(left, negated);
+      }
+      var start = pos;
+      var negated = keyword("NOT");
+      if (keyword("IN")) {
+        return parseIn(left, negated);
+      }
+      if (keyword("LIKE")) {
+        return parseLike(left, negated);
+      }
+      if (keyword("BETWEEN")) {
+        var low = parseNumber();
+        expectKeyword("AND");
+        var high = parseNumber();
+        return new Between(left, low, high, negated);
+      }
+      if (negated) {
+        pos = start;
+        throw error("expected IN, LIKE or BETWEEN after NOT");
+      }
+      var op = parseOp();
+      if (op == null) {
+        if (left instanceof BooleanLiteral b) {
+          return b;
+        }
+        if (left instanceof Attribute a) {
+          return new BooleanAttribute(a);
+        }
+        throw error("expected a comparison operator");
+      }
+      var right = parseOperand();
+      var numeric = left instanceof NumberLiteral || right instanceof NumberLiteral;
+      return new Comparison(left, op, right, numeric);
+    }
+
+    private Condition parseIn(Operand left, boolean negated) {
+      expectSymbol("(");
+      Set<String> values = new HashSet<>();
+      do {
+        values.add(parseString());
+      } while (symbol(","));
+      expectSymbol(")");
+      return new In(left, Set.copyOf(values), negated);
+    }
+
+    private Condition parseLike(Operand left, boolean negated) {
+      var pattern = parseString().toCharArray();
+      var escape = (char) 0;
+      if (keyword("ESCAPE")) {
+        var escapeText = parseString();
+        if (escapeText.length() != 1) {
+          throw error("the ESCAPE value must be a single character");
+        }
+        escape = escapeText.charAt(0);
+      }
+      return new Like(left, pattern, escape, negated);
+    }
+
+    private Op parseOp() {
+      skipWhitespace();
+      for (var candidate : List.of("<>", "!=", "<=", ">=", "=", "<", ">")) {
+        if (text.startsWith(candidate, pos)) {
+          pos += candidate.length();
+          return switch (candidate) {
+            case "=" -> Op.EQ;
+            case "<>", "!=" -> Op.NE;
+            case "<" -> Op.LT;
+            case "<=" -> Op.LE;
+            case ">" -> Op.GT;
+            default -> Op.GE;
+          };
+        }
+      }
+      return null;
+    }
+
+    private Operand parseOperand() {
+      skipWhitespace();
+      if (pos >= text.length()) {
+        throw error("expected a value or an attribute name");
+      }
+      var c = text.charAt(pos);
+      if (c == '\'') {
+        return new StringLiteral(parseString());
+      }
+      if (c == '-' || c == '+' || c == '.' || Character.isDigit(c)) {
+        var start = pos;
+        var number = parseNumber();
+        return new NumberLiteral(text.substring(start, pos).trim(), number);
+      }
+      var name = parseIdentifier();
+      var upper = name.toUpperCase(Locale.ROOT);
+      if (upper.equals("TRUE") || upper.equals("FALSE")) {
+        return new BooleanLiteral(upper.equals("TRUE"));
+      }
+      var systemAttribute = MessageSystemAttributeName.fromValue(name);
+      if (systemAttribute == MessageSystemAttributeName.UNKNOWN_TO_SDK_VERSION) {
+        systemAttribute = null;
+      }
+      return new Attribute(name, systemAttribute);
+    }
+
+    private double parseNumber() {
+      skipWhitespace();
+      var start = pos;
+      if (pos < text.length() && (text.charAt(pos) == '-' || text.charAt(pos) == '+')) {
+        pos++;
+      }
+      while (pos < text.length()
+          && (Character.isDigit(text.charAt(pos)) || ".eE".indexOf(text.charAt(pos)) >= 0)) {
+        pos++;
+      }
+      try {
+        return Double.parseDouble(text.substring(start, pos));
+      } catch (NumberFormatException e) {
+        pos = start;
+        throw error("expected a number");
+      }
+    }
+
+    private String parseString() {
+      skipWhitespace();
+      if (pos >= text.length() || text.charAt(pos) != '\'') {
+        throw error("expected a quoted string");
+      }
+      var sb = new StringBuilder();
+      pos++;
+      while (pos < text.length()) {
+        var c = text.charAt(pos++);
+        if (c == '\'') {
+          if (pos < text.length() && text.charAt(pos) == '\'') {
+            sb.append('\'');
+            pos++;
+          } else {
+            return sb.toString();
+          }
+        } else {
+          sb.append(c);
+        }
+      }
+      throw error("unterminated string");
+    }
+
+    private String parseIdentifier() {
+      var start = pos;
+      while (pos < text.length() && isIdentifierChar(text.charAt(pos), pos == start)) {
+        pos++;
+      }
+      if (pos == start) {
+        throw error("expected a value or an attribute name");
+      }
+      return text.substring(start, pos);
+    }
+
+    private static boolean isIdentifierChar(char c, boolean first) {
+      if (Character.isLetter(c) || c == '_' || c == '$') {
+        return true;
+      }
+      return !first && (Character.isDigit(c) || c == '.' || c == '-');
+    }
+
+    /** Consumes the keyword if it is next (as a whole word). */
+    private boolean keyword(String keyword) {
+      skipWhitespace();
+      var end = pos + keyword.length();
+      if (text.regionMatches(true, pos, keyword, 0, keyword.length())
+          && (end == text.length() || !isIdentifierChar(text.charAt(end), false))) {
+        pos = end;
+        return true;
+      }
+      return false;
+    }
+
+    private void expectKeyword(String keyword) {
+      if (!keyword(keyword)) {
+        throw error("expected " + keyword);
+      }
+    }
+
+    private boolean symbol(String symbol) {
+      skipWhitespace();
+      if (text.startsWith(symbol, pos)) {
+        pos += symbol.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void expectSymbol(String symbol) {
+      if (!symbol(symbol)) {
+        throw error("expected '" + symbol + "'");
+      }
+    }
+
+    void expectEnd() {
+      skipWhitespace();
+      if (pos < text.length()) {
+        throw error("unexpected '" + text.substring(pos) + "'");
+      }
+    }
+
+    private void skipWhitespace() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private IllegalArgumentException error(String problem) {
+      return new IllegalArgumentException(
+          "Invalid selector at position " + pos + ", " + problem + ": " + text);
+    }
+  }
+}
@@ -0,0 +1,282 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_WAIT_TIME_SECONDS;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.sqsDeleteBatch;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+
+/**
+ * A lazy {@code Stream<Message>} over the contents of an SQS, so the usual {@code do { receive }
+ * while (moreMessages)} loop can be written as a stream pipeline instead, e.g. {@code
+ * sqsStream(client, "my-sqs", StreamConfig.peek()).filter(...).map(Message::body)}. Messages are
+ * received one batch at a time as the stream is pulled, and the next batch is already being
+ * received in the background while the current one is processed. Nothing beyond the current and
+ * the next batch is held in memory. {@link SqsPayloadCodec} bodies are decoded, so filters on the
+ * body see the real payload, claim-check pointers are passed on as is.
+ *
+ * <p>IMPORTANT: close the stream (try-with-resources), that is what stops the background receives
+ * and, depending on the {@link Mode}, releases or deletes the messages.
+ */
+public class SqsMessageStream {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsMessageStream.class);
+
+  private SqsMessageStream() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /** What happens to the messages that go through the stream. */
+  public enum Mode {
+    /**
+     * Nothing is deleted. Messages are kept invisible while the stream is open (see {@link
+     * SqsVisibilityExtender}), so each one shows up once, and are all made visible again on close.
+     */
+    PEEK,
+    /**
+     * Messages handed on are deleted from the SQS, a batch at a time: when the stream moves on to
+     * the next batch, and on close. Messages received but never handed on (the stream was closed
+     * early, e.g. by limit or findFirst, or the pipeline threw on them) are made visible again on
+     * close.
+     */
+    CONSUME,
+    /**
+     * Messages are kept invisible while the stream is open, and on close every message the stream
+     * handed on is deleted. Messages received but never handed on are made visible again. The
+     * messages handed on are remembered until close, so don't use this for huge queues.
+     */
+    ACK_ON_CLOSE
+  }
+
+  /**
+   * Stream settings.
+   *
+   * @param mode See {@link Mode}.
+   * @param batchSize Messages per receive, 1 to 10.
+   * @param waitTimeSeconds Long-poll wait time for each receive (max 20).
+   * @param visibilityTimeout Seconds a received message stays hidden, renewed until it is deleted or
+   *     the stream is closed.
+   * @param emptyPollsToStop The stream ends after this many empty receives in a row.
+   * @param maxMessages The stream ends after this many messages, 0 for no limit.
+   */
+  public record StreamConfig(
+      Mode mode,
+      int batchSize,
+      int waitTimeSeconds,
+      int visibilityTimeout,
+      int emptyPollsToStop,
+      long maxMessages) {
+
+    public StreamConfig {
+      if (batchSize < 1 || batchSize > SQS_MAX_BATCH_SIZE || emptyPollsToStop < 1) {
+        throw new IllegalArgumentException(
+            "batchSize must be 1 to 10, and emptyPollsToStop at least 1.");
+      }
+    }
+
+    public static StreamConfig peek() {
+      return new StreamConfig(Mode.PEEK, SQS_MAX_BATCH_SIZE, SQS_WAIT_TIME_SECONDS, 120, 1, 0);
+    }
+
+    public static StreamConfig consume() {
+      return new StreamConfig(Mode.CONSUME, SQS_MAX_BATCH_SIZE, SQS_WAIT_TIME_SECONDS, 30, 2, 0);
+    }
+
+    public static StreamConfig ackOnClose() {
+      return new StreamConfig(
+          Mode.ACK_ON_CLOSE, SQS_MAX_BATCH_SIZE, SQS_WAIT_TIME_SECONDS, 120, 1, 0);
+    }
+
+    public StreamConfig withMaxMessages(long maxMessages) {
+      return new StreamConfig(
+          mode, batchSize, waitTimeSeconds, visibilityTimeout, emptyPollsToStop, maxMessages);
+    }
+  }
+
+  public static Stream<Message> sqsStream(
+      AwsCredentialsProvider awsCP, String queueName, StreamConfig config) {
+    return sqsStream(sqsClient(awsCP), queueName, config);
+  }
+
+  /**
+   * A lazy stream of the messages on the SQS, see the class Javadoc.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName SQS to stream.
+   * @param config Batch size, wait time, visibility timeout, when to stop and what to do with the
+   *     messages.
+   * @return A sequential stream, close it when done.
+   */
+  public static Stream<Message> sqsStream(
+      SqsClient sqsClient, String queueName, StreamConfig config) {
+    var source = new BatchSource(sqsClient, queueName, config);
+    var spliterator =
+        new Spliterators.AbstractSpliterator<Message>(
+            Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+          @Override
+          public boolean tryAdvance(Consumer<? super Message> action) {
+            var message = source.next();
+            if (message == null) {
+              return false;
+            }
+            action.accept(message);
+            // only once the pipeline took it, a message it threw on is released on close
+            source.accepted(message);
+            return true;
+          }
+        };
+    return StreamSupport.stream(spliterator, false).onClose(source::close);
+  }
+
+  /** Receives ahead, one batch at a time, and keeps track of what has to happen on close. */
+  private static class BatchSource {
+
+    private final SqsClient sqsClient;
+    private final String queueName;
+    private final StreamConfig config;
+    private final ReceiveMessageRequest receiveRequest;
+    private final SqsRateController controller;
+    private final ExecutorService prefetcher;
+    private final SqsVisibilityExtender extender;
+    private final List<Message> handedOn = new ArrayList<>(); // kept until close or deleted
+    private Future<List<Message>> nextBatch;
+    private Iterator<Message> current = List.<Message>of().iterator();
+    private long count;
+    private boolean finished;
+
+    BatchSource(SqsClient sqsClient, String queueName, StreamConfig config) {
+      this.sqsClient = sqsClient;
+      this.queueName = queueName;
+      this.config = config;
+      var queueUrl = qUrl(sqsClient, queueName);
+      this.controller = SqsRateController.forQueue(queueUrl);
+      this.receiveRequest =
+          ReceiveMessageRequest.builder()
+              .queueUrl(queueUrl)
+              .waitTimeSeconds(config.waitTimeSeconds())
+              .visibilityTimeout(config.visibilityTimeout())
+              .maxNumberOfMessages(config.batchSize())
+              .messageAttributeNames("All")
+              .attributeNames(QueueAttributeName.ALL)
+              .build();
+      this.extender = new SqsVisibilityExtender(sqsClient, queueName, config.visibilityTimeout());
+      this.prefetcher =
+          Executors.newSingleThreadExecutor(
+              r -> {
+                var t = new Thread(r, "sqs-stream-" + queueName);
+                t.setDaemon(true);
+                return t;
+              });
+      this.nextBatch = prefetcher.submit(this::receive);
+    }
+
+    /** The next message, or null when the stream is done. */
+    Message next() {
+      if (config.maxMessages() > 0 && count >= config.maxMessages()) {
+        return null;
+      }
+      while (!current.hasNext()) {
+        if (finished) {
+          return null;
+        }
+        var batch = await(nextBatch);
+        if (batch.isEmpty()) {
+          finished = true;
+          return null;
+        }
+        // start on the next batch while this one is worked on
+        nextBatch = prefetcher.submit(this::receive);
+        if (config.mode() == Mode.CONSUME) {
+          // everything in the last batch was handed on
+          deleteHandedOn();
+        }
+        current = batch.iterator();
+      }
+      count++;
+      return current.next();
+    }
+
+    /** The pipeline is done with the message, so it is deleted (unless peeking). */
+    void accepted(Message message) {
+      if (config.mode() != Mode.PEEK) {
+        handedOn.add(message);
+      }
+    }
+
+    private int deleteHandedOn() {
+      if (handedOn.isEmpty()) {
+        return 0;
+      }
+      var deleted = sqsDeleteBatch(sqsClient, queueName, handedOn);
+      extender.untrack(handedOn);
+      handedOn.clear();
+      return deleted;
+    }
+
+    /** Receives until a batch comes back, or gives up with an empty batch after the empty polls. */
+    private List<Message> receive() {
+      for (var emptyPolls = 0; emptyPolls < config.emptyPollsToStop(); emptyPolls++) {
+        var messages =
+            controller.callLongPoll(() -> sqsClient.receiveMessage(receiveRequest)).messages();
+        if (!messages.isEmpty()) {
+          extender.track(messages);
+          return SqsPayloadCodec.decode(messages);
+        }
+      }
+      return List.of();
+    }
+
+    private static List<Message> await(Future<List<Message>> batch) {
+      try {
+        return batch.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while receiving from SQS.", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException re) {
+          throw re;
+        }
+        throw new IllegalStateException("Failed to receive from SQS.", e.getCause());
+      }
+    }
+
+    void close() {
+      prefetcher.shutdown();
+      // let an in-flight receive land, so whatever it got is tracked and released below
+      try {
+        nextBatch.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        LOG.debug("The last receive on {} failed.", queueName, e);
+      }
+      var deleted = deleteHandedOn();
+      if (config.mode() == Mode.ACK_ON_CLOSE && deleted > 0) {
+        LOG.info("Acknowledged (deleted) {} messages from {}.", deleted, queueName);
+      }
+      extender.close();
+      LOG.info("Closed the {} stream over {} after {} messages.", config.mode(), queueName, count);
+    }
+  }
+}
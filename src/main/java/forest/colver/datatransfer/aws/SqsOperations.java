@@ -1,15 +1,26 @@
 package forest.colver.datatransfer.aws;
 
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
 import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
 import static forest.colver.datatransfer.aws.AwsUtils.SQS_WAIT_TIME_SECONDS;
 import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
 import static forest.colver.datatransfer.aws.AwsUtils.createSqsMessageAttributes;
-import static forest.colver.datatransfer.aws.AwsUtils.getSqsClient;
-import static forest.colver.datatransfer.aws.AwsUtils.sqsCalcVisTimeout;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.sqsDeleteBatch;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.sqsMoveBatch;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.sqsSendBatch;
 import static forest.colver.datatransfer.config.ConfigUtils.writeFile;
 
+import forest.colver.datatransfer.aws.SqsDrainEngine.DrainConfig;
+import forest.colver.datatransfer.aws.SqsFifoOperations.FifoConfig;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
@@ -17,19 +28,26 @@ import software.amazon.awssdk.services.sqs.SqsClient;
 import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
 import software.amazon.awssdk.services.sqs.model.GetQueueAttributesResponse;
-import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
 import software.amazon.awssdk.services.sqs.model.Message;
 import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.OverLimitException;
 import software.amazon.awssdk.services.sqs.model.PurgeQueueRequest;
 import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
 import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
 import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
 
-/** Contains several common SQS operations for sending and receiving data from them. */
+/**
+ * Contains several common SQS operations for sending and receiving data from them. Every operation
+ * comes in two flavors: one that takes credentials and uses the shared {@link AwsClientRegistry}
+ * SqsClient, and one that takes an SqsClient directly.
+ */
 public class SqsOperations {
 
   private static final Logger LOG = LoggerFactory.getLogger(SqsOperations.class);
+  // how long scanned messages stay hidden between renewals, see SqsVisibilityExtender
+  private static final int SCAN_VISIBILITY_TIMEOUT = 120;
 
   private SqsOperations() {
     // https://rules.sonarsource.com/java/RSPEC-1118/
@@ -38,8 +56,13 @@ public class SqsOperations {
 
   /** Overloaded method that sends in an empty Map of messages properties. */
   public static void sqsSend(AwsCredentialsProvider awsCp, String queueName, String payload) {
+    sqsSend(sqsClient(awsCp), queueName, payload);
+  }
+
+  /** Overloaded method that sends in an empty Map of messages properties. */
+  public static void sqsSend(SqsClient sqsClient, String queueName, String payload) {
     Map<String, String> messageProps = Map.of();
-    sqsSend(awsCp, queueName, payload, messageProps);
+    sqsSend(sqsClient, queueName, payload, messageProps);
   }
 
   /**
@@ -50,17 +73,27 @@ public class SqsOperations {
    * @param message A {@link software.amazon.awssdk.services.sqs.model.Message Message}.
    */
   public static void sqsSend(AwsCredentialsProvider awsCp, String queueName, Message message) {
-    try (var sqsClient = getSqsClient(awsCp)) {
-      var sendMessageRequest =
-          SendMessageRequest.builder()
-              .messageBody(message.body())
-              .messageAttributes(message.messageAttributes())
-              .queueUrl(qUrl(sqsClient, queueName))
-              .build();
-      var response = sqsClient.sendMessage(sendMessageRequest);
-      awsResponseValidation(response);
-      LOG.info("SQS_SEND: messageId={} was put on the SQS: {}.", response.messageId(), queueName);
-    }
+    sqsSend(sqsClient(awsCp), queueName, message);
+  }
+
+  /**
+   * Sends a {@link software.amazon.awssdk.services.sqs.model.Message Message} to an SQS. With
+   * {@link SqsPayloadCodec} on the body is compressed, and with {@link SqsClaimCheck} on, a message
+   * still too big for SQS goes to S3 and a pointer is sent instead. To a FIFO queue the message
+   * keeps its group and deduplication IDs, see {@link SqsFifoOperations}.
+   */
+  public static void sqsSend(SqsClient sqsClient, String queueName, Message message) {
+    var original = message;
+    message = SqsClaimCheck.offload(sqsClient, SqsPayloadCodec.encode(message));
+    var sendMessageRequest =
+        fifoIds(queueName, original, SendMessageRequest.builder())
+            .messageBody(message.body())
+            .messageAttributes(message.messageAttributes())
+            .queueUrl(qUrl(sqsClient, queueName))
+            .build();
+    var response = sqsClient.sendMessage(sendMessageRequest);
+    awsResponseValidation(response);
+    LOG.info("SQS_SEND: messageId={} was put on the SQS: {}.", response.messageId(), queueName);
   }
 
   /** Send a message using a map of message properties to the desired SQS queue. */
@@ -69,17 +102,45 @@ public class SqsOperations {
       String queueName,
       String payload,
       Map<String, String> messageProps) {
-    try (var sqsClient = getSqsClient(awsCp)) {
-      var sendMessageRequest =
-          SendMessageRequest.builder()
-              .messageBody(payload)
-              .messageAttributes(createSqsMessageAttributes(messageProps))
-              .queueUrl(qUrl(sqsClient, queueName))
-              .build();
-      var response = sqsClient.sendMessage(sendMessageRequest);
-      awsResponseValidation(response);
-      LOG.info("SQS_SEND: The payload '{}' was put on the SQS: {}.", payload, queueName);
+    sqsSend(sqsClient(awsCp), queueName, payload, messageProps);
+  }
+
+  /**
+   * Send a message using a map of message properties to the desired SQS queue. With {@link
+   * SqsPayloadCodec} on the payload is compressed, and with {@link SqsClaimCheck} on, a payload
+   * still too big for SQS goes to S3 and a pointer is sent instead.
+   */
+  public static void sqsSend(
+      SqsClient sqsClient, String queueName, String payload, Map<String, String> messageProps) {
+    var original =
+        Message.builder()
+            .body(payload)
+            .messageAttributes(createSqsMessageAttributes(messageProps))
+            .build();
+    var message = SqsClaimCheck.offload(sqsClient, SqsPayloadCodec.encode(original));
+    var sendMessageRequest =
+        fifoIds(queueName, original, SendMessageRequest.builder())
+            .messageBody(message.body())
+            .messageAttributes(message.messageAttributes())
+            .queueUrl(qUrl(sqsClient, queueName))
+            .build();
+    var response = sqsClient.sendMessage(sendMessageRequest);
+    awsResponseValidation(response);
+    LOG.info("SQS_SEND: The payload '{}' was put on the SQS: {}.", payload, queueName);
+  }
+
+  /**
+   * A FIFO queue needs a MessageGroupId and MessageDeduplicationId on every message, taken from the
+   * message before it is encoded or offloaded so the same content always dedupes the same way.
+   */
+  private static SendMessageRequest.Builder fifoIds(
+      String queueName, Message message, SendMessageRequest.Builder builder) {
+    if (SqsFifoOperations.isFifo(queueName)) {
+      builder
+          .messageGroupId(SqsFifoOperations.groupId(message))
+          .messageDeduplicationId(SqsFifoOperations.deduplicationId(message));
     }
+    return builder;
   }
 
   /**
@@ -89,10 +150,15 @@ public class SqsOperations {
    */
   public static Optional<Message> sqsConsumeOneMessage(
       AwsCredentialsProvider awsCP, String queueName) {
-    var msg = sqsReadOneMessage(awsCP, queueName);
+    return sqsConsumeOneMessage(sqsClient(awsCP), queueName);
+  }
+
+  /** This retrieves one message from the SQS queue, then deletes that message off of the SQS. */
+  public static Optional<Message> sqsConsumeOneMessage(SqsClient sqsClient, String queueName) {
+    var msg = sqsReadOneMessage(sqsClient, queueName);
     msg.ifPresent(
         m -> {
-          sqsDeleteMessage(awsCP, queueName, m);
+          sqsDeleteMessage(sqsClient, queueName, m);
           LOG.info("SQS_CONSUME: Consumed a message from SQS: {}.", queueName);
         });
     return msg;
@@ -107,26 +173,39 @@ public class SqsOperations {
    */
   public static Optional<Message> sqsReadOneMessage(
       AwsCredentialsProvider awsCP, String queueName) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      var receiveMessageRequest =
-          ReceiveMessageRequest.builder()
-              .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-              .messageAttributeNames("All")
-              .attributeNames(QueueAttributeName.ALL)
-              .queueUrl(qUrl(sqsClient, queueName))
-              .maxNumberOfMessages(1)
-              .visibilityTimeout(3) // default 30 sec
-              .build();
-      var response = sqsClient.receiveMessage(receiveMessageRequest);
-      awsResponseValidation(response);
-      if (response.messages().isEmpty()) {
-        LOG.info("SQS_READ_ONE_MESSAGE: {} has NO messages.", queueName);
-        return Optional.empty();
-      } else {
-        LOG.info("SQS_READ_ONE_MESSAGE: {} has a message.", queueName);
-        displayMessageAttributes(response);
-        return Optional.of(response.messages().get(0));
-      }
+    return sqsReadOneMessage(sqsClient(awsCP), queueName);
+  }
+
+  /**
+   * Reads one message from the SQS, and then displays the data and properties of it. A {@link
+   * SqsClaimCheck} pointer is resolved and a {@link SqsPayloadCodec} body is decoded, so the
+   * message has the real payload.
+   */
+  public static Optional<Message> sqsReadOneMessage(SqsClient sqsClient, String queueName) {
+    return sqsReceiveOneMessage(sqsClient, queueName)
+        .map(message -> SqsPayloadCodec.decode(SqsClaimCheck.resolve(sqsClient, message)));
+  }
+
+  /** Reads one message from the SQS as is, a claim-check pointer stays a pointer. */
+  private static Optional<Message> sqsReceiveOneMessage(SqsClient sqsClient, String queueName) {
+    var receiveMessageRequest =
+        ReceiveMessageRequest.builder()
+            .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
+            .messageAttributeNames("All")
+            .attributeNames(QueueAttributeName.ALL)
+            .queueUrl(qUrl(sqsClient, queueName))
+            .maxNumberOfMessages(1)
+            .visibilityTimeout(3) // default 30 sec
+            .build();
+    var response = sqsClient.receiveMessage(receiveMessageRequest);
+    awsResponseValidation(response);
+    if (response.messages().isEmpty()) {
+      LOG.info("SQS_READ_ONE_MESSAGE: {} has NO messages.", queueName);
+      return Optional.empty();
+    } else {
+      LOG.info("SQS_READ_ONE_MESSAGE: {} has a message.", queueName);
+      displayMessageAttributes(response);
+      return Optional.of(response.messages().get(0));
     }
   }
 
@@ -137,7 +216,12 @@ public class SqsOperations {
    */
   public static ReceiveMessageResponse sqsReadMessages(
       AwsCredentialsProvider awsCP, String queueName) {
-    return sqsReadMessages(awsCP, queueName, SQS_MAX_BATCH_SIZE, 0);
+    return sqsReadMessages(sqsClient(awsCP), queueName, SQS_MAX_BATCH_SIZE, 0);
+  }
+
+  /** Reads up to 10 messages from the SQS (but does not consume them). */
+  public static ReceiveMessageResponse sqsReadMessages(SqsClient sqsClient, String queueName) {
+    return sqsReadMessages(sqsClient, queueName, SQS_MAX_BATCH_SIZE, 0);
   }
 
   /**
@@ -149,25 +233,44 @@ public class SqsOperations {
       String queueName,
       int maxNumberOfMessages,
       int visibilityTimeout) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      var receiveMessageRequest =
-          ReceiveMessageRequest.builder()
-              .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-              .messageAttributeNames("All")
-              .attributeNames(QueueAttributeName.ALL)
-              .queueUrl(qUrl(sqsClient, queueName))
-              .maxNumberOfMessages(maxNumberOfMessages) // max 10
-              .visibilityTimeout(visibilityTimeout) // default 30 sec
-              .build();
-      var response = sqsClient.receiveMessage(receiveMessageRequest);
-      awsResponseValidation(response);
-      LOG.info(
-          "SQSREAD: {} has messages: {}. Read {} messages.",
-          queueName,
-          response.hasMessages(),
-          response.messages().size());
-      return response;
-    }
+    return sqsReadMessages(sqsClient(awsCP), queueName, maxNumberOfMessages, visibilityTimeout);
+  }
+
+  /**
+   * Reads one or more message from the SQS (but does not consume them). This also displays how many
+   * messages were read. {@link SqsClaimCheck} pointers are resolved and {@link SqsPayloadCodec}
+   * bodies are decoded, so the messages have the real payloads.
+   */
+  public static ReceiveMessageResponse sqsReadMessages(
+      SqsClient sqsClient, String queueName, int maxNumberOfMessages, int visibilityTimeout) {
+    var response = sqsReceiveMessages(sqsClient, queueName, maxNumberOfMessages, visibilityTimeout);
+    var messages =
+        SqsPayloadCodec.decode(SqsClaimCheck.resolve(sqsClient, response.messages()));
+    return messages == response.messages()
+        ? response
+        : response.toBuilder().messages(messages).build();
+  }
+
+  /** Reads one or more messages from the SQS as is, claim-check pointers stay pointers. */
+  private static ReceiveMessageResponse sqsReceiveMessages(
+      SqsClient sqsClient, String queueName, int maxNumberOfMessages, int visibilityTimeout) {
+    var receiveMessageRequest =
+        ReceiveMessageRequest.builder()
+            .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
+            .messageAttributeNames("All")
+            .attributeNames(QueueAttributeName.ALL)
+            .queueUrl(qUrl(sqsClient, queueName))
+            .maxNumberOfMessages(maxNumberOfMessages) // max 10
+            .visibilityTimeout(visibilityTimeout) // default 30 sec
+            .build();
+    var response = sqsClient.receiveMessage(receiveMessageRequest);
+    awsResponseValidation(response);
+    LOG.info(
+        "SQSREAD: {} has messages: {}. Read {} messages.",
+        queueName,
+        response.hasMessages(),
+        response.messages().size());
+    return response;
   }
 
   /**
@@ -180,72 +283,129 @@ public class SqsOperations {
    */
   public static void sqsDownloadMessage(
       AwsCredentialsProvider awsCP, String queueName, String fullyQualifiedFilename) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      var receiveMessageRequest =
-          ReceiveMessageRequest.builder()
-              .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-              .queueUrl(qUrl(sqsClient, queueName))
-              .maxNumberOfMessages(1)
-              .visibilityTimeout(0) // default 30 sec
-              .build();
-      var response = sqsClient.receiveMessage(receiveMessageRequest);
-      awsResponseValidation(response);
-      LOG.info("SQS_DOWNLOAD: Read message from {}.", queueName);
-      writeFile(fullyQualifiedFilename, response.messages().get(0).body().getBytes());
-    }
+    sqsDownloadMessage(sqsClient(awsCP), queueName, fullyQualifiedFilename);
+  }
+
+  /**
+   * Download a message from an SQS and save the body to disk. A {@link SqsClaimCheck} payload is
+   * streamed from S3, and a {@link SqsPayloadCodec} body is decoded first.
+   */
+  public static void sqsDownloadMessage(
+      SqsClient sqsClient, String queueName, String fullyQualifiedFilename) {
+    var receiveMessageRequest =
+        ReceiveMessageRequest.builder()
+            .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
+            .messageAttributeNames("All")
+            .queueUrl(qUrl(sqsClient, queueName))
+            .maxNumberOfMessages(1)
+            .visibilityTimeout(0) // default 30 sec
+            .build();
+    var response = sqsClient.receiveMessage(receiveMessageRequest);
+    awsResponseValidation(response);
+    LOG.info("SQS_DOWNLOAD: Read message from {}.", queueName);
+    var message = response.messages().get(0);
+    // a claim-check payload is streamed straight from S3 to the file
+    SqsClaimCheck.openPayload(sqsClient, message)
+        .ifPresentOrElse(
+            payload -> writeFile(fullyQualifiedFilename, payload),
+            () ->
+                writeFile(
+                    fullyQualifiedFilename,
+                    SqsPayloadCodec.decode(message).body().getBytes(StandardCharsets.UTF_8)));
   }
 
   /** Clears an SQS, using Purge, which can only happen once every 60 sec on an SQS. */
   public static void sqsPurge(AwsCredentialsProvider awsCP, String queueName) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      var purgeQueueRequest =
-          PurgeQueueRequest.builder().queueUrl(qUrl(sqsClient, queueName)).build();
-      var response = sqsClient.purgeQueue(purgeQueueRequest);
-      awsResponseValidation(response);
-      LOG.info("SQS_PURGE: The SQS {} has been purged.", queueName);
-    }
+    sqsPurge(sqsClient(awsCP), queueName);
+  }
+
+  /** Clears an SQS, using Purge, which can only happen once every 60 sec on an SQS. */
+  public static void sqsPurge(SqsClient sqsClient, String queueName) {
+    var purgeQueueRequest = PurgeQueueRequest.builder().queueUrl(qUrl(sqsClient, queueName)).build();
+    var response = sqsClient.purgeQueue(purgeQueueRequest);
+    awsResponseValidation(response);
+    LOG.info("SQS_PURGE: The SQS {} has been purged.", queueName);
   }
 
   /**
-   * Clears an SQS if it has less than 200 messages, by consuming them. This exists because an SQS
-   * purge can only happen once every 60 sec, and this provides a way to do it more often than that.
-   * If the depth is greater than 200, using the sqsPurge() method is probably better.
+   * Clears an SQS by consuming every message on it. This exists because an SQS purge can only
+   * happen once every 60 sec, and this provides a way to do it more often than that. It used to be
+   * limited to queues with less than 200 messages since it deleted one batch at a time, it now runs
+   * on the {@link SqsDrainEngine} so there is no limit, see {@link
+   * #sqsClearAll(AwsCredentialsProvider, String, Predicate, DrainConfig)}.
    */
   public static void sqsClear(AwsCredentialsProvider awsCP, String queueName) {
-    var depth = sqsDepth(awsCP, queueName);
-    var depthLimit = 200; // the amount is arbitrary, I just picked it as the limit
-    var counter = 0;
-    if (depth < depthLimit) {
-      var moreMessages = true;
-      try (var sqsClient = getSqsClient(awsCP)) {
-        do {
-          var receiveMessageRequest =
-              ReceiveMessageRequest.builder()
-                  .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-                  .queueUrl(qUrl(sqsClient, queueName))
-                  .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
-                  .build();
-          var response = sqsClient.receiveMessage(receiveMessageRequest);
-          if (response.messages().isEmpty()) {
-            moreMessages = false;
-          } else {
-            for (var message : response.messages()) {
-              sqsDeleteMessage(sqsClient, queueName, message);
-              counter++;
-            }
-          }
-        } while (moreMessages);
-      }
-    } else { // depthLimit has been reached, it will take too long to consume messages one by one
-      LOG.info(
-          "=======Queue {} has {} messages, which is greater than the set limit {}. You should probably just use sqsPurge() instead.=======",
-          queueName,
-          depth,
-          depthLimit);
-    }
+    sqsClear(sqsClient(awsCP), queueName);
+  }
+
+  /** Clears an SQS by consuming every message on it. */
+  public static void sqsClear(SqsClient sqsClient, String queueName) {
+    var counter = sqsClearAll(sqsClient, queueName, message -> true, DrainConfig.defaults());
     LOG.info("SQS_CLEAR: The SQS {} has been cleared of {} messages.", queueName, counter);
   }
 
+  /**
+   * Deletes every message on the SQS that the filter matches, as fast as the queue allows: several
+   * receivers long-polling and several workers batch deleting (see {@link SqsDrainEngine}). Use
+   * message -> true to clear the whole queue, or e.g. {@link SqsMessageSelector#compile(String)} or
+   * a payload check to clear only some of it. The filter sees bodies decoded (see {@link
+   * SqsPayloadCodec}), but claim-check pointers are not fetched from S3.
+   *
+   * <p>Messages the filter doesn't match are kept invisible (see {@link SqsVisibilityExtender})
+   * until the whole queue has been gone through, so they are only looked at once, and then made
+   * visible again. That means a filtered clear is bound by the SQS in-flight limit (about 120k
+   * messages kept), a full clear is not. Progress is logged as the workers go.
+   *
+   * @param awsCP Credentials.
+   * @param queueName SQS to clear.
+   * @param filter Which messages to delete.
+   * @param config Concurrency settings, see {@link DrainConfig}.
+   * @return The number of messages deleted.
+   */
+  public static long sqsClearAll(
+      AwsCredentialsProvider awsCP,
+      String queueName,
+      Predicate<Message> filter,
+      DrainConfig config) {
+    return sqsClearAll(sqsClient(awsCP), queueName, filter, config);
+  }
+
+  /** Deletes the messages the filter matches. See the AwsCredentialsProvider version. */
+  public static long sqsClearAll(
+      SqsClient sqsClient, String queueName, Predicate<Message> filter, DrainConfig config) {
+    var received = new AtomicLong();
+    long deleted;
+    try (var extender =
+        new SqsVisibilityExtender(sqsClient, queueName, config.visibilityTimeout())) {
+      deleted =
+          SqsDrainEngine.sqsDrain(
+              sqsClient,
+              queueName,
+              config,
+              messages -> {
+                extender.checkForLapses();
+                received.addAndGet(messages.size());
+                var selected = new ArrayList<Message>(messages.size());
+                var kept = new ArrayList<Message>();
+                for (var message : messages) {
+                  if (filter.test(SqsPayloadCodec.decode(message))) {
+                    selected.add(message);
+                  } else {
+                    kept.add(message);
+                  }
+                }
+                extender.track(kept);
+                return sqsDeleteBatch(sqsClient, queueName, selected);
+              });
+    }
+    LOG.info(
+        "SQS_CLEAR: Deleted {} of the {} messages received from {}.",
+        deleted,
+        received.get(),
+        queueName);
+    return deleted;
+  }
+
   /** Displays the data and message properties of SQS messages. */
   public static void displayMessageAttributes(ReceiveMessageResponse response) {
     for (Message message : response.messages()) {
@@ -264,23 +424,27 @@ public class SqsOperations {
   /** Gets the attributes from the SQS. */
   public static GetQueueAttributesResponse sqsGetQueueAttributes(
       AwsCredentialsProvider awsCP, String queueName) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      var getQueueAttributesRequest =
-          GetQueueAttributesRequest.builder()
-              .queueUrl(qUrl(sqsClient, queueName))
-              .attributeNamesWithStrings("All")
-              .build();
-      var response = sqsClient.getQueueAttributes(getQueueAttributesRequest);
-      awsResponseValidation(response);
-      if (response.hasAttributes()) {
-        for (Map.Entry<String, String> entry : response.attributesAsStrings().entrySet()) {
-          LOG.info("Queue Attribute {} = {}", entry.getKey(), entry.getValue());
-        }
-      } else {
-        LOG.info("SQS queue attributes is null.");
+    return sqsGetQueueAttributes(sqsClient(awsCP), queueName);
+  }
+
+  /** Gets the attributes from the SQS. */
+  public static GetQueueAttributesResponse sqsGetQueueAttributes(
+      SqsClient sqsClient, String queueName) {
+    var getQueueAttributesRequest =
+        GetQueueAttributesRequest.builder()
+            .queueUrl(qUrl(sqsClient, queueName))
+            .attributeNamesWithStrings("All")
+            .build();
+    var response = sqsClient.getQueueAttributes(getQueueAttributesRequest);
+    awsResponseValidation(response);
+    if (response.hasAttributes()) {
+      for (Map.Entry<String, String> entry : response.attributesAsStrings().entrySet()) {
+        LOG.info("Queue Attribute {} = {}", entry.getKey(), entry.getValue());
       }
-      return response;
+    } else {
+      LOG.info("SQS queue attributes is null.");
     }
+    return response;
   }
 
   /**
@@ -295,7 +459,21 @@ public class SqsOperations {
    * @return Number of messages in the SQS.
    */
   public static int sqsDepth(AwsCredentialsProvider awsCP, String queueName) {
-    var response = sqsGetQueueAttributes(awsCP, queueName);
+    return sqsDepth(sqsClient(awsCP), queueName);
+  }
+
+  /**
+   * An attempt to measure queue depth--the number of messages in the queue. Only the one attribute
+   * is asked for. To keep an eye on a lot of queues use {@link SqsQueueMonitor} instead.
+   */
+  public static int sqsDepth(SqsClient sqsClient, String queueName) {
+    var request =
+        GetQueueAttributesRequest.builder()
+            .queueUrl(qUrl(sqsClient, queueName))
+            .attributeNames(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+            .build();
+    var response = sqsClient.getQueueAttributes(request);
+    awsResponseValidation(response);
     var numMsgs = 0;
     if (response.hasAttributes()) {
       numMsgs =
@@ -304,147 +482,180 @@ public class SqsOperations {
     } else {
       LOG.error("SQS queue attributes is null.");
     }
+    LOG.debug("Queue {} has a depth of {}.", queueName, numMsgs);
     return numMsgs;
   }
 
-  /** Goes and gets the queueUrl so that queue can be accessed for operations. */
+  /**
+   * Gets the queueUrl so that queue can be accessed for operations. The lookup is cached (see
+   * {@link SqsQueueUrlCache}), so it is cheap to call this for every request.
+   */
   public static String qUrl(SqsClient sqsClient, String queueName) {
-    return sqsClient
-        .getQueueUrl(GetQueueUrlRequest.builder().queueName(queueName).build())
-        .queueUrl();
+    return SqsQueueUrlCache.queueUrl(sqsClient, queueName);
   }
 
   /**
-   * Deletes a list of messages from the given SQS. Creates an SqsClient for the batch.
+   * Deletes a list of messages from the given SQS. Uses the shared SqsClient for the batch.
    *
    * @param response ReceiveMessageResponse which contains the list of messages to be deleted.
    */
   public static void sqsDeleteMessages(
       AwsCredentialsProvider awsCP, String queueName, ReceiveMessageResponse response) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      sqsDeleteMessages(sqsClient, queueName, response);
-    }
+    sqsDeleteMessages(sqsClient(awsCP), queueName, response);
   }
 
   /**
-   * Deletes a list of messages from the given SQS using an existing SqsClient.
+   * Deletes a list of messages from the given SQS using an existing SqsClient. The messages are
+   * deleted with DeleteMessageBatch, see {@link SqsBatchOperations}.
    *
    * @param response ReceiveMessageResponse which contains the list of messages to be deleted.
    */
   public static void sqsDeleteMessages(
       SqsClient sqsClient, String queueName, ReceiveMessageResponse response) {
-    var count = 0;
-    for (Message message : response.messages()) {
-      sqsDeleteMessage(sqsClient, queueName, message);
-      count++;
-    }
+    var count = sqsDeleteBatch(sqsClient, queueName, response.messages());
     LOG.info("DELETED {} message(s).", count);
   }
 
-  /** Deletes a message from the SQS. Creates an SqsClient for one-off deletes. */
+  /** Deletes a message from the SQS. Uses the shared SqsClient for one-off deletes. */
   public static void sqsDeleteMessage(
       AwsCredentialsProvider awsCP, String queueName, Message message) {
-    try (var sqsClient = getSqsClient(awsCP)) {
-      sqsDeleteMessage(sqsClient, queueName, message);
-    }
+    sqsDeleteMessage(sqsClient(awsCP), queueName, message);
   }
 
-  /** Deletes a message from the SQS using an existing SqsClient. */
+  /**
+   * Deletes a message from the SQS using an existing SqsClient. See {@link SqsClaimCheck} for when
+   * this also deletes the message's payload from S3.
+   */
   public static void sqsDeleteMessage(SqsClient sqsClient, String queueName, Message message) {
+    sqsDeleteMessage(sqsClient, queueName, message, true);
+  }
+
+  /** Deletes a message, leaving its claim-check payload alone when deletePayload is false. */
+  private static void sqsDeleteMessage(
+      SqsClient sqsClient, String queueName, Message message, boolean deletePayload) {
     var deleteMessageRequest =
         DeleteMessageRequest.builder()
             .queueUrl(qUrl(sqsClient, queueName))
-            .receiptHandle(message.receiptHandle())
+            .receiptHandle(SqsClaimCheck.sqsReceiptHandle(message.receiptHandle()))
             .build();
     var deleteResponse = sqsClient.deleteMessage(deleteMessageRequest);
     awsResponseValidation(deleteResponse);
+    if (deletePayload) {
+      SqsClaimCheck.onDeleted(sqsClient, List.of(message));
+    }
     LOG.info("DELETED: From {} message {}.", queueName, message);
   }
 
   /** Copy a message from one SQS queue to another. */
   public static void sqsCopy(AwsCredentialsProvider awsCP, String fromSqs, String toSqs) {
-    var response = sqsReadMessages(awsCP, fromSqs);
-    for (Message message : response.messages()) {
-      sqsSend(awsCP, toSqs, message.body());
+    sqsCopy(sqsClient(awsCP), fromSqs, toSqs);
+  }
+
+  /**
+   * Copy a message from one SQS queue to another. A {@link SqsClaimCheck} pointer message gets its
+   * own copy of the payload (copied inside S3), and it and {@link SqsPayloadCodec} encoded messages
+   * are sent with their message attributes.
+   */
+  public static void sqsCopy(SqsClient sqsClient, String fromSqs, String toSqs) {
+    var messages = sqsReceiveMessages(sqsClient, fromSqs, SQS_MAX_BATCH_SIZE, 0).messages();
+    var copies = SqsClaimCheck.copyPayloads(sqsClient, messages);
+    var sent = new ArrayList<Message>(copies.size());
+    try {
+      for (Message message : copies) {
+        if (hasPayloadMarker(message)) {
+          sqsSend(sqsClient, toSqs, message);
+        } else {
+          sqsSend(sqsClient, toSqs, message.body());
+        }
+        sent.add(message);
+      }
+    } finally {
+      SqsClaimCheck.deleteUnsentCopies(sqsClient, messages, copies, sent);
     }
   }
 
+  /**
+   * True if the body only makes sense together with a message attribute (claim-check pointer or
+   * encoded body), so the message has to be sent on with its message attributes. A message off a
+   * FIFO queue is sent on as is too, so it keeps its group and deduplication IDs.
+   */
+  private static boolean hasPayloadMarker(Message message) {
+    return SqsClaimCheck.isPointer(message)
+        || SqsPayloadCodec.isEncoded(message)
+        || message.attributes().containsKey(MessageSystemAttributeName.MESSAGE_GROUP_ID);
+  }
+
   /** Move a message from one SQS queue to another. */
   public static void sqsMove(AwsCredentialsProvider awsCP, String fromSqs, String toSqs) {
-    sqsConsumeOneMessage(awsCP, fromSqs)
+    sqsMove(sqsClient(awsCP), fromSqs, toSqs);
+  }
+
+  /**
+   * Move a message from one SQS queue to another. {@link SqsClaimCheck} pointer messages (the
+   * payload stays where it is in S3) and {@link SqsPayloadCodec} encoded messages are moved as is.
+   */
+  public static void sqsMove(SqsClient sqsClient, String fromSqs, String toSqs) {
+    sqsReceiveOneMessage(sqsClient, fromSqs)
         .ifPresentOrElse(
             message -> {
-              sqsSend(awsCP, toSqs, message.body(), message.attributesAsStrings());
+              if (hasPayloadMarker(message)) {
+                sqsSend(sqsClient, toSqs, message);
+              } else {
+                sqsSend(sqsClient, toSqs, message.body(), message.attributesAsStrings());
+              }
+              // the payload goes with the pointer
+              sqsDeleteMessage(sqsClient, fromSqs, message, false);
               LOG.info("Moved message from {} to {}", fromSqs, toSqs);
             },
             () -> LOG.warn("No message to move from {}", fromSqs));
   }
 
   /**
-   * Copy all messages from one SQS to another. The challenge here is if the queue is too deep,
-   * messages that were copied early will become available on the queue before the copyAll process
-   * is complete, and then those messages will get copied again. So this code employs this strategy:
-   * 1) Check the queue depth, if it is deeper than 1000 messages, abort. 2) Calculate a visibility
-   * timeout, one second per message currently on the SQS. 3) Retrieve each message from the SQS
-   * setting the visibility timeout. 4) Copy the message to the other SQS. IMPORTANT: if this method
-   * is going to be used on actual prod data, under certain circumstances, the data could be
-   * "timed-out" and unavailable for some time--just make sure you know what you are doing and have
-   * thought through the implications.
+   * Copy all messages from one SQS to another. The challenge here is if the queue is deep, messages
+   * that were copied early will become available on the queue before the copyAll process is
+   * complete, and then those messages will get copied again. So this code employs this strategy: 1)
+   * Retrieve each message from the SQS, and keep it invisible with a {@link SqsVisibilityExtender}
+   * for as long as the copy is running. 2) Copy the messages to the other SQS (batch sends). 3)
+   * Once the source SQS comes back empty, every message has been copied, and they are all made
+   * visible again. A message that becomes visible again during the copy anyway is recognized by its
+   * ID and not copied twice. There used to be a depth cap here because of the single upfront
+   * visibility timeout, that is gone, but the SQS in-flight limit (about 120k messages) still
+   * applies. IMPORTANT: if this method is going to be used on actual prod data, the messages on the
+   * source SQS are unavailable while the copy runs--just make sure you know what you are doing and
+   * have thought through the implications.
    *
    * @param awsCP Credentials.
    * @param fromSqs Source SQS.
    * @param toSqs Destination SQS.
+   * @return The number of messages copied.
    */
   public static int sqsCopyAll(AwsCredentialsProvider awsCP, String fromSqs, String toSqs) {
-    // check the queue depth, if it is beyond a certain size, abort
-    var depth = sqsDepth(awsCP, fromSqs);
-    var maxDepth = 1000; // This could probably go as high as 40k
-    var counter = 0;
-    if (depth < maxDepth) {
-      // calculate a visibility timeout, probably 1 sec per message in the sqs
-      var visibilityTimeout = 10 + (depth); // max is 12 hours or 43,200 seconds
-      var moreMessages = true;
-      try (var sqsClient = getSqsClient(awsCP)) {
-        do {
-          // receive 10 messages, setting the visibility timeout
-          var receiveMessageRequest =
-              ReceiveMessageRequest.builder()
-                  .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-                  .messageAttributeNames("All")
-                  .attributeNames(QueueAttributeName.ALL)
-                  .queueUrl(qUrl(sqsClient, fromSqs))
-                  .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
-                  .visibilityTimeout(visibilityTimeout) // default 30 sec
-                  .build();
-          var response = sqsClient.receiveMessage(receiveMessageRequest);
-          if (!response.messages().isEmpty()) {
-            for (var message : response.messages()) {
-              // copy to other queue
-              counter++;
-              var sendMessageRequest =
-                  SendMessageRequest.builder()
-                      .messageBody(message.body())
-                      .messageAttributes(message.messageAttributes())
-                      .queueUrl(qUrl(sqsClient, toSqs))
-                      .build();
-              sqsClient.sendMessage(sendMessageRequest);
-              LOG.info("Copied message #{}", counter);
-            }
-          } else {
-            moreMessages = false;
-          }
-        } while (moreMessages);
-      }
-      // display summary: num messages checked, num messages moved
-      LOG.info("Copied {} messages", counter);
-    } else {
-      counter = -1;
-      LOG.info(
-          "Queue {} is too deep ({}), for an SQS copy all, max depth is currently {}.",
-          fromSqs,
-          depth,
-          maxDepth);
+    return sqsCopyAll(sqsClient(awsCP), fromSqs, toSqs);
+  }
+
+  /**
+   * Copy all messages from one SQS to another. See the AwsCredentialsProvider version. A FIFO
+   * source can't be kept hidden while it is copied, so it goes to {@link
+   * SqsFifoOperations#sqsFifoCopy} instead.
+   */
+  public static int sqsCopyAll(SqsClient sqsClient, String fromSqs, String toSqs) {
+    if (SqsFifoOperations.isFifo(fromSqs)) {
+      return (int)
+          SqsFifoOperations.sqsFifoCopy(sqsClient, fromSqs, toSqs, FifoConfig.defaults());
     }
+    var counter =
+        sqsScan(
+            sqsClient,
+            fromSqs,
+            message -> true,
+            messages -> {
+              var copies = SqsClaimCheck.copyPayloads(sqsClient, messages);
+              var sent = sqsSendBatch(sqsClient, toSqs, copies);
+              SqsClaimCheck.deleteUnsentCopies(sqsClient, messages, copies, sent);
+              return sent.size();
+            },
+            false);
+    LOG.info("Copied {} messages", counter);
     return counter;
   }
 
@@ -456,63 +667,64 @@ public class SqsOperations {
    * @param toSqs target SQS
    */
   public static void sqsMoveAllVerbose(AwsCredentialsProvider awsCP, String fromSqs, String toSqs) {
+    sqsMoveAllVerbose(sqsClient(awsCP), fromSqs, toSqs);
+  }
+
+  /** Moves all messages from one SQS to another. This method is slow and verbose. */
+  public static void sqsMoveAllVerbose(SqsClient sqsClient, String fromSqs, String toSqs) {
     var counter = 0;
-    var message = sqsConsumeOneMessage(awsCP, fromSqs);
+    var message = sqsConsumeOneMessage(sqsClient, fromSqs);
     while (message.isPresent()) {
       counter++;
       var m = message.get();
-      sqsSend(awsCP, toSqs, m.body(), m.attributesAsStrings());
+      sqsSend(sqsClient, toSqs, m.body(), m.attributesAsStrings());
       LOG.info("Moved message #{} from SQS={} to SQS={}", counter, fromSqs, toSqs);
-      message = sqsConsumeOneMessage(awsCP, fromSqs);
+      message = sqsConsumeOneMessage(sqsClient, fromSqs);
     }
     LOG.info("Moved {} messages.", counter);
   }
 
   /**
    * Move all messages from one SQS to another, with less log verbosity. I was also attempting to
-   * make this method faster, but it is only about twice as fast as {@link
-   * #sqsMoveAllVerbose(AwsCredentialsProvider, String, String) sqsMoveAllVerbose}.
+   * make this method faster, but the single threaded receive, send, delete loop was only about
+   * twice as fast as {@link #sqsMoveAllVerbose(AwsCredentialsProvider, String, String)
+   * sqsMoveAllVerbose}. It now runs on the {@link SqsDrainEngine}: several receivers long-polling
+   * the source SQS, and several workers batch sending and batch deleting.
    */
   public static void sqsMoveAll(AwsCredentialsProvider awsCP, String fromSqs, String toSqs) {
-    var counter = 0;
-    var moreMessages = true;
-    try (var sqsClient = getSqsClient(awsCP)) {
-      do {
-        // receive
-        var receiveMessageRequest =
-            ReceiveMessageRequest.builder()
-                .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-                .messageAttributeNames("All")
-                .attributeNames(QueueAttributeName.ALL)
-                .queueUrl(qUrl(sqsClient, fromSqs))
-                .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
-                .visibilityTimeout(3) // default 30 sec
-                .build();
-        var response = sqsClient.receiveMessage(receiveMessageRequest);
-        // send
-        if (!response.messages().isEmpty()) {
-          for (var message : response.messages()) {
-            sqsMoveMessage(sqsClient, fromSqs, toSqs, message);
-            counter++;
-            LOG.info("Moved message #{}", counter);
-          }
-        } else {
-          moreMessages = false;
-        }
-      } while (moreMessages);
-    }
+    sqsMoveAll(sqsClient(awsCP), fromSqs, toSqs);
+  }
+
+  /** Move all messages from one SQS to another, with less log verbosity. */
+  public static void sqsMoveAll(SqsClient sqsClient, String fromSqs, String toSqs) {
+    sqsMoveAll(sqsClient, fromSqs, toSqs, DrainConfig.defaults());
+  }
+
+  /**
+   * Move all messages from one SQS to another, with control over how many threads do the work. For
+   * big backlogs (100k+ messages) bump up the receivers and workers.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param fromSqs Source SQS.
+   * @param toSqs Target SQS.
+   * @param config Concurrency settings, see {@link DrainConfig}.
+   * @return The exact number of messages moved.
+   */
+  public static long sqsMoveAll(
+      SqsClient sqsClient, String fromSqs, String toSqs, DrainConfig config) {
+    var counter = SqsDrainEngine.sqsDrainMove(sqsClient, fromSqs, toSqs, config);
     LOG.info("Moved {} messages.", counter);
+    return counter;
   }
 
   /**
    * Pseudo SQS Selector. Find messages on an SQS with a certain attribute and move it to another
-   * SQS. 1) Retrieve a message, using an appropriate visibility timeout. 2) Identify if the message
-   * has the specific attribute that meets the criteria you are interested in. 3a) If it does, move
-   * the message and delete it from the SQS. 3b) If it does not, ignore it, and it will become
-   * available again after the visibility timeout is over. If the queue is too deep this strategy
-   * will not work as the entire queue must be iterated through before the visibility timeout is
-   * over, making messages already checked available again. SQS Visibility Timeout: Default= 30
-   * seconds, Max= 43,200 seconds (12 hours).
+   * SQS. 1) Retrieve messages, keeping every message looked at invisible until the whole queue has
+   * been scanned (see {@link SqsVisibilityExtender}). 2) Identify if the message has the specific
+   * attribute that meets the criteria you are interested in. 3a) If it does, move the message and
+   * delete it from the SQS. 3b) If it does not, ignore it, and it is made visible again once the
+   * scan is done. Because the visibility timeout is renewed while the scan runs, there is no depth
+   * limit anymore (other than the SQS in-flight limit of about 120k messages).
    */
   public static int sqsMoveMessagesWithSelectedAttribute(
       AwsCredentialsProvider awsCP,
@@ -520,47 +732,22 @@ public class SqsOperations {
       String selectKey,
       String selectValue,
       String toSqs) {
-    // check queue depth, if it is too deep just stop
-    var depth = sqsDepth(awsCP, fromSqs);
-    var maxDepth =
-        100; // This could probably go as high as 40k, or 50k if the vt calculation is changed
-    var counter = 0;
-    if (depth < maxDepth) {
-      // from queue depth calculate visibility timeout
-      var visibilityTimeout = sqsCalcVisTimeout(depth);
-      var moreMessages = true;
-      try (var sqsClient = getSqsClient(awsCP)) {
-        do {
-          // receive 10 messages
-          var receiveMessageRequest =
-              ReceiveMessageRequest.builder()
-                  .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-                  .messageAttributeNames("All")
-                  .attributeNames(QueueAttributeName.ALL)
-                  .queueUrl(qUrl(sqsClient, fromSqs))
-                  .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
-                  .visibilityTimeout(visibilityTimeout) // default 30 sec
-                  .build();
-          var response = sqsClient.receiveMessage(receiveMessageRequest);
-          if (response.hasMessages()) {
-            counter =
-                movingMessagesWithSpecificAttribute(
-                    fromSqs, selectKey, selectValue, toSqs, response, sqsClient, counter);
-          } else {
-            moreMessages = false;
-          }
-        } while (moreMessages);
-      }
-      // display summary: num messages checked, num messages moved
-      LOG.info("Moved {} messages matching Key={} and Value={}", counter, selectKey, selectValue);
-    } else {
-      counter = -1;
-      LOG.info(
-          "Queue {} is too deep ({}), for selective message moving, max depth is currently {}.",
-          fromSqs,
-          depth,
-          maxDepth);
-    }
+    return sqsMoveMessagesWithSelectedAttribute(
+        sqsClient(awsCP), fromSqs, selectKey, selectValue, toSqs);
+  }
+
+  /** Pseudo SQS Selector. See the AwsCredentialsProvider version. */
+  public static int sqsMoveMessagesWithSelectedAttribute(
+      SqsClient sqsClient, String fromSqs, String selectKey, String selectValue, String toSqs) {
+    var counter =
+        sqsScan(
+            sqsClient,
+            fromSqs,
+            message -> hasSelectedAttribute(message, selectKey, selectValue),
+            messages -> sqsMoveBatch(sqsClient, fromSqs, toSqs, messages),
+            true);
+    // display summary: num messages moved
+    LOG.info("Moved {} messages matching Key={} and Value={}", counter, selectKey, selectValue);
     return counter;
   }
 
@@ -568,193 +755,284 @@ public class SqsOperations {
    * An extracted method that helps sqsMoveMessagesWithSelectedAttribute() to satisfy Sonarqube
    * complaining about Cognitive Complexity.
    */
-  private static int movingMessagesWithSpecificAttribute(
-      String fromSqs,
-      String selectKey,
-      String selectValue,
-      String toSqs,
-      ReceiveMessageResponse response,
-      SqsClient sqsClient,
-      int counter) {
-    for (var message : response.messages()) {
-      // check each one for selector stuff
-      if (message.hasAttributes()) {
-        if (message.messageAttributes().get(selectKey) != null) {
-          if (message.messageAttributes().get(selectKey).stringValue().equals(selectValue)) {
-            sqsMoveMessage(sqsClient, fromSqs, toSqs, message);
-            counter++;
-            LOG.info("Moved message #{}", counter);
-          } else {
-            LOG.info("This message doesn't have any matching attributes, bypassing it.");
-          }
+  private static boolean hasSelectedAttribute(
+      Message message, String selectKey, String selectValue) {
+    // check each one for selector stuff
+    if (message.hasAttributes()) {
+      if (message.messageAttributes().get(selectKey) != null) {
+        if (message.messageAttributes().get(selectKey).stringValue().equals(selectValue)) {
+          return true;
         } else {
-          LOG.info("Message does not have desired attribute key, bypassing it.");
+          LOG.info("This message doesn't have any matching attributes, bypassing it.");
         }
       } else {
-        LOG.info("Message does not have any attributes, bypassing it.");
+        LOG.info("Message does not have desired attribute key, bypassing it.");
       }
+    } else {
+      LOG.info("Message does not have any attributes, bypassing it.");
     }
+    return false;
+  }
+
+  /**
+   * SQS Selector. Moves the messages matching a JMS-style selector expression to another SQS, e.g.
+   * {@code "source = 'sftp' AND ApproximateReceiveCount > 3"}, see {@link SqsMessageSelector} for
+   * what an expression can do. The expression is checked before anything is received, and the queue
+   * is scanned in one pass the same way as {@link
+   * #sqsMoveMessagesWithSelectedAttribute(AwsCredentialsProvider, String, String, String, String)
+   * sqsMoveMessagesWithSelectedAttribute}.
+   *
+   * @throws IllegalArgumentException When the selector is not a valid expression.
+   */
+  public static int sqsMoveMessagesWithSelector(
+      AwsCredentialsProvider awsCP, String fromSqs, String selector, String toSqs) {
+    return sqsMoveMessagesWithSelector(sqsClient(awsCP), fromSqs, selector, toSqs);
+  }
+
+  public static int sqsMoveMessagesWithSelector(
+      SqsClient sqsClient, String fromSqs, String selector, String toSqs) {
+    var compiled = SqsMessageSelector.compile(selector);
+    var counter =
+        sqsScan(
+            sqsClient,
+            fromSqs,
+            compiled,
+            messages -> sqsMoveBatch(sqsClient, fromSqs, toSqs, messages),
+            true);
+    LOG.info("Moved {} messages matching: {}", counter, selector);
+    return counter;
+  }
+
+  /** Deletes the messages matching a selector expression, see sqsMoveMessagesWithSelector. */
+  public static int sqsDeleteMessagesWithSelector(
+      AwsCredentialsProvider awsCP, String sqs, String selector) {
+    return sqsDeleteMessagesWithSelector(sqsClient(awsCP), sqs, selector);
+  }
+
+  public static int sqsDeleteMessagesWithSelector(
+      SqsClient sqsClient, String sqs, String selector) {
+    var compiled = SqsMessageSelector.compile(selector);
+    var counter =
+        sqsScan(
+            sqsClient, sqs, compiled, messages -> sqsDeleteBatch(sqsClient, sqs, messages), true);
+    LOG.info("Deleted {} messages matching: {}", counter, selector);
     return counter;
   }
 
+  /**
+   * Moves the messages whose payload contains payloadLike to another SQS. Scans the whole queue in
+   * one pass, the same way as {@link #sqsMoveMessagesWithSelectedAttribute(AwsCredentialsProvider,
+   * String, String, String, String) sqsMoveMessagesWithSelectedAttribute}.
+   */
   public static int sqsMoveMessagesWithPayloadLike(
       AwsCredentialsProvider awsCP, String fromSqs, String payloadLike, String toSqs) {
-    // check queue depth, if it is too deep just stop
-    var depth = sqsDepth(awsCP, fromSqs);
-    var maxDepth = 500; // This could probably go as high as 40k
-    var counter = 0;
-    if (depth < maxDepth) {
-      // from queue depth calculate visibility timeout in seconds
-      var visibilityTimeout = sqsCalcVisTimeout(depth);
-      var moreMessages = true;
-      try (var sqsClient = getSqsClient(awsCP)) {
-        do {
-          // receive 10 messages
-          var receiveMessageRequest =
-              ReceiveMessageRequest.builder()
-                  .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-                  .messageAttributeNames("All")
-                  .attributeNames(QueueAttributeName.ALL)
-                  .queueUrl(qUrl(sqsClient, fromSqs))
-                  .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
-                  .visibilityTimeout(visibilityTimeout) // default 30 sec
-                  .build();
-          var response = sqsClient.receiveMessage(receiveMessageRequest);
-          if (response.hasMessages()) {
-            counter =
-                movingMessagesWithSpecificPayload(
-                    fromSqs, payloadLike, toSqs, response, sqsClient, counter);
-          } else {
-            moreMessages = false;
-          }
-        } while (moreMessages);
-      }
-      // display summary: num messages checked, num messages moved
-      LOG.info("Moved {} messages with payload containing: {}", counter, payloadLike);
-    } else {
-      counter = -1;
-      LOG.info(
-          "Queue {} is too deep ({}) for selective message moving, max depth is currently set to {}.",
-          fromSqs,
-          depth,
-          maxDepth);
-    }
+    return sqsMoveMessagesWithPayloadLike(sqsClient(awsCP), fromSqs, payloadLike, toSqs);
+  }
+
+  public static int sqsMoveMessagesWithPayloadLike(
+      SqsClient sqsClient, String fromSqs, String payloadLike, String toSqs) {
+    var counter =
+        sqsScan(
+            sqsClient,
+            fromSqs,
+            message -> payloadContains(message, payloadLike),
+            messages -> sqsMoveBatch(sqsClient, fromSqs, toSqs, messages),
+            true);
+    // display summary: num messages moved
+    LOG.info("Moved {} messages with payload containing: {}", counter, payloadLike);
     return counter;
   }
 
   /**
-   * An extracted method that helps sqsMoveMessagesWithPayloadLike() to satisfy Sonarqube
-   * complaining about Cognitive Complexity.
+   * Moves the messages whose payload matches any of the matcher's patterns to another SQS, in one
+   * scan no matter how many patterns there are. How many messages each pattern matched is logged.
    */
-  private static int movingMessagesWithSpecificPayload(
-      String fromSqs,
-      String payloadLike,
-      String toSqs,
-      ReceiveMessageResponse response,
-      SqsClient sqsClient,
-      int counter) {
-    for (var message : response.messages()) {
-      // check each message's payload content
-      if (message.body().contains(payloadLike)) {
-        sqsMoveMessage(sqsClient, fromSqs, toSqs, message);
-        counter++;
-        LOG.info("Moved message #{}", counter);
-      } else {
-        LOG.info("Message does not have contents containing criteria, bypassing it.");
-      }
-    }
+  public static int sqsMoveMessagesWithPayloadLike(
+      AwsCredentialsProvider awsCP, String fromSqs, PayloadMatcher matcher, String toSqs) {
+    return sqsMoveMessagesWithPayloadLike(sqsClient(awsCP), fromSqs, matcher, toSqs);
+  }
+
+  public static int sqsMoveMessagesWithPayloadLike(
+      SqsClient sqsClient, String fromSqs, PayloadMatcher matcher, String toSqs) {
+    Map<String, Integer> matched = new LinkedHashMap<>();
+    var counter =
+        sqsScan(
+            sqsClient,
+            fromSqs,
+            message -> payloadMatches(message, matcher, matched),
+            messages -> sqsMoveBatch(sqsClient, fromSqs, toSqs, messages),
+            true);
+    LOG.info("Moved {} messages, matches per pattern: {}", counter, matched);
     return counter;
   }
 
   /**
-   * Given a Message already retrieved from an SQS, send that message to another SQS and delete it
-   * from the source SQS.
-   *
-   * @param sqsClient The Client for connecting to SQS.
-   * @param fromSqs Source SQS.
-   * @param toSqs Target SQS.
-   * @param message SQS {@link software.amazon.awssdk.services.sqs.model.Message Message}.
+   * Checks the payload against all the patterns at once, and counts which pattern matched. The
+   * count is kept in matched (pattern -> number of messages).
    */
-  private static void sqsMoveMessage(
-      SqsClient sqsClient, String fromSqs, String toSqs, Message message) {
-    var sendMessageRequest =
-        SendMessageRequest.builder()
-            .messageBody(message.body())
-            .messageAttributes(message.messageAttributes())
-            .queueUrl(qUrl(sqsClient, toSqs))
-            .build();
-    sqsClient.sendMessage(sendMessageRequest);
-    var deleteMessageRequest =
-        DeleteMessageRequest.builder()
-            .queueUrl(qUrl(sqsClient, fromSqs))
-            .receiptHandle(message.receiptHandle())
-            .build();
-    sqsClient.deleteMessage(deleteMessageRequest);
+  private static boolean payloadMatches(
+      Message message, PayloadMatcher matcher, Map<String, Integer> matched) {
+    var pattern = matcher.firstMatch(message.body());
+    if (pattern.isPresent()) {
+      matched.merge(pattern.get(), 1, Integer::sum);
+      return true;
+    }
+    LOG.debug("Message does not match any of the patterns, bypassing it.");
+    return false;
   }
 
-  public static int sqsDeleteMessagesWithPayloadLike(
-      AwsCredentialsProvider awsCP, String sqs, String payloadLike) {
-    // check queue depth, if it is too deep just stop (see sqsCalcVisTimeout() JavaDoc)
-    var depth = sqsDepth(awsCP, sqs);
-    var maxDepth = 500; // This could probably go as high as 40k
+  private static boolean payloadContains(Message message, String payloadLike) {
+    // check each message's payload content
+    if (message.body().contains(payloadLike)) {
+      return true;
+    }
+    LOG.info("Message does not have contents containing criteria, bypassing it.");
+    return false;
+  }
+
+  /**
+   * Scans a whole SQS in one pass. Every message received is kept invisible (see {@link
+   * SqsVisibilityExtender}) until the scan is over, so the scan is done when a receive comes back
+   * empty. The selected messages of each batch are handed to the action, and when the scan is done
+   * every message the action did not remove is made visible again.
+   *
+   * <p>In case a message shows up again anyway (its receipt handle expired), the IDs of all scanned
+   * messages are kept in a {@link MessageIdSet}: a message is only ever handed to the selector and
+   * action once, and a batch of nothing but already scanned messages ends the scan, since that
+   * means it has gone all the way around the queue. A message that became visible again because
+   * its renewal came too late fails the scan instead (see {@link
+   * SqsVisibilityExtender#checkForLapses()}), as the scan can't tell it went all the way around.
+   *
+   * @param selector Picks which messages the action gets. It sees the bodies decoded (see {@link
+   *     SqsPayloadCodec}), the action gets the messages as received.
+   * @param action Does something with the selected messages, returns how many to count.
+   * @param actionRemovesMessages Whether the action deletes the messages from the SQS (a move or a
+   *     delete), so they don't need to be kept invisible anymore.
+   * @return The total of what the action returned.
+   * @throws IllegalArgumentException If the SQS is a FIFO queue. It won't hand out the rest of a
+   *     message group while the front of it is kept hidden, so the scan would end early.
+   * @throws IllegalStateException If a message lapsed.
+   */
+  private static int sqsScan(
+      SqsClient sqsClient,
+      String queueName,
+      Predicate<Message> selector,
+      ToIntFunction<List<Message>> action,
+      boolean actionRemovesMessages) {
+    if (SqsFifoOperations.isFifo(queueName)) {
+      throw new IllegalArgumentException(
+          "Can't scan the FIFO queue "
+              + queueName
+              + ", use SqsFifoOperations.sqsFifoMove or sqsFifoCopy instead.");
+    }
     var counter = 0;
-    if (depth < maxDepth) {
-      // from queue depth calculate visibility timeout in seconds
-      var visibilityTimeout = sqsCalcVisTimeout(depth);
+    var scanned = 0;
+    var seen = new MessageIdSet();
+    var queueUrl = qUrl(sqsClient, queueName);
+    var depth = sqsDepth(sqsClient, queueName);
+    var controller = SqsRateController.forQueue(queueUrl);
+    try (var extender = new SqsVisibilityExtender(sqsClient, queueName, SCAN_VISIBILITY_TIMEOUT)) {
+      var receiveMessageRequest =
+          ReceiveMessageRequest.builder()
+              .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
+              .messageAttributeNames("All")
+              .attributeNames(QueueAttributeName.ALL)
+              .queueUrl(queueUrl)
+              .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
+              .visibilityTimeout(SCAN_VISIBILITY_TIMEOUT)
+              .build();
       var moreMessages = true;
-      try (var sqsClient = getSqsClient(awsCP)) {
-        do {
-          var receiveMessageRequest =
-              ReceiveMessageRequest.builder()
-                  .waitTimeSeconds(SQS_WAIT_TIME_SECONDS)
-                  .messageAttributeNames("All")
-                  .attributeNames(QueueAttributeName.ALL)
-                  .queueUrl(qUrl(sqsClient, sqs))
-                  .maxNumberOfMessages(SQS_MAX_BATCH_SIZE)
-                  .visibilityTimeout(visibilityTimeout) // default 30 sec
-                  .build();
-          var response = sqsClient.receiveMessage(receiveMessageRequest);
-          if (response.hasMessages()) {
-            counter =
-                deletingMessagesWithSpecificPayload(sqsClient, sqs, payloadLike, response, counter);
-          } else {
-            moreMessages = false;
+      do {
+        List<Message> messages;
+        try {
+          messages =
+              controller
+                  .callLongPoll(() -> sqsClient.receiveMessage(receiveMessageRequest))
+                  .messages();
+        } catch (OverLimitException e) {
+          LOG.warn(
+              "Hit the SQS in-flight message limit on {} after scanning {} messages, stopping the scan here.",
+              queueName,
+              scanned);
+          break;
+        }
+        extender.checkForLapses();
+        if (messages.isEmpty()) {
+          moreMessages = false;
+        } else {
+          extender.track(messages);
+          var unseen = messages.stream().filter(m -> seen.add(m.messageId())).toList();
+          if (unseen.isEmpty()) {
+            // everything in the batch came around a second time, so the whole queue has been seen
+            LOG.warn(
+                "Received a batch of only already scanned messages from {}, ending the scan.",
+                queueName);
+            if (scanned < depth) {
+              // or just the part of it that keeps coming back
+              LOG.warn(
+                  "Scanned {} and handled {} messages, but {} had ~{} on it when the scan started.",
+                  scanned,
+                  counter,
+                  queueName,
+                  depth);
+            }
+            break;
           }
-        } while (moreMessages);
-      }
-      // display summary: num messages checked, num messages moved
-      LOG.info("Deleted {} messages with payload containing: {}", counter, payloadLike);
-    } else {
-      counter = -1;
-      LOG.info(
-          "Queue {} is too deep ({}) for selective message moving, max depth is currently set to {}.",
-          sqs,
-          depth,
-          maxDepth);
+          scanned += unseen.size();
+          var selected =
+              unseen.stream().filter(m -> selector.test(SqsPayloadCodec.decode(m))).toList();
+          if (!selected.isEmpty()) {
+            counter += action.applyAsInt(selected);
+            if (actionRemovesMessages) {
+              extender.untrack(selected);
+            }
+          }
+        }
+      } while (moreMessages);
     }
+    LOG.info("Scanned {} messages on {}.", scanned, queueName);
+    return counter;
+  }
+
+  public static int sqsDeleteMessagesWithPayloadLike(
+      AwsCredentialsProvider awsCP, String sqs, String payloadLike) {
+    return sqsDeleteMessagesWithPayloadLike(sqsClient(awsCP), sqs, payloadLike);
+  }
+
+  public static int sqsDeleteMessagesWithPayloadLike(
+      SqsClient sqsClient, String sqs, String payloadLike) {
+    var counter =
+        sqsScan(
+            sqsClient,
+            sqs,
+            message -> payloadContains(message, payloadLike),
+            messages -> sqsDeleteBatch(sqsClient, sqs, messages),
+            true);
+    // display summary: num messages deleted
+    LOG.info("Deleted {} messages with payload containing: {}", counter, payloadLike);
     return counter;
   }
 
   /**
-   * An extracted method that helps sqsDeleteMessagesWithPayloadLike() to satisfy Sonarqube
-   * complaining about Cognitive Complexity.
+   * Deletes the messages whose payload matches any of the matcher's patterns, in one scan no matter
+   * how many patterns there are. How many messages each pattern matched is logged.
    */
-  private static int deletingMessagesWithSpecificPayload(
-      SqsClient sqsClient,
-      String sqs,
-      String payloadLike,
-      ReceiveMessageResponse response,
-      int counter) {
-    for (var message : response.messages()) {
-      // check each message's payload content
-      if (message.body().contains(payloadLike)) {
-        sqsDeleteMessage(sqsClient, sqs, message);
-        counter++;
-        LOG.info("Deleted message #{}", counter);
-      } else {
-        LOG.info("Message does not have contents containing criteria, bypassing it.");
-      }
-    }
+  public static int sqsDeleteMessagesWithPayloadLike(
+      AwsCredentialsProvider awsCP, String sqs, PayloadMatcher matcher) {
+    return sqsDeleteMessagesWithPayloadLike(sqsClient(awsCP), sqs, matcher);
+  }
+
+  public static int sqsDeleteMessagesWithPayloadLike(
+      SqsClient sqsClient, String sqs, PayloadMatcher matcher) {
+    Map<String, Integer> matched = new LinkedHashMap<>();
+    var counter =
+        sqsScan(
+            sqsClient,
+            sqs,
+            message -> payloadMatches(message, matcher, matched),
+            messages -> sqsDeleteBatch(sqsClient, sqs, messages),
+            true);
+    LOG.info("Deleted {} messages, matches per pattern: {}", counter, matched);
     return counter;
   }
 }
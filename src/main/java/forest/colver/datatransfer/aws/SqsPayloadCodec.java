@@ -0,0 +1,238 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_MESSAGE_BYTES;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Compresses SQS message bodies. SQS bills every 64 KiB of a message as one request and won't take
+ * more than 256 KiB, and the XML payloads we move around (PAIN001 files and the like) shrink 5-10x
+ * when compressed, so compressing means fewer billing units and a lot less falling back to {@link
+ * SqsClaimCheck}.
+ *
+ * <p>An encoded body is the compressed payload in base64 (SQS bodies have to be text), with a
+ * message attribute saying how it was encoded, e.g. {@code ContentEncoding=gzip+base64}. Consumers
+ * that don't use this code need to check that attribute.
+ *
+ * <p>Encoding is opt in, see {@link #configure(CodecConfig)}, and once on {@link SqsOperations}
+ * sqsSend encodes anything big enough to be worth it. Decoding is always on: the single message
+ * reads (sqsReadOneMessage, sqsReadMessages, sqsConsumeOneMessage) decode whatever carries the
+ * attribute, and moves and copies pass encoded messages along as they are.
+ */
+public class SqsPayloadCodec {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsPayloadCodec.class);
+  public static final String ENCODING_ATTRIBUTE = "ContentEncoding";
+  // compression rarely does better than this on real payloads
+  private static final int BEST_LIKELY_RATIO = 10;
+  private static volatile CodecConfig config = CodecConfig.defaults();
+
+  private SqsPayloadCodec() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /** How a body is encoded, the attribute value is what goes in the ContentEncoding attribute. */
+  public enum Encoding {
+    NONE(null),
+    GZIP("gzip+base64"),
+    DEFLATE("deflate+base64");
+
+    private final String attributeValue;
+
+    Encoding(String attributeValue) {
+      this.attributeValue = attributeValue;
+    }
+
+    public String attributeValue() {
+      return attributeValue;
+    }
+
+    static Encoding fromAttributeValue(String value) {
+      for (var encoding : values()) {
+        if (encoding.attributeValue != null && encoding.attributeValue.equals(value)) {
+          return encoding;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Codec settings.
+   *
+   * @param encoding What sqsSend encodes with, NONE to leave bodies alone.
+   * @param minBytes Bodies smaller than this are sent as they are, they fit in one billing unit
+   *     anyway and compressing them saves little.
+   */
+  public record CodecConfig(Encoding encoding, int minBytes) {
+
+    /** Off. Bodies of 1 KiB or more are encoded once an encoding is set. */
+    public static CodecConfig defaults() {
+      return new CodecConfig(Encoding.NONE, 1024);
+    }
+
+    public CodecConfig withEncoding(Encoding encoding) {
+      return new CodecConfig(encoding, minBytes);
+    }
+
+    public CodecConfig withMinBytes(int minBytes) {
+      return new CodecConfig(encoding, minBytes);
+    }
+
+    public boolean enabled() {
+      return encoding != Encoding.NONE;
+    }
+  }
+
+  /** Turns encoding on (with an encoding) or off (with NONE) for {@link SqsOperations}. */
+  public static void configure(CodecConfig codecConfig) {
+    config = codecConfig;
+  }
+
+  public static CodecConfig config() {
+    return config;
+  }
+
+  /**
+   * Whether a payload this big could be made to fit in an SQS message, so it is worth reading it
+   * in and trying. Always false when encoding is off.
+   */
+  public static boolean mightFit(long payloadBytes) {
+    return config.enabled()
+        && payloadBytes < (long) SQS_MAX_MESSAGE_BYTES * BEST_LIKELY_RATIO;
+  }
+
+  /** {@link #encode(Message, CodecConfig)} with the configured settings. */
+  public static Message encode(Message message) {
+    return encode(message, config);
+  }
+
+  /**
+   * Compresses and base64 encodes the body and adds the ContentEncoding attribute. The message is
+   * returned as is if encoding is off, the body is under the minimum, it is already encoded, or it
+   * doesn't get any smaller (already compressed data, say).
+   */
+  public static Message encode(Message message, CodecConfig codecConfig) {
+    if (!codecConfig.enabled() || message.body() == null || isEncoded(message)) {
+      return message;
+    }
+    var raw = message.body().getBytes(StandardCharsets.UTF_8);
+    if (raw.length < codecConfig.minBytes()) {
+      return message;
+    }
+    var encoded = Base64.getEncoder().encodeToString(compress(raw, codecConfig.encoding()));
+    if (encoded.length() >= raw.length) {
+      LOG.debug("A {} byte body doesn't compress, sending it as is.", raw.length);
+      return message;
+    }
+    Map<String, MessageAttributeValue> attributes = new HashMap<>(message.messageAttributes());
+    attributes.put(
+        ENCODING_ATTRIBUTE,
+        MessageAttributeValue.builder()
+            .dataType("String")
+            .stringValue(codecConfig.encoding().attributeValue())
+            .build());
+    LOG.debug(
+        "Encoded a {} byte body to {} bytes with {}.",
+        raw.length,
+        encoded.length(),
+        codecConfig.encoding());
+    return message.toBuilder().body(encoded).messageAttributes(attributes).build();
+  }
+
+  /** True if the message carries the ContentEncoding attribute. */
+  public static boolean isEncoded(Message message) {
+    return message.hasMessageAttributes()
+        && message.messageAttributes().containsKey(ENCODING_ATTRIBUTE);
+  }
+
+  /**
+   * Turns an encoded body back into the original payload and drops the ContentEncoding attribute.
+   * Anything else, including an encoding this code doesn't know or a body that doesn't decode
+   * (corrupt, or someone else's attribute), is returned as is, so one bad message doesn't stop a
+   * drain or a scan.
+   */
+  public static Message decode(Message message) {
+    if (!isEncoded(message)) {
+      return message;
+    }
+    var value = message.messageAttributes().get(ENCODING_ATTRIBUTE).stringValue();
+    var encoding = Encoding.fromAttributeValue(value);
+    if (encoding == null) {
+      LOG.warn("Message {} has an unknown {}: {}", message.messageId(), ENCODING_ATTRIBUTE, value);
+      return message;
+    }
+    byte[] raw;
+    try {
+      raw = decompress(Base64.getMimeDecoder().decode(message.body()), encoding);
+    } catch (IllegalArgumentException | UncheckedIOException e) {
+      LOG.warn(
+          "Message {} says it is {} but doesn't decode, passing it on as is: {}",
+          message.messageId(),
+          value,
+          e.getMessage());
+      return message;
+    }
+    Map<String, MessageAttributeValue> attributes = new HashMap<>(message.messageAttributes());
+    attributes.remove(ENCODING_ATTRIBUTE);
+    return message.toBuilder()
+        .body(new String(raw, StandardCharsets.UTF_8))
+        .messageAttributes(attributes)
+        .build();
+  }
+
+  /** {@link #decode(Message)} for each message, the same list if none of them are encoded. */
+  public static List<Message> decode(List<Message> messages) {
+    if (messages.stream().noneMatch(SqsPayloadCodec::isEncoded)) {
+      return messages;
+    }
+    var decoded = new ArrayList<Message>(messages.size());
+    for (var message : messages) {
+      decoded.add(decode(message));
+    }
+    return decoded;
+  }
+
+  private static byte[] compress(byte[] raw, Encoding encoding) {
+    var bytes = new ByteArrayOutputStream(raw.length / 4);
+    try (OutputStream out =
+        encoding == Encoding.GZIP
+            ? new GZIPOutputStream(bytes)
+            : new DeflaterOutputStream(bytes)) {
+      out.write(raw);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to compress a message body.", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed, Encoding encoding) {
+    var bytes = new ByteArrayInputStream(compressed);
+    try (InputStream in =
+        encoding == Encoding.GZIP ? new GZIPInputStream(bytes) : new InflaterInputStream(bytes)) {
+      return in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to decompress a " + encoding + " message body.", e);
+    }
+  }
+}
@@ -0,0 +1,353 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+/**
+ * Keeps an eye on the depth of a set of SQS queues. Every refresh interval all the queues are
+ * polled at once (a few at a time, see {@link MonitorConfig#parallelism()}), asking SQS for only
+ * the three message counts rather than every attribute, and the counts are cached. Depth reads are
+ * answered from the cache as long as it is fresher than the TTL, so watching 50 queues costs 50
+ * small requests per interval no matter how often the depths are looked at.
+ *
+ * <p>Watches fire when a queue's depth crosses a threshold, once on the way up and once on the way
+ * back down, which is what you want for "tell me when the DLQ has something in it" alerts.
+ *
+ * <p>Keep in mind the counts are approximate, see {@link SqsOperations#sqsDepth(SqsClient,
+ * String)}.
+ */
+public class SqsQueueMonitor implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsQueueMonitor.class);
+  private static final List<QueueAttributeName> COUNTS =
+      List.of(
+          QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES,
+          QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE,
+          QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED);
+  private final SqsClient sqsClient;
+  private final List<String> queueNames;
+  private final MonitorConfig config;
+  private final Map<String, QueueDepth> depths = new ConcurrentHashMap<>();
+  private final List<Watch> watches = new CopyOnWriteArrayList<>();
+  private final ExecutorService pollers;
+  private final ScheduledExecutorService scheduler;
+
+  /**
+   * Monitor settings.
+   *
+   * @param refreshInterval How often every queue is polled once {@link #start()} is called.
+   * @param ttl How old a cached depth can be before a read goes to SQS for a new one.
+   * @param parallelism How many queues are polled at the same time.
+   */
+  public record MonitorConfig(Duration refreshInterval, Duration ttl, int parallelism) {
+
+    /** Poll every 30 seconds, trust the cache for a minute, 8 queues at a time. */
+    public static MonitorConfig defaults() {
+      return new MonitorConfig(Duration.ofSeconds(30), Duration.ofMinutes(1), 8);
+    }
+
+    public MonitorConfig withRefreshInterval(Duration refreshInterval) {
+      return new MonitorConfig(refreshInterval, ttl, parallelism);
+    }
+
+    public MonitorConfig withTtl(Duration ttl) {
+      return new MonitorConfig(refreshInterval, ttl, parallelism);
+    }
+
+    public MonitorConfig withParallelism(int parallelism) {
+      return new MonitorConfig(refreshInterval, ttl, parallelism);
+    }
+  }
+
+  /**
+   * The message counts of a queue at one point in time.
+   *
+   * @param queueName SQS name.
+   * @param visible Messages available to be received (ApproximateNumberOfMessages), this is what
+   *     sqsDepth returns.
+   * @param inFlight Messages received but not yet deleted (ApproximateNumberOfMessagesNotVisible).
+   * @param delayed Messages not available yet because of a delay
+   *     (ApproximateNumberOfMessagesDelayed).
+   * @param fetched When SQS was asked.
+   */
+  public record QueueDepth(
+      String queueName, int visible, int inFlight, int delayed, Instant fetched) {
+
+    /** Every message in the queue, whether it can be received right now or not. */
+    public int total() {
+      return visible + inFlight + delayed;
+    }
+  }
+
+  /**
+   * A queue's depth crossed a watched threshold.
+   *
+   * @param depth The depth that crossed it.
+   * @param threshold The threshold.
+   * @param rising True if the depth went up to (or past) the threshold, false if it dropped below.
+   */
+  public record Crossing(QueueDepth depth, int threshold, boolean rising) {}
+
+  /**
+   * A monitor on the shared client from {@link AwsClientRegistry}. See the SqsClient version.
+   *
+   * @param awsCp Credentials.
+   * @param queueNames The queues to monitor.
+   * @param config Refresh interval, TTL and parallelism.
+   */
+  public SqsQueueMonitor(
+      AwsCredentialsProvider awsCp, Collection<String> queueNames, MonitorConfig config) {
+    this(sqsClient(awsCp), queueNames, config);
+  }
+
+  /**
+   * Nothing is polled until {@link #start()}, but depth reads work right away (they go to SQS until
+   * there is something cached).
+   *
+   * @param sqsClient The Client for connecting to SQS, it is shared by all the pollers.
+   * @param queueNames The queues to monitor.
+   * @param config Refresh interval, TTL and parallelism.
+   */
+  public SqsQueueMonitor(SqsClient sqsClient, Collection<String> queueNames, MonitorConfig config) {
+    if (config.parallelism() < 1) {
+      throw new IllegalArgumentException("The parallelism must be at least 1.");
+    }
+    this.sqsClient = sqsClient;
+    this.queueNames = List.copyOf(queueNames);
+    this.config = config;
+    var count = new AtomicInteger();
+    this.pollers =
+        Executors.newFixedThreadPool(
+            config.parallelism(),
+            r -> {
+              var t = new Thread(r, "sqs-monitor-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            });
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              var t = new Thread(r, "sqs-monitor");
+              t.setDaemon(true);
+              return t;
+            });
+  }
+
+  /** Starts polling every queue right away and then every refresh interval. */
+  public SqsQueueMonitor start() {
+    var period = config.refreshInterval().toMillis();
+    scheduler.scheduleWithFixedDelay(this::refreshQuietly, 0, period, TimeUnit.MILLISECONDS);
+    return this;
+  }
+
+  /**
+   * Polls every queue now and waits for them all. This runs on its own in the background once
+   * started, there is normally no need to call it. A queue that can't be polled keeps its last
+   * depth, and the others are not held up by it.
+   *
+   * @return The number of queues polled successfully.
+   */
+  public int refresh() {
+    var start = System.currentTimeMillis();
+    var futures = new ArrayList<CompletableFuture<Boolean>>(queueNames.size());
+    for (var queueName : queueNames) {
+      futures.add(CompletableFuture.supplyAsync(() -> poll(queueName), pollers));
+    }
+    var polled = 0;
+    for (var future : futures) {
+      if (Boolean.TRUE.equals(future.join())) {
+        polled++;
+      }
+    }
+    LOG.debug(
+        "Polled {} of {} queues in {}ms.",
+        polled,
+        queueNames.size(),
+        System.currentTimeMillis() - start);
+    return polled;
+  }
+
+  /**
+   * The depth of a queue, from the cache if it is fresh enough, otherwise from SQS. The queue does
+   * not have to be one of the monitored ones, though then it is only ever refreshed by reads.
+   */
+  public QueueDepth depth(String queueName) {
+    var cached = depths.get(queueName);
+    if (cached != null
+        && Duration.between(cached.fetched(), Instant.now()).compareTo(config.ttl()) < 0) {
+      return cached;
+    }
+    var depth = fetchDepth(sqsClient, queueName);
+    update(depth);
+    return depth;
+  }
+
+  /** Whatever is cached right now, stale or not, keyed by queue name. No requests are made. */
+  public Map<String, QueueDepth> snapshot() {
+    return Map.copyOf(depths);
+  }
+
+  /** {@link #watch(String, ToIntFunction, int, Consumer)} on the visible message count. */
+  public Watch watch(String queueName, int threshold, Consumer<Crossing> listener) {
+    return watch(queueName, QueueDepth::visible, threshold, listener);
+  }
+
+  /**
+   * Calls the listener whenever the queue's depth, as measured by metric, crosses the threshold:
+   * goes from under it to at or above it (rising), or back (falling). If the first depth seen is
+   * already at or above the threshold that counts as rising. Listeners run on the thread that
+   * fetched the depth, so keep them short.
+   *
+   * @param queueName SQS name.
+   * @param metric Which count to watch, e.g. QueueDepth::visible or QueueDepth::total.
+   * @param threshold The depth that fires the watch.
+   * @param listener Gets the crossing.
+   * @return The watch, cancel it to stop getting crossings.
+   */
+  public Watch watch(
+      String queueName,
+      ToIntFunction<QueueDepth> metric,
+      int threshold,
+      Consumer<Crossing> listener) {
+    var watch = new Watch(queueName, metric, threshold, listener);
+    watches.add(watch);
+    return watch;
+  }
+
+  /** Stops polling. Cached depths can still be read, but stale ones are not refreshed. */
+  @Override
+  public void close() {
+    scheduler.shutdownNow();
+    pollers.shutdownNow();
+  }
+
+  public static QueueDepth fetchDepth(AwsCredentialsProvider awsCp, String queueName) {
+    return fetchDepth(sqsClient(awsCp), queueName);
+  }
+
+  /**
+   * Gets the visible, in-flight and delayed counts of a queue with one GetQueueAttributes request,
+   * asking for only those three attributes.
+   */
+  public static QueueDepth fetchDepth(SqsClient sqsClient, String queueName) {
+    var request =
+        GetQueueAttributesRequest.builder()
+            .queueUrl(qUrl(sqsClient, queueName))
+            .attributeNames(COUNTS)
+            .build();
+    var response = sqsClient.getQueueAttributes(request);
+    awsResponseValidation(response);
+    var attributes = response.attributes();
+    return new QueueDepth(
+        queueName,
+        count(attributes, QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES),
+        count(attributes, QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE),
+        count(attributes, QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED),
+        Instant.now());
+  }
+
+  private static int count(Map<QueueAttributeName, String> attributes, QueueAttributeName name) {
+    var value = attributes.get(name);
+    return value == null ? 0 : Integer.parseInt(value);
+  }
+
+  private boolean poll(String queueName) {
+    try {
+      update(fetchDepth(sqsClient, queueName));
+      return true;
+    } catch (SdkException e) {
+      // don't let one bad queue hold up the rest, it'll be tried again next round
+      LOG.error("Failed to get the depth of {}.", queueName, e);
+      return false;
+    }
+  }
+
+  private void update(QueueDepth depth) {
+    var latest =
+        depths.merge(
+            depth.queueName(),
+            depth,
+            (old, now) -> now.fetched().isBefore(old.fetched()) ? old : now);
+    // the watches see what is cached, a fetch that lost the race doesn't flip them back
+    for (var watch : watches) {
+      if (watch.queueName.equals(depth.queueName())) {
+        watch.observe(latest);
+      }
+    }
+  }
+
+  private void refreshQuietly() {
+    try {
+      refresh();
+    } catch (RuntimeException e) {
+      // don't let one bad round cancel the schedule, the next round will try again
+      LOG.error("Failed to refresh the queue depths.", e);
+    }
+  }
+
+  /** A threshold being watched on one queue, see {@link #watch(String, int, Consumer)}. */
+  public final class Watch {
+
+    private final String queueName;
+    private final ToIntFunction<QueueDepth> metric;
+    private final int threshold;
+    private final Consumer<Crossing> listener;
+    private boolean above;
+
+    private Watch(
+        String queueName,
+        ToIntFunction<QueueDepth> metric,
+        int threshold,
+        Consumer<Crossing> listener) {
+      this.queueName = queueName;
+      this.metric = metric;
+      this.threshold = threshold;
+      this.listener = listener;
+    }
+
+    /** Stop watching. */
+    public void cancel() {
+      watches.remove(this);
+    }
+
+    private synchronized void observe(QueueDepth depth) {
+      var nowAbove = metric.applyAsInt(depth) >= threshold;
+      if (nowAbove == above) {
+        return;
+      }
+      above = nowAbove;
+      LOG.debug(
+          "The depth of {} went {} {}.", queueName, nowAbove ? "up to" : "back under", threshold);
+      try {
+        listener.accept(new Crossing(depth, threshold, nowAbove));
+      } catch (RuntimeException e) {
+        LOG.error("A watch on {} threw handling a crossing.", queueName, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package forest.colver.datatransfer.aws;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.SdkClient;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.SqsServiceClientConfiguration;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
+import software.amazon.awssdk.services.sqs.model.QueueDoesNotExistException;
+
+/**
+ * Caches the queue name to queue URL lookup. Without it every send, receive and delete pays for an
+ * extra GetQueueUrl round trip (two of them for a move), which roughly doubles the API calls in a
+ * drain and is an easy way to get throttled.
+ *
+ * <p>Entries are kept per account (the client's credentials provider) + region + queue name. The
+ * cache is bounded (least recently used entries are dropped first) and every entry expires after a
+ * TTL, so a queue that is deleted and re-created is picked up again on its own. On top of that, any
+ * SQS call that fails with QueueDoesNotExist evicts the URL it was using, see {@link
+ * #invalidationInterceptor()}, which is installed on the SqsClients built by {@link
+ * AwsClientRegistry} and {@link AwsUtils}.
+ */
+public class SqsQueueUrlCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsQueueUrlCache.class);
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes(15);
+  public static final int DEFAULT_MAX_ENTRIES = 500;
+  private static final ExecutionInterceptor INVALIDATION_INTERCEPTOR =
+      new QueueDoesNotExistInterceptor();
+  private static final AtomicLong HITS = new AtomicLong();
+  private static final AtomicLong MISSES = new AtomicLong();
+  private static final Object LOCK = new Object();
+  private static long ttlNanos = DEFAULT_TTL.toNanos();
+  private static Map<CacheKey, CacheEntry> entries = newEntries(DEFAULT_MAX_ENTRIES);
+
+  private SqsQueueUrlCache() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  private record CacheKey(Object account, Region region, String queueName) {}
+
+  private record CacheEntry(String queueUrl, long expiresAt) {}
+
+  /**
+   * Change the TTL and the max number of entries. The cache is emptied.
+   *
+   * @param ttl How long a resolved queue URL is trusted.
+   * @param maxEntries Max number of queue URLs held, the least recently used go first.
+   */
+  public static void configure(Duration ttl, int maxEntries) {
+    if (ttl.isNegative() || ttl.isZero() || maxEntries < 1) {
+      throw new IllegalArgumentException(
+          "The ttl and maxEntries must be positive, ttl=" + ttl + ", maxEntries=" + maxEntries);
+    }
+    synchronized (LOCK) {
+      ttlNanos = ttl.toNanos();
+      entries = newEntries(maxEntries);
+    }
+    LOG.info("SQS queue URL cache configured, ttl={}, maxEntries={}", ttl, maxEntries);
+  }
+
+  /**
+   * Returns the queue URL for the queue name, only calling GetQueueUrl when the URL is not cached
+   * yet or has expired.
+   *
+   * @param sqsClient The client, its credentials and region pick the account the queue is in.
+   * @param queueName SQS name.
+   * @return The queue URL.
+   */
+  public static String queueUrl(SqsClient sqsClient, String queueName) {
+    var key = key(sqsClient.serviceClientConfiguration(), sqsClient, queueName);
+    var cached = cached(key);
+    if (cached != null) {
+      return cached;
+    }
+    // resolve outside the lock, two threads racing on the same name just both look it up
+    var queueUrl =
+        sqsClient.getQueueUrl(GetQueueUrlRequest.builder().queueName(queueName).build()).queueUrl();
+    return put(key, queueUrl);
+  }
+
+  /**
+   * The SqsAsyncClient version of {@link #queueUrl(SqsClient, String)}, a cached URL comes back as
+   * an already completed future.
+   */
+  public static CompletableFuture<String> queueUrl(SqsAsyncClient sqsClient, String queueName) {
+    var key = key(sqsClient.serviceClientConfiguration(), sqsClient, queueName);
+    var cached = cached(key);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    return sqsClient
+        .getQueueUrl(GetQueueUrlRequest.builder().queueName(queueName).build())
+        .thenApply(response -> put(key, response.queueUrl()));
+  }
+
+  /** Forgets the cached URL for the queue name in the client's account and region. */
+  public static void invalidate(SqsClient sqsClient, String queueName) {
+    synchronized (LOCK) {
+      entries.remove(key(sqsClient.serviceClientConfiguration(), sqsClient, queueName));
+    }
+  }
+
+  /**
+   * Forgets every cached entry pointing at the queue URL. A queue URL already carries the account
+   * and region, so this needs no client.
+   *
+   * @return The number of entries removed.
+   */
+  public static int invalidateUrl(String queueUrl) {
+    var removed = 0;
+    synchronized (LOCK) {
+      var it = entries.values().iterator();
+      while (it.hasNext()) {
+        if (it.next().queueUrl().equals(queueUrl)) {
+          it.remove();
+          removed++;
+        }
+      }
+    }
+    if (removed > 0) {
+      LOG.info("Evicted queueUrl={} from the SQS queue URL cache.", queueUrl);
+    }
+    return removed;
+  }
+
+  /** Empties the cache and resets the hit/miss counters. */
+  public static void clear() {
+    synchronized (LOCK) {
+      entries.clear();
+    }
+    HITS.set(0);
+    MISSES.set(0);
+  }
+
+  public static int size() {
+    synchronized (LOCK) {
+      return entries.size();
+    }
+  }
+
+  public static long hitCount() {
+    return HITS.get();
+  }
+
+  public static long missCount() {
+    return MISSES.get();
+  }
+
+  /**
+   * An interceptor that evicts the queue URL of any SQS request failing with QueueDoesNotExist, so
+   * the next call resolves the name again instead of hammering a stale URL until the TTL is up.
+   */
+  public static ExecutionInterceptor invalidationInterceptor() {
+    return INVALIDATION_INTERCEPTOR;
+  }
+
+  private static String cached(CacheKey key) {
+    var now = System.nanoTime();
+    synchronized (LOCK) {
+      var entry = entries.get(key);
+      if (entry != null && now - entry.expiresAt() < 0) {
+        HITS.incrementAndGet();
+        return entry.queueUrl();
+      }
+    }
+    MISSES.incrementAndGet();
+    return null;
+  }
+
+  private static String put(CacheKey key, String queueUrl) {
+    synchronized (LOCK) {
+      entries.put(key, new CacheEntry(queueUrl, System.nanoTime() + ttlNanos));
+    }
+    return queueUrl;
+  }
+
+  private static CacheKey key(
+      SqsServiceClientConfiguration config, SdkClient sqsClient, String queueName) {
+    Object account = config.credentialsProvider();
+    if (account == null) {
+      account = sqsClient; // no creds to go on, so at least don't share across clients
+    }
+    return new CacheKey(account, config.region(), queueName);
+  }
+
+  private static Map<CacheKey, CacheEntry> newEntries(int maxEntries) {
+    return new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  private static class QueueDoesNotExistInterceptor implements ExecutionInterceptor {
+
+    @Override
+    public void onExecutionFailure(
+        Context.FailedExecution context, ExecutionAttributes executionAttributes) {
+      if (context.exception() instanceof QueueDoesNotExistException) {
+        context
+            .request()
+            .getValueForField("QueueUrl", String.class)
+            .ifPresent(SqsQueueUrlCache::invalidateUrl);
+      }
+    }
+  }
+}
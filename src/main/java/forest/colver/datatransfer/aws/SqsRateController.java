@@ -0,0 +1,440 @@
+package forest.colver.datatransfer.aws;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+/**
+ * Decides how hard to push one SQS, so the bulk operations run as fast as the queue allows without
+ * anyone hand-tuning thread counts. Every bulk SQS request (batch sends, batch deletes, receives,
+ * visibility changes, sync and async) goes through the controller of its queue, which holds it
+ * back until there is room under two limits (long-poll receives only count against the rate):
+ *
+ * <ul>
+ *   <li>a concurrency limit, the number of requests in flight at once, and
+ *   <li>a rate limit, requests per second, enforced with a token bucket.
+ * </ul>
+ *
+ * <p>Both limits are adjusted AIMD style (additive increase, multiplicative decrease, the TCP
+ * congestion control approach): every round of successful requests bumps the concurrency by one
+ * and the rate by a fixed step, and a throttled request, a 5xx, or latency climbing well past the
+ * best latency seen cuts both by the decrease factor. Cuts are at most one per cooldown, so a burst
+ * of throttles from requests that were all already in flight counts once.
+ *
+ * <p>The controllers live here per queue URL for the life of the JVM, see {@link #forQueue} and
+ * {@link #allStats()} for the current limits and observed throughput.
+ */
+public class SqsRateController {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsRateController.class);
+  private static final Map<String, SqsRateController> CONTROLLERS = new ConcurrentHashMap<>();
+  private static volatile RateControlConfig defaultConfig = RateControlConfig.defaults();
+  // how long acquire() waits between checks when it is the concurrency limit that is full
+  private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final double LATENCY_EWMA_WEIGHT = 0.2;
+  private static final double THROUGHPUT_EWMA_WEIGHT = 0.3;
+
+  private final String queueUrl;
+  private final RateControlConfig config;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition released = lock.newCondition();
+  // everything below is guarded by lock
+  private int concurrencyLimit;
+  private double rateLimit;
+  private double tokens;
+  private long lastRefillNanos;
+  private int inFlight;
+  private int successesThisRound;
+  private long lastDecreaseNanos;
+  private double latencyNanos; // moving average
+  private double bestLatencyNanos; // slowly forgets, so one lucky request doesn't set it for good
+  private long requests;
+  private long congestionSignals;
+  private long windowStartNanos;
+  private long windowCompleted;
+  private double throughput; // completed requests per second, moving average
+
+  /**
+   * How the controllers start out and how far they can go.
+   *
+   * @param minConcurrency The concurrency limit is never cut below this.
+   * @param maxConcurrency The concurrency limit never grows past this.
+   * @param initialConcurrency Where the concurrency limit starts.
+   * @param minRate Requests per second the rate is never cut below.
+   * @param maxRate Requests per second the rate never grows past.
+   * @param initialRate Where the rate limit starts.
+   * @param rateIncrease Requests per second added to the rate after each successful round.
+   * @param decreaseFactor What both limits are multiplied by on throttling, e.g. 0.5.
+   * @param latencyTolerance How many times the best latency seen a request can take before it
+   *     counts as congestion.
+   * @param cooldown The least time between two cuts.
+   */
+  public record RateControlConfig(
+      int minConcurrency,
+      int maxConcurrency,
+      int initialConcurrency,
+      double minRate,
+      double maxRate,
+      double initialRate,
+      double rateIncrease,
+      double decreaseFactor,
+      double latencyTolerance,
+      Duration cooldown) {
+
+    public RateControlConfig {
+      if (minConcurrency < 1
+          || maxConcurrency < minConcurrency
+          || initialConcurrency < minConcurrency
+          || initialConcurrency > maxConcurrency) {
+        throw new IllegalArgumentException(
+            "Concurrency limits must satisfy 1 <= min <= initial <= max.");
+      }
+      if (minRate <= 0 || maxRate < minRate || initialRate < minRate || initialRate > maxRate) {
+        throw new IllegalArgumentException("Rate limits must satisfy 0 < min <= initial <= max.");
+      }
+      if (decreaseFactor <= 0 || decreaseFactor >= 1 || latencyTolerance <= 1) {
+        throw new IllegalArgumentException(
+            "decreaseFactor must be between 0 and 1, and latencyTolerance more than 1.");
+      }
+    }
+
+    /**
+     * Starts at 8 requests in flight and 200 requests/sec, and can go up to 64 in flight and 3000
+     * requests/sec. A FIFO queue without high throughput mode takes a lot less than that,
+     * throttling brings the limits down to whatever the queue takes.
+     */
+    public static RateControlConfig defaults() {
+      return new RateControlConfig(1, 64, 8, 5, 3000, 200, 20, 0.5, 3.0, Duration.ofSeconds(1));
+    }
+  }
+
+  /**
+   * A snapshot of a controller.
+   *
+   * @param concurrencyLimit Requests allowed in flight at once right now.
+   * @param rateLimit Requests per second allowed right now.
+   * @param inFlight Requests in flight right now.
+   * @param throughput Completed requests per second, a moving average.
+   * @param latency Request latency, a moving average (long polls not included).
+   * @param requests Requests completed so far.
+   * @param congestionSignals Throttles, 5xx responses and slow requests seen so far.
+   */
+  public record Stats(
+      int concurrencyLimit,
+      double rateLimit,
+      int inFlight,
+      double throughput,
+      Duration latency,
+      long requests,
+      long congestionSignals) {
+
+    @Override
+    public String toString() {
+      return String.format(
+          "concurrency=%d/%d, rate=%.0f/s, throughput=%.1f/s, latency=%dms, requests=%d,"
+              + " congestion=%d",
+          inFlight,
+          concurrencyLimit,
+          rateLimit,
+          throughput,
+          latency.toMillis(),
+          requests,
+          congestionSignals);
+    }
+  }
+
+  SqsRateController(String queueUrl, RateControlConfig config) {
+    this.queueUrl = queueUrl;
+    this.config = config;
+    this.concurrencyLimit = config.initialConcurrency();
+    this.rateLimit = config.initialRate();
+    this.tokens = Math.min(config.initialConcurrency(), config.initialRate());
+    this.lastRefillNanos = System.nanoTime();
+    this.lastDecreaseNanos = lastRefillNanos - config.cooldown().toNanos();
+    this.windowStartNanos = lastRefillNanos;
+  }
+
+  /** The controller for this queue, created on first use. */
+  public static SqsRateController forQueue(String queueUrl) {
+    return CONTROLLERS.computeIfAbsent(queueUrl, url -> new SqsRateController(url, defaultConfig));
+  }
+
+  /** Stats of every queue that has a controller, by queue URL. */
+  public static Map<String, Stats> allStats() {
+    Map<String, Stats> stats = new TreeMap<>();
+    CONTROLLERS.forEach((url, controller) -> stats.put(url, controller.stats()));
+    return stats;
+  }
+
+  /** Sets the config for controllers created from now on (existing ones are dropped). */
+  public static void configure(RateControlConfig config) {
+    defaultConfig = config;
+    CONTROLLERS.clear();
+  }
+
+  /** Drops all controllers, so every queue starts over at the initial limits. */
+  public static void clear() {
+    CONTROLLERS.clear();
+  }
+
+  /**
+   * Makes the request once the limits allow it, and learns from how it went. Blocks while the
+   * queue is at its limits.
+   *
+   * @throws IllegalStateException If interrupted while waiting for room.
+   */
+  public <T> T call(Supplier<T> request) {
+    return call(request, false);
+  }
+
+  /**
+   * The same as {@link #call(Supplier)}, for receives that long poll. Those take as long as the
+   * wait time when the queue is empty, so their latency says nothing about congestion, and they
+   * spend most of it just waiting, so they only count against the rate limit and not the
+   * concurrency limit (otherwise idle long polls could keep the batch calls from getting a turn).
+   */
+  public <T> T callLongPoll(Supplier<T> request) {
+    return call(request, true);
+  }
+
+  private <T> T call(Supplier<T> request, boolean longPoll) {
+    acquire(longPoll);
+    var start = System.nanoTime();
+    try {
+      var result = request.get();
+      onSuccess(longPoll ? -1 : System.nanoTime() - start);
+      return result;
+    } catch (SdkServiceException e) {
+      if (isCongestion(e)) {
+        onCongestion("a " + e.statusCode() + " response");
+      }
+      throw e;
+    } finally {
+      release(longPoll);
+    }
+  }
+
+  /** The async version of {@link #call(Supplier)}, waits for room without holding a thread. */
+  public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> request) {
+    return callAsync(request, false);
+  }
+
+  /** The async version of {@link #callLongPoll(Supplier)}. */
+  public <T> CompletableFuture<T> callLongPollAsync(Supplier<CompletableFuture<T>> request) {
+    return callAsync(request, true);
+  }
+
+  private <T> CompletableFuture<T> callAsync(
+      Supplier<CompletableFuture<T>> request, boolean longPoll) {
+    var wait = tryAcquire(longPoll);
+    if (wait > 0) {
+      var delay = CompletableFuture.delayedExecutor(wait, NANOSECONDS);
+      return CompletableFuture.runAsync(() -> {}, delay)
+          .thenCompose(v -> callAsync(request, longPoll));
+    }
+    var start = System.nanoTime();
+    CompletableFuture<T> future;
+    try {
+      future = request.get();
+    } catch (RuntimeException e) {
+      release(longPoll);
+      throw e;
+    }
+    return future.whenComplete(
+        (result, error) -> {
+          var cause = error instanceof CompletionException ? error.getCause() : error;
+          if (cause == null) {
+            onSuccess(longPoll ? -1 : System.nanoTime() - start);
+          } else if (cause instanceof SdkServiceException e && isCongestion(e)) {
+            onCongestion("a " + e.statusCode() + " response");
+          }
+          release(longPoll);
+        });
+  }
+
+  /**
+   * For batch calls: entries that failed without it being the sender's fault (throttled, internal
+   * errors) mean the same thing as a throttled request.
+   */
+  public void onThrottledEntries(int count) {
+    if (count > 0) {
+      onCongestion(count + " throttled/failed batch entries");
+    }
+  }
+
+  public Stats stats() {
+    lock.lock();
+    try {
+      return new Stats(
+          concurrencyLimit,
+          rateLimit,
+          inFlight,
+          throughput,
+          Duration.ofNanos((long) latencyNanos),
+          requests,
+          congestionSignals);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SqsRateController[" + queueUrl + ": " + stats() + "]";
+  }
+
+  private static boolean isCongestion(SdkServiceException e) {
+    return e.isThrottlingException() || e.statusCode() >= 500;
+  }
+
+  private void acquire(boolean longPoll) {
+    lock.lock();
+    try {
+      var wait = tryAcquire(longPoll);
+      while (wait > 0) {
+        released.awaitNanos(wait);
+        wait = tryAcquire(longPoll);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      throw new IllegalStateException("Interrupted while waiting to make a request to SQS.", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes a slot (unless it is for a long poll) and a token if both are there.
+   *
+   * @return 0 if it did, otherwise about how many nanoseconds until it is worth trying again.
+   */
+  private long tryAcquire(boolean longPoll) {
+    lock.lock();
+    try {
+      var now = System.nanoTime();
+      tokens = Math.min(rateLimit, tokens + (now - lastRefillNanos) / 1e9 * rateLimit);
+      lastRefillNanos = now;
+      if (!longPoll && inFlight >= concurrencyLimit) {
+        return FULL_WAIT_NANOS;
+      }
+      if (tokens < 1) {
+        return Math.max(1, (long) ((1 - tokens) / rateLimit * 1e9));
+      }
+      tokens -= 1;
+      if (!longPoll) {
+        inFlight++;
+      }
+      return 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void release(boolean longPoll) {
+    if (longPoll) {
+      return;
+    }
+    lock.lock();
+    try {
+      inFlight--;
+      released.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Counts a successful request, and grows the limits after a full round of them.
+   *
+   * @param latency Nanoseconds the request took, negative if it doesn't count.
+   */
+  private void onSuccess(long latency) {
+    lock.lock();
+    try {
+      var now = System.nanoTime();
+      requests++;
+      countCompleted(now);
+      if (latency >= 0) {
+        latencyNanos =
+            latencyNanos == 0
+                ? latency
+                : latencyNanos + (latency - latencyNanos) * LATENCY_EWMA_WEIGHT;
+        bestLatencyNanos =
+            bestLatencyNanos == 0 || latency < bestLatencyNanos
+                ? latency
+                : bestLatencyNanos + (latency - bestLatencyNanos) * 0.01;
+        if (latencyNanos > bestLatencyNanos * config.latencyTolerance()) {
+          decrease(now, "latency " + (long) (latencyNanos / 1e6) + "ms");
+          return;
+        }
+      }
+      if (++successesThisRound >= concurrencyLimit) {
+        // a whole round of requests went fine, push a little harder
+        successesThisRound = 0;
+        concurrencyLimit = Math.min(config.maxConcurrency(), concurrencyLimit + 1);
+        rateLimit = Math.min(config.maxRate(), rateLimit + config.rateIncrease());
+        released.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void onCongestion(String reason) {
+    lock.lock();
+    try {
+      var now = System.nanoTime();
+      countCompleted(now);
+      decrease(now, reason);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void decrease(long now, String reason) {
+    congestionSignals++;
+    successesThisRound = 0;
+    if (now - lastDecreaseNanos < config.cooldown().toNanos()) {
+      return;
+    }
+    lastDecreaseNanos = now;
+    var oldConcurrency = concurrencyLimit;
+    var oldRate = rateLimit;
+    concurrencyLimit =
+        Math.max(config.minConcurrency(), (int) (concurrencyLimit * config.decreaseFactor()));
+    rateLimit = Math.max(config.minRate(), rateLimit * config.decreaseFactor());
+    tokens = Math.min(tokens, rateLimit);
+    LOG.warn(
+        "Backing off {} because of {}: concurrency {} -> {}, rate {}/s -> {}/s",
+        queueUrl,
+        reason,
+        oldConcurrency,
+        concurrencyLimit,
+        Math.round(oldRate),
+        Math.round(rateLimit));
+  }
+
+  private void countCompleted(long now) {
+    windowCompleted++;
+    var elapsed = now - windowStartNanos;
+    if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+      var current = windowCompleted / (elapsed / 1e9);
+      throughput =
+          throughput == 0 ? current : throughput + (current - throughput) * THROUGHPUT_EWMA_WEIGHT;
+      windowStartNanos = now;
+      windowCompleted = 0;
+    }
+  }
+}
@@ -0,0 +1,310 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.SqsArchiveOperations.fromJson;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.sqsSendBatch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPInputStream;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+/**
+ * Sends archived messages back into an SQS, e.g. to re-drive a DLQ snapshot after an incident is
+ * fixed. Reads the NDJSON files written by {@link SqsArchiveOperations} (gzipped or not) one line
+ * at a time, so an archive of any size replays in constant memory.
+ *
+ * <p>Messages go out in batches of 10 at no more than a set number of messages per second, so a
+ * replay of tens of thousands of messages doesn't flood whatever consumes the target SQS. The
+ * {@link SqsRateController} still backs off on its own if SQS itself pushes back.
+ *
+ * <p>Every record has an offset: its position across all the files, starting at 0. Progress is
+ * logged with the offset of the next record to send, so if a replay dies part way it can be
+ * started again with {@link ReplayConfig#withResumeFrom(long)} instead of sending everything twice.
+ */
+public class SqsReplayOperations {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsReplayOperations.class);
+  private static final int READ_BUFFER_BYTES = 256 * 1024;
+  private static final long PROGRESS_EVERY = 1000;
+
+  private SqsReplayOperations() {
+    // https://rules.sonarsource.com/java/RSPEC-1118/
+    throw new UnsupportedOperationException("This is a utility class and cannot be instantiated.");
+  }
+
+  /**
+   * Replay settings.
+   *
+   * @param messagesPerSecond The most messages sent per second, 0 or less for no limit.
+   * @param resumeFrom Offset of the first record to send, the ones before it are skipped.
+   * @param attributes Rewrites the message attributes of each message before it is sent. Gets the
+   *     archived attributes (which can't be modified) and returns the ones to send.
+   */
+  public record ReplayConfig(
+      double messagesPerSecond,
+      long resumeFrom,
+      UnaryOperator<Map<String, MessageAttributeValue>> attributes) {
+
+    public ReplayConfig {
+      if (resumeFrom < 0) {
+        throw new IllegalArgumentException("resumeFrom can't be negative.");
+      }
+    }
+
+    /** 100 messages per second from the start, attributes as they were archived. */
+    public static ReplayConfig defaults() {
+      return new ReplayConfig(100, 0, UnaryOperator.identity());
+    }
+
+    public ReplayConfig withRate(double messagesPerSecond) {
+      return new ReplayConfig(messagesPerSecond, resumeFrom, attributes);
+    }
+
+    public ReplayConfig withResumeFrom(long resumeFrom) {
+      return new ReplayConfig(messagesPerSecond, resumeFrom, attributes);
+    }
+
+    public ReplayConfig withAttributeRewrite(
+        UnaryOperator<Map<String, MessageAttributeValue>> attributes) {
+      return new ReplayConfig(messagesPerSecond, resumeFrom, attributes);
+    }
+
+    /** Adds (or replaces) a String message attribute on every message, e.g. "replayed"="true". */
+    public ReplayConfig withAttribute(String name, String value) {
+      var attribute = MessageAttributeValue.builder().dataType("String").stringValue(value).build();
+      var previous = attributes;
+      return withAttributeRewrite(
+          archived -> {
+            Map<String, MessageAttributeValue> rewritten = new HashMap<>(previous.apply(archived));
+            rewritten.put(name, attribute);
+            return rewritten;
+          });
+    }
+  }
+
+  /**
+   * What was replayed.
+   *
+   * @param read Records read, not counting the ones skipped to get to the resume offset.
+   * @param sent Messages sent.
+   * @param failed Messages SQS would not take (they are logged).
+   * @param nextOffset Offset after the last record read, where a follow-up replay would resume.
+   */
+  public record ReplayResult(long read, long sent, long failed, long nextOffset) {}
+
+  public static ReplayResult sqsReplay(
+      AwsCredentialsProvider awsCP, String queueName, List<Path> files, ReplayConfig config) {
+    return sqsReplay(sqsClient(awsCP), queueName, files, config);
+  }
+
+  /**
+   * Replays NDJSON files in the order given. Files ending in ".gz" are gunzipped.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName Target SQS.
+   * @param files Archive segments (or any NDJSON of {@link SqsArchiveOperations#toJson(Message)}
+   *     records).
+   * @param config Rate, resume offset and attribute rewriting.
+   * @return How many messages were read and sent.
+   */
+  public static ReplayResult sqsReplay(
+      SqsClient sqsClient, String queueName, List<Path> files, ReplayConfig config) {
+    var replayer = new Replayer(sqsClient, queueName, config);
+    for (var file : files) {
+      replayer.replay(file);
+    }
+    var result = replayer.finish();
+    LOG.info(
+        "Replayed {} of {} messages to {}, {} failed, next offset {}.",
+        result.sent(),
+        result.read(),
+        queueName,
+        result.failed(),
+        result.nextOffset());
+    return result;
+  }
+
+  public static ReplayResult sqsReplayArchive(
+      AwsCredentialsProvider awsCP, String queueName, String manifest, ReplayConfig config) {
+    return sqsReplayArchive(sqsClient(awsCP), queueName, manifest, config);
+  }
+
+  /**
+   * Replays a whole archive, segment by segment as listed in its manifest. Every segment is checked
+   * against its SHA-256 first, so a damaged archive is refused before anything is sent.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName Target SQS.
+   * @param manifest Path of the manifest, e.g.
+   *     "/Users/revloc02/Downloads/dlq-snapshot/my-dlq-manifest.json".
+   * @param config Rate, resume offset and attribute rewriting.
+   * @return How many messages were read and sent.
+   */
+  public static ReplayResult sqsReplayArchive(
+      SqsClient sqsClient, String queueName, String manifest, ReplayConfig config) {
+    var manifestPath = Paths.get(manifest);
+    JSONObject json;
+    try {
+      json = new JSONObject(Files.readString(manifestPath));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read the archive manifest: " + manifestPath, e);
+    }
+    if (!json.optBoolean("complete", true)) {
+      LOG.warn("The archive {} is not complete, replaying what it has.", manifestPath);
+    }
+    var dir = manifestPath.toAbsolutePath().getParent();
+    var segments = json.getJSONArray("segments");
+    var files = new ArrayList<Path>(segments.length());
+    for (var i = 0; i < segments.length(); i++) {
+      var segment = segments.getJSONObject(i);
+      var file = dir.resolve(segment.getString("file"));
+      var sha256 = sha256(file);
+      if (!sha256.equals(segment.getString("sha256"))) {
+        throw new IllegalStateException(
+            "Archive segment " + file + " does not match the SHA-256 in its manifest.");
+      }
+      files.add(file);
+    }
+    return sqsReplay(sqsClient, queueName, files, config);
+  }
+
+  private static String sha256(Path file) {
+    try (var in =
+        new DigestInputStream(Files.newInputStream(file), MessageDigest.getInstance("SHA-256"))) {
+      in.transferTo(OutputStream.nullOutputStream());
+      return HexFormat.of().formatHex(in.getMessageDigest().digest());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read archive segment: " + file, e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available.", e);
+    }
+  }
+
+  private static BufferedReader reader(Path file) throws IOException {
+    InputStream in = Files.newInputStream(file);
+    if (file.getFileName().toString().endsWith(".gz")) {
+      in = new GZIPInputStream(in, READ_BUFFER_BYTES);
+    }
+    return new BufferedReader(
+        new InputStreamReader(in, StandardCharsets.UTF_8), READ_BUFFER_BYTES);
+  }
+
+  /** Holds a replay's pending batch, counters and pacing across the files. */
+  private static class Replayer {
+
+    private final SqsClient sqsClient;
+    private final String queueName;
+    private final ReplayConfig config;
+    private final List<Message> batch = new ArrayList<>(SQS_MAX_BATCH_SIZE);
+    private final long nanosPerMessage;
+    private long nextSendNanos = System.nanoTime();
+    private long offset;
+    private long read;
+    private long sent;
+    private long failed;
+
+    Replayer(SqsClient sqsClient, String queueName, ReplayConfig config) {
+      this.sqsClient = sqsClient;
+      this.queueName = queueName;
+      this.config = config;
+      this.nanosPerMessage =
+          config.messagesPerSecond() > 0
+              ? (long) (TimeUnit.SECONDS.toNanos(1) / config.messagesPerSecond())
+              : 0;
+    }
+
+    void replay(Path file) {
+      try (var reader = reader(file)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isBlank()) {
+            continue;
+          }
+          if (offset++ < config.resumeFrom()) {
+            continue;
+          }
+          read++;
+          var message = fromJson(new JSONObject(line));
+          batch.add(
+              message.toBuilder()
+                  .messageAttributes(config.attributes().apply(message.messageAttributes()))
+                  .build());
+          if (batch.size() == SQS_MAX_BATCH_SIZE) {
+            send();
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException("Failed to read archive file: " + file, e);
+      }
+    }
+
+    ReplayResult finish() {
+      if (!batch.isEmpty()) {
+        send();
+      }
+      return new ReplayResult(read, sent, failed, offset);
+    }
+
+    private void send() {
+      pace(batch.size());
+      var ok = sqsSendBatch(sqsClient, queueName, batch);
+      sent += ok.size();
+      failed += batch.size() - ok.size();
+      var before = batchOffset() / PROGRESS_EVERY;
+      if (offset / PROGRESS_EVERY > before) {
+        LOG.info("Replayed {} messages to {}, next offset {}.", sent, queueName, offset);
+      }
+      batch.clear();
+    }
+
+    /** Offset of the first message in the pending batch. */
+    private long batchOffset() {
+      return offset - batch.size();
+    }
+
+    /** Waits until this many more messages can go out without going over the rate. */
+    private void pace(int messages) {
+      if (nanosPerMessage == 0) {
+        return;
+      }
+      var wait = nextSendNanos - System.nanoTime();
+      if (wait > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt(); // Restore interrupt status
+          throw new IllegalStateException(
+              "Interrupted while replaying to " + queueName + ", next offset " + batchOffset(),
+              e);
+        }
+      }
+      nextSendNanos = Math.max(nextSendNanos, System.nanoTime()) + messages * nanosPerMessage;
+    }
+  }
+}
@@ -0,0 +1,346 @@
+package forest.colver.datatransfer.aws;
+
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_BATCH_SIZE;
+import static forest.colver.datatransfer.aws.AwsUtils.awsResponseValidation;
+import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+/**
+ * Keeps received SQS messages invisible for as long as they are needed. Scanning a whole queue used
+ * to mean picking one visibility timeout up front (see {@link AwsUtils#sqsCalcVisTimeout(int)}),
+ * big enough that the first message would not show up again before the last one was looked at,
+ * which is why those scans had depth caps. Instead, messages are tracked here as they are received,
+ * and a background thread renews their visibility timeout (ChangeMessageVisibilityBatch, 10 at a
+ * time) every half timeout until they are untracked or this is closed.
+ *
+ * <p>A renewal round sends its batches on several threads at once, as many as it takes for the
+ * round to fit in a quarter of the timeout going by how long batches have been taking, and the
+ * {@link SqsRateController} of the queue paces them. A message whose timeout still runs out before
+ * it is renewed has lapsed: it is visible again and may be received a second time. Lapses are
+ * counted, and {@link #checkForLapses()} turns them into an error for the caller.
+ *
+ * <p>SQS keeps a message hidden for at most 12 hours after it was received. Messages that would go
+ * past that with another renewal are no longer tracked, with a warning.
+ *
+ * <p>Untrack messages once they have been deleted. Closing the extender releases everything still
+ * tracked with a visibility timeout of 0, so messages that were looked at but not touched are
+ * available again right away instead of after the timeout.
+ *
+ * <p>Keep in mind SQS allows about 120,000 in-flight (received but not deleted) messages per queue,
+ * so a single scan can keep at most that many messages hidden.
+ */
+public class SqsVisibilityExtender implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SqsVisibilityExtender.class);
+  // the longest SQS keeps a received message hidden
+  public static final Duration MAX_HIDDEN = Duration.ofHours(12);
+  // the most batches one renewal round sends at once
+  private static final int MAX_LANES = 32;
+  private final SqsClient sqsClient;
+  private final String queueName;
+  private final String queueUrl;
+  private final int visibilityTimeout;
+  private final long maxHiddenMillis;
+  private final Map<String, Tracked> inFlight = new ConcurrentHashMap<>(); // by messageId
+  private final AtomicInteger lapsed = new AtomicInteger();
+  private final ScheduledExecutorService scheduler;
+  private final ExecutorService renewers;
+  private volatile double batchMillis = 100; // moving average, a guess until the first batch
+
+  /** A tracked message, times are epoch millis. */
+  private record Tracked(String receiptHandle, long receivedAt, long visibleAt) {}
+
+  /**
+   * Starts renewing right away, every half visibilityTimeout.
+   *
+   * @param sqsClient The Client for connecting to SQS.
+   * @param queueName SQS the messages are received from.
+   * @param visibilityTimeout The visibility timeout (seconds) the messages are received with, and
+   *     that each renewal sets again.
+   */
+  public SqsVisibilityExtender(SqsClient sqsClient, String queueName, int visibilityTimeout) {
+    this(sqsClient, queueName, visibilityTimeout, MAX_HIDDEN);
+  }
+
+  /**
+   * The same, with a limit on how long each message is kept hidden.
+   *
+   * @param maxHidden How long after it was received a message stops being renewed, at most {@link
+   *     #MAX_HIDDEN}.
+   */
+  public SqsVisibilityExtender(
+      SqsClient sqsClient, String queueName, int visibilityTimeout, Duration maxHidden) {
+    if (visibilityTimeout < 2) {
+      throw new IllegalArgumentException("The visibilityTimeout must be at least 2 seconds.");
+    }
+    if (maxHidden.isNegative() || maxHidden.compareTo(MAX_HIDDEN) > 0) {
+      throw new IllegalArgumentException("The maxHidden must be between 0 and 12 hours.");
+    }
+    this.sqsClient = sqsClient;
+    this.queueName = queueName;
+    this.queueUrl = qUrl(sqsClient, queueName);
+    this.visibilityTimeout = visibilityTimeout;
+    this.maxHiddenMillis = maxHidden.toMillis();
+    this.scheduler =
+        Executors.newSingleThreadScheduledExecutor(
+            r -> {
+              var t = new Thread(r, "sqs-visibility-" + queueName);
+              t.setDaemon(true);
+              return t;
+            });
+    var threadNumber = new AtomicInteger();
+    this.renewers =
+        Executors.newFixedThreadPool(
+            MAX_LANES,
+            r -> {
+              var name = "sqs-visibility-" + queueName + "-" + threadNumber.incrementAndGet();
+              var t = new Thread(r, name);
+              t.setDaemon(true);
+              return t;
+            });
+    var period = visibilityTimeout / 2;
+    scheduler.scheduleWithFixedDelay(this::renewQuietly, period, period, TimeUnit.SECONDS);
+  }
+
+  /** Start keeping these (just received) messages invisible. */
+  public void track(Collection<Message> messages) {
+    var now = System.currentTimeMillis();
+    for (var message : messages) {
+      inFlight.put(
+          message.messageId(),
+          new Tracked(message.receiptHandle(), now, now + visibilityTimeout * 1000L));
+    }
+  }
+
+  /** Stop renewing these messages, e.g. because they were deleted. */
+  public void untrack(Collection<Message> messages) {
+    for (var message : messages) {
+      inFlight.remove(message.messageId());
+    }
+  }
+
+  /** The number of messages currently being kept invisible. */
+  public int inFlightCount() {
+    return inFlight.size();
+  }
+
+  /** The number of messages that became visible again before they could be renewed. */
+  public int lapsedCount() {
+    return lapsed.get();
+  }
+
+  /**
+   * Throws if any message lapsed, i.e. became visible again while it was tracked, so it may have
+   * been (or be) received again. Callers that rely on every message showing up once check this as
+   * they go.
+   *
+   * @throws IllegalStateException If a message lapsed.
+   */
+  public void checkForLapses() {
+    var count = lapsed.get();
+    if (count > 0) {
+      throw new IllegalStateException(
+          count
+              + " messages on "
+              + queueName
+              + " became visible again before their visibility timeout could be renewed.");
+    }
+  }
+
+  /**
+   * Pushes the visibility timeout of every tracked message out by another visibilityTimeout. This
+   * runs on its own in the background, there is normally no need to call it.
+   */
+  public void renew() {
+    var start = System.currentTimeMillis();
+    var due = new ArrayList<Map.Entry<String, Tracked>>(inFlight.size());
+    for (var entry : inFlight.entrySet()) {
+      var messageId = entry.getKey();
+      var tracked = entry.getValue();
+      if (tracked.visibleAt() <= start) {
+        lapse(messageId, "its visibility timeout ran out first");
+      } else if (start - tracked.receivedAt() + visibilityTimeout * 1000L > maxHiddenMillis) {
+        inFlight.remove(messageId);
+        LOG.warn(
+            "Message {} on {} has been hidden for {}s and can't be kept hidden for another {}s, no"
+                + " longer tracking it.",
+            messageId,
+            queueName,
+            (start - tracked.receivedAt()) / 1000,
+            visibilityTimeout);
+      } else {
+        due.add(Map.entry(messageId, tracked));
+      }
+    }
+    var renewed = changeVisibility(due, visibilityTimeout);
+    var elapsed = System.currentTimeMillis() - start;
+    LOG.debug("Renewed the visibility of {} messages on {} in {}ms.", renewed, queueName, elapsed);
+    if (elapsed > visibilityTimeout * 500L) {
+      LOG.warn(
+          "Renewing {} messages on {} took {}ms, which is over half the visibility timeout.",
+          renewed,
+          queueName,
+          elapsed);
+    }
+  }
+
+  /** Stops the renewals, and makes every message still tracked visible again right away. */
+  @Override
+  public void close() {
+    scheduler.shutdown();
+    try {
+      if (!scheduler.awaitTermination(visibilityTimeout, TimeUnit.SECONDS)) {
+        scheduler.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      scheduler.shutdownNow();
+      Thread.currentThread().interrupt(); // Restore interrupt status
+    }
+    try {
+      var released = changeVisibility(List.copyOf(inFlight.entrySet()), 0);
+      if (released > 0) {
+        LOG.info("Released {} untouched messages back onto {}.", released, queueName);
+      }
+    } finally {
+      inFlight.clear();
+      renewers.shutdownNow();
+    }
+  }
+
+  private void renewQuietly() {
+    try {
+      renew();
+    } catch (SdkException e) {
+      // don't let one bad round cancel the schedule, the next round will try again
+      LOG.error("Failed to renew the visibility timeout of messages on {}.", queueName, e);
+    }
+  }
+
+  private void lapse(String messageId, String reason) {
+    if (inFlight.remove(messageId) != null) {
+      lapsed.incrementAndGet();
+      LOG.error(
+          "Message {} on {} became visible again before it was renewed, {}.",
+          messageId,
+          queueName,
+          reason);
+    }
+  }
+
+  /**
+   * ChangeMessageVisibilityBatch, 10 at a time, on as many lanes as it takes for all of them to be
+   * done in a quarter of the visibility timeout.
+   *
+   * @return The number of messages changed.
+   */
+  private int changeVisibility(List<Map.Entry<String, Tracked>> messages, int timeout) {
+    var batches = new ArrayList<List<Map.Entry<String, Tracked>>>();
+    for (var from = 0; from < messages.size(); from += SQS_MAX_BATCH_SIZE) {
+      batches.add(messages.subList(from, Math.min(from + SQS_MAX_BATCH_SIZE, messages.size())));
+    }
+    var lanes =
+        Math.min(
+            Math.min(batches.size(), MAX_LANES),
+            (int) Math.ceil(batches.size() * batchMillis / (visibilityTimeout * 250.0)));
+    if (lanes <= 1) {
+      var changed = 0;
+      for (var batch : batches) {
+        changed += changeVisibilityBatch(batch, timeout);
+      }
+      return changed;
+    }
+    var futures = new ArrayList<CompletableFuture<Integer>>(lanes);
+    for (var lane = 0; lane < lanes; lane++) {
+      var first = lane;
+      futures.add(
+          CompletableFuture.supplyAsync(
+              () -> {
+                var changed = 0;
+                for (var i = first; i < batches.size(); i += lanes) {
+                  changed += changeVisibilityBatch(batches.get(i), timeout);
+                }
+                return changed;
+              },
+              renewers));
+    }
+    try {
+      CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException cause ? cause : e;
+    }
+    return futures.stream().mapToInt(CompletableFuture::join).sum();
+  }
+
+  /**
+   * One ChangeMessageVisibilityBatch. Messages that SQS says are gone (deleted, or their receipt
+   * handle expired) are dropped from tracking, and ones it says are not in flight anymore lapsed.
+   */
+  private int changeVisibilityBatch(List<Map.Entry<String, Tracked>> batch, int timeout) {
+    var entries = new ArrayList<ChangeMessageVisibilityBatchRequestEntry>(batch.size());
+    for (var i = 0; i < batch.size(); i++) {
+      entries.add(
+          ChangeMessageVisibilityBatchRequestEntry.builder()
+              .id(Integer.toString(i))
+              .receiptHandle(batch.get(i).getValue().receiptHandle())
+              .visibilityTimeout(timeout)
+              .build());
+    }
+    var request =
+        ChangeMessageVisibilityBatchRequest.builder().queueUrl(queueUrl).entries(entries).build();
+    var start = System.currentTimeMillis();
+    var response =
+        SqsRateController.forQueue(queueUrl)
+            .call(() -> sqsClient.changeMessageVisibilityBatch(request));
+    awsResponseValidation(response);
+    batchMillis = batchMillis * 0.8 + (System.currentTimeMillis() - start) * 0.2;
+    var failed = new HashSet<String>();
+    for (var error : response.failed()) {
+      var messageId = batch.get(Integer.parseInt(error.id())).getKey();
+      failed.add(messageId);
+      if (timeout > 0 && error.code().endsWith("MessageNotInflight")) {
+        lapse(messageId, "SQS says it is not in flight");
+      } else if (timeout > 0) {
+        LOG.warn(
+            "Could not change the visibility of message {} on {}, no longer tracking it: code={}",
+            messageId,
+            queueName,
+            error.code());
+        inFlight.remove(messageId);
+      }
+    }
+    var visibleAt = start + timeout * 1000L;
+    for (var message : batch) {
+      if (!failed.contains(message.getKey())) {
+        // unless it was tracked again with a new receipt handle in the meantime
+        inFlight.computeIfPresent(
+            message.getKey(),
+            (id, tracked) ->
+                tracked.receiptHandle().equals(message.getValue().receiptHandle())
+                    ? new Tracked(tracked.receiptHandle(), tracked.receivedAt(), visibleAt)
+                    : tracked);
+      }
+    }
+    return response.successful().size();
+  }
+}
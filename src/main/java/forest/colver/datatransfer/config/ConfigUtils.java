@@ -4,9 +4,11 @@ import static java.util.UUID.randomUUID;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -88,6 +90,21 @@ public class ConfigUtils {
     }
   }
 
+  /**
+   * Same as {@link #writeFile(String, byte[])}, but copies the contents from a stream (which is
+   * closed afterwards), so a big payload is never all in memory.
+   */
+  public static void writeFile(String fullyQualifiedFilePath, InputStream contents) {
+    var path = Paths.get(fullyQualifiedFilePath);
+    try (contents) {
+      Files.createDirectories(path.getParent());
+      Files.copy(contents, path, StandardCopyOption.REPLACE_EXISTING);
+      LOG.info("File written to: {}", path);
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to write file: " + path, e);
+    }
+  }
+
   public static void deleteFile(String fullyQualifiedFilePath) {
     try {
       Files.delete(Paths.get(fullyQualifiedFilePath));
@@ -1,6 +1,6 @@
 package forest.colver.datatransfer.hybrid;
 
-import static forest.colver.datatransfer.aws.AwsUtils.getS3Client;
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
 import static forest.colver.datatransfer.aws.S3Operations.s3Consume;
 import static forest.colver.datatransfer.aws.S3Operations.s3Get;
 import static forest.colver.datatransfer.aws.S3Operations.s3List;
@@ -35,11 +35,10 @@ public class S3AndBlobStorage {
       String endpoint,
       String containerName)
       throws IOException {
-    try (var s3Client = getS3Client(awsCp)) {
-      var response = s3Consume(s3Client, bucket, objectKey);
-      var contents = new String(response.readAllBytes());
-      blobPut(connectStr, endpoint, containerName, objectKey, contents);
-    }
+    var s3Client = s3Client(awsCp);
+    var response = s3Consume(s3Client, bucket, objectKey);
+    var contents = new String(response.readAllBytes());
+    blobPut(connectStr, endpoint, containerName, objectKey, contents);
   }
 
   /**
@@ -61,11 +60,10 @@ public class S3AndBlobStorage {
       String endpoint,
       String containerName)
       throws IOException {
-    try (var s3Client = getS3Client(awsCp)) {
-      var response = s3Get(s3Client, bucket, objectKey);
-      var contents = new String(response.readAllBytes());
-      blobPut(connectStr, endpoint, containerName, objectKey, contents);
-    }
+    var s3Client = s3Client(awsCp);
+    var response = s3Get(s3Client, bucket, objectKey);
+    var contents = new String(response.readAllBytes());
+    blobPut(connectStr, endpoint, containerName, objectKey, contents);
   }
 
   /** Get all of the S3 objects from a directory and move them to an Azure Storage Container. */
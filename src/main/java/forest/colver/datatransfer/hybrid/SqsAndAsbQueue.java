@@ -1,7 +1,7 @@
 package forest.colver.datatransfer.hybrid;
 
+import static forest.colver.datatransfer.aws.AwsClientRegistry.sqsClient;
 import static forest.colver.datatransfer.aws.AwsUtils.convertSqsMessageAttributesToStrings;
-import static forest.colver.datatransfer.aws.AwsUtils.getSqsClient;
 import static forest.colver.datatransfer.aws.SqsOperations.qUrl;
 import static forest.colver.datatransfer.aws.SqsOperations.sqsConsumeOneMessage;
 import static forest.colver.datatransfer.aws.SqsOperations.sqsDepth;
@@ -141,34 +141,33 @@ public class SqsAndAsbQueue {
       var visibilityTimeout =
           COPY_ALL_VISIBILITY_TIMEOUT_BASE + depth; // max is 12 hours or 43,200 seconds
       var moreMessages = true;
-      try (var sqsClient = getSqsClient(awsCreds)) {
-        do {
-          var receiveMessageRequest =
-              ReceiveMessageRequest.builder()
-                  .waitTimeSeconds(COPY_ALL_WAIT_TIME_SECONDS)
-                  .messageAttributeNames("All")
-                  .attributeNames(QueueAttributeName.ALL)
-                  .queueUrl(qUrl(sqsClient, sqs))
-                  .maxNumberOfMessages(COPY_ALL_MAX_MESSAGES_PER_BATCH)
-                  .visibilityTimeout(visibilityTimeout)
-                  .build();
-          var response = sqsClient.receiveMessage(receiveMessageRequest);
-          if (!response.messages().isEmpty()) {
-            for (var message : response.messages()) {
-              counter++;
-              Map<String, Object> properties =
-                  new HashMap<>(convertSqsMessageAttributesToStrings(message.messageAttributes()));
-              asbSend(
-                  asbConnectionString,
-                  asbQueueName,
-                  createServiceBusMessage(message.body(), properties));
-              LOG.info("Copied message #{}", counter);
-            }
-          } else {
-            moreMessages = false;
+      var sqsClient = sqsClient(awsCreds);
+      do {
+        var receiveMessageRequest =
+            ReceiveMessageRequest.builder()
+                .waitTimeSeconds(COPY_ALL_WAIT_TIME_SECONDS)
+                .messageAttributeNames("All")
+                .attributeNames(QueueAttributeName.ALL)
+                .queueUrl(qUrl(sqsClient, sqs))
+                .maxNumberOfMessages(COPY_ALL_MAX_MESSAGES_PER_BATCH)
+                .visibilityTimeout(visibilityTimeout)
+                .build();
+        var response = sqsClient.receiveMessage(receiveMessageRequest);
+        if (!response.messages().isEmpty()) {
+          for (var message : response.messages()) {
+            counter++;
+            Map<String, Object> properties =
+                new HashMap<>(convertSqsMessageAttributesToStrings(message.messageAttributes()));
+            asbSend(
+                asbConnectionString,
+                asbQueueName,
+                createServiceBusMessage(message.body(), properties));
+            LOG.info("Copied message #{}", counter);
           }
-        } while (moreMessages);
-      }
+        } else {
+          moreMessages = false;
+        }
+      } while (moreMessages);
       LOG.info("Copied {} messages", counter);
     } else {
       counter = -1;
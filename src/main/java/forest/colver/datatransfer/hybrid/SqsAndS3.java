@@ -1,19 +1,27 @@
 package forest.colver.datatransfer.hybrid;
 
+import static forest.colver.datatransfer.aws.AwsClientRegistry.s3Client;
+import static forest.colver.datatransfer.aws.AwsUtils.SQS_MAX_MESSAGE_BYTES;
 import static forest.colver.datatransfer.aws.AwsUtils.convertSqsMessageAttributesToStrings;
-import static forest.colver.datatransfer.aws.AwsUtils.getS3Client;
+import static forest.colver.datatransfer.aws.S3Operations.s3Copy;
 import static forest.colver.datatransfer.aws.S3Operations.s3Delete;
 import static forest.colver.datatransfer.aws.S3Operations.s3Get;
 import static forest.colver.datatransfer.aws.S3Operations.s3Head;
 import static forest.colver.datatransfer.aws.S3Operations.s3Put;
+import static forest.colver.datatransfer.aws.SqsBatchOperations.payloadSize;
 import static forest.colver.datatransfer.aws.SqsOperations.sqsConsumeOneMessage;
 import static forest.colver.datatransfer.aws.SqsOperations.sqsReadOneMessage;
 import static forest.colver.datatransfer.aws.SqsOperations.sqsSend;
 
+import forest.colver.datatransfer.aws.SqsClaimCheck;
+import forest.colver.datatransfer.aws.SqsPayloadCodec;
 import java.io.IOException;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.sqs.model.Message;
 
 public class SqsAndS3 {
 
@@ -51,48 +59,68 @@ public class SqsAndS3 {
 
   /**
    * Retrieve an object from S3, check that the size is not too big for SQS, and then place it on an
-   * SQS.
+   * SQS. With {@link SqsPayloadCodec} on, an object that compresses down to a size SQS takes is
+   * sent compressed, and if it is still too big and {@link SqsClaimCheck} is on, the object is
+   * moved to the claim-check bucket instead (inside S3) and a pointer to it is placed on the SQS.
    */
   public static void moveS3ObjectToSqs(
       AwsCredentialsProvider awsCreds, String bucket, String objectKey, String sqs)
       throws IOException {
-    try (var s3Client = getS3Client(awsCreds)) {
-      // find out how big the object is
-      var size = s3Head(s3Client, bucket, objectKey).contentLength();
-      LOG.info("Object size: {}", size);
-      // SQS The maximum is 262,144 bytes (256 KiB)
-      if (size < 262_144) {
-        try (var obj = s3Get(s3Client, bucket, objectKey)) {
-          sqsSend(awsCreds, sqs, new String(obj.readAllBytes()));
-        }
-        s3Delete(s3Client, bucket, objectKey);
-      } else {
-        LOG.error(
-            "The S3 object size is greater than 256K, which is too big for SQS, and therefore cannot be moved.");
-      }
+    var s3Client = s3Client(awsCreds);
+    if (sendS3ObjectToSqs(awsCreds, s3Client, bucket, objectKey, sqs)) {
+      s3Delete(s3Client, bucket, objectKey);
+    } else {
+      LOG.error(
+          "The S3 object size is greater than 256K, which is too big for SQS, and therefore cannot be moved.");
     }
   }
 
   /**
    * Copy an object from S3, check that the size is not too big for SQS, and then place it on an
-   * SQS.
+   * SQS. Too big objects are compressed or sent by claim-check, same as {@link
+   * #moveS3ObjectToSqs(AwsCredentialsProvider, String, String, String) moveS3ObjectToSqs}, except
+   * the claim-check payload is a copy of the object.
    */
   public static void copyS3ObjectToSqs(
       AwsCredentialsProvider awsCreds, String bucket, String objectKey, String sqs)
       throws IOException {
-    try (var s3Client = getS3Client(awsCreds)) {
-      // find out how big the object is
-      var size = s3Head(s3Client, bucket, objectKey).contentLength();
-      LOG.info("Object size: {}", size);
-      // SQS The maximum is 262,144 bytes (256 KiB)
-      if (size < 262_144) {
-        try (var obj = s3Get(s3Client, bucket, objectKey)) {
-          sqsSend(awsCreds, sqs, new String(obj.readAllBytes()));
-        }
-      } else {
-        LOG.error(
-            "The S3 object size is greater than 256K, which is too big for SQS, and therefore cannot be copied.");
+    var s3Client = s3Client(awsCreds);
+    if (!sendS3ObjectToSqs(awsCreds, s3Client, bucket, objectKey, sqs)) {
+      LOG.error(
+          "The S3 object size is greater than 256K, which is too big for SQS, and therefore cannot be copied.");
+    }
+  }
+
+  /** Places the object on the SQS, returns false if it is too big and nothing was sent. */
+  private static boolean sendS3ObjectToSqs(
+      AwsCredentialsProvider awsCreds,
+      S3Client s3Client,
+      String bucket,
+      String objectKey,
+      String sqs)
+      throws IOException {
+    // find out how big the object is
+    var size = s3Head(s3Client, bucket, objectKey).contentLength();
+    LOG.info("Object size: {}", size);
+    // SQS The maximum is 262,144 bytes (256 KiB)
+    if (size < SQS_MAX_MESSAGE_BYTES || SqsPayloadCodec.mightFit(size)) {
+      String payload;
+      try (var obj = s3Get(s3Client, bucket, objectKey)) {
+        payload = new String(obj.readAllBytes());
+      }
+      var message = SqsPayloadCodec.encode(Message.builder().body(payload).build());
+      if (payloadSize(message) < SQS_MAX_MESSAGE_BYTES) {
+        sqsSend(awsCreds, sqs, message);
+        return true;
       }
+      LOG.info("Compressed, the object is still {} bytes.", payloadSize(message));
+    }
+    if (SqsClaimCheck.config().enabled()) {
+      var pointer = SqsClaimCheck.newPointer(SqsClaimCheck.config());
+      s3Copy(s3Client, bucket, objectKey, pointer.bucket(), pointer.key());
+      sqsSend(awsCreds, sqs, SqsClaimCheck.pointerMessage(pointer, size, Map.of()));
+      return true;
     }
+    return false;
   }
 }
@@ -0,0 +1,52 @@
+package forest.colver.datatransfer;
+
+import static forest.colver.datatransfer.aws.AwsUtils.profileCreds;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.AwsClientRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+
+public class AwsClientRegistryTests {
+
+  private static final StaticCredentialsProvider CREDS =
+      StaticCredentialsProvider.create(AwsBasicCredentials.create("akid", "secret"));
+
+  @AfterEach
+  public void tearDown() {
+    AwsClientRegistry.closeAll();
+  }
+
+  @Test
+  public void testSameCredsAndRegionShareOneClient() {
+    var first = AwsClientRegistry.sqsClient(CREDS);
+    var second = AwsClientRegistry.sqsClient(CREDS);
+    assertThat(second).isSameAs(first);
+    assertThat(AwsClientRegistry.size()).isOne();
+  }
+
+  @Test
+  public void testClientsAreKeyedByRegionAndService() {
+    var east = AwsClientRegistry.sqsClient(CREDS);
+    var west = AwsClientRegistry.sqsClient(CREDS, Region.US_WEST_2);
+    AwsClientRegistry.s3Client(CREDS);
+    assertThat(west).isNotSameAs(east);
+    assertThat(AwsClientRegistry.size()).isEqualTo(3);
+  }
+
+  @Test
+  public void testCloseAllEmptiesTheRegistry() {
+    var before = AwsClientRegistry.s3Client(CREDS);
+    AwsClientRegistry.closeAll();
+    assertThat(AwsClientRegistry.size()).isZero();
+    assertThat(AwsClientRegistry.s3Client(CREDS)).isNotSameAs(before);
+  }
+
+  @Test
+  public void testProfileCredsAreMemoized() {
+    assertThat(profileCreds("some-profile")).isSameAs(profileCreds("some-profile"));
+  }
+}
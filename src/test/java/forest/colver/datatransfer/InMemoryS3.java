@@ -0,0 +1,680 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.core.sync.ResponseTransformer;
+import software.amazon.awssdk.http.AbortableInputStream;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CommonPrefix;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyPartResult;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectTaggingResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.Tag;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * S3 buckets in memory, for the unit tests. Objects are kept in one sorted map keyed
+ * "bucket/key", and listed like S3 does: prefix, delimiter, startAfter, and pages of maxKeys with a
+ * continuation token that carries on after the last key. Multipart uploads and copies are put
+ * together on complete. Every call is recorded, so tests can check what was asked for.
+ */
+class InMemoryS3 implements S3Client {
+
+  final ConcurrentSkipListMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+  final AtomicInteger lists = new AtomicInteger();
+  final AtomicInteger delimiterLists = new AtomicInteger();
+  final AtomicInteger heads = new AtomicInteger();
+  final AtomicInteger gets = new AtomicInteger();
+  final AtomicInteger puts = new AtomicInteger();
+  final AtomicInteger copies = new AtomicInteger();
+  final AtomicInteger aborted = new AtomicInteger();
+  final AtomicInteger mostLists = new AtomicInteger(); // most list calls at the same time
+  final AtomicInteger mostTransfers = new AtomicInteger(); // same for get, copy and part calls
+  final List<Integer> deleteBatchSizes = new CopyOnWriteArrayList<>();
+  final List<Boolean> quiet = new CopyOnWriteArrayList<>();
+  final Set<String> deleted = ConcurrentHashMap.newKeySet(); // "key" or "key:versionId"
+  final Map<String, Integer> deleteErrors = new ConcurrentHashMap<>(); // SlowDowns left per key
+  final List<String> copyRanges = new CopyOnWriteArrayList<>();
+  final List<String> copyIfMatch = new CopyOnWriteArrayList<>();
+  final List<Integer> partSizes = new CopyOnWriteArrayList<>();
+  final List<String> partChecksums = new CopyOnWriteArrayList<>();
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  private final AtomicInteger uploadIds = new AtomicInteger();
+  private final AtomicInteger listsInFlight = new AtomicInteger();
+  private final AtomicInteger transfersInFlight = new AtomicInteger();
+
+  /** Latency added to every list, get, copy and part call. */
+  volatile Duration latency = Duration.ZERO;
+
+  /** The last CreateMultipartUpload request. */
+  volatile CreateMultipartUploadRequest created;
+
+  volatile int completedParts;
+
+  /** Listing exactly this prefix is AccessDenied. */
+  volatile String failListPrefix;
+
+  /** Copying this source key is an InternalError. */
+  volatile String failCopyKey;
+
+  /** Copying this source key fails with something that isn't an SdkException. */
+  volatile String brokenCopyKey;
+
+  /** This part number fails, an UploadPart with a reset connection, an UploadPartCopy with 412. */
+  volatile int failPart = -1;
+
+  /** A ranged GET starting here times out. */
+  volatile long failRangeStart = -1;
+
+  /**
+   * An object. The content is null for objects that only have a size, which is enough for
+   * listings, heads and copies.
+   */
+  record StoredObject(
+      byte[] content,
+      long size,
+      String eTag,
+      Instant lastModified,
+      String contentType,
+      Map<String, String> metadata,
+      Map<String, String> tags,
+      String checksumCRC32C,
+      String checksumCRC64NVME,
+      String serverSideEncryption) {
+
+    /** An object with this content, and its MD5 as the ETag like a single PUT gets. */
+    static StoredObject of(byte[] content) {
+      return new StoredObject(
+          content,
+          content.length,
+          md5ETag(content),
+          Instant.now(),
+          null,
+          Map.of(),
+          Map.of(),
+          null,
+          null,
+          null);
+    }
+
+    static StoredObject of(String content) {
+      return of(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** An object without content, its ETag only depends on the size. */
+    static StoredObject ofSize(long size) {
+      return new StoredObject(
+          null,
+          size,
+          "\"etag-" + size + "\"",
+          Instant.now(),
+          null,
+          Map.of(),
+          Map.of(),
+          null,
+          null,
+          null);
+    }
+
+    StoredObject withETag(String eTag) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withLastModified(Instant lastModified) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withContentType(String contentType) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withMetadata(Map<String, String> metadata) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withTags(Map<String, String> tags) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withChecksumCRC32C(String checksumCRC32C) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withChecksumCRC64NVME(String checksumCRC64NVME) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    StoredObject withServerSideEncryption(String serverSideEncryption) {
+      return new StoredObject(
+          content,
+          size,
+          eTag,
+          lastModified,
+          contentType,
+          metadata,
+          tags,
+          checksumCRC32C,
+          checksumCRC64NVME,
+          serverSideEncryption);
+    }
+
+    S3Object summary(String key) {
+      return S3Object.builder()
+          .key(key)
+          .size(size)
+          .eTag(eTag)
+          .lastModified(lastModified)
+          .storageClass("STANDARD")
+          .build();
+    }
+  }
+
+  /** A multipart upload or copy in progress. */
+  private record Upload(
+      CreateMultipartUploadRequest request, Map<Integer, StoredObject> parts) {}
+
+  static SdkHttpResponse ok() {
+    return SdkHttpResponse.builder().statusCode(200).build();
+  }
+
+  void put(String bucket, String key, StoredObject object) {
+    objects.put(bucket + "/" + key, object);
+  }
+
+  StoredObject get(String bucket, String key) {
+    return objects.get(bucket + "/" + key);
+  }
+
+  byte[] bytes(String bucket, String key) {
+    var object = get(bucket, key);
+    return object == null ? null : object.content();
+  }
+
+  String text(String bucket, String key) {
+    var bytes = bytes(bucket, key);
+    return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /** The keys in the bucket, in order. */
+  List<String> keys(String bucket) {
+    return objects.keySet().stream()
+        .filter(k -> k.startsWith(bucket + "/"))
+        .map(k -> k.substring(bucket.length() + 1))
+        .toList();
+  }
+
+  void removePrefix(String bucket, String prefix) {
+    objects.keySet().removeIf(k -> k.startsWith(bucket + "/" + prefix));
+  }
+
+  @Override
+  public ListObjectsV2Response listObjectsV2(ListObjectsV2Request request) {
+    lists.incrementAndGet();
+    if (request.delimiter() != null) {
+      delimiterLists.incrementAndGet();
+    }
+    var prefix = request.prefix() == null ? "" : request.prefix();
+    if (prefix.equals(failListPrefix)) {
+      throw S3Exception.builder().statusCode(403).message("AccessDenied").build();
+    }
+    return call(listsInFlight, mostLists, () -> page(request, prefix));
+  }
+
+  private ListObjectsV2Response page(ListObjectsV2Request request, String prefix) {
+    var bucket = request.bucket() + "/";
+    var after =
+        request.continuationToken() != null ? request.continuationToken() : request.startAfter();
+    var tail =
+        after == null
+            ? objects.tailMap(bucket + prefix)
+            : objects.tailMap(bucket + after, false);
+    var contents = new ArrayList<S3Object>();
+    var commonPrefixes = new LinkedHashSet<String>();
+    String last = null;
+    var truncated = false;
+    for (var entry : tail.entrySet()) {
+      if (!entry.getKey().startsWith(bucket + prefix)) {
+        break;
+      }
+      var key = entry.getKey().substring(bucket.length());
+      var rest = key.substring(prefix.length());
+      var folder =
+          request.delimiter() != null && rest.contains(request.delimiter())
+              ? prefix + rest.substring(0, rest.indexOf(request.delimiter()) + 1)
+              : null;
+      if ((folder == null || !commonPrefixes.contains(folder))
+          && contents.size() + commonPrefixes.size() == request.maxKeys()) {
+        truncated = true;
+        break;
+      }
+      if (folder != null) {
+        commonPrefixes.add(folder);
+      } else {
+        contents.add(entry.getValue().summary(key));
+      }
+      last = key;
+    }
+    return (ListObjectsV2Response)
+        ListObjectsV2Response.builder()
+            .contents(contents)
+            .commonPrefixes(
+                commonPrefixes.stream().map(p -> CommonPrefix.builder().prefix(p).build()).toList())
+            .keyCount(contents.size() + commonPrefixes.size())
+            .isTruncated(truncated)
+            .nextContinuationToken(truncated ? last : null)
+            .sdkHttpResponse(ok())
+            .build();
+  }
+
+  @Override
+  public HeadObjectResponse headObject(HeadObjectRequest request) {
+    heads.incrementAndGet();
+    var object = existing(request.bucket(), request.key());
+    return (HeadObjectResponse)
+        HeadObjectResponse.builder()
+            .contentLength(object.size())
+            .eTag(object.eTag())
+            .lastModified(object.lastModified())
+            .contentType(object.contentType())
+            .metadata(object.metadata())
+            .checksumCRC32C(object.checksumCRC32C())
+            .checksumCRC64NVME(object.checksumCRC64NVME())
+            .serverSideEncryption(object.serverSideEncryption())
+            .sdkHttpResponse(ok())
+            .build();
+  }
+
+  @Override
+  public GetObjectTaggingResponse getObjectTagging(GetObjectTaggingRequest request) {
+    var tags =
+        existing(request.bucket(), request.key()).tags().entrySet().stream()
+            .map(t -> Tag.builder().key(t.getKey()).value(t.getValue()).build())
+            .toList();
+    return (GetObjectTaggingResponse)
+        GetObjectTaggingResponse.builder().tagSet(tags).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public <T> T getObject(
+      GetObjectRequest request, ResponseTransformer<GetObjectResponse, T> transformer) {
+    var object = existing(request.bucket(), request.key());
+    if (request.ifMatch() != null && !request.ifMatch().equals(object.eTag())) {
+      throw S3Exception.builder().statusCode(412).message("PreconditionFailed").build();
+    }
+    gets.incrementAndGet();
+    var first = 0L;
+    var last = object.size() - 1;
+    if (request.range() != null) {
+      var range = request.range().substring("bytes=".length()).split("-");
+      first = Long.parseLong(range[0]);
+      last = Math.min(last, Long.parseLong(range[1]));
+    }
+    if (first == failRangeStart) {
+      throw SdkClientException.create("Unable to execute HTTP request: Read timed out");
+    }
+    var bytes =
+        call(
+            transfersInFlight,
+            mostTransfers,
+            slice(object.content(), first, last));
+    var response =
+        (GetObjectResponse)
+            GetObjectResponse.builder()
+                .contentLength((long) bytes.length)
+                .eTag(object.eTag())
+                .sdkHttpResponse(
+                    SdkHttpResponse.builder()
+                        .statusCode(request.range() == null ? 200 : 206)
+                        .build())
+                .build();
+    try {
+      return transformer.transform(
+          response, AbortableInputStream.create(new ByteArrayInputStream(bytes)));
+    } catch (SdkException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public PutObjectResponse putObject(PutObjectRequest request, RequestBody requestBody) {
+    puts.incrementAndGet();
+    var object =
+        StoredObject.of(read(requestBody))
+            .withContentType(request.contentType())
+            .withMetadata(request.metadata());
+    put(request.bucket(), request.key(), object);
+    return (PutObjectResponse)
+        PutObjectResponse.builder().eTag(object.eTag()).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public CopyObjectResponse copyObject(CopyObjectRequest request) {
+    copies.incrementAndGet();
+    return call(
+        transfersInFlight,
+        mostTransfers,
+        () -> {
+          if (request.sourceKey().equals(failCopyKey)) {
+            throw S3Exception.builder().statusCode(500).message("We encountered an error").build();
+          }
+          if (request.sourceKey().equals(brokenCopyKey)) {
+            throw new IllegalStateException("Connection pool shut down");
+          }
+          var source = existing(request.sourceBucket(), request.sourceKey());
+          put(request.destinationBucket(), request.destinationKey(), source);
+          return (CopyObjectResponse) CopyObjectResponse.builder().sdkHttpResponse(ok()).build();
+        });
+  }
+
+  @Override
+  public DeleteObjectResponse deleteObject(DeleteObjectRequest request) {
+    objects.remove(request.bucket() + "/" + request.key());
+    return (DeleteObjectResponse) DeleteObjectResponse.builder().sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public DeleteObjectsResponse deleteObjects(DeleteObjectsRequest request) {
+    deleteBatchSizes.add(request.delete().objects().size());
+    quiet.add(Boolean.TRUE.equals(request.delete().quiet()));
+    var errors = new ArrayList<S3Error>();
+    for (var id : request.delete().objects()) {
+      if (deleteErrors.getOrDefault(id.key(), 0) > 0) {
+        deleteErrors.merge(id.key(), -1, Integer::sum);
+        errors.add(
+            S3Error.builder()
+                .key(id.key())
+                .versionId(id.versionId())
+                .code("SlowDown")
+                .message("Please reduce your request rate.")
+                .build());
+      } else {
+        deleted.add(id.versionId() == null ? id.key() : id.key() + ":" + id.versionId());
+        objects.remove(request.bucket() + "/" + id.key());
+      }
+    }
+    return (DeleteObjectsResponse)
+        DeleteObjectsResponse.builder().errors(errors).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public CreateMultipartUploadResponse createMultipartUpload(
+      CreateMultipartUploadRequest request) {
+    created = request;
+    var uploadId = "upload-" + uploadIds.incrementAndGet();
+    uploads.put(uploadId, new Upload(request, new ConcurrentSkipListMap<>()));
+    return (CreateMultipartUploadResponse)
+        CreateMultipartUploadResponse.builder().uploadId(uploadId).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody requestBody) {
+    if (request.partNumber() == failPart) {
+      throw SdkClientException.create("Unable to execute HTTP request: Connection reset");
+    }
+    var bytes = read(requestBody);
+    call(transfersInFlight, mostTransfers, () -> bytes);
+    uploads.get(request.uploadId()).parts().put(request.partNumber(), StoredObject.of(bytes));
+    partSizes.add(bytes.length);
+    return (UploadPartResponse)
+        UploadPartResponse.builder()
+            .eTag("\"part-" + request.partNumber() + "\"")
+            .sdkHttpResponse(ok())
+            .build();
+  }
+
+  @Override
+  public UploadPartCopyResponse uploadPartCopy(UploadPartCopyRequest request) {
+    if (request.partNumber() == failPart) {
+      throw S3Exception.builder().statusCode(412).message("PreconditionFailed").build();
+    }
+    copyRanges.add(request.copySourceRange());
+    copyIfMatch.add(request.copySourceIfMatch());
+    var source = existing(request.sourceBucket(), request.sourceKey());
+    var range = request.copySourceRange().substring("bytes=".length()).split("-");
+    var first = Long.parseLong(range[0]);
+    var last = Long.parseLong(range[1]);
+    var upload = uploads.get(request.uploadId());
+    var part =
+        call(
+            transfersInFlight,
+            mostTransfers,
+            () ->
+                source.content() == null
+                    ? StoredObject.ofSize(last - first + 1)
+                    : StoredObject.of(slice(source.content(), first, last).get()));
+    upload.parts().put(request.partNumber(), part);
+    var checksum =
+        ChecksumAlgorithm.CRC32_C.equals(upload.request().checksumAlgorithm())
+            ? "crc-" + request.partNumber()
+            : null;
+    return (UploadPartCopyResponse)
+        UploadPartCopyResponse.builder()
+            .copyPartResult(
+                CopyPartResult.builder()
+                    .eTag("\"part-" + request.partNumber() + "\"")
+                    .checksumCRC32C(checksum)
+                    .build())
+            .sdkHttpResponse(ok())
+            .build();
+  }
+
+  @Override
+  public CompleteMultipartUploadResponse completeMultipartUpload(
+      CompleteMultipartUploadRequest request) {
+    var upload = uploads.remove(request.uploadId());
+    var parts = request.multipartUpload().parts();
+    var all = new ByteArrayOutputStream();
+    var size = 0L;
+    var hasContent = true;
+    for (var i = 0; i < parts.size(); i++) {
+      var part = parts.get(i);
+      assertThat(part.partNumber()).isEqualTo(i + 1);
+      assertThat(part.eTag()).isEqualTo("\"part-" + part.partNumber() + "\"");
+      if (part.checksumCRC32C() != null) {
+        partChecksums.add(part.checksumCRC32C());
+      }
+      var stored = upload.parts().get(part.partNumber());
+      size += stored.size();
+      if (stored.content() == null) {
+        hasContent = false;
+      } else {
+        all.writeBytes(stored.content());
+      }
+    }
+    completedParts = parts.size();
+    var eTag = "\"multipart-" + parts.size() + "\"";
+    var object =
+        (hasContent ? StoredObject.of(all.toByteArray()) : StoredObject.ofSize(size))
+            .withETag(eTag)
+            .withContentType(upload.request().contentType())
+            .withMetadata(upload.request().metadata());
+    put(request.bucket(), request.key(), object);
+    return (CompleteMultipartUploadResponse)
+        CompleteMultipartUploadResponse.builder().eTag(eTag).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+    aborted.incrementAndGet();
+    uploads.remove(request.uploadId());
+    return (AbortMultipartUploadResponse)
+        AbortMultipartUploadResponse.builder().sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public String serviceName() {
+    return SERVICE_NAME;
+  }
+
+  @Override
+  public void close() {}
+
+  private StoredObject existing(String bucket, String key) {
+    var object = get(bucket, key);
+    if (object == null) {
+      throw NoSuchKeyException.builder().statusCode(404).message("NoSuchKey").build();
+    }
+    return object;
+  }
+
+  /** Runs the call with the latency, keeping track of the most that ran at the same time. */
+  private <T> T call(AtomicInteger inFlight, AtomicInteger most, Supplier<T> call) {
+    most.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    try {
+      Thread.sleep(latency.toMillis());
+      return call.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+      throw new IllegalStateException(e);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  private static Supplier<byte[]> slice(byte[] content, long first, long last) {
+    return () ->
+        content == null ? new byte[0] : Arrays.copyOfRange(content, (int) first, (int) last + 1);
+  }
+
+  private static byte[] read(RequestBody requestBody) {
+    try (var in = requestBody.contentStreamProvider().newStream()) {
+      return in.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static String md5ETag(byte[] content) {
+    try {
+      var md5 = MessageDigest.getInstance("MD5").digest(content);
+      return "\"" + HexFormat.of().formatHex(md5) + "\"";
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,359 @@
+package forest.colver.datatransfer;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpResponse;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.sqs.SqsClient;
+import software.amazon.awssdk.services.sqs.SqsServiceClientConfiguration;
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResponse;
+import software.amazon.awssdk.services.sqs.model.ChangeMessageVisibilityBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesResponse;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResultEntry;
+
+/**
+ * SQS queues in memory, for the unit tests. A receive hands out up to 10 messages that aren't in
+ * flight, and they stay in flight until deleted or given a visibility timeout of 0 (changing the
+ * visibility of a message on the queue that isn't in flight fails, like SQS). Queues named
+ * ".fifo" only hand out the front of each message group, and skip every group that has a message
+ * in flight. Every call is recorded, so tests can check what was asked for.
+ */
+class InMemorySqs implements SqsClient {
+
+  // one provider, the queue URL cache tells accounts apart by it
+  private static final StaticCredentialsProvider CREDS =
+      StaticCredentialsProvider.create(AwsBasicCredentials.create("akid", "secret"));
+  final Map<String, List<Message>> queues = new HashMap<>();
+  final Set<String> inFlight = new HashSet<>(); // receipt handles
+  final Map<String, Integer> delayed = new ConcurrentHashMap<>(); // queue name -> count
+  final AtomicInteger lookups = new AtomicInteger();
+  final AtomicInteger received = new AtomicInteger();
+  final AtomicInteger deleteBatches = new AtomicInteger();
+  final AtomicInteger concurrent = new AtomicInteger();
+  final AtomicInteger maxConcurrent = new AtomicInteger();
+  final List<String> deleted = new CopyOnWriteArrayList<>(); // receipt handles
+  final List<SendMessageBatchRequestEntry> sent = new CopyOnWriteArrayList<>();
+  final List<List<String>> sendCalls = new CopyOnWriteArrayList<>(); // entry ids
+  final Map<String, Integer> visibility = new ConcurrentHashMap<>(); // receipt -> last timeout
+  final List<Integer> visibilityBatchSizes = new CopyOnWriteArrayList<>();
+  final List<GetQueueAttributesRequest> attributeRequests = new CopyOnWriteArrayList<>();
+  final Set<String> gone = ConcurrentHashMap.newKeySet(); // receipt handles SQS no longer knows
+  private final Map<String, Set<String>> deduplicationIds = new HashMap<>();
+  private final Region region;
+
+  /** Latency added to every receive, send, visibility and attributes call. */
+  volatile Duration latency = Duration.ZERO;
+
+  /** Messages never stay hidden, each receive goes round the queue, as if they timed out. */
+  volatile boolean redeliver;
+
+  /** Decides which send entries fail, null for the ones that go through. */
+  volatile Function<SendMessageBatchRequestEntry, BatchResultErrorEntry> sendFailure = e -> null;
+
+  InMemorySqs() {
+    this(Region.US_EAST_1);
+  }
+
+  InMemorySqs(Region region) {
+    this.region = region;
+  }
+
+  /** A fake with count messages on the queue, "id-i" with receipt "receipt-i" and body "body-i". */
+  static InMemorySqs withMessages(String queueName, int count) {
+    return withMessages(
+        queueName,
+        count,
+        i ->
+            Message.builder()
+                .messageId("id-" + i)
+                .receiptHandle("receipt-" + i)
+                .body("body-" + i)
+                .build());
+  }
+
+  /** A fake with count messages on the queue, made from their index. */
+  static InMemorySqs withMessages(String queueName, int count, IntFunction<Message> message) {
+    var sqs = new InMemorySqs();
+    for (var i = 0; i < count; i++) {
+      sqs.add(queueName, message.apply(i));
+    }
+    return sqs;
+  }
+
+  static BatchResultErrorEntry error(String id, String code, boolean senderFault) {
+    return BatchResultErrorEntry.builder().id(id).code(code).senderFault(senderFault).build();
+  }
+
+  static SdkHttpResponse ok() {
+    return SdkHttpResponse.builder().statusCode(200).build();
+  }
+
+  /** The messages on the queue, in flight or not, oldest first. */
+  synchronized List<Message> queue(String queueName) {
+    return queues.computeIfAbsent(queueName, k -> new ArrayList<>());
+  }
+
+  /** Puts a message on the queue, giving it an ID and receipt handle if it has none. */
+  synchronized void add(String queueName, Message message) {
+    var id = message.messageId() == null ? UUID.randomUUID().toString() : message.messageId();
+    var receiptHandle = message.receiptHandle() == null ? id : message.receiptHandle();
+    queue(queueName).add(message.toBuilder().messageId(id).receiptHandle(receiptHandle).build());
+  }
+
+  /** Replaces what is on the queue with visible + inFlight messages. */
+  synchronized void setDepth(String queueName, int visible, int inFlight) {
+    var queue = queue(queueName);
+    queue.forEach(m -> this.inFlight.remove(m.receiptHandle()));
+    queue.clear();
+    for (var i = 0; i < visible + inFlight; i++) {
+      add(queueName, Message.builder().body("message-" + i).build());
+      if (i >= visible) {
+        this.inFlight.add(queue.get(i).receiptHandle());
+      }
+    }
+  }
+
+  @Override
+  public GetQueueUrlResponse getQueueUrl(GetQueueUrlRequest request) {
+    lookups.incrementAndGet();
+    return GetQueueUrlResponse.builder()
+        .queueUrl("https://sqs." + region.id() + ".amazonaws.com/123/" + request.queueName())
+        .build();
+  }
+
+  @Override
+  public ReceiveMessageResponse receiveMessage(ReceiveMessageRequest request) {
+    var batch = call(() -> take(name(request.queueUrl()), request.maxNumberOfMessages()));
+    if (batch.isEmpty()) {
+      sleep(5); // a short long-poll
+    }
+    return (ReceiveMessageResponse)
+        ReceiveMessageResponse.builder().messages(batch).sdkHttpResponse(ok()).build();
+  }
+
+  private synchronized List<Message> take(String queueName, int max) {
+    var queue = queue(queueName);
+    var batch = new ArrayList<Message>();
+    if (redeliver) {
+      while (batch.size() < Math.min(max, queue.size())) {
+        var message = queue.remove(0);
+        queue.add(message);
+        batch.add(message);
+      }
+    } else {
+      var blocked = new HashSet<String>(); // FIFO groups
+      var fifo = queueName.endsWith(".fifo");
+      for (var message : queue) {
+        var groupId =
+            fifo ? message.attributes().get(MessageSystemAttributeName.MESSAGE_GROUP_ID) : null;
+        if (inFlight.contains(message.receiptHandle())) {
+          if (groupId != null) {
+            blocked.add(groupId);
+          }
+        } else if (batch.size() < max && (groupId == null || !blocked.contains(groupId))) {
+          batch.add(message);
+        } else if (groupId != null) {
+          blocked.add(groupId); // nothing behind this one can be handed out
+        }
+      }
+      batch.forEach(m -> inFlight.add(m.receiptHandle()));
+    }
+    received.addAndGet(batch.size());
+    return batch;
+  }
+
+  @Override
+  public SendMessageBatchResponse sendMessageBatch(SendMessageBatchRequest request) {
+    return call(() -> send(name(request.queueUrl()), request.entries()));
+  }
+
+  private synchronized SendMessageBatchResponse send(
+      String queueName, List<SendMessageBatchRequestEntry> entries) {
+    sendCalls.add(entries.stream().map(SendMessageBatchRequestEntry::id).toList());
+    var seen = deduplicationIds.computeIfAbsent(queueName, k -> new HashSet<>());
+    var successful = new ArrayList<SendMessageBatchResultEntry>();
+    var failed = new ArrayList<BatchResultErrorEntry>();
+    for (var entry : entries) {
+      var error = sendFailure.apply(entry);
+      if (error != null) {
+        failed.add(error);
+        continue;
+      }
+      sent.add(entry);
+      var messageId = UUID.randomUUID().toString();
+      successful.add(
+          SendMessageBatchResultEntry.builder().id(entry.id()).messageId(messageId).build());
+      if (entry.messageDeduplicationId() != null && !seen.add(entry.messageDeduplicationId())) {
+        continue; // a repeat, SQS says it was sent but drops it
+      }
+      var attributes = new HashMap<MessageSystemAttributeName, String>();
+      if (entry.messageGroupId() != null) {
+        attributes.put(MessageSystemAttributeName.MESSAGE_GROUP_ID, entry.messageGroupId());
+        attributes.put(
+            MessageSystemAttributeName.MESSAGE_DEDUPLICATION_ID, entry.messageDeduplicationId());
+      }
+      add(
+          queueName,
+          Message.builder()
+              .messageId(messageId)
+              .body(entry.messageBody())
+              .messageAttributes(entry.messageAttributes())
+              .attributes(attributes)
+              .build());
+    }
+    return (SendMessageBatchResponse)
+        SendMessageBatchResponse.builder()
+            .successful(successful)
+            .failed(failed)
+            .sdkHttpResponse(ok())
+            .build();
+  }
+
+  @Override
+  public synchronized DeleteMessageBatchResponse deleteMessageBatch(
+      DeleteMessageBatchRequest request) {
+    deleteBatches.incrementAndGet();
+    var handles = new HashSet<String>();
+    var successful = new ArrayList<DeleteMessageBatchResultEntry>();
+    for (var entry : request.entries()) {
+      handles.add(entry.receiptHandle());
+      deleted.add(entry.receiptHandle());
+      inFlight.remove(entry.receiptHandle());
+      successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+    }
+    queue(name(request.queueUrl())).removeIf(m -> handles.contains(m.receiptHandle()));
+    return (DeleteMessageBatchResponse)
+        DeleteMessageBatchResponse.builder().successful(successful).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public ChangeMessageVisibilityBatchResponse changeMessageVisibilityBatch(
+      ChangeMessageVisibilityBatchRequest request) {
+    return call(() -> changeVisibility(name(request.queueUrl()), request.entries()));
+  }
+
+  private synchronized ChangeMessageVisibilityBatchResponse changeVisibility(
+      String queueName, List<ChangeMessageVisibilityBatchRequestEntry> entries) {
+    visibilityBatchSizes.add(entries.size());
+    var successful = new ArrayList<ChangeMessageVisibilityBatchResultEntry>();
+    var failed = new ArrayList<BatchResultErrorEntry>();
+    for (var entry : entries) {
+      if (gone.contains(entry.receiptHandle())) {
+        failed.add(error(entry.id(), "ReceiptHandleIsInvalid", true));
+        continue;
+      }
+      if (!inFlight.contains(entry.receiptHandle())
+          && queue(queueName).stream()
+              .anyMatch(m -> m.receiptHandle().equals(entry.receiptHandle()))) {
+        failed.add(error(entry.id(), "AWS.SimpleQueueService.MessageNotInflight", true));
+        continue;
+      }
+      visibility.put(entry.receiptHandle(), entry.visibilityTimeout());
+      if (entry.visibilityTimeout() == 0) {
+        inFlight.remove(entry.receiptHandle());
+      }
+      successful.add(ChangeMessageVisibilityBatchResultEntry.builder().id(entry.id()).build());
+    }
+    return (ChangeMessageVisibilityBatchResponse)
+        ChangeMessageVisibilityBatchResponse.builder()
+            .successful(successful)
+            .failed(failed)
+            .sdkHttpResponse(ok())
+            .build();
+  }
+
+  @Override
+  public GetQueueAttributesResponse getQueueAttributes(GetQueueAttributesRequest request) {
+    attributeRequests.add(request);
+    var queueName = name(request.queueUrl());
+    var attributes =
+        call(
+            () -> {
+              synchronized (this) {
+                var hidden =
+                    (int) queue(queueName).stream()
+                        .filter(m -> inFlight.contains(m.receiptHandle()))
+                        .count();
+                return Map.of(
+                    QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES,
+                    Integer.toString(queue(queueName).size() - hidden),
+                    QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE,
+                    Integer.toString(hidden),
+                    QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED,
+                    Integer.toString(delayed.getOrDefault(queueName, 0)));
+              }
+            });
+    return (GetQueueAttributesResponse)
+        GetQueueAttributesResponse.builder().attributes(attributes).sdkHttpResponse(ok()).build();
+  }
+
+  @Override
+  public SqsServiceClientConfiguration serviceClientConfiguration() {
+    return SqsServiceClientConfiguration.builder()
+        .region(region)
+        .credentialsProvider(CREDS)
+        .build();
+  }
+
+  @Override
+  public String serviceName() {
+    return SERVICE_NAME;
+  }
+
+  @Override
+  public void close() {}
+
+  /** Runs the call with the latency, counting how many run at the same time. */
+  private <T> T call(Supplier<T> call) {
+    maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+    try {
+      sleep(latency.toMillis());
+      return call.get();
+    } finally {
+      concurrent.decrementAndGet();
+    }
+  }
+
+  private static String name(String queueUrl) {
+    return queueUrl.substring(queueUrl.lastIndexOf('/') + 1);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt(); // Restore interrupt status
+    }
+  }
+}
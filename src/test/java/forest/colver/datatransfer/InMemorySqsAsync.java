@@ -0,0 +1,79 @@
+package forest.colver.datatransfer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsServiceClientConfiguration;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueUrlResponse;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchResponse;
+
+/**
+ * The SqsAsyncClient over an {@link InMemorySqs}, for the unit tests. Every call is run by the
+ * in-memory SQS on a thread of its own and completes from there, the way the Netty client completes
+ * from its event loop, so the queues, the recorded calls, the latency and the concurrency count are
+ * all the in-memory SQS's.
+ */
+class InMemorySqsAsync implements SqsAsyncClient {
+
+  final InMemorySqs sqs;
+  private final ExecutorService executor =
+      Executors.newCachedThreadPool(
+          r -> {
+            var thread = new Thread(r, "in-memory-sqs-async");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  InMemorySqsAsync(InMemorySqs sqs) {
+    this.sqs = sqs;
+  }
+
+  @Override
+  public CompletableFuture<GetQueueUrlResponse> getQueueUrl(GetQueueUrlRequest request) {
+    return async(() -> sqs.getQueueUrl(request));
+  }
+
+  @Override
+  public CompletableFuture<ReceiveMessageResponse> receiveMessage(ReceiveMessageRequest request) {
+    return async(() -> sqs.receiveMessage(request));
+  }
+
+  @Override
+  public CompletableFuture<SendMessageBatchResponse> sendMessageBatch(
+      SendMessageBatchRequest request) {
+    return async(() -> sqs.sendMessageBatch(request));
+  }
+
+  @Override
+  public CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatch(
+      DeleteMessageBatchRequest request) {
+    return async(() -> sqs.deleteMessageBatch(request));
+  }
+
+  @Override
+  public SqsServiceClientConfiguration serviceClientConfiguration() {
+    return sqs.serviceClientConfiguration();
+  }
+
+  @Override
+  public String serviceName() {
+    return SERVICE_NAME;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  private <T> CompletableFuture<T> async(Supplier<T> call) {
+    return CompletableFuture.supplyAsync(call, executor);
+  }
+}
@@ -0,0 +1,48 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.MessageIdSet;
+import java.util.ArrayList;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+public class MessageIdSetTests {
+
+  @Test
+  public void testAgreesWithHashSetWhileGrowing() {
+    var set = new MessageIdSet(16);
+    var ids = new ArrayList<String>();
+    for (var i = 0; i < 50_000; i++) {
+      ids.add(UUID.randomUUID().toString());
+    }
+    for (var id : ids) {
+      assertThat(set.add(id)).isTrue();
+    }
+    for (var id : ids) {
+      assertThat(set.add(id)).isFalse();
+      assertThat(set.contains(id)).isTrue();
+    }
+    assertThat(set.size()).isEqualTo(ids.size());
+    assertThat(set.contains(UUID.randomUUID().toString())).isFalse();
+  }
+
+  @Test
+  public void testOddIds() {
+    var set = new MessageIdSet();
+    var zero = new UUID(0, 0).toString();
+    assertThat(set.contains(zero)).isFalse();
+    assertThat(set.add(zero)).isTrue();
+    assertThat(set.add(zero)).isFalse();
+    // not UUIDs, these go in the fallback set
+    assertThat(set.add("not-a-uuid")).isTrue();
+    assertThat(set.add("not-a-uuid")).isFalse();
+    assertThat(set.add("0000000g-0000-0000-0000-000000000000")).isTrue();
+    assertThat(set.contains("0000000G-0000-0000-0000-000000000000")).isFalse();
+    // same UUID in upper case
+    var id = UUID.randomUUID().toString();
+    set.add(id);
+    assertThat(set.contains(id.toUpperCase())).isTrue();
+    assertThat(set.size()).isEqualTo(4);
+  }
+}
@@ -0,0 +1,67 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.PayloadMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class PayloadMatcherTests {
+
+  @Test
+  public void testLiteralsReportWhichPatternMatched() {
+    var matcher = PayloadMatcher.literals(List.of("he", "she", "his", "hers"));
+    assertThat(matcher.firstMatch("ushers")).contains("she");
+    assertThat(matcher.firstMatch("this is it")).contains("his");
+    assertThat(matcher.firstMatch("a hershey bar")).contains("he");
+    assertThat(matcher.firstMatch("nothing to see")).isEmpty();
+    assertThat(matcher.firstMatch(null)).isEmpty();
+  }
+
+  @Test
+  public void testFailureLinksFindOverlappingLiterals() {
+    var matcher = PayloadMatcher.literals(List.of("abcd", "bce", "cf"));
+    // "abc" goes down the abcd branch, then 'f' has to fall back to "c" to find "cf"
+    assertThat(matcher.firstMatch("xxabcfyy")).contains("cf");
+    assertThat(matcher.firstMatch("xxabceyy")).contains("bce");
+    assertThat(matcher.firstMatch("xxabcdyy")).contains("abcd");
+    assertThat(matcher.matches("xxabcxyy")).isFalse();
+  }
+
+  @Test
+  public void testLotsOfLiteralsAgreeWithContains() {
+    var patterns = new ArrayList<String>();
+    for (var i = 0; i < 300; i++) {
+      patterns.add("file-" + i + ".csv");
+    }
+    var matcher = PayloadMatcher.literals(patterns);
+    for (var i = 0; i < 400; i++) {
+      var payload = "{\"error\":\"could not deliver file-" + i + ".csv\"}";
+      var expected = patterns.stream().filter(payload::contains).findFirst();
+      assertThat(matcher.firstMatch(payload)).isEqualTo(expected);
+    }
+  }
+
+  @Test
+  public void testRegexesAfterLiterals() {
+    var matcher =
+        PayloadMatcher.builder().regex("order-\\d{5}").literal("lifeflightTestFile").build();
+    assertThat(matcher.firstMatch("order-12345 for lifeflightTestFile"))
+        .contains("lifeflightTestFile");
+    assertThat(matcher.firstMatch("order-12345 failed")).contains("order-\\d{5}");
+    assertThat(matcher.firstMatch("order-123 failed")).isEmpty();
+    assertThat(matcher.patterns()).containsExactly("lifeflightTestFile", "order-\\d{5}");
+  }
+
+  @Test
+  public void testInvalidPatterns() {
+    assertThatThrownBy(() -> PayloadMatcher.builder().build())
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> PayloadMatcher.builder().literal(""))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> PayloadMatcher.builder().regex("(unclosed").build())
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,55 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.S3BatchDeleter;
+import forest.colver.datatransfer.aws.S3BatchDeleter.DeleteConfig;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class S3BatchDeleterTests {
+
+  private static final DeleteConfig CONFIG =
+      DeleteConfig.defaults().withRetryBackoff(Duration.ofMillis(1));
+
+  @Test
+  public void testDeletesAThousandKeysPerRequest() {
+    var s3 = new InMemoryS3();
+    try (var deleter = new S3BatchDeleter(s3, "bucket", CONFIG)) {
+      for (var i = 0; i < 2500; i++) {
+        deleter.delete("logs/" + i + ".gz");
+      }
+      var summary = deleter.finish();
+
+      assertThat(summary.requested()).isEqualTo(2500);
+      assertThat(summary.deleted()).isEqualTo(2500);
+      assertThat(summary.failed()).isZero();
+    }
+    assertThat(s3.deleteBatchSizes).containsExactlyInAnyOrder(1000, 1000, 500);
+    assertThat(s3.deleted).hasSize(2500);
+    assertThat(s3.quiet).containsOnly(true);
+  }
+
+  @Test
+  public void testPerKeyErrorsAreRetried() {
+    var s3 = new InMemoryS3();
+    s3.deleteErrors.put("a/slow", 2); // SlowDown twice, then fine
+    s3.deleteErrors.put("a/locked", 99); // never goes
+    try (var deleter = new S3BatchDeleter(s3, "bucket", CONFIG)) {
+      deleter.delete("a/1");
+      deleter.delete("a/slow");
+      deleter.delete("a/locked");
+      deleter.delete("a/versioned", "v2");
+      var summary = deleter.finish();
+
+      assertThat(summary.deleted()).isEqualTo(3);
+      assertThat(summary.failedKeys()).containsExactly("a/locked");
+      assertThatThrownBy(() -> deleter.delete("a/late"))
+          .isInstanceOf(IllegalStateException.class);
+    }
+    assertThat(s3.deleted).contains("a/1", "a/slow", "a/versioned:v2").doesNotContain("a/locked");
+    // the first request had all 4, the retries only the errors
+    assertThat(s3.deleteBatchSizes).containsExactly(4, 2, 2);
+  }
+}
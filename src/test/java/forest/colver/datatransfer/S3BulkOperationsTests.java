@@ -0,0 +1,141 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.InMemoryS3.StoredObject;
+import forest.colver.datatransfer.aws.S3BatchDeleter.DeleteConfig;
+import forest.colver.datatransfer.aws.S3BulkOperations;
+import forest.colver.datatransfer.aws.S3BulkOperations.BulkCopyConfig;
+import forest.colver.datatransfer.aws.S3MultipartCopy.MultipartCopyConfig;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class S3BulkOperationsTests {
+
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  public void testCopyPrefixCopiesEveryPageInParallel() {
+    var s3 = client();
+    for (var i = 0; i < 2345; i++) {
+      put(s3, "source", "inbound/" + i + ".xml", i);
+    }
+    put(s3, "source", "other/skip-me.xml", 1);
+
+    var summary =
+        S3BulkOperations.s3CopyPrefix(
+            s3, "source", "inbound/", "target", BulkCopyConfig.defaults().withConcurrency(8));
+
+    assertThat(summary.listed()).isEqualTo(2345);
+    assertThat(summary.copied()).isEqualTo(2345);
+    assertThat(summary.failed()).isZero();
+    assertThat(summary.bytesCopied()).isEqualTo(2345L * 2344 / 2);
+    assertThat(s3.keys("target")).hasSize(2345).allMatch(key -> key.startsWith("inbound/"));
+    assertThat(s3.lists.get()).isEqualTo(3);
+    assertThat(s3.mostTransfers.get()).isBetween(2, 8);
+  }
+
+  @Test
+  public void testPartCopiesShareThePoolLeftByTheObjectCopies() {
+    var s3 = client();
+    for (var i = 0; i < 40; i++) {
+      put(s3, "source", "big/" + i + ".zip", 40 * MB);
+    }
+    var config =
+        BulkCopyConfig.defaults()
+            .withMultipartCopy(
+                MultipartCopyConfig.defaults()
+                    .withMultipartThreshold(10 * MB)
+                    .withPartSize(5 * MB));
+
+    var summary = S3BulkOperations.s3CopyPrefix(s3, "source", "big/", "target", config);
+
+    assertThat(summary.copied()).isEqualTo(40);
+    assertThat(s3.copyRanges).hasSize(40 * 8);
+    // 50 connections - 32 object copies leaves 18 for parts, not 32 x 8
+    assertThat(s3.mostTransfers.get()).isBetween(2, 18);
+  }
+
+  @Test
+  public void testCopyPrefixRewritesKeysAndSkipsUnchanged() {
+    var s3 = client();
+    for (var i = 0; i < 50; i++) {
+      put(s3, "bucket", "inbound/2024/" + i + ".xml", 10);
+    }
+    // already copied, and one that changed since
+    for (var i = 0; i < 20; i++) {
+      put(s3, "bucket", "archive/2024/" + i + ".xml", i == 7 ? 11 : 10);
+    }
+    s3.failCopyKey = "inbound/2024/42.xml";
+    s3.brokenCopyKey = "inbound/2024/43.xml";
+
+    var summary =
+        S3BulkOperations.s3CopyPrefix(
+            s3,
+            "bucket",
+            "inbound/2024/",
+            "bucket",
+            BulkCopyConfig.defaults().withDestPrefix("archive/2024/").withSkipUnchanged(true));
+
+    assertThat(summary.listed()).isEqualTo(50);
+    assertThat(summary.skipped()).isEqualTo(19);
+    assertThat(summary.copied()).isEqualTo(29);
+    assertThat(summary.failed()).isEqualTo(2);
+    assertThat(summary.failedKeys())
+        .containsExactlyInAnyOrder("inbound/2024/42.xml", "inbound/2024/43.xml");
+    assertThat(s3.keys("bucket")).contains("archive/2024/7.xml", "archive/2024/49.xml");
+    assertThat(s3.keys("bucket")).doesNotContain("archive/2024/42.xml");
+    assertThat(s3.get("bucket", "archive/2024/7.xml").size()).isEqualTo(10);
+  }
+
+  @Test
+  public void testMovePrefixDeletesWhatWasCopied() {
+    var s3 = client();
+    for (var i = 0; i < 1500; i++) {
+      put(s3, "source", "outbound/" + i + ".xml", 5);
+    }
+    s3.failCopyKey = "outbound/99.xml";
+
+    var summary =
+        S3BulkOperations.s3MovePrefix(
+            s3,
+            "source",
+            "outbound/",
+            "target",
+            BulkCopyConfig.defaults(),
+            DeleteConfig.defaults());
+
+    assertThat(summary.copy().copied()).isEqualTo(1499);
+    assertThat(summary.delete().deleted()).isEqualTo(1499);
+    assertThat(s3.keys("source")).containsExactly("outbound/99.xml");
+    assertThat(s3.keys("target")).hasSize(1499);
+    assertThat(s3.deleteBatchSizes).hasSize(2);
+  }
+
+  @Test
+  public void testDeletePrefixListsOnce() {
+    var s3 = client();
+    for (var i = 0; i < 3210; i++) {
+      put(s3, "bucket", "old/" + i, 1);
+    }
+    put(s3, "bucket", "new/keep", 1);
+
+    var summary = S3BulkOperations.s3DeletePrefix(s3, "bucket", "old/", DeleteConfig.defaults());
+
+    assertThat(summary.deleted()).isEqualTo(3210);
+    assertThat(s3.keys("bucket")).containsExactly("new/keep");
+    assertThat(s3.lists.get()).isEqualTo(4);
+    assertThat(s3.deleteBatchSizes).hasSize(4);
+  }
+
+  /** Copies take a little while, so they overlap. */
+  private static InMemoryS3 client() {
+    var s3 = new InMemoryS3();
+    s3.latency = Duration.ofMillis(1);
+    return s3;
+  }
+
+  private static void put(InMemoryS3 s3, String bucket, String key, long size) {
+    s3.put(bucket, key, StoredObject.ofSize(size));
+  }
+}
@@ -0,0 +1,91 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.InMemoryS3.StoredObject;
+import forest.colver.datatransfer.aws.S3MultipartCopy;
+import forest.colver.datatransfer.aws.S3MultipartCopy.MultipartCopyConfig;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+public class S3MultipartCopyTests {
+
+  private static final long MB = 1024 * 1024;
+  private static final MultipartCopyConfig CONFIG =
+      MultipartCopyConfig.defaults().withMultipartThreshold(10 * MB).withPartSize(5 * MB);
+
+  @Test
+  public void testBigObjectIsCopiedInPartsWithMetadataAndTags() {
+    var s3 = client(23 * MB + 7);
+
+    S3MultipartCopy.s3CopyObject(s3, "source", "archive.zip", "target", "archive.zip", CONFIG);
+
+    assertThat(s3.copyRanges)
+        .containsExactlyInAnyOrder(
+            "bytes=0-5242879",
+            "bytes=5242880-10485759",
+            "bytes=10485760-15728639",
+            "bytes=15728640-20971519",
+            "bytes=20971520-24117254");
+    assertThat(s3.copyIfMatch).containsOnly("\"source-etag\"");
+    assertThat(s3.created.metadata()).containsEntry("batch", "42");
+    assertThat(s3.created.contentType()).isEqualTo("application/zip");
+    assertThat(s3.created.tagging()).isEqualTo("retention=long");
+    assertThat(s3.completedParts).isEqualTo(5);
+    assertThat(s3.copies.get()).isZero();
+  }
+
+  @Test
+  public void testSmallObjectIsOneCopyObject() {
+    var s3 = client(3 * MB);
+
+    S3MultipartCopy.s3CopyObject(s3, "source", "small.xml", "target", "small.xml", CONFIG);
+
+    assertThat(s3.copies.get()).isEqualTo(1);
+    assertThat(s3.copyRanges).isEmpty();
+  }
+
+  @Test
+  public void testVerifyAsksForChecksumsOnEveryPart() {
+    var s3 = client(12 * MB);
+
+    S3MultipartCopy.s3CopyObject(
+        s3, "source", "a.bin", "target", "a.bin", CONFIG.withVerifyChecksum(true));
+
+    assertThat(s3.created.checksumAlgorithm()).isEqualTo(ChecksumAlgorithm.CRC32_C);
+    assertThat(s3.partChecksums).hasSize(3).doesNotContainNull();
+    assertThat(s3.heads.get()).isEqualTo(2); // the source, then the copy
+  }
+
+  @Test
+  public void testFailedPartAbortsTheCopy() {
+    var s3 = client(30 * MB);
+    s3.failPart = 4;
+
+    assertThatThrownBy(
+            () -> S3MultipartCopy.s3CopyObject(s3, "source", "a.bin", "target", "a.bin", CONFIG))
+        .isInstanceOf(S3Exception.class)
+        .hasMessageContaining("PreconditionFailed");
+    assertThat(s3.aborted.get()).isEqualTo(1);
+    assertThat(s3.completedParts).isZero();
+  }
+
+  /** Source objects of the size, with metadata and tags for the copy to carry over. */
+  private static InMemoryS3 client(long size) {
+    var s3 = new InMemoryS3();
+    var object =
+        StoredObject.ofSize(size)
+            .withETag("\"source-etag\"")
+            .withContentType("application/zip")
+            .withMetadata(Map.of("batch", "42"))
+            .withTags(Map.of("retention", "long"));
+    for (var key : List.of("archive.zip", "small.xml", "a.bin")) {
+      s3.put("source", key, object);
+    }
+    return s3;
+  }
+}
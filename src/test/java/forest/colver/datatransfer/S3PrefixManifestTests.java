@@ -0,0 +1,123 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.InMemoryS3.StoredObject;
+import forest.colver.datatransfer.aws.S3PrefixManifest;
+import forest.colver.datatransfer.aws.S3PrefixManifest.Entry;
+import forest.colver.datatransfer.aws.S3PrefixManifest.ManifestConfig;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class S3PrefixManifestTests {
+
+  private static final Instant OLD = Instant.parse("2024-01-01T00:00:00Z");
+  private static final Instant NEW = Instant.now().truncatedTo(ChronoUnit.MILLIS);
+
+  @TempDir private Path dir;
+
+  @Test
+  public void testFirstRefreshListsEverythingAndAnswersLocally() {
+    var s3 = new InMemoryS3();
+    fill(s3, "logs/2024-01/", 2500, OLD);
+    fill(s3, "logs/2024-02/", 10, NEW);
+    put(s3, "logs/readme.txt", 7, NEW);
+
+    var manifest = S3PrefixManifest.open(dir.resolve("logs.manifest"), "bucket", "logs/");
+    var summary = manifest.refresh(s3, ManifestConfig.defaults());
+
+    assertThat(summary.subPrefixes()).isEqualTo(2);
+    assertThat(summary.relisted()).isEqualTo(2);
+    assertThat(summary.listCalls()).isEqualTo(5); // 1 delimiter + 3 pages + 1 page
+    assertThat(manifest.count()).isEqualTo(2511);
+    assertThat(manifest.totalSize()).isEqualTo(2500 * 100 + 10 * 100 + 7);
+    assertThat(manifest.countOlderThan(NEW)).isEqualTo(2500);
+    assertThat(manifest.sizeOlderThan(NEW)).isEqualTo(250_000);
+    assertThat(manifest.entries().map(Entry::key)).isSorted();
+  }
+
+  @Test
+  public void testSavedManifestLoadsBackTheSame() {
+    var s3 = new InMemoryS3();
+    fill(s3, "in/a/", 300, OLD);
+    fill(s3, "in/b/", 5, NEW);
+    var file = dir.resolve("sub").resolve("in.manifest");
+    var manifest = S3PrefixManifest.open(file, "bucket", "in/");
+    manifest.refresh(s3, ManifestConfig.defaults());
+    manifest.save();
+
+    var loaded = S3PrefixManifest.open(file, "bucket", "in/");
+
+    assertThat(loaded.entries().toList()).isEqualTo(manifest.entries().toList());
+    assertThat(loaded.refreshedAt())
+        .isEqualTo(manifest.refreshedAt().truncatedTo(ChronoUnit.MILLIS));
+    assertThat(S3PrefixManifest.open(file, "bucket", "out/").count()).isZero();
+  }
+
+  @Test
+  public void testEntriesAreInS3KeyOrder() {
+    var s3 = new InMemoryS3();
+    // UTF-16 puts the emoji (a surrogate pair) first, UTF-8 the fullwidth A
+    put(s3, "in/a/\uD83D\uDE00.json", 1, OLD);
+    put(s3, "in/a/\uFF21.json", 1, OLD);
+    put(s3, "in/a/b.json", 1, OLD);
+    var file = dir.resolve("in.manifest");
+    var manifest = S3PrefixManifest.open(file, "bucket", "in/");
+    manifest.refresh(s3, ManifestConfig.defaults());
+    manifest.save();
+
+    assertThat(S3PrefixManifest.open(file, "bucket", "in/").entries().map(Entry::key))
+        .containsExactly("in/a/b.json", "in/a/\uFF21.json", "in/a/\uD83D\uDE00.json");
+  }
+
+  @Test
+  public void testIncrementalRefreshOnlyTailChecksKnownSubPrefixes() {
+    var s3 = new InMemoryS3();
+    fill(s3, "in/a/", 2000, OLD);
+    fill(s3, "in/b/", 2000, OLD);
+    fill(s3, "in/c/", 5, OLD);
+    var manifest = S3PrefixManifest.open(dir.resolve("in.manifest"), "bucket", "in/");
+    manifest.refresh(s3, ManifestConfig.defaults());
+
+    put(s3, "in/a/zzz-new", 1, NEW); // added after the last key
+    fill(s3, "in/d/", 3, NEW); // new sub-prefix
+    s3.removePrefix("bucket", "in/c/"); // gone
+    s3.lists.set(0);
+    var summary = manifest.refresh(s3, ManifestConfig.defaults());
+
+    assertThat(summary.relisted()).isEqualTo(1);
+    assertThat(summary.tailChecked()).isEqualTo(2);
+    assertThat(s3.lists.get()).isEqualTo(4); // delimiter, a tail, b tail, d
+    assertThat(manifest.count()).isEqualTo(4004);
+    assertThat(manifest.entries().map(Entry::key)).contains("in/a/zzz-new").isSorted();
+  }
+
+  @Test
+  public void testStaleSubPrefixesAreListedInFull() {
+    var s3 = new InMemoryS3();
+    fill(s3, "in/a/", 20, OLD);
+    var manifest = S3PrefixManifest.open(dir.resolve("in.manifest"), "bucket", "in/");
+    manifest.refresh(s3, ManifestConfig.defaults());
+    s3.removePrefix("bucket", "in/a/0000"); // deletes in the middle, only a full listing sees it
+
+    var summary = manifest.refresh(s3, ManifestConfig.defaults().withRelistAfter(Duration.ZERO));
+
+    assertThat(summary.relisted()).isEqualTo(1);
+    assertThat(summary.tailChecked()).isZero();
+    assertThat(manifest.count()).isEqualTo(10);
+  }
+
+  private static void fill(InMemoryS3 s3, String prefix, int count, Instant lastModified) {
+    for (var i = 0; i < count; i++) {
+      put(s3, prefix + String.format("%05d.json", i), 100, lastModified);
+    }
+  }
+
+  private static void put(InMemoryS3 s3, String key, long size, Instant lastModified) {
+    s3.put("bucket", key, StoredObject.ofSize(size).withLastModified(lastModified));
+  }
+}
@@ -0,0 +1,167 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.InMemoryS3.StoredObject;
+import forest.colver.datatransfer.aws.S3RangedDownload;
+import forest.colver.datatransfer.aws.S3RangedDownload.DownloadConfig;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+public class S3RangedDownloadTests {
+
+  private static final int KB = 1024;
+  private static final DownloadConfig CONFIG =
+      DownloadConfig.defaults()
+          .withPartSize(256 * KB)
+          .withConcurrency(4)
+          .withBufferSize(64 * KB)
+          .withMaxBufferMemory(128 * KB);
+
+  @TempDir private Path dir;
+
+  @Test
+  public void testDownloadsAllRangesAndVerifiesTheMd5() throws IOException {
+    var content = randomBytes(3 * KB * KB + 5);
+    var s3 = client("big.bin", content);
+    var target = dir.resolve("big.bin");
+
+    var summary = S3RangedDownload.s3Download(s3, "bucket", "big.bin", target, CONFIG);
+
+    assertThat(Files.readAllBytes(target)).isEqualTo(content);
+    assertThat(summary.parts()).isEqualTo(13);
+    assertThat(summary.resumedParts()).isZero();
+    assertThat(summary.verifiedWith()).isEqualTo("MD5");
+    assertThat(s3.gets.get()).isEqualTo(13);
+    assertThat(s3.mostTransfers.get()).isBetween(2, 4);
+  }
+
+  @Test
+  public void testVerifiesAgainstTheObjectChecksum() {
+    var content = randomBytes(700 * KB);
+    var crc = new CRC32C();
+    crc.update(content);
+    var multipart =
+        StoredObject.of(content)
+            .withETag("\"abc-3\"") // multipart, so only the CRC32C is any use
+            .withChecksumCRC32C(
+                Base64.getEncoder()
+                    .encodeToString(ByteBuffer.allocate(4).putInt((int) crc.getValue()).array()));
+    var s3 = client("a.bin", content);
+    s3.put("bucket", "a.bin", multipart);
+
+    var summary =
+        S3RangedDownload.s3Download(s3, "bucket", "a.bin", dir.resolve("a.bin"), CONFIG);
+    assertThat(summary.verifiedWith()).isEqualTo("CRC32C");
+
+    s3.put("bucket", "a.bin", multipart.withChecksumCRC32C("AAAAAA=="));
+    assertThatThrownBy(
+            () -> S3RangedDownload.s3Download(s3, "bucket", "a.bin", dir.resolve("b.bin"), CONFIG))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("CRC32C");
+  }
+
+  @Test
+  public void testVerifiesTheCrc64Nvme() {
+    // the CRC-64/NVME check value
+    var content = "123456789".getBytes(StandardCharsets.US_ASCII);
+    var expected =
+        Base64.getEncoder()
+            .encodeToString(ByteBuffer.allocate(8).putLong(0xAE8B14860A799888L).array());
+    var s3 = client("n.bin", content);
+    s3.put(
+        "bucket",
+        "n.bin",
+        StoredObject.of(content).withETag("\"abc-2\"").withChecksumCRC64NVME(expected));
+
+    var summary =
+        S3RangedDownload.s3Download(s3, "bucket", "n.bin", dir.resolve("n.bin"), CONFIG);
+    assertThat(summary.verifiedWith()).isEqualTo("CRC64NVME");
+  }
+
+  @Test
+  public void testOnlySseS3ETagsAreAnMd5() {
+    var content = randomBytes(300 * KB);
+    var s3 = client("e.bin", content);
+    s3.put("bucket", "e.bin", StoredObject.of(content).withServerSideEncryption("AES256"));
+    var summary =
+        S3RangedDownload.s3Download(s3, "bucket", "e.bin", dir.resolve("sse-s3.bin"), CONFIG);
+    assertThat(summary.verifiedWith()).isEqualTo("MD5");
+
+    // the ETag of a KMS encrypted object isn't its MD5, so there is nothing to check against
+    for (var sse : List.of("aws:kms", "aws:kms:dsse")) {
+      var kms =
+          StoredObject.of(content)
+              .withETag("\"0123456789abcdef0123456789abcdef\"")
+              .withServerSideEncryption(sse);
+      s3.put("bucket", "e.bin", kms);
+      summary =
+          S3RangedDownload.s3Download(s3, "bucket", "e.bin", dir.resolve(sse + ".bin"), CONFIG);
+      assertThat(summary.verifiedWith()).isNull();
+    }
+  }
+
+  @Test
+  public void testFailedDownloadResumesWithTheMissingRanges() throws IOException {
+    var content = randomBytes(2 * KB * KB);
+    var s3 = client("r.bin", content);
+    var target = dir.resolve("resume.bin");
+    s3.failRangeStart = 3 * 256 * KB;
+
+    assertThatThrownBy(() -> S3RangedDownload.s3Download(s3, "bucket", "r.bin", target, CONFIG))
+        .isInstanceOf(SdkClientException.class);
+    assertThat(dir.resolve("resume.bin.parts")).exists();
+
+    s3.failRangeStart = -1;
+    s3.gets.set(0);
+    var summary = S3RangedDownload.s3Download(s3, "bucket", "r.bin", target, CONFIG);
+
+    assertThat(summary.resumedParts()).isEqualTo(7);
+    assertThat(s3.gets.get()).isEqualTo(1);
+    assertThat(Files.readAllBytes(target)).isEqualTo(content);
+    assertThat(dir.resolve("resume.bin.parts")).doesNotExist();
+  }
+
+  @Test
+  public void testChangedObjectStartsOver() throws IOException {
+    var s3 = client("c.bin", randomBytes(KB * KB));
+    var target = dir.resolve("changed.bin");
+    s3.failRangeStart = 0;
+    assertThatThrownBy(() -> S3RangedDownload.s3Download(s3, "bucket", "c.bin", target, CONFIG))
+        .isInstanceOf(SdkClientException.class);
+
+    s3.failRangeStart = -1;
+    var changed = randomBytes(KB * KB + 1);
+    s3.put("bucket", "c.bin", StoredObject.of(changed));
+    var summary = S3RangedDownload.s3Download(s3, "bucket", "c.bin", target, CONFIG);
+
+    assertThat(summary.resumedParts()).isZero();
+    assertThat(Files.readAllBytes(target)).isEqualTo(changed);
+  }
+
+  private static byte[] randomBytes(int size) {
+    var bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  /** The object under the key, served a little slowly so the ranges overlap. */
+  private static InMemoryS3 client(String key, byte[] content) {
+    var s3 = new InMemoryS3();
+    s3.latency = Duration.ofMillis(5);
+    s3.put("bucket", key, StoredObject.of(content));
+    return s3;
+  }
+}
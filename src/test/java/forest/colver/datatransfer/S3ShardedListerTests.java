@@ -0,0 +1,149 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import forest.colver.datatransfer.InMemoryS3.StoredObject;
+import forest.colver.datatransfer.aws.S3ShardedLister;
+import forest.colver.datatransfer.aws.S3ShardedLister.ListConfig;
+import java.time.Duration;
+import java.util.List;
+import org.assertj.core.api.ThrowableAssert.ThrowingCallable;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+public class S3ShardedListerTests {
+
+  @Test
+  public void testOrderedListingMergesFoldersAndTopLevelObjects() {
+    var s3 = client();
+    put(s3, "in/a.txt");
+    fill(s3, "in/a/", 2500);
+    fill(s3, "in/b/", 1200);
+    put(s3, "in/b0.txt");
+    fill(s3, "in/c/", 10);
+    put(s3, "in/z.txt");
+    put(s3, "out/other.txt");
+
+    List<String> keys;
+    try (var objects = S3ShardedLister.s3ListSharded(s3, "bucket", "in/", ListConfig.defaults())) {
+      keys = objects.map(S3Object::key).toList();
+    }
+
+    assertThat(keys)
+        .hasSize(3713)
+        .isSorted()
+        .doesNotHaveDuplicates()
+        .doesNotContain("out/other.txt");
+    assertThat(s3.lists.get()).isEqualTo(7); // 1 delimiter, 3 + 2 + 1 for the folders
+    assertThat(s3.mostLists.get()).isGreaterThan(1);
+  }
+
+  @Test
+  public void testUnorderedSplitPointsCoverEveryKeyOnce() {
+    var s3 = client();
+    for (var i = 0; i < 4096; i++) {
+      put(s3, "flat/" + String.format("%03x", i) + ".bin");
+    }
+    put(s3, "flat/8"); // exactly a split point, belongs to the range that ends there
+
+    var config =
+        ListConfig.defaults()
+            .withOrdered(false)
+            .withSplitPoints(List.of("c", "4", "8")); // sorted by the config
+    List<String> keys;
+    try (var objects = S3ShardedLister.s3ListSharded(s3, "bucket", "flat/", config)) {
+      keys = objects.map(S3Object::key).toList();
+    }
+
+    assertThat(config.splitPoints()).containsExactly("4", "8", "c");
+    assertThat(keys).hasSize(4097).doesNotHaveDuplicates().contains("flat/8", "flat/fff.bin");
+    assertThat(s3.delimiterLists.get()).isZero();
+    assertThat(s3.mostLists.get()).isGreaterThan(1);
+  }
+
+  @Test
+  public void testShardErrorReachesTheReader() {
+    var s3 = client();
+    fill(s3, "in/a/", 10);
+    fill(s3, "in/b/", 10);
+    s3.failListPrefix = "in/b/";
+
+    assertThatThrownBy(
+            () -> {
+              try (var objects =
+                  S3ShardedLister.s3ListSharded(s3, "bucket", "in/", ListConfig.defaults())) {
+                objects.forEach(object -> {});
+              }
+            })
+        .isInstanceOf(S3Exception.class)
+        .hasMessageContaining("AccessDenied");
+  }
+
+  @Test
+  public void testUnorderedShardErrorIsNotLostOnAFullQueue() {
+    var s3 = client();
+    fill(s3, "in/a/", 1500);
+    fill(s3, "in/b/", 10);
+    fill(s3, "in/", 2500); // top-level objects, passed on by the discovery while the shards run
+    s3.failListPrefix = "in/b/";
+
+    // one page of room, so the error comes in while the discovery is waiting to put its next page
+    var config = ListConfig.defaults().withOrdered(false).withConcurrency(1).withPagesAhead(1);
+    ThrowingCallable read =
+        () -> {
+          try (var objects = S3ShardedLister.s3ListSharded(s3, "bucket", "in/", config)) {
+            objects.forEach(object -> sleep());
+          }
+        };
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(10),
+        () ->
+            assertThatThrownBy(read)
+                .isInstanceOf(S3Exception.class)
+                .hasMessageContaining("AccessDenied"));
+  }
+
+  @Test
+  public void testOnlyListsAFewPagesAheadOfTheReader() {
+    var s3 = client();
+    fill(s3, "in/a/", 20_000);
+    fill(s3, "in/b/", 20_000);
+
+    var config = ListConfig.defaults().withPagesAhead(1);
+    try (var objects = S3ShardedLister.s3ListSharded(s3, "bucket", "in/", config)) {
+      assertThat(objects.limit(1500).count()).isEqualTo(1500);
+    }
+
+    // the reader took 2 pages of a/, so a/ and b/ can only be a page or two ahead of it
+    assertThat(s3.lists.get()).isLessThan(10);
+  }
+
+  /** A slow reader, so the listing keeps the queue full. */
+  private static void sleep() {
+    try {
+      Thread.sleep(0, 100_000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void fill(InMemoryS3 s3, String prefix, int count) {
+    for (var i = 0; i < count; i++) {
+      put(s3, prefix + String.format("%05d.json", i));
+    }
+  }
+
+  /** Listings take a little while, so the shards overlap. */
+  private static InMemoryS3 client() {
+    var s3 = new InMemoryS3();
+    s3.latency = Duration.ofMillis(5);
+    return s3;
+  }
+
+  private static void put(InMemoryS3 s3, String key) {
+    s3.put("bucket", key, StoredObject.ofSize(1));
+  }
+}
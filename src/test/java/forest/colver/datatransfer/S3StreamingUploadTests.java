@@ -0,0 +1,105 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.S3StreamingUpload;
+import forest.colver.datatransfer.aws.S3StreamingUpload.UploadConfig;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.exception.SdkClientException;
+
+public class S3StreamingUploadTests {
+
+  private static final int MB = 1024 * 1024;
+  private static final UploadConfig CONFIG =
+      UploadConfig.defaults().withPartSize(5 * MB).withMultipartThreshold(5 * MB);
+
+  @Test
+  public void testBigStreamGoesInParts() {
+    var s3 = new InMemoryS3();
+    var content = randomBytes(12 * MB + 123);
+
+    S3StreamingUpload.s3Upload(
+        s3, "bucket", "batch/big.bin", new ByteArrayInputStream(content), CONFIG);
+
+    assertThat(s3.bytes("bucket", "batch/big.bin")).isEqualTo(content);
+    assertThat(s3.partSizes).containsExactlyInAnyOrder(5 * MB, 5 * MB, 2 * MB + 123);
+    assertThat(s3.puts.get()).isZero();
+  }
+
+  @Test
+  public void testSmallContentIsOnePut(@TempDir Path dir) throws IOException {
+    var s3 = new InMemoryS3();
+    var content = randomBytes(1000);
+    var file = Files.write(dir.resolve("small.bin"), content);
+
+    S3StreamingUpload.s3Upload(s3, "bucket", "from-file.bin", file, CONFIG);
+    S3StreamingUpload.s3Upload(
+        s3, "bucket", "from-stream.bin", new ByteArrayInputStream(content), CONFIG);
+
+    assertThat(s3.bytes("bucket", "from-file.bin")).isEqualTo(content);
+    assertThat(s3.bytes("bucket", "from-stream.bin")).isEqualTo(content);
+    assertThat(s3.puts.get()).isEqualTo(2);
+    assertThat(s3.partSizes).isEmpty();
+  }
+
+  @Test
+  public void testBigFileGoesInParts(@TempDir Path dir) throws IOException {
+    var s3 = new InMemoryS3();
+    var content = randomBytes(11 * MB);
+    var file = Files.write(dir.resolve("big.bin"), content);
+
+    S3StreamingUpload.s3Upload(s3, "bucket", "from-file.bin", file, CONFIG);
+
+    assertThat(s3.bytes("bucket", "from-file.bin")).isEqualTo(content);
+    assertThat(s3.partSizes).hasSize(3);
+  }
+
+  @Test
+  public void testFilesTooBigForTheDefaultPartsGetBiggerOnes() {
+    var config = UploadConfig.defaults();
+    var mostWithDefaultParts = (long) config.partSize() * S3StreamingUpload.S3_MAX_PARTS;
+    assertThat(config.partSizeFor(mostWithDefaultParts)).isEqualTo(config.partSize());
+    // about 78 GB on, up to the 5 TB S3 takes
+    for (var size :
+        new long[] {mostWithDefaultParts + 1, 100_000_000_000L, 5L * 1024 * 1024 * 1024 * 1024}) {
+      var partSize = config.partSizeFor(size);
+      assertThat(partSize).isGreaterThan(config.partSize());
+      assertThat((size + partSize - 1) / partSize)
+          .isLessThanOrEqualTo(S3StreamingUpload.S3_MAX_PARTS);
+    }
+    // never under the 5 MB minimum
+    assertThat(CONFIG.partSizeFor(20 * MB)).isEqualTo(S3StreamingUpload.S3_MIN_PART_SIZE);
+  }
+
+  @Test
+  public void testFailedPartAbortsTheUpload() {
+    var s3 = new InMemoryS3();
+    s3.failPart = 2;
+
+    assertThatThrownBy(
+            () ->
+                S3StreamingUpload.s3Upload(
+                    s3,
+                    "bucket",
+                    "broken.bin",
+                    new ByteArrayInputStream(randomBytes(16 * MB)),
+                    CONFIG.withConcurrency(1)))
+        .isInstanceOf(IllegalStateException.class)
+        .hasRootCauseInstanceOf(SdkClientException.class);
+    assertThat(s3.aborted.get()).isEqualTo(1);
+    assertThat(s3.keys("bucket")).doesNotContain("broken.bin");
+  }
+
+  private static byte[] randomBytes(int size) {
+    var bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+}
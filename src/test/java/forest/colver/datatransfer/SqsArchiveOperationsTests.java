@@ -0,0 +1,143 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.SqsArchiveOperations;
+import forest.colver.datatransfer.aws.SqsArchiveOperations.ArchiveConfig;
+import forest.colver.datatransfer.aws.SqsArchiveOperations.Compression;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+public class SqsArchiveOperationsTests {
+
+  @TempDir Path dir;
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testJsonRoundTripKeepsEverything() {
+    var message = message(7);
+    var copy = SqsArchiveOperations.fromJson(SqsArchiveOperations.toJson(message));
+    assertThat(copy.messageId()).isEqualTo(message.messageId());
+    assertThat(copy.body()).isEqualTo(message.body());
+    assertThat(copy.attributes()).isEqualTo(message.attributes());
+    assertThat(copy.messageAttributes()).isEqualTo(message.messageAttributes());
+  }
+
+  @Test
+  public void testConsumeRollsSegmentsAndDeletesWhatWasWritten() throws Exception {
+    var client = InMemorySqs.withMessages("dlq", 25, SqsArchiveOperationsTests::message);
+    var config = ArchiveConfig.defaults().withConsume(true).withSegmentLimits(1_000_000, 10);
+    var result = SqsArchiveOperations.sqsArchive(client, "dlq", dir.toString(), config);
+
+    assertThat(result.messages()).isEqualTo(25);
+    assertThat(result.complete()).isTrue();
+    assertThat(result.segments())
+        .extracting(s -> s.file())
+        .containsExactly("dlq-00001.ndjson.gz", "dlq-00002.ndjson.gz", "dlq-00003.ndjson.gz");
+    assertThat(client.deleted).hasSize(25);
+
+    var bodies = new ArrayList<String>();
+    for (var segment : result.segments()) {
+      var file = dir.resolve(segment.file());
+      assertThat(Files.size(file)).isEqualTo(segment.bytes());
+      assertThat(sha256(file)).isEqualTo(segment.sha256());
+      for (var line : gunzipLines(file)) {
+        bodies.add(SqsArchiveOperations.fromJson(new JSONObject(line)).body());
+      }
+    }
+    assertThat(bodies).hasSize(25).contains("body-0", "body-24");
+
+    var manifest = new JSONObject(Files.readString(result.manifest()));
+    assertThat(manifest.getInt("messages")).isEqualTo(25);
+    assertThat(manifest.getString("mode")).isEqualTo("CONSUME");
+    assertThat(manifest.getJSONArray("segments").length()).isEqualTo(3);
+  }
+
+  @Test
+  public void testPeekDeletesNothing() throws Exception {
+    var client = InMemorySqs.withMessages("dlq", 12, SqsArchiveOperationsTests::message);
+    var config = ArchiveConfig.defaults().withCompression(Compression.NONE);
+    var result = SqsArchiveOperations.sqsArchive(client, "dlq", dir.toString(), config);
+
+    assertThat(result.messages()).isEqualTo(12);
+    assertThat(result.segments()).hasSize(1);
+    assertThat(client.deleted).isEmpty();
+    assertThat(client.inFlight).isEmpty();
+    assertThat(result.complete()).isTrue();
+    var file = dir.resolve("dlq-00001.ndjson");
+    assertThat(Files.readAllLines(file)).hasSize(12);
+    assertThat(sha256(file)).isEqualTo(result.segments().get(0).sha256());
+  }
+
+  @Test
+  public void testPeekArchivesMessagesThatComeAroundAgainOnce() throws Exception {
+    // messages keep coming back, as if their visibility timeouts ran out
+    var client = InMemorySqs.withMessages("dlq", 35, SqsArchiveOperationsTests::message);
+    client.redeliver = true;
+    var config = ArchiveConfig.defaults().withCompression(Compression.NONE);
+    var result = SqsArchiveOperations.sqsArchive(client, "dlq", dir.toString(), config);
+
+    assertThat(result.messages()).isEqualTo(35);
+    assertThat(result.complete()).isFalse();
+    assertThat(Files.readAllLines(dir.resolve("dlq-00001.ndjson")))
+        .hasSize(35)
+        .doesNotHaveDuplicates();
+    assertThat(new JSONObject(Files.readString(result.manifest())).getBoolean("complete"))
+        .isFalse();
+  }
+
+  private static Message message(int i) {
+    return Message.builder()
+        .messageId("id-" + i)
+        .receiptHandle("receipt-" + i)
+        .body("body-" + i)
+        .attributes(Map.of(MessageSystemAttributeName.SENT_TIMESTAMP, "1700000000000"))
+        .messageAttributes(
+            Map.of(
+                "source",
+                MessageAttributeValue.builder().dataType("String").stringValue("sftp").build(),
+                "blob",
+                MessageAttributeValue.builder()
+                    .dataType("Binary")
+                    .binaryValue(SdkBytes.fromUtf8String("bytes-" + i))
+                    .build()))
+        .build();
+  }
+
+  private static String sha256(Path file) throws Exception {
+    var digest = MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file));
+    return HexFormat.of().formatHex(digest);
+  }
+
+  private static List<String> gunzipLines(Path file) throws IOException {
+    try (var reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+      return reader.lines().toList();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import forest.colver.datatransfer.aws.SqsAsyncOperations;
+import forest.colver.datatransfer.aws.SqsAsyncOperations.AsyncPipelineConfig;
+import forest.colver.datatransfer.aws.SqsFifoOperations;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+
+public class SqsAsyncOperationsTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testSendBatchesAreCappedAtTenEntries() {
+    var sqs = new InMemorySqs();
+    var client = new InMemorySqsAsync(sqs);
+    var sent =
+        SqsAsyncOperations.sqsSendBatchAsync(client, "async-batches", messages(25, "payload"))
+            .join();
+    assertThat(sent).hasSize(25);
+    // the batches go out in parallel, so in any order
+    assertThat(sqs.sendCalls).extracting(List::size).containsExactlyInAnyOrder(10, 10, 5);
+    assertThat(sqs.queue("async-batches")).hasSize(25);
+  }
+
+  @Test
+  public void testOnlyRetryableFailuresAreRetried() {
+    var sqs = failingClient();
+    var sent =
+        SqsAsyncOperations.sqsSendBatchAsync(
+                new InMemorySqsAsync(sqs), "async-retries", messages(3, "payload"))
+            .join();
+    // entry 1 fails once with a retryable error, entry 2 is the sender's fault every time
+    assertThat(sent).extracting(Message::body).containsExactly("payload-0", "payload-1");
+    // the retry is a batch of its own, numbered from 0 again
+    assertThat(sqs.sendCalls).containsExactly(List.of("0", "1", "2"), List.of("0"));
+  }
+
+  @Test
+  public void testFifoSendsCarryGroupAndDeduplicationIds() {
+    var sqs = new InMemorySqs();
+    var received =
+        Message.builder()
+            .body("first")
+            .attributes(
+                Map.of(
+                    MessageSystemAttributeName.MESSAGE_GROUP_ID, "account-7",
+                    MessageSystemAttributeName.MESSAGE_DEDUPLICATION_ID, "dedup-7"))
+            .build();
+    var plain = Message.builder().body("second").build();
+    var client = new InMemorySqsAsync(sqs);
+    SqsAsyncOperations.sqsSendBatchAsync(client, "async-orders.fifo", List.of(received, plain))
+        .join();
+    SqsAsyncOperations.sqsSendBatchAsync(client, "async-orders", List.of(plain)).join();
+
+    assertThat(sqs.sent)
+        .extracting(
+            SendMessageBatchRequestEntry::messageGroupId,
+            SendMessageBatchRequestEntry::messageDeduplicationId)
+        .containsExactly(
+            tuple("account-7", "dedup-7"),
+            tuple(SqsFifoOperations.DEFAULT_GROUP_ID, SqsFifoOperations.deduplicationId(plain)),
+            tuple(null, null));
+  }
+
+  @Test
+  public void testMoveOnlyDeletesMessagesThatWereSent() {
+    var sqs = failingClient();
+    var moved =
+        SqsAsyncOperations.sqsMoveBatchAsync(
+                new InMemorySqsAsync(sqs), "async-source", "async-target", messages(3, "payload"))
+            .join();
+    assertThat(moved).isEqualTo(2);
+    assertThat(sqs.deleted).containsExactlyInAnyOrder("receipt-0", "receipt-1");
+  }
+
+  @Test
+  public void testMoveAllKeepsAtMostMaxInFlightRequestsOut() {
+    var sqs = InMemorySqs.withMessages("async-drain", 100);
+    sqs.latency = Duration.ofMillis(10);
+    var config = new AsyncPipelineConfig(3, 2, 0, 30);
+    var moved =
+        SqsAsyncOperations.sqsMoveAllAsync(
+                new InMemorySqsAsync(sqs), "async-drain", "async-drained", config)
+            .join();
+    assertThat(moved).isEqualTo(100);
+    assertThat(sqs.queue("async-drain")).isEmpty();
+    assertThat(sqs.queue("async-drained")).hasSize(100);
+    // each lane waits for its batch to be sent and deleted before the next receive
+    assertThat(sqs.maxConcurrent.get()).isBetween(1, 3);
+  }
+
+  /**
+   * Entry "1" of a send fails once with a retryable error, and entry "2" always fails as the
+   * sender's fault.
+   */
+  private static InMemorySqs failingClient() {
+    var client = new InMemorySqs();
+    client.sendFailure =
+        entry ->
+            switch (entry.id()) {
+              case "1" ->
+                  client.sendCalls.size() == 1
+                      ? InMemorySqs.error("1", "ThrottlingException", false)
+                      : null;
+              case "2" -> InMemorySqs.error("2", "InvalidParameterValue", true);
+              default -> null;
+            };
+    return client;
+  }
+
+  private static List<Message> messages(int count, String body) {
+    var messages = new ArrayList<Message>();
+    for (var i = 0; i < count; i++) {
+      messages.add(Message.builder().body(body + "-" + i).receiptHandle("receipt-" + i).build());
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,89 @@
+package forest.colver.datatransfer;
+
+import static forest.colver.datatransfer.aws.AwsUtils.createSqsMessageAttributes;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.SqsBatchOperations;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+public class SqsBatchOperationsTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testBatchesAreCappedAtTenEntries() {
+    var batches = SqsBatchOperations.batches(messages(25, "payload"));
+    assertThat(batches).extracting(List::size).containsExactly(10, 10, 5);
+  }
+
+  @Test
+  public void testBatchesAreCappedByPayloadSize() {
+    var big = "x".repeat(100_000);
+    var batches = SqsBatchOperations.batches(messages(5, big));
+    assertThat(batches).extracting(List::size).containsExactly(2, 2, 1);
+  }
+
+  @Test
+  public void testPayloadSizeCountsMessageAttributes() {
+    var message =
+        Message.builder()
+            .body("abc")
+            .messageAttributes(createSqsMessageAttributes(Map.of("key", "value")))
+            .build();
+    // body + name + "String" data type + value
+    assertThat(SqsBatchOperations.payloadSize(message)).isEqualTo(3 + 3 + 6 + 5);
+  }
+
+  @Test
+  public void testOnlyRetryableFailuresAreRetried() {
+    var client = failingClient();
+    var sent = SqsBatchOperations.sqsSendBatch(client, "target", messages(3, "payload"));
+    // entry 1 fails once with a retryable error, entry 2 is the sender's fault every time
+    assertThat(sent).extracting(Message::body).containsExactly("payload-0", "payload-1");
+    assertThat(client.sendCalls).containsExactly(List.of("0", "1", "2"), List.of("1"));
+  }
+
+  @Test
+  public void testMoveOnlyDeletesMessagesThatWereSent() {
+    var client = failingClient();
+    var moved = SqsBatchOperations.sqsMoveBatch(client, "source", "target", messages(3, "payload"));
+    assertThat(moved).isEqualTo(2);
+    assertThat(client.deleted).containsExactly("receipt-0", "receipt-1");
+  }
+
+  /**
+   * Entry "1" of a send fails once with a retryable error, and entry "2" always fails as the
+   * sender's fault.
+   */
+  private static InMemorySqs failingClient() {
+    var client = new InMemorySqs();
+    client.sendFailure =
+        entry ->
+            switch (entry.id()) {
+              case "1" ->
+                  client.sendCalls.size() == 1
+                      ? InMemorySqs.error("1", "ThrottlingException", false)
+                      : null;
+              case "2" -> InMemorySqs.error("2", "InvalidParameterValue", true);
+              default -> null;
+            };
+    return client;
+  }
+
+  private static List<Message> messages(int count, String body) {
+    var messages = new ArrayList<Message>();
+    for (var i = 0; i < count; i++) {
+      messages.add(Message.builder().body(body + "-" + i).receiptHandle("receipt-" + i).build());
+    }
+    return messages;
+  }
+}
@@ -0,0 +1,139 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.SqsBatchOperations;
+import forest.colver.datatransfer.aws.SqsClaimCheck;
+import forest.colver.datatransfer.aws.SqsClaimCheck.ClaimCheckConfig;
+import forest.colver.datatransfer.aws.SqsClaimCheck.S3Pointer;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+public class SqsClaimCheckTests {
+
+  private static final ClaimCheckConfig CONFIG =
+      ClaimCheckConfig.defaults().withBucket("payloads").withThreshold(1024);
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+    SqsClaimCheck.configure(ClaimCheckConfig.defaults());
+  }
+
+  @Test
+  public void testReadsExtendedClientPointers() {
+    var body =
+        "[\"software.amazon.payloadoffloading.PayloadS3Pointer\","
+            + "{\"s3BucketName\":\"their-bucket\",\"s3Key\":\"3f2a-key\"}]";
+    assertThat(S3Pointer.fromBody(body)).contains(new S3Pointer("their-bucket", "3f2a-key"));
+    assertThat(S3Pointer.fromBody("[\"just\",\"json\"]")).isEmpty();
+    assertThat(S3Pointer.fromBody("plain text")).isEmpty();
+    var pointer = new S3Pointer("b", "k");
+    assertThat(S3Pointer.fromBody(pointer.toBody())).contains(pointer);
+  }
+
+  @Test
+  public void testOnlyBigPayloadsAreOffloaded() {
+    var s3 = new InMemoryS3();
+    var small = message("small", "receipt");
+    assertThat(SqsClaimCheck.offload(s3, small, CONFIG)).isSameAs(small);
+    assertThat(s3.objects).isEmpty();
+
+    var payload = "x".repeat(5000);
+    var offloaded = SqsClaimCheck.offload(s3, message(payload, null), CONFIG);
+    var pointer = S3Pointer.fromBody(offloaded.body()).orElseThrow();
+    assertThat(pointer.bucket()).isEqualTo("payloads");
+    assertThat(pointer.key()).startsWith("claim-check/");
+    assertThat(s3.text("payloads", pointer.key())).isEqualTo(payload);
+    assertThat(offloaded.messageAttributes().get("ExtendedPayloadSize").stringValue())
+        .isEqualTo("5000");
+    assertThat(offloaded.messageAttributes()).containsKey("source");
+  }
+
+  @Test
+  public void testResolvedMessagesCarryTheirPointerToTheDelete() {
+    var s3 = new InMemoryS3();
+    var payload = "y".repeat(3000);
+    var pointerMessage =
+        SqsClaimCheck.offload(s3, message(payload, null), CONFIG).toBuilder()
+            .receiptHandle("AQEB-real-handle")
+            .build();
+    var pointer = SqsClaimCheck.pointer(pointerMessage).orElseThrow();
+
+    var resolved = SqsClaimCheck.resolve(s3, pointerMessage);
+    assertThat(resolved.body()).isEqualTo(payload);
+    assertThat(resolved.messageAttributes()).containsOnlyKeys("source");
+    assertThat(SqsClaimCheck.isPointer(resolved)).isFalse();
+    assertThat(SqsClaimCheck.pointer(resolved)).contains(pointer);
+    assertThat(SqsClaimCheck.sqsReceiptHandle(resolved.receiptHandle()))
+        .isEqualTo("AQEB-real-handle");
+    assertThat(SqsClaimCheck.sqsReceiptHandle("AQEB-plain")).isEqualTo("AQEB-plain");
+
+    // the batch delete hands SQS the receipt handle it gave out
+    var sqs = new InMemorySqs();
+    assertThat(SqsBatchOperations.sqsDeleteBatch(sqs, "queue", List.of(resolved))).isEqualTo(1);
+    assertThat(sqs.deleted).containsExactly("AQEB-real-handle");
+    SqsClaimCheck.deletePayloads(s3, List.of(resolved, message("plain", "AQEB-plain")));
+    assertThat(s3.objects).isEmpty();
+  }
+
+  @Test
+  public void testDeletingAnUnresolvedPointerDropsThePayload() {
+    var s3 = new InMemoryS3();
+    var pointerMessage = SqsClaimCheck.offload(s3, message("p".repeat(3000), "AQEB-raw"), CONFIG);
+    assertThat(s3.objects).hasSize(1);
+    SqsClaimCheck.deletePayloads(s3, List.of(pointerMessage));
+    assertThat(s3.objects).isEmpty();
+  }
+
+  @Test
+  public void testUnsentCopiesAreDeleted() {
+    var s3 = new InMemoryS3();
+    var plain = message("plain", null);
+    var first = SqsClaimCheck.offload(s3, message("a".repeat(2000), null), CONFIG);
+    var second = SqsClaimCheck.offload(s3, message("b".repeat(2000), null), CONFIG);
+    var messages = List.of(plain, first, second);
+    var copies = new ArrayList<Message>();
+    for (var message : messages) {
+      copies.add(SqsClaimCheck.copyPayload(s3, message, CONFIG));
+    }
+    assertThat(s3.objects).hasSize(4);
+
+    // only the copy of the second didn't make it, the originals stay
+    SqsClaimCheck.deleteUnsentCopies(s3, messages, copies, List.of(plain, copies.get(1)));
+    assertThat(s3.objects).hasSize(3);
+    assertThat(s3.keys("payloads"))
+        .contains(SqsClaimCheck.pointer(copies.get(1)).orElseThrow().key())
+        .doesNotContain(SqsClaimCheck.pointer(copies.get(2)).orElseThrow().key());
+  }
+
+  @Test
+  public void testCopiesGetTheirOwnPayload() {
+    var s3 = new InMemoryS3();
+    var original = SqsClaimCheck.offload(s3, message("z".repeat(2000), null), CONFIG);
+    var copy = SqsClaimCheck.copyPayload(s3, original, CONFIG);
+    var from = SqsClaimCheck.pointer(original).orElseThrow();
+    var to = SqsClaimCheck.pointer(copy).orElseThrow();
+    assertThat(to.key()).isNotEqualTo(from.key());
+    assertThat(s3.objects).hasSize(2);
+    assertThat(SqsClaimCheck.resolve(s3, copy).body()).isEqualTo("z".repeat(2000));
+    assertThat(copy.messageAttributes()).isEqualTo(original.messageAttributes());
+  }
+
+  private static Message message(String body, String receiptHandle) {
+    return Message.builder()
+        .body(body)
+        .receiptHandle(receiptHandle)
+        .messageAttributes(
+            Map.of(
+                "source",
+                MessageAttributeValue.builder().dataType("String").stringValue("sftp").build()))
+        .build();
+  }
+}
@@ -0,0 +1,62 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsDrainEngine;
+import forest.colver.datatransfer.aws.SqsDrainEngine.DrainConfig;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class SqsDrainEngineTests {
+
+  private static final DrainConfig CONFIG = new DrainConfig(3, 5, 4, 2, 0, 30);
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testEveryMessageIsHandledExactlyOnce() {
+    var client = InMemorySqs.withMessages("source", 1_234);
+    Set<String> seen = ConcurrentHashMap.newKeySet();
+    var handled =
+        SqsDrainEngine.sqsDrain(
+            client,
+            "source",
+            CONFIG,
+            messages -> {
+              messages.forEach(m -> assertThat(seen.add(m.body())).isTrue());
+              return messages.size();
+            });
+    assertThat(handled).isEqualTo(1_234);
+    assertThat(seen).hasSize(1_234);
+  }
+
+  @Test
+  public void testEmptyQueueStopsAfterTheEmptyPolls() {
+    var client = InMemorySqs.withMessages("source", 0);
+    var handled = SqsDrainEngine.sqsDrain(client, "source", CONFIG, messages -> 0);
+    assertThat(handled).isZero();
+  }
+
+  @Test
+  public void testHandlerFailureStopsTheDrain() {
+    var client = InMemorySqs.withMessages("source", 500);
+    assertThatThrownBy(
+            () ->
+                SqsDrainEngine.sqsDrain(
+                    client,
+                    "source",
+                    CONFIG,
+                    messages -> {
+                      throw new IllegalArgumentException("boom");
+                    }))
+        .isInstanceOf(IllegalStateException.class)
+        .hasRootCauseMessage("boom");
+  }
+}
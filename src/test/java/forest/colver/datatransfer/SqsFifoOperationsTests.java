@@ -0,0 +1,192 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsBatchOperations;
+import forest.colver.datatransfer.aws.SqsFifoOperations;
+import forest.colver.datatransfer.aws.SqsFifoOperations.FifoConfig;
+import forest.colver.datatransfer.aws.SqsOperations;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+public class SqsFifoOperationsTests {
+
+  private static final FifoConfig CONFIG = FifoConfig.defaults().withLanes(4).withReceivers(2);
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testGroupAndDeduplicationIds() {
+    var plain = message("body", Map.of("a", "1", "b", "2"));
+    var sameContent = message("body", new LinkedHashMap<>(Map.of("b", "2", "a", "1")));
+    assertThat(SqsFifoOperations.groupId(plain)).isEqualTo(SqsFifoOperations.DEFAULT_GROUP_ID);
+    assertThat(SqsFifoOperations.deduplicationId(plain))
+        .hasSize(64)
+        .isEqualTo(SqsFifoOperations.deduplicationId(sameContent))
+        .isNotEqualTo(SqsFifoOperations.deduplicationId(message("other", Map.of())));
+    var received =
+        plain.toBuilder()
+            .attributes(
+                Map.of(
+                    MessageSystemAttributeName.MESSAGE_GROUP_ID, "account-7",
+                    MessageSystemAttributeName.MESSAGE_DEDUPLICATION_ID, "dedup-7"))
+            .build();
+    assertThat(SqsFifoOperations.groupId(received)).isEqualTo("account-7");
+    assertThat(SqsFifoOperations.deduplicationId(received)).isEqualTo("dedup-7");
+
+    var client = fifoClient();
+    SqsBatchOperations.sqsSendBatch(client, "orders.fifo", List.of(received, plain));
+    SqsBatchOperations.sqsSendBatch(client, "orders", List.of(plain));
+    assertThat(client.queue("orders.fifo"))
+        .extracting(SqsFifoOperations::groupId)
+        .containsExactly("account-7", SqsFifoOperations.DEFAULT_GROUP_ID);
+    assertThat(client.queue("orders").get(0).attributes()).isEmpty();
+  }
+
+  @Test
+  public void testMoveKeepsEachGroupInOrder() {
+    var client = fifoClient();
+    var expected = fill(client, "source.fifo", 20, 15);
+
+    var moved = SqsFifoOperations.sqsFifoMove(client, "source.fifo", "target.fifo", CONFIG);
+
+    assertThat(moved).isEqualTo(300);
+    assertThat(client.queue("source.fifo")).isEmpty();
+    assertThat(byGroup(client.queue("target.fifo"))).isEqualTo(expected);
+    // groups went to the target at the same time
+    assertThat(client.maxConcurrent.get()).isGreaterThan(1);
+  }
+
+  @Test
+  public void testCopyGoesRoundEachGroupOnce() {
+    var client = fifoClient();
+    var expected = fill(client, "source.fifo", 12, 25);
+
+    var copied = SqsFifoOperations.sqsFifoCopy(client, "source.fifo", "target.fifo", CONFIG);
+
+    assertThat(copied).isEqualTo(300);
+    assertThat(byGroup(client.queue("target.fifo"))).isEqualTo(expected);
+    // the source still has everything, in the same order, and all of it is visible again
+    assertThat(byGroup(client.queue("source.fifo"))).isEqualTo(expected);
+    assertThat(client.inFlight).isEmpty();
+  }
+
+  @Test
+  public void testCopyAllOfAFifoQueueGoesRoundEachGroup() {
+    var client = fifoClient();
+    var expected = fill(client, "source.fifo", 5, 10);
+
+    var copied = SqsOperations.sqsCopyAll(client, "source.fifo", "target.fifo");
+
+    assertThat(copied).isEqualTo(50);
+    assertThat(byGroup(client.queue("target.fifo"))).isEqualTo(expected);
+    assertThat(byGroup(client.queue("source.fifo"))).isEqualTo(expected);
+  }
+
+  @Test
+  public void testScansRefuseFifoQueues() {
+    var client = fifoClient();
+    fill(client, "source.fifo", 2, 2);
+    assertThatThrownBy(
+            () ->
+                SqsOperations.sqsMoveMessagesWithPayloadLike(
+                    client, "source.fifo", "g1", "target.fifo"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("sqsFifoMove");
+    assertThat(client.received.get()).isZero();
+  }
+
+  @Test
+  public void testFailedSendStopsOnlyItsGroup() {
+    var client = fifoClient();
+    client.sendFailure =
+        entry ->
+            entry.messageBody().equals("g1-13")
+                ? InMemorySqs.error(entry.id(), "InvalidMessageContents", true)
+                : null;
+    var messages = new ArrayList<Message>();
+    for (var i = 0; i < 25; i++) {
+      for (var g = 0; g < 3; g++) {
+        messages.add(fifoMessage("g" + g, "g" + g + "-" + i));
+      }
+    }
+
+    var sent = SqsFifoOperations.sqsFifoSend(client, "target.fifo", messages, CONFIG);
+
+    var groups = byGroup(client.queue("target.fifo"));
+    assertThat(groups.get("g0")).hasSize(25);
+    assertThat(groups.get("g2")).hasSize(25);
+    // g1-13 is in the second batch of 10, the third batch is never sent
+    assertThat(groups.get("g1"))
+        .contains("g1-12")
+        .doesNotContain("g1-13", "g1-20", "g1-24")
+        .hasSize(19);
+    assertThat(sent).isEqualTo(25 + 25 + 13);
+  }
+
+  /** Sends take a little while, so the groups overlap. */
+  private static InMemorySqs fifoClient() {
+    var client = new InMemorySqs();
+    client.latency = Duration.ofMillis(2);
+    return client;
+  }
+
+  /** Puts groups x perGroup messages on the queue, interleaved, and returns the bodies by group. */
+  private static Map<String, List<String>> fill(
+      InMemorySqs client, String queueName, int groups, int perGroup) {
+    var expected = new HashMap<String, List<String>>();
+    for (var i = 0; i < perGroup; i++) {
+      for (var g = 0; g < groups; g++) {
+        var body = "g" + g + "-" + i;
+        client.add(queueName, fifoMessage("g" + g, body));
+        expected.computeIfAbsent("g" + g, k -> new ArrayList<>()).add(body);
+      }
+    }
+    return expected;
+  }
+
+  private static Map<String, List<String>> byGroup(List<Message> messages) {
+    var groups = new HashMap<String, List<String>>();
+    for (var message : messages) {
+      groups
+          .computeIfAbsent(SqsFifoOperations.groupId(message), k -> new ArrayList<>())
+          .add(message.body());
+    }
+    return groups;
+  }
+
+  private static Message fifoMessage(String groupId, String body) {
+    return Message.builder()
+        .body(body)
+        .attributes(
+            Map.of(
+                MessageSystemAttributeName.MESSAGE_GROUP_ID,
+                groupId,
+                MessageSystemAttributeName.MESSAGE_DEDUPLICATION_ID,
+                body))
+        .build();
+  }
+
+  private static Message message(String body, Map<String, String> attributes) {
+    var messageAttributes = new LinkedHashMap<String, MessageAttributeValue>();
+    attributes.forEach(
+        (k, v) ->
+            messageAttributes.put(
+                k, MessageAttributeValue.builder().dataType("String").stringValue(v).build()));
+    return Message.builder().body(body).messageAttributes(messageAttributes).build();
+  }
+}
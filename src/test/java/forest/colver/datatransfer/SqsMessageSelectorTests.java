@@ -0,0 +1,103 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsMessageSelector;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+public class SqsMessageSelectorTests {
+
+  private static final Message MESSAGE =
+      Message.builder()
+          .body("payload")
+          .messageAttributes(
+              Map.of(
+                  "source", string("sftp"),
+                  "filename", string("lifeflight_2024.csv"),
+                  "size", number("42"),
+                  "retry", string("true")))
+          .attributes(
+              Map.of(
+                  MessageSystemAttributeName.APPROXIMATE_RECEIVE_COUNT, "4",
+                  MessageSystemAttributeName.SENT_TIMESTAMP, "1700000000000"))
+          .build();
+
+  @Test
+  public void testComparisonsAndLogic() {
+    assertThat(matches("source = 'sftp'")).isTrue();
+    assertThat(matches("source <> 'sftp'")).isFalse();
+    assertThat(matches("size > 40 AND size <= 42")).isTrue();
+    assertThat(matches("size = 42.0")).isTrue();
+    assertThat(matches("source = 'http' OR (size < 100 AND NOT source = 'http')")).isTrue();
+    assertThat(matches("source = 'http' or size >= 100")).isFalse();
+    assertThat(matches("size BETWEEN 1 AND 10")).isFalse();
+    assertThat(matches("size NOT BETWEEN 1 AND 10")).isTrue();
+    assertThat(matches("retry")).isTrue();
+    assertThat(matches("TRUE AND NOT FALSE")).isTrue();
+  }
+
+  @Test
+  public void testSystemAttributes() {
+    assertThat(matches("ApproximateReceiveCount > 3")).isTrue();
+    assertThat(matches("ApproximateReceiveCount > 3 AND SentTimestamp < 1700000000001")).isTrue();
+    assertThat(matches("SenderId IS NULL")).isTrue();
+  }
+
+  @Test
+  public void testInAndLike() {
+    assertThat(matches("source IN ('http', 'sftp')")).isTrue();
+    assertThat(matches("source NOT IN ('http', 'sftp')")).isFalse();
+    assertThat(matches("filename LIKE 'lifeflight%'")).isTrue();
+    assertThat(matches("filename LIKE '%_2024.csv'")).isTrue();
+    assertThat(matches("filename LIKE 'lifeflight____.csv'")).isFalse();
+    assertThat(matches("filename LIKE 'lifeflight!_%' ESCAPE '!'")).isTrue();
+    assertThat(matches("filename LIKE 'lifeflight!%%' ESCAPE '!'")).isFalse();
+    assertThat(matches("filename NOT LIKE '%.txt'")).isTrue();
+  }
+
+  @Test
+  public void testMissingAttributesAreUnknown() {
+    assertThat(matches("customer = 'a'")).isFalse();
+    assertThat(matches("NOT customer = 'a'")).isFalse();
+    assertThat(matches("customer IS NULL")).isTrue();
+    assertThat(matches("customer IS NOT NULL")).isFalse();
+    assertThat(matches("customer = 'a' OR source = 'sftp'")).isTrue();
+    assertThat(matches("customer = 'a' OR NOT source = 'sftp'")).isFalse();
+    assertThat(SqsMessageSelector.compile("source = 'sftp'").test(Message.builder().build()))
+        .isFalse();
+  }
+
+  @Test
+  public void testInvalidExpressions() {
+    assertThatThrownBy(() -> SqsMessageSelector.compile("source = 'sftp"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("unterminated string");
+    assertThatThrownBy(() -> SqsMessageSelector.compile("(source = 'sftp'"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("expected ')'");
+    assertThatThrownBy(() -> SqsMessageSelector.compile("source = 'a' extra"))
+        .isInstanceOf(IllegalArgumentException.class)
+        .hasMessageContaining("position 13");
+    assertThatThrownBy(() -> SqsMessageSelector.compile("source NOT = 'a'"))
+        .isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> SqsMessageSelector.compile(" "))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static boolean matches(String expression) {
+    return SqsMessageSelector.compile(expression).test(MESSAGE);
+  }
+
+  private static MessageAttributeValue string(String value) {
+    return MessageAttributeValue.builder().dataType("String").stringValue(value).build();
+  }
+
+  private static MessageAttributeValue number(String value) {
+    return MessageAttributeValue.builder().dataType("Number").stringValue(value).build();
+  }
+}
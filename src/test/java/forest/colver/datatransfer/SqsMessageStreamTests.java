@@ -0,0 +1,76 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsMessageStream;
+import forest.colver.datatransfer.aws.SqsMessageStream.StreamConfig;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+public class SqsMessageStreamTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testConsumeDeletesOnlyWhatWasHandedOn() {
+    var client = InMemorySqs.withMessages("source", 25);
+    try (var messages = SqsMessageStream.sqsStream(client, "source", StreamConfig.consume())) {
+      assertThat(messages.limit(3).map(Message::body))
+          .containsExactly("body-0", "body-1", "body-2");
+    }
+
+    assertThat(client.deleted).containsExactly("receipt-0", "receipt-1", "receipt-2");
+    // the rest of the first batch, and the batch received ahead, are visible again
+    assertThat(client.queue("source")).hasSize(22);
+    assertThat(client.inFlight).isEmpty();
+    assertThat(client.visibility).hasSize(17).containsValue(0).doesNotContainValue(30);
+  }
+
+  @Test
+  public void testConsumerFailureKeepsTheRestOfTheBatch() {
+    var client = InMemorySqs.withMessages("source", 25);
+    assertThatThrownBy(
+            () -> {
+              try (var messages =
+                  SqsMessageStream.sqsStream(client, "source", StreamConfig.consume())) {
+                messages.forEach(
+                    message -> {
+                      if (message.body().equals("body-13")) {
+                        throw new IllegalStateException("boom");
+                      }
+                    });
+              }
+            })
+        .hasMessage("boom");
+
+    // the first batch went when the stream moved on, then 11 and 12 on close, 13 is released
+    assertThat(client.deleted).hasSize(13).contains("receipt-0", "receipt-12");
+    assertThat(client.deleted).doesNotContain("receipt-13");
+    assertThat(client.queue("source")).hasSize(12);
+    assertThat(client.inFlight).isEmpty();
+  }
+
+  @Test
+  public void testPeekAndAckOnClose() {
+    var client = InMemorySqs.withMessages("source", 25);
+    try (var messages = SqsMessageStream.sqsStream(client, "source", StreamConfig.peek())) {
+      assertThat(messages.count()).isEqualTo(25);
+    }
+    assertThat(client.deleted).isEmpty();
+    assertThat(client.inFlight).isEmpty();
+
+    try (var messages = SqsMessageStream.sqsStream(client, "source", StreamConfig.ackOnClose())) {
+      assertThat(messages.limit(12).count()).isEqualTo(12);
+      assertThat(client.deleted).isEmpty();
+    }
+    assertThat(client.deleted).hasSize(12);
+    assertThat(client.queue("source")).hasSize(13);
+    assertThat(client.inFlight).isEmpty();
+  }
+}
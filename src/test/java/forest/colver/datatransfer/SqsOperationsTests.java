@@ -0,0 +1,117 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.SqsDrainEngine.DrainConfig;
+import forest.colver.datatransfer.aws.SqsOperations;
+import forest.colver.datatransfer.aws.SqsPayloadCodec;
+import forest.colver.datatransfer.aws.SqsPayloadCodec.CodecConfig;
+import forest.colver.datatransfer.aws.SqsPayloadCodec.Encoding;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+public class SqsOperationsTests {
+
+  private static final DrainConfig CONFIG = new DrainConfig(4, 4, 10, 2, 0, 60);
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+    SqsPayloadCodec.configure(CodecConfig.defaults());
+  }
+
+  @Test
+  public void testClearAllHasNoDepthLimit() {
+    var client = new InMemorySqs();
+    for (var i = 0; i < 2500; i++) {
+      client.add("scratch", message("payload-" + i, "test"));
+    }
+
+    var deleted = SqsOperations.sqsClearAll(client, "scratch", message -> true, CONFIG);
+
+    assertThat(deleted).isEqualTo(2500);
+    assertThat(client.queue("scratch")).isEmpty();
+    // batch deletes only
+    assertThat(client.deleteBatches.get()).isBetween(250, 2500);
+  }
+
+  @Test
+  public void testFilteredClearLeavesTheRestVisible() {
+    var client = new InMemorySqs();
+    for (var i = 0; i < 150; i++) {
+      client.add("scratch", message("payload-" + i, i % 3 == 0 ? "prod" : "test"));
+    }
+    // the filter sees encoded bodies decoded
+    var encoded =
+        SqsPayloadCodec.encode(
+            message("<Document>" + "stale ".repeat(500) + "</Document>", "prod"),
+            CodecConfig.defaults().withEncoding(Encoding.GZIP));
+    client.add("scratch", encoded);
+
+    var deleted =
+        SqsOperations.sqsClearAll(
+            client,
+            "scratch",
+            message ->
+                message.messageAttributes().get("env").stringValue().equals("test")
+                    || message.body().contains("stale"),
+            CONFIG);
+
+    assertThat(deleted).isEqualTo(101);
+    assertThat(client.queue("scratch"))
+        .hasSize(50)
+        .extracting(m -> m.messageAttributes().get("env").stringValue())
+        .containsOnly("prod");
+    // each kept message was looked at once, and is visible again
+    assertThat(client.received.get()).isEqualTo(151);
+    assertThat(client.inFlight).isEmpty();
+  }
+
+  @Test
+  public void testPayloadLikeLooksAtDecodedBodies() {
+    var client = new InMemorySqs();
+    client.add("scratch", message("plain sftp error", "prod"));
+    client.add("scratch", message("all good", "prod"));
+    client.add(
+        "scratch",
+        SqsPayloadCodec.encode(
+            message("<Error>sftp error " + "detail ".repeat(500) + "</Error>", "prod"),
+            CodecConfig.defaults().withEncoding(Encoding.GZIP)));
+
+    var moved = SqsOperations.sqsMoveMessagesWithPayloadLike(client, "scratch", "sftp", "errors");
+
+    assertThat(moved).isEqualTo(2);
+    assertThat(client.queue("scratch")).extracting(Message::body).containsExactly("all good");
+    // the compressed message is moved as is
+    assertThat(client.queue("errors")).hasSize(2).anyMatch(SqsPayloadCodec::isEncoded);
+  }
+
+  @Test
+  public void testCopyAllSkipsMessagesThatComeAroundAgain() {
+    // a queue whose messages keep coming back, as if their visibility timeouts ran out
+    var client = new InMemorySqs();
+    client.redeliver = true;
+    for (var i = 0; i < 35; i++) {
+      client.add(
+          "source", Message.builder().receiptHandle("receipt-" + i).body("body-" + i).build());
+    }
+    var copied = SqsOperations.sqsCopyAll(client, "source", "target");
+    assertThat(copied).isEqualTo(35);
+    assertThat(client.sent).hasSize(35);
+    assertThat(client.queue("target")).extracting(Message::body).doesNotHaveDuplicates();
+  }
+
+  private static Message message(String body, String env) {
+    return Message.builder()
+        .body(body)
+        .messageAttributes(
+            Map.of(
+                "env",
+                MessageAttributeValue.builder().dataType("String").stringValue(env).build()))
+        .build();
+  }
+}
@@ -0,0 +1,127 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.SqsBatchOperations;
+import forest.colver.datatransfer.aws.SqsPayloadCodec;
+import forest.colver.datatransfer.aws.SqsPayloadCodec.CodecConfig;
+import forest.colver.datatransfer.aws.SqsPayloadCodec.Encoding;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+
+public class SqsPayloadCodecTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsPayloadCodec.configure(CodecConfig.defaults());
+  }
+
+  @Test
+  public void testRoundTripBothEncodings() {
+    var original = message(pain001(200));
+    for (var encoding : List.of(Encoding.GZIP, Encoding.DEFLATE)) {
+      var config = CodecConfig.defaults().withEncoding(encoding);
+      var encoded = SqsPayloadCodec.encode(original, config);
+      assertThat(SqsPayloadCodec.isEncoded(encoded)).isTrue();
+      assertThat(encoded.messageAttributes().get("ContentEncoding").stringValue())
+          .isEqualTo(encoding.attributeValue());
+      // XML like this compresses a lot, even after base64
+      assertThat(SqsBatchOperations.payloadSize(encoded))
+          .isLessThan(SqsBatchOperations.payloadSize(original) / 5);
+      // encoding twice does nothing
+      assertThat(SqsPayloadCodec.encode(encoded, config)).isSameAs(encoded);
+
+      var decoded = SqsPayloadCodec.decode(encoded);
+      assertThat(decoded.body()).isEqualTo(original.body());
+      assertThat(decoded.messageAttributes()).isEqualTo(original.messageAttributes());
+    }
+  }
+
+  @Test
+  public void testSmallOrIncompressibleBodiesAreLeftAlone() {
+    var config = CodecConfig.defaults().withEncoding(Encoding.GZIP);
+    var small = message("<Document/>");
+    assertThat(SqsPayloadCodec.encode(small, config)).isSameAs(small);
+    // base64 of random bytes, gzip can't get that below the original
+    var bytes = new byte[6000];
+    new Random(42).nextBytes(bytes);
+    var noise = message(Base64.getEncoder().encodeToString(bytes));
+    assertThat(SqsPayloadCodec.encode(noise, config)).isSameAs(noise);
+    // off by default
+    var big = message(pain001(50));
+    assertThat(SqsPayloadCodec.encode(big)).isSameAs(big);
+    assertThat(SqsPayloadCodec.mightFit(1_000_000)).isFalse();
+  }
+
+  @Test
+  public void testDecodeOnlyTouchesEncodedMessages() {
+    SqsPayloadCodec.configure(CodecConfig.defaults().withEncoding(Encoding.DEFLATE));
+    var plain = message(pain001(20));
+    var encoded = SqsPayloadCodec.encode(plain);
+    var list = List.of(plain, plain);
+    assertThat(SqsPayloadCodec.decode(list)).isSameAs(list);
+    assertThat(SqsPayloadCodec.decode(List.of(plain, encoded)))
+        .extracting(Message::body)
+        .containsExactly(plain.body(), plain.body());
+    // an encoding this code doesn't know is left for whoever does
+    var unknown =
+        Message.builder()
+            .body("KLUv/QBYAQA=")
+            .messageAttributes(
+                Map.of(
+                    "ContentEncoding",
+                    MessageAttributeValue.builder()
+                        .dataType("String")
+                        .stringValue("zstd+base64")
+                        .build()))
+            .build();
+    assertThat(SqsPayloadCodec.decode(unknown)).isSameAs(unknown);
+    // as is a body that only says it is encoded, or got cut off
+    var notBase64 = withEncoding(message("<Document/>"), "gzip+base64");
+    assertThat(SqsPayloadCodec.decode(notBase64)).isSameAs(notBase64);
+    var truncated = encoded.toBuilder().body(encoded.body().substring(0, 40)).build();
+    assertThat(SqsPayloadCodec.decode(truncated)).isSameAs(truncated);
+    assertThat(SqsPayloadCodec.mightFit(1_000_000)).isTrue();
+    assertThat(SqsPayloadCodec.mightFit(3_000_000)).isFalse();
+  }
+
+  private static Message withEncoding(Message message, String encoding) {
+    Map<String, MessageAttributeValue> attributes = new HashMap<>(message.messageAttributes());
+    attributes.put(
+        "ContentEncoding",
+        MessageAttributeValue.builder().dataType("String").stringValue(encoding).build());
+    return message.toBuilder().messageAttributes(attributes).build();
+  }
+
+  private static Message message(String body) {
+    return Message.builder()
+        .body(body)
+        .messageAttributes(
+            Map.of(
+                "source",
+                MessageAttributeValue.builder().dataType("String").stringValue("sftp").build()))
+        .build();
+  }
+
+  /** A credit transfer initiation with this many transactions. */
+  private static String pain001(int transactions) {
+    var xml = new StringBuilder("<Document><CstmrCdtTrfInitn>");
+    for (var i = 0; i < transactions; i++) {
+      xml.append("<CdtTrfTxInf><PmtId><EndToEndId>E2E-")
+          .append(i)
+          .append("</EndToEndId></PmtId><Amt><InstdAmt Ccy=\"USD\">")
+          .append(100 + i)
+          .append(".00</InstdAmt></Amt><Cdtr><Nm>Creditor ")
+          .append(i % 7)
+          .append("</Nm></Cdtr></CdtTrfTxInf>");
+    }
+    return xml.append("</CstmrCdtTrfInitn></Document>").toString();
+  }
+}
@@ -0,0 +1,119 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+import forest.colver.datatransfer.aws.SqsOperations;
+import forest.colver.datatransfer.aws.SqsQueueMonitor;
+import forest.colver.datatransfer.aws.SqsQueueMonitor.Crossing;
+import forest.colver.datatransfer.aws.SqsQueueMonitor.MonitorConfig;
+import forest.colver.datatransfer.aws.SqsQueueMonitor.QueueDepth;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+public class SqsQueueMonitorTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testDepthsAreServedFromTheCache() {
+    var client = new InMemorySqs();
+    depth(client, "orders", 7);
+    try (var monitor =
+        new SqsQueueMonitor(client, List.of("orders", "orders-dlq"), MonitorConfig.defaults())) {
+      assertThat(monitor.refresh()).isEqualTo(2);
+      assertThat(client.attributeRequests).hasSize(2);
+      // only the counts are asked for
+      assertThat(client.attributeRequests.get(0).attributeNames())
+          .containsExactlyInAnyOrder(
+              QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES,
+              QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE,
+              QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_DELAYED);
+
+      for (var i = 0; i < 100; i++) {
+        assertThat(monitor.depth("orders").visible()).isEqualTo(7);
+      }
+      var depth = monitor.depth("orders");
+      assertThat(depth.inFlight()).isEqualTo(1);
+      assertThat(depth.delayed()).isEqualTo(2);
+      assertThat(depth.total()).isEqualTo(10);
+      assertThat(client.attributeRequests).hasSize(2);
+      assertThat(monitor.snapshot()).containsOnlyKeys("orders", "orders-dlq");
+    }
+
+    // with no TTL every read goes to SQS
+    var noTtl = MonitorConfig.defaults().withTtl(Duration.ZERO);
+    try (var monitor = new SqsQueueMonitor(client, List.of("orders"), noTtl)) {
+      monitor.depth("orders");
+      monitor.depth("orders");
+      assertThat(client.attributeRequests).hasSize(4);
+    }
+
+    assertThat(SqsOperations.sqsDepth(client, "orders")).isEqualTo(7);
+    assertThat(client.attributeRequests.get(4).attributeNames())
+        .containsExactly(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES);
+  }
+
+  @Test
+  public void testWatchesFireOnCrossings() {
+    var client = new InMemorySqs();
+    var crossings = new ArrayList<Crossing>();
+    try (var monitor = new SqsQueueMonitor(client, List.of("dlq"), MonitorConfig.defaults())) {
+      var watch = monitor.watch("dlq", 5, crossings::add);
+      for (var depth : List.of(0, 3, 5, 9, 6, 4, 0, 8)) {
+        depth(client, "dlq", depth);
+        monitor.refresh();
+      }
+      assertThat(crossings)
+          .extracting(Crossing::rising, c -> c.depth().visible())
+          .containsExactly(tuple(true, 5), tuple(false, 4), tuple(true, 8));
+
+      // watching the total instead, which counts the 3 in-flight and delayed messages
+      var totals = new ArrayList<Crossing>();
+      monitor.watch("dlq", QueueDepth::total, 10, totals::add);
+      watch.cancel();
+      depth(client, "dlq", 7);
+      monitor.refresh();
+      assertThat(totals).hasSize(1);
+      assertThat(crossings).hasSize(3);
+    }
+  }
+
+  @Test
+  public void testQueuesArePolledConcurrently() throws Exception {
+    var client = new InMemorySqs();
+    client.latency = Duration.ofMillis(50);
+    var queues = new ArrayList<String>();
+    for (var i = 0; i < 50; i++) {
+      queues.add("queue-" + i);
+    }
+    var config =
+        MonitorConfig.defaults().withParallelism(10).withRefreshInterval(Duration.ofMinutes(5));
+    try (var monitor = new SqsQueueMonitor(client, queues, config)) {
+      var start = System.nanoTime();
+      monitor.start();
+      // the first round starts right away, 5 rounds of 10 at 50ms each
+      while (monitor.snapshot().size() < 50
+          && System.nanoTime() - start < Duration.ofSeconds(5).toNanos()) {
+        Thread.sleep(10);
+      }
+      assertThat(monitor.snapshot()).hasSize(50);
+      assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofMillis(1500));
+      assertThat(client.maxConcurrent.get()).isBetween(2, 10);
+    }
+  }
+
+  /** Puts visible messages on the queue, plus 1 in flight and 2 delayed. */
+  private static void depth(InMemorySqs client, String queueName, int visible) {
+    client.setDepth(queueName, visible, 1);
+    client.delayed.put(queueName, 2);
+  }
+}
@@ -0,0 +1,70 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import java.time.Duration;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.regions.Region;
+
+public class SqsQueueUrlCacheTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.configure(SqsQueueUrlCache.DEFAULT_TTL, SqsQueueUrlCache.DEFAULT_MAX_ENTRIES);
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testRepeatLookupsHitTheCache() {
+    var client = new InMemorySqs(Region.US_EAST_1);
+    var first = SqsQueueUrlCache.queueUrl(client, "queue-a");
+    var second = SqsQueueUrlCache.queueUrl(client, "queue-a");
+    assertThat(second).isEqualTo(first).endsWith("/queue-a");
+    assertThat(client.lookups.get()).isOne();
+    assertThat(SqsQueueUrlCache.hitCount()).isOne();
+    assertThat(SqsQueueUrlCache.missCount()).isOne();
+  }
+
+  @Test
+  public void testEntriesAreKeyedByRegion() {
+    var east = new InMemorySqs(Region.US_EAST_1);
+    var west = new InMemorySqs(Region.US_WEST_2);
+    assertThat(SqsQueueUrlCache.queueUrl(east, "queue-a"))
+        .isNotEqualTo(SqsQueueUrlCache.queueUrl(west, "queue-a"));
+    assertThat(SqsQueueUrlCache.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void testInvalidateUrlForcesAFreshLookup() {
+    var client = new InMemorySqs(Region.US_EAST_1);
+    var url = SqsQueueUrlCache.queueUrl(client, "queue-a");
+    assertThat(SqsQueueUrlCache.invalidateUrl(url)).isOne();
+    SqsQueueUrlCache.queueUrl(client, "queue-a");
+    assertThat(client.lookups.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testExpiredEntriesAreLookedUpAgain() throws InterruptedException {
+    SqsQueueUrlCache.configure(Duration.ofMillis(20), 10);
+    var client = new InMemorySqs(Region.US_EAST_1);
+    SqsQueueUrlCache.queueUrl(client, "queue-a");
+    Thread.sleep(50);
+    SqsQueueUrlCache.queueUrl(client, "queue-a");
+    assertThat(client.lookups.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsDropped() {
+    SqsQueueUrlCache.configure(Duration.ofMinutes(1), 2);
+    var client = new InMemorySqs(Region.US_EAST_1);
+    SqsQueueUrlCache.queueUrl(client, "queue-a");
+    SqsQueueUrlCache.queueUrl(client, "queue-b");
+    SqsQueueUrlCache.queueUrl(client, "queue-a"); // touch a, so b is the eldest
+    SqsQueueUrlCache.queueUrl(client, "queue-c");
+    assertThat(SqsQueueUrlCache.size()).isEqualTo(2);
+    SqsQueueUrlCache.queueUrl(client, "queue-a");
+    assertThat(client.lookups.get()).isEqualTo(3);
+  }
+}
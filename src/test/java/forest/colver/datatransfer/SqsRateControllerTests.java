@@ -0,0 +1,141 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsRateController;
+import forest.colver.datatransfer.aws.SqsRateController.RateControlConfig;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.SqsException;
+
+public class SqsRateControllerTests {
+
+  private static final String URL = "https://sqs.us-east-1.amazonaws.com/123/queue";
+
+  @AfterEach
+  public void tearDown() {
+    SqsRateController.configure(RateControlConfig.defaults());
+  }
+
+  @Test
+  public void testLimitsGrowWithSuccessfulRounds() {
+    SqsRateController.configure(config(2, 1000, Duration.ofSeconds(1)));
+    var controller = SqsRateController.forQueue(URL);
+    // rounds of 2, then 3, then 4 requests
+    for (var i = 0; i < 9; i++) {
+      controller.call(() -> "ok");
+    }
+    var stats = controller.stats();
+    assertThat(stats.concurrencyLimit()).isEqualTo(5);
+    assertThat(stats.rateLimit()).isEqualTo(1030.0);
+    assertThat(stats.requests()).isEqualTo(9);
+    assertThat(stats.inFlight()).isZero();
+  }
+
+  @Test
+  public void testThrottlingCutsTheLimitsOncePerCooldown() {
+    SqsRateController.configure(config(8, 1000, Duration.ofMinutes(1)));
+    var controller = SqsRateController.forQueue(URL);
+    for (var i = 0; i < 3; i++) {
+      assertThatThrownBy(() -> controller.call(() -> throwStatus(503)))
+          .isInstanceOf(SqsException.class);
+    }
+    var stats = controller.stats();
+    assertThat(stats.concurrencyLimit()).isEqualTo(4);
+    assertThat(stats.rateLimit()).isEqualTo(500.0);
+    assertThat(stats.congestionSignals()).isEqualTo(3);
+    // a client error is not congestion
+    assertThatThrownBy(() -> controller.call(() -> throwStatus(400)))
+        .isInstanceOf(SqsException.class);
+    assertThat(controller.stats().congestionSignals()).isEqualTo(3);
+  }
+
+  @Test
+  public void testThrottledBatchEntriesCountAsCongestion() {
+    SqsRateController.configure(config(8, 1000, Duration.ZERO));
+    var controller = SqsRateController.forQueue(URL);
+    controller.onThrottledEntries(0);
+    assertThat(controller.stats().concurrencyLimit()).isEqualTo(8);
+    controller.onThrottledEntries(3);
+    controller.onThrottledEntries(1);
+    assertThat(controller.stats().concurrencyLimit()).isEqualTo(2);
+  }
+
+  @Test
+  public void testConcurrencyLimitIsNeverExceeded() throws Exception {
+    // the limit grows while this runs, but only up to 3
+    SqsRateController.configure(
+        new RateControlConfig(1, 3, 2, 10, 10_000, 10_000, 0, 0.5, 1000, Duration.ZERO));
+    var controller = SqsRateController.forQueue(URL);
+    var running = new AtomicInteger();
+    var maxRunning = new AtomicInteger();
+    var pool = Executors.newFixedThreadPool(8);
+    for (var i = 0; i < 40; i++) {
+      pool.execute(
+          () ->
+              controller.call(
+                  () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    sleep(5);
+                    return running.decrementAndGet();
+                  }));
+    }
+    pool.shutdown();
+    assertThat(pool.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+    assertThat(maxRunning.get()).isBetween(2, 3);
+    assertThat(controller.stats().requests()).isEqualTo(40);
+  }
+
+  @Test
+  public void testRateLimitSpacesRequestsOut() {
+    // 20 requests/sec, starting with a burst of 1 token
+    SqsRateController.configure(
+        new RateControlConfig(1, 1, 1, 20, 20, 20, 0, 0.5, 1000, Duration.ZERO));
+    var controller = SqsRateController.forQueue(URL);
+    var start = System.nanoTime();
+    for (var i = 0; i < 11; i++) {
+      controller.call(() -> "ok");
+    }
+    // 10 requests after the burst, 50ms apart
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThan(Duration.ofMillis(400));
+  }
+
+  @Test
+  public void testAsyncCallsWaitForRoom() {
+    SqsRateController.configure(
+        new RateControlConfig(1, 1, 1, 1000, 1000, 1000, 0, 0.5, 1000, Duration.ZERO));
+    var controller = SqsRateController.forQueue(URL);
+    var slow = new CompletableFuture<String>();
+    var first = controller.callAsync(() -> slow);
+    var second = controller.callAsync(() -> CompletableFuture.completedFuture("second"));
+    sleep(200);
+    // the only slot is held by the first call
+    assertThat(second).isNotDone();
+    slow.complete("first");
+    assertThat(first.join()).isEqualTo("first");
+    assertThat(second.join()).isEqualTo("second");
+    assertThat(SqsRateController.allStats()).containsKey(URL);
+  }
+
+  private static RateControlConfig config(int concurrency, double rate, Duration cooldown) {
+    return new RateControlConfig(1, 64, concurrency, 1, 10_000, rate, 10, 0.5, 1000, cooldown);
+  }
+
+  private static String throwStatus(int status) {
+    throw (SqsException) SqsException.builder().statusCode(status).message("boom").build();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
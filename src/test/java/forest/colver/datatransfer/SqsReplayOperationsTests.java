@@ -0,0 +1,113 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsArchiveOperations;
+import forest.colver.datatransfer.aws.SqsArchiveOperations.ArchiveConfig;
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import forest.colver.datatransfer.aws.SqsReplayOperations;
+import forest.colver.datatransfer.aws.SqsReplayOperations.ReplayConfig;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageAttributeValue;
+import software.amazon.awssdk.services.sqs.model.SendMessageBatchRequestEntry;
+
+public class SqsReplayOperationsTests {
+
+  @TempDir Path dir;
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testResumeAndRewriteAttributes() {
+    var client = InMemorySqs.withMessages("dlq", 25, SqsReplayOperationsTests::message);
+    var segmentsOfTen = ArchiveConfig.defaults().withSegmentLimits(1_000_000, 10);
+    var archive = SqsArchiveOperations.sqsArchive(client, "dlq", dir.toString(), segmentsOfTen);
+    assertThat(archive.segments()).hasSize(3);
+
+    var config =
+        ReplayConfig.defaults().withRate(0).withResumeFrom(13).withAttribute("replayed", "true");
+    var result =
+        SqsReplayOperations.sqsReplayArchive(
+            client, "target", archive.manifest().toString(), config);
+
+    assertThat(result.read()).isEqualTo(12);
+    assertThat(result.sent()).isEqualTo(12);
+    assertThat(result.failed()).isZero();
+    assertThat(result.nextOffset()).isEqualTo(25);
+    assertThat(client.sent)
+        .extracting(SendMessageBatchRequestEntry::messageBody)
+        .hasSize(12)
+        .contains("body-13", "body-24")
+        .doesNotContain("body-12");
+    assertThat(client.sent)
+        .allSatisfy(
+            entry -> {
+              assertThat(entry.messageAttributes().get("replayed").stringValue())
+                  .isEqualTo("true");
+              assertThat(entry.messageAttributes().get("source").stringValue()).isEqualTo("sftp");
+            });
+  }
+
+  @Test
+  public void testRateIsHonored() throws Exception {
+    var client = InMemorySqs.withMessages("dlq", 0, SqsReplayOperationsTests::message);
+    var file = dir.resolve("messages.ndjson");
+    var lines = new ArrayList<String>();
+    for (var i = 0; i < 30; i++) {
+      lines.add(SqsArchiveOperations.toJson(message(i)).toString());
+    }
+    Files.write(file, lines);
+
+    var start = System.nanoTime();
+    var result =
+        SqsReplayOperations.sqsReplay(
+            client, "target", List.of(file), ReplayConfig.defaults().withRate(100));
+    // the first batch goes right away, the other two wait 100ms each
+    assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThan(Duration.ofMillis(180));
+    assertThat(result.sent()).isEqualTo(30);
+  }
+
+  @Test
+  public void testDamagedSegmentIsRefused() throws Exception {
+    var client = InMemorySqs.withMessages("dlq", 5, SqsReplayOperationsTests::message);
+    var archive =
+        SqsArchiveOperations.sqsArchive(client, "dlq", dir.toString(), ArchiveConfig.defaults());
+    var segment = dir.resolve(archive.segments().get(0).file());
+    var bytes = Files.readAllBytes(segment);
+    bytes[bytes.length / 2] ^= 1;
+    Files.write(segment, bytes);
+
+    assertThatThrownBy(
+            () ->
+                SqsReplayOperations.sqsReplayArchive(
+                    client, "target", archive.manifest().toString(), ReplayConfig.defaults()))
+        .isInstanceOf(IllegalStateException.class)
+        .hasMessageContaining("SHA-256");
+    assertThat(client.sent).isEmpty();
+  }
+
+  private static Message message(int i) {
+    return Message.builder()
+        .messageId("id-" + i)
+        .receiptHandle("receipt-" + i)
+        .body("body-" + i)
+        .messageAttributes(
+            Map.of(
+                "source",
+                MessageAttributeValue.builder().dataType("String").stringValue("sftp").build()))
+        .build();
+  }
+}
@@ -0,0 +1,120 @@
+package forest.colver.datatransfer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import forest.colver.datatransfer.aws.SqsQueueUrlCache;
+import forest.colver.datatransfer.aws.SqsVisibilityExtender;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.sqs.model.Message;
+
+public class SqsVisibilityExtenderTests {
+
+  @AfterEach
+  public void tearDown() {
+    SqsQueueUrlCache.clear();
+  }
+
+  @Test
+  public void testRenewSkipsUntrackedMessages() {
+    var client = new InMemorySqs();
+    try (var extender = new SqsVisibilityExtender(client, "source", 60)) {
+      var messages = messages(25);
+      extender.track(messages);
+      extender.untrack(messages.subList(0, 5));
+      extender.renew();
+      assertThat(client.visibility).hasSize(20).containsOnlyKeys(receipts(5, 25)).containsValue(60);
+      assertThat(client.visibilityBatchSizes).allMatch(size -> size <= 10);
+    }
+  }
+
+  @Test
+  public void testCloseReleasesWhatIsStillTracked() {
+    var client = new InMemorySqs();
+    var extender = new SqsVisibilityExtender(client, "source", 60);
+    extender.track(messages(12));
+    extender.close();
+    assertThat(client.visibility).hasSize(12).containsOnlyKeys(receipts(0, 12));
+    assertThat(client.visibility.values()).containsOnly(0);
+    assertThat(extender.inFlightCount()).isZero();
+  }
+
+  @Test
+  public void testMessagesSqsNoLongerKnowsAreDropped() {
+    var client = new InMemorySqs();
+    client.gone.add("receipt-3");
+    try (var extender = new SqsVisibilityExtender(client, "source", 60)) {
+      extender.track(messages(5));
+      extender.renew();
+      assertThat(extender.inFlightCount()).isEqualTo(4);
+    }
+  }
+
+  @Test
+  public void testBigRoundsAreRenewedInParallel() {
+    var client = new InMemorySqs();
+    client.latency = Duration.ofMillis(20);
+    try (var extender = new SqsVisibilityExtender(client, "source", 2)) {
+      extender.track(messages(1_000));
+      var start = System.nanoTime();
+      extender.renew();
+      // one batch after the other would take 100 x 20ms, over the 1s between rounds
+      assertThat(Duration.ofNanos(System.nanoTime() - start)).isLessThan(Duration.ofSeconds(1));
+      assertThat(client.maxConcurrent.get()).isGreaterThan(1);
+      assertThat(client.visibility).hasSize(1_000);
+    }
+  }
+
+  @Test
+  public void testLapsedMessagesAreAnError() {
+    var client = InMemorySqs.withMessages("source", 5);
+    try (var extender = new SqsVisibilityExtender(client, "source", 60)) {
+      // never received, so SQS says they are not in flight, as if their timeout ran out
+      extender.track(client.queue("source"));
+      extender.renew();
+      assertThat(extender.lapsedCount()).isEqualTo(5);
+      assertThat(extender.inFlightCount()).isZero();
+      assertThatThrownBy(extender::checkForLapses)
+          .isInstanceOf(IllegalStateException.class)
+          .hasMessageContaining("5 messages on source");
+    }
+  }
+
+  @Test
+  public void testMessagesAreOnlyKeptHiddenForSoLong() {
+    var client = new InMemorySqs();
+    try (var extender =
+        new SqsVisibilityExtender(client, "source", 60, Duration.ofSeconds(90))) {
+      extender.track(messages(5));
+      extender.renew(); // hidden until 60s after they were received
+      assertThat(extender.inFlightCount()).isEqualTo(5);
+    }
+    try (var extender =
+        new SqsVisibilityExtender(client, "source", 60, Duration.ofSeconds(30))) {
+      extender.track(messages(5));
+      extender.renew(); // another 60s would be past the 30s
+      assertThat(extender.inFlightCount()).isZero();
+      assertThat(extender.lapsedCount()).isZero();
+    }
+  }
+
+  private static List<Message> messages(int count) {
+    var messages = new ArrayList<Message>();
+    for (var i = 0; i < count; i++) {
+      messages.add(Message.builder().messageId("id-" + i).receiptHandle("receipt-" + i).build());
+    }
+    return messages;
+  }
+
+  private static List<String> receipts(int from, int to) {
+    var receipts = new ArrayList<String>();
+    for (var i = from; i < to; i++) {
+      receipts.add("receipt-" + i);
+    }
+    return receipts;
+  }
+}
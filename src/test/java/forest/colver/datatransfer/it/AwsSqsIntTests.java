@@ -531,13 +531,14 @@ class AwsSqsIntTests {
   }
 
   /**
-   * Put more than 100 messages on the first SQS, and then try a {@link
+   * Put more than 100 messages on the first SQS, and then do a {@link
    * forest.colver.datatransfer.aws.SqsOperations#sqsMoveMessagesWithSelectedAttribute(AwsCredentialsProvider,
-   * String, String, String, String) sqsMoveMessagesWithSelectedAttribute} and have it fail because
-   * the queue is too deep.
+   * String, String, String, String) sqsMoveMessagesWithSelectedAttribute}. This used to fail
+   * because the queue was too deep (the limit was hardcoded to 100), now the whole queue is scanned
+   * in one pass and the messages that were not moved are released right away.
    */
   @Test
-  void testSqsMoveSelectedMessagesQueueTooDeep() {
+  void testSqsMoveSelectedMessagesDeepQueue() {
     LOG.info("Interacting with: sqs={}; sqs={}", SQS1, SQS2);
     var creds = getEmxSbCreds();
     // Prep: clean the queues
@@ -549,7 +550,7 @@ class AwsSqsIntTests {
         Map.of("timestamp", getTimeStampFormatted(), "specificKey", "specificValue");
     sqsSend(creds, SQS1, getDefaultPayload(), specificProps);
     // send some generic messages
-    var numMsgs = 122; // sqsMoveMessagesWithSelectedAttribute() limit is currently hardcoded to 100
+    var numMsgs = 122; // more than the old hardcoded limit of 100
     for (var i = 0; i < numMsgs; i++) {
       var messageProps = Map.of("timestamp", getTimeStampFormatted(), "key" + i, "value" + i);
       sqsSend(creds, SQS1, getDefaultPayload(), messageProps);
@@ -559,14 +560,19 @@ class AwsSqsIntTests {
         .pollInterval(Duration.ofSeconds(6))
         .atMost(Duration.ofSeconds(60))
         .untilAsserted(() -> assertThat(sqsDepth(creds, SQS1)).isGreaterThanOrEqualTo(numMsgs + 1));
-    // move the specific messages and get a -1 result indicating the queue depth is too big
+    // move the specific message even though the queue is deep
     assertThat(
             sqsMoveMessagesWithSelectedAttribute(creds, SQS1, "specificKey", "specificValue", SQS2))
-        .isEqualTo(-1);
+        .isOne();
+    // the messages that were not moved are visible again
+    await()
+        .pollInterval(Duration.ofSeconds(3))
+        .atMost(Duration.ofSeconds(60))
+        .untilAsserted(() -> assertThat(sqsDepth(creds, SQS1)).isEqualTo(numMsgs));
 
     // Post: cleanup
     clearSqs(creds, SQS1);
-    clearSqs(creds, SQS2); // just in case
+    clearSqs(creds, SQS2);
   }
 
   @Test